@@ -0,0 +1,77 @@
+package w4160.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import w4160.engine.graphics.MeshData;
+import w4160.engine.graphics.OBJLoader;
+
+/**
+ * The position loops behind the mesh edits of {@link w4160.engine.graphics.Mesh}. The buffer upload
+ * that follows each edit needs a GL context and is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshTransformBenchmark {
+
+    @Param({ "sphere.obj", "monkey.obj" })
+    public String model;
+
+    private float[] positions;
+
+    private final Vector3f offset = new Vector3f(0.001f, -0.001f, 0.002f);
+
+    private final Vector3f axis = new Vector3f(0.3f, 1f, 0.2f);
+
+    private final Vector3f planePoint = new Vector3f(0f, 0f, 0f);
+
+    private final Vector3f planeNormal = new Vector3f(0f, 0f, 1f);
+
+    @Setup(Level.Iteration)
+    public void load() throws IOException {
+        MeshData data = OBJLoader.loadMeshData(Models.path(model));
+        positions = data.getPositions().clone();
+    }
+
+    @Benchmark
+    public float[] scale() {
+        MeshData.scale(positions, 1.0001f, 0.9999f, 1f);
+        return positions;
+    }
+
+    @Benchmark
+    public float[] translate() {
+        MeshData.translate(positions, offset);
+        return positions;
+    }
+
+    @Benchmark
+    public float[] rotate() {
+        MeshData.rotate(positions, axis, 1f);
+        return positions;
+    }
+
+    @Benchmark
+    public float[] reflect() {
+        MeshData.reflect(positions, planePoint, planeNormal);
+        return positions;
+    }
+}
@@ -0,0 +1,16 @@
+package w4160.bench;
+
+/**
+ * Location of the bundled models. The benchmarks run from the project directory by default;
+ * set the system property <code>w4160.models</code> to run them from elsewhere.
+ */
+final class Models {
+
+    private static final String MODEL_DIR = System.getProperty("w4160.models", "src/resources/models/");
+
+    private Models() {}
+
+    static String path(String model) {
+        return MODEL_DIR + model;
+    }
+}
@@ -0,0 +1,38 @@
+package w4160.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import w4160.engine.graphics.MeshData;
+import w4160.engine.graphics.OBJLoader;
+
+/**
+ * Parsing each bundled model and building its vertex arrays, without creating OpenGL buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjLoaderBenchmark {
+
+    @Param({ "cube.obj", "sphere.obj", "spot/spot.obj", "bob/bob.obj", "monkey.obj" })
+    public String model;
+
+    @Benchmark
+    public MeshData loadMeshData() throws IOException {
+        return OBJLoader.loadMeshData(Models.path(model));
+    }
+}
@@ -0,0 +1,84 @@
+package w4160.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import w4160.engine.graphics.ParallelPngWriter;
+import w4160.engine.graphics.PngEncoder;
+
+/**
+ * The pixel conversion and PNG encoding of a screenshot, fed with a synthetic frame instead of
+ * <code>glReadPixels</code>, with PNGJ on one thread and with the banded {@link ParallelPngWriter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngEncodeBenchmark {
+
+    @Param({ "600x480", "1920x1080", "3840x2160" })
+    public String resolution;
+
+    private int width;
+
+    private int height;
+
+    private ByteBuffer pixels;
+
+    private ByteArrayOutputStream out;
+
+    private final ParallelPngWriter parallelWriter = new ParallelPngWriter();
+
+    @Setup
+    public void setup() {
+        String[] parts = resolution.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        pixels = ByteBuffer.allocateDirect(width * height * 4);
+        // a shaded background with a noisy object in the middle, roughly as compressible as a frame
+        long seed = 4160;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                boolean object = Math.abs(x - width / 2) < width / 4 && Math.abs(y - height / 2) < height / 4;
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                int noise = object ? (int) (seed >>> 59) : 0;
+                pixels.put(i, (byte) (x * 255 / width + noise));
+                pixels.put(i + 1, (byte) (y * 255 / height + noise));
+                pixels.put(i + 2, (byte) (object ? 200 + noise : 40));
+                pixels.put(i + 3, (byte) 255);
+            }
+        }
+        out = new ByteArrayOutputStream(width * height * 4);
+    }
+
+    @Benchmark
+    public int encode() {
+        out.reset();
+        PngEncoder.encode(pixels, width, height, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeParallel() throws IOException {
+        out.reset();
+        parallelWriter.write(pixels, width, height, out);
+        return out.size();
+    }
+}
@@ -0,0 +1,68 @@
+package w4160.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import w4160.engine.GameItem;
+import w4160.engine.graphics.Camera;
+import w4160.engine.graphics.Transformation;
+
+/**
+ * The per-item model-view matrices computed by the renderer every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformationBenchmark {
+
+    @Param({ "100", "10000" })
+    public int itemCount;
+
+    private GameItem[] gameItems;
+
+    private Transformation transformation;
+
+    private Matrix4f viewMatrix;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(4160);
+        gameItems = new GameItem[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            // the mesh is not needed for the matrices
+            GameItem item = new GameItem(null);
+            item.setPosition(random.nextFloat() * 10 - 5, random.nextFloat() * 10 - 5, -random.nextFloat() * 10);
+            item.setRotation(random.nextFloat() * 360, random.nextFloat() * 360, random.nextFloat() * 360);
+            item.setScale(0.1f + random.nextFloat());
+            gameItems[i] = item;
+        }
+        transformation = new Transformation();
+        Camera camera = new Camera();
+        camera.setPosition(0.f, 0.f, 0.6f);
+        viewMatrix = new Matrix4f(transformation.getViewMatrix(camera));
+    }
+
+    @Benchmark
+    public void modelViewMatrices(Blackhole bh) {
+        for (GameItem gameItem : gameItems) {
+            bh.consume(transformation.getModelViewMatrix(gameItem, viewMatrix));
+        }
+    }
+}
@@ -41,7 +41,8 @@ uniform float specularPower;
 uniform Material material;
 uniform PointLight pointLight;
 uniform DirectionalLight directionalLight;
-uniform sampler2D texture_sampler;
+#include "clustered_lights.glsl"
+#include "material_texture.glsl"
 
 vec4 calcLightColour(vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
 {
@@ -108,9 +109,16 @@ void main()
         baseColour = vec4(material.colour, 1); 
     }
     else{ 
-        baseColour = texture(texture_sampler, outTexCoord);         
+        baseColour = materialTexture(outTexCoord);         
     }     
     vec4 totalLight = vec4(ambientLight, 1.0);
     totalLight += calcDirectionalLight(directionalLight, mvVertexPos, mvVertexNormal);
-    fragColor = baseColour * totalLight * calcPointLight(pointLight, mvVertexPos, mvVertexNormal); 
+    vec4 pointLightColour = calcPointLight(pointLight, mvVertexPos, mvVertexNormal);
+    if (clusterEnabled == 1) {
+        uvec2 cluster = clusterLights(mvVertexPos);
+        for (uint i = 0u; i < cluster.y; i++) {
+            pointLightColour += calcPointLight(clusterLight(cluster.x + i), mvVertexPos, mvVertexNormal);
+        }
+    }
+    fragColor = baseColour * totalLight * pointLightColour;
 }
\ No newline at end of file
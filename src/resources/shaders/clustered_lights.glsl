@@ -0,0 +1,48 @@
+// Clustered point lights, shared by the forward shaders through #include.
+// The view frustum is split into a 3D grid of clusters. For each cluster the renderer
+// uploads the range of light indices that can reach it, so a fragment only loops over
+// the lights of its own cluster. Expects the PointLight and Attenuation structs.
+
+uniform int clusterEnabled;
+// number of clusters along x, y and depth
+uniform ivec3 clusterGrid;
+// depth slice = log(-z) * clusterDepth.x + clusterDepth.y
+uniform vec2 clusterDepth;
+uniform mat4 clusterProjection;
+// 3 texels per light: position + intensity, colour + range, attenuation
+uniform samplerBuffer clusterLightData;
+// offset and count into clusterLightIndex for each cluster
+uniform usamplerBuffer clusterGridData;
+uniform usamplerBuffer clusterLightIndex;
+
+int clusterIndex(vec3 position)
+{
+    vec4 clip = clusterProjection * vec4(position, 1.0);
+    vec2 ndc = clip.xy / clip.w;
+    vec2 tile = clamp((ndc * 0.5 + 0.5) * vec2(clusterGrid.xy), vec2(0.0), vec2(clusterGrid.xy) - 1.0);
+    float slice = clamp(log(max(-position.z, 1e-6)) * clusterDepth.x + clusterDepth.y, 0.0, float(clusterGrid.z - 1));
+    return int(tile.x) + clusterGrid.x * (int(tile.y) + clusterGrid.y * int(slice));
+}
+
+// x: first entry in clusterLightIndex, y: number of lights
+uvec2 clusterLights(vec3 position)
+{
+    return texelFetch(clusterGridData, clusterIndex(position)).xy;
+}
+
+PointLight clusterLight(uint i)
+{
+    int index = int(texelFetch(clusterLightIndex, int(i)).x) * 3;
+    vec4 a = texelFetch(clusterLightData, index);
+    vec4 b = texelFetch(clusterLightData, index + 1);
+    vec4 c = texelFetch(clusterLightData, index + 2);
+
+    PointLight light;
+    light.position = a.xyz;
+    light.intensity = a.w;
+    light.colour = b.rgb;
+    light.att.constant = c.x;
+    light.att.linear = c.y;
+    light.att.exponent = c.z;
+    return light;
+}
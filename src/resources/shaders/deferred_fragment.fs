@@ -0,0 +1,157 @@
+#version 330
+
+out vec4 fragColor;
+
+struct Attenuation
+{
+    float constant;
+    float linear;
+    float exponent;
+};
+
+struct PointLight
+{
+    vec3 colour;
+    // Light position is assumed to be in view coordinates
+    vec3 position;
+    float intensity;
+    Attenuation att;
+};
+
+struct DirectionalLight
+{
+    vec3 colour;
+    vec3 direction;
+    float intensity;
+};
+
+uniform sampler2D gPosition;
+uniform sampler2D gNormal;
+uniform sampler2D gAlbedo;
+uniform sampler2D gMaterial;
+
+uniform vec3 ambientLight;
+uniform float specularPower;
+uniform PointLight pointLight;
+uniform DirectionalLight directionalLight;
+uniform vec3 uWarmColor;
+uniform vec3 uCoolColor;
+uniform float uDiffuseWarm;
+uniform float uDiffuseCool;
+#include "clustered_lights.glsl"
+
+// reflectance of the current fragment, read from the G-buffer
+float reflectance;
+
+vec4 calcLightColour(vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
+{
+    vec4 diffuseColour = vec4(0, 0, 0, 0);
+    vec4 specColour = vec4(0, 0, 0, 0);
+
+    // Diffuse Light
+    float diffuseFactor = max(dot(normal, to_light_dir), 0.0);
+    diffuseColour = vec4(light_colour, 1.0) * light_intensity * diffuseFactor;
+
+    // Specular Light
+    vec3 camera_direction = normalize(-position);
+    vec3 from_light_dir = -to_light_dir;
+    vec3 reflected_light = normalize(reflect(from_light_dir , normal));
+    float specularFactor = max( dot(camera_direction, reflected_light), 0.0);
+    specularFactor = pow(specularFactor, specularPower);
+    specColour = light_intensity  * specularFactor * reflectance * vec4(light_colour, 1.0);
+
+    return (diffuseColour + specColour);
+}
+
+// the banded diffuse term of cel_fragment.fs
+vec4 calcCelColour(vec3 light_colour, float light_intensity, vec3 to_light_dir, vec3 normal)
+{
+    float diffuseFactor = max(dot(normal, to_light_dir), 0.0);
+    if (light_intensity * diffuseFactor > 0.65){
+        return vec4(light_colour, 1.0) * 10.0;
+    }
+    else if (light_intensity * diffuseFactor > 0.4){
+        return vec4(light_colour, 1.0) * 8.0;
+    }
+    return vec4(light_colour, 1.0) * 5.0;
+}
+
+vec4 calcPointLight(PointLight light, vec3 position, vec3 normal, bool cel)
+{
+    vec3 light_direction = light.position - position;
+    vec3 to_light_dir  = normalize(light_direction);
+    vec4 light_colour = cel ? calcCelColour(light.colour, light.intensity, to_light_dir, normal)
+                            : calcLightColour(light.colour, light.intensity, position, to_light_dir, normal);
+
+    // Apply Attenuation
+    float distance = length(light_direction);
+    float attenuationInv = light.att.constant + light.att.linear * distance +
+        light.att.exponent * distance * distance;
+    return light_colour / attenuationInv;
+}
+
+vec4 calcDirectionalLight(DirectionalLight light, vec3 position, vec3 normal)
+{
+    return calcLightColour(light.colour, light.intensity, position, normalize(light.direction), normal);
+}
+
+vec4 calcClusteredLights(vec3 position, vec3 normal, bool cel)
+{
+    vec4 total = vec4(0, 0, 0, 0);
+    if (clusterEnabled == 1) {
+        uvec2 cluster = clusterLights(position);
+        for (uint i = 0u; i < cluster.y; i++) {
+            total += calcPointLight(clusterLight(cluster.x + i), position, normal, cel);
+        }
+    }
+    return total;
+}
+
+// gooch_vertex.vs and gooch_fragment.fs evaluated per pixel
+vec4 calcGooch(vec3 colour, vec3 position, vec3 normal)
+{
+    vec3 lightDir = normalize(pointLight.position - position);
+    float NdotL = dot(normal, lightDir) * 0.5 + 0.5;
+    vec3 kcool = min(uCoolColor + uDiffuseCool * colour, 1.0);
+    vec3 kwarm = min(uWarmColor + uDiffuseWarm * colour, 1.0);
+    vec3 kfinal = mix(kcool, kwarm, NdotL);
+
+    vec3 nreflect = normalize(reflect(-lightDir, normal));
+    vec3 nview = normalize(-position);
+    float spec = pow(max(dot(nreflect, nview), 0.0), 32.0);
+    return vec4(min(kfinal + spec, 1.0), 1.0);
+}
+
+void main()
+{
+    ivec2 coord = ivec2(gl_FragCoord.xy);
+    vec4 normalSample = texelFetch(gNormal, coord, 0);
+    if (normalSample.w == 0.0) {
+        // nothing was drawn here
+        discard;
+    }
+    vec3 position = texelFetch(gPosition, coord, 0).xyz;
+    vec3 normal = normalSample.xyz;
+    vec4 baseColour = texelFetch(gAlbedo, coord, 0);
+    vec4 materialSample = texelFetch(gMaterial, coord, 0);
+    reflectance = materialSample.x;
+    int model = int(materialSample.y * 255.0 + 0.5);
+
+    if (model == 1) {
+        fragColor = calcGooch(baseColour.rgb, position, normal);
+    }
+    else if (model == 2) {
+        vec4 totalLight = vec4(ambientLight, 1.0);
+        totalLight += calcDirectionalLight(directionalLight, position, normal);
+        vec4 pointLightColour = calcPointLight(pointLight, position, normal, true);
+        pointLightColour += calcClusteredLights(position, normal, true);
+        fragColor = baseColour * totalLight * pointLightColour;
+    }
+    else {
+        vec4 totalLight = vec4(ambientLight, 1.0);
+        totalLight += calcDirectionalLight(directionalLight, position, normal);
+        totalLight += calcPointLight(pointLight, position, normal, false);
+        totalLight += calcClusteredLights(position, normal, false);
+        fragColor = baseColour * totalLight;
+    }
+}
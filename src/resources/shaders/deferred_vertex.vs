@@ -0,0 +1,8 @@
+#version 330
+
+// Fullscreen triangle generated from gl_VertexID, drawn without vertex buffers.
+void main()
+{
+    vec2 pos = vec2(float((gl_VertexID << 1) & 2), float(gl_VertexID & 2));
+    gl_Position = vec4(pos * 2.0 - 1.0, 0.0, 1.0);
+}
@@ -0,0 +1,39 @@
+#version 330
+
+in vec2 outTexCoord;
+in vec3 mvVertexNormal;
+in vec3 mvVertexPos;
+
+// G-buffer attachments, see GBuffer.java
+layout (location=0) out vec4 gPosition;
+layout (location=1) out vec4 gNormal;
+layout (location=2) out vec4 gAlbedo;
+layout (location=3) out vec4 gMaterial;
+
+struct Material
+{
+    vec3 colour;
+    int useColour;
+    float reflectance;
+};
+
+uniform Material material;
+#include "material_texture.glsl"
+// lighting model evaluated in the lighting pass: 0 phong, 1 gooch, 2 cel
+uniform int shadingModel;
+
+void main()
+{
+    vec4 baseColour;
+    if (material.useColour == 1){
+        baseColour = vec4(material.colour, 1);
+    }
+    else{
+        baseColour = materialTexture(outTexCoord);
+    }
+
+    gPosition = vec4(mvVertexPos, 1.0);
+    gNormal = vec4(normalize(mvVertexNormal), 1.0);
+    gAlbedo = baseColour;
+    gMaterial = vec4(material.reflectance, float(shadingModel) / 255.0, 0.0, 1.0);
+}
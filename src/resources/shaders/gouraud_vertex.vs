@@ -42,6 +42,7 @@ uniform float specularPower;
 uniform Material material;
 uniform PointLight pointLight;
 uniform DirectionalLight directionalLight;
+#include "clustered_lights.glsl"
 
 vec4 calcLightColour(vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
 {
@@ -92,6 +93,12 @@ void main()
     vec4 totalLight = vec4(ambientLight, 1.0);
     totalLight += calcDirectionalLight(directionalLight, mvVertexPos, mvVertexNormal);
     totalLight += calcPointLight(pointLight, mvVertexPos, mvVertexNormal); 
+    if (clusterEnabled == 1) {
+        uvec2 cluster = clusterLights(mvVertexPos);
+        for (uint i = 0u; i < cluster.y; i++) {
+            totalLight += calcPointLight(clusterLight(cluster.x + i), mvVertexPos, mvVertexNormal);
+        }
+    }
     
     mvVertexColor = baseColour * totalLight;
 }
\ No newline at end of file
@@ -0,0 +1,16 @@
+// Texture of a textured material, shared by the forward and G-buffer shaders through #include.
+// A material samples either its own texture or one layer of a texture array, so items whose
+// textures share an array are drawn without texture binds in between.
+
+uniform sampler2D texture_sampler;
+uniform sampler2DArray texture_array;
+// layer of texture_array to sample, -1 to sample texture_sampler
+uniform int texture_layer;
+
+vec4 materialTexture(vec2 texCoord)
+{
+    if (texture_layer < 0) {
+        return texture(texture_sampler, texCoord);
+    }
+    return texture(texture_array, vec3(texCoord, float(texture_layer)));
+}
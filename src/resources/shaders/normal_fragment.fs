@@ -41,7 +41,7 @@ uniform float specularPower;
 uniform Material material;
 uniform PointLight pointLight;
 uniform DirectionalLight directionalLight;
-uniform sampler2D texture_sampler;
+#include "material_texture.glsl"
 
 vec4 calcLightColour(vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
 {
@@ -90,7 +90,7 @@ void main()
         vertexNormal = mvVertexNormal;
 	}
 	else{ 
-		baseColour = texture(texture_sampler, outTexCoord); 
+		baseColour = materialTexture(outTexCoord); 
         vertexNormal = mvVertexNormal + baseColour.xyz;        
 	}     
     vec4 totalLight = vec4(ambientLight, 1.0);
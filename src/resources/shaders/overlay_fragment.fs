@@ -0,0 +1,10 @@
+#version 330
+
+out vec4 fragColor;
+
+uniform vec3 colour;
+
+void main()
+{
+    fragColor = vec4(colour, 1.0);
+}
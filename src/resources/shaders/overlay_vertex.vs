@@ -0,0 +1,13 @@
+#version 330
+
+// Text quads from stb_easy_font, in pixels from the top left corner
+layout (location=0) in vec2 position;
+
+uniform vec2 screenSize;
+uniform float scale;
+
+void main()
+{
+    vec2 pos = position * scale / screenSize;
+    gl_Position = vec4(pos.x * 2.0 - 1.0, 1.0 - pos.y * 2.0, 0.0, 1.0);
+}
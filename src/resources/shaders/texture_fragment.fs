@@ -41,7 +41,8 @@ uniform float specularPower;
 uniform Material material;
 uniform PointLight pointLight;
 uniform DirectionalLight directionalLight;
-uniform sampler2D texture_sampler;
+#include "clustered_lights.glsl"
+#include "material_texture.glsl"
 
 vec4 calcLightColour(vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
 {
@@ -88,11 +89,17 @@ void main()
 		baseColour = vec4(material.colour, 1);  
 	}
 	else{ 
-		baseColour = texture(texture_sampler, outTexCoord);         
+		baseColour = materialTexture(outTexCoord);         
 	}     
     vec4 totalLight = vec4(ambientLight, 1.0);
     totalLight += calcDirectionalLight(directionalLight, mvVertexPos, mvVertexNormal);
     totalLight += calcPointLight(pointLight, mvVertexPos, mvVertexNormal); 
+    if (clusterEnabled == 1) {
+        uvec2 cluster = clusterLights(mvVertexPos);
+        for (uint i = 0u; i < cluster.y; i++) {
+            totalLight += calcPointLight(clusterLight(cluster.x + i), mvVertexPos, mvVertexNormal);
+        }
+    }
     
     fragColor = baseColour * totalLight;
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+#version 330
+
+in vec2 outTexCoord;
+
+out vec4 fragColor;
+
+// scene drawn at reduced resolution into the lower left part of the texture, see DynamicResolution.java
+uniform sampler2D sceneTexture;
+// size of the drawn part in texture coordinates
+uniform vec2 uvScale;
+uniform vec2 texelSize;
+// 0 for a plain bilinear upscale, 1 for the strongest sharpening
+uniform float sharpness;
+
+void main()
+{
+    // keep every tap inside the drawn part, so the unused rest of the texture does not bleed in
+    vec2 lo = 0.5 * texelSize;
+    vec2 hi = uvScale - 0.5 * texelSize;
+    vec2 uv = clamp(outTexCoord * uvScale, lo, hi);
+
+    vec3 c = texture(sceneTexture, uv).rgb;
+    vec3 n = texture(sceneTexture, clamp(uv + vec2(0.0, texelSize.y), lo, hi)).rgb;
+    vec3 s = texture(sceneTexture, clamp(uv - vec2(0.0, texelSize.y), lo, hi)).rgb;
+    vec3 e = texture(sceneTexture, clamp(uv + vec2(texelSize.x, 0.0), lo, hi)).rgb;
+    vec3 w = texture(sceneTexture, clamp(uv - vec2(texelSize.x, 0.0), lo, hi)).rgb;
+
+    // unsharp mask, limited to the range of the neighbourhood so edges do not ring
+    vec3 sharpened = c + sharpness * (c - 0.25 * (n + s + e + w));
+    vec3 mn = min(c, min(min(n, s), min(e, w)));
+    vec3 mx = max(c, max(max(n, s), max(e, w)));
+    fragColor = vec4(clamp(sharpened, mn, mx), 1.0);
+}
@@ -0,0 +1,91 @@
+package w4160.engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A linear allocator of floats for data that lives for one frame, such as the outputs of the jobs
+ * of a {@link JobSystem}. Allocating only moves an offset forward and {@link #reset()} frees
+ * everything at once.
+ *
+ * <p>
+ * Any thread may allocate. Allocations start on a cache line of their own, so jobs writing to
+ * neighbouring blocks do not slow each other down. The array is never replaced during a frame, as
+ * jobs may be writing to it: an allocation that does not fit fails, and the next reset grows the
+ * array to what the frame asked for.
+ * </p>
+ */
+public class FrameAllocator {
+
+    /** Floats per 64-byte cache line */
+    private static final int ALIGNMENT = 16;
+
+    private float[] floats;
+
+    private final AtomicInteger top = new AtomicInteger();
+
+    /** Floats the frame asked for, including failed allocations */
+    private final AtomicInteger requested = new AtomicInteger();
+
+    private int highWater;
+
+    private long failed;
+
+    public FrameAllocator(int capacity) {
+        floats = new float[capacity];
+    }
+
+    /**
+     * @return the offset of <code>count</code> floats in {@link #getFloats()}, or -1 if they do not fit
+     */
+    public int allocate(int count) {
+        int size = (count + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        requested.addAndGet(size);
+        while (true) {
+            int offset = top.get();
+            if (offset + size > floats.length) {
+                synchronized (this) {
+                    failed++;
+                }
+                return -1;
+            }
+            if (top.compareAndSet(offset, offset + size)) {
+                return offset;
+            }
+        }
+    }
+
+    /**
+     * @return the array the offsets refer to, which only changes in {@link #reset()}
+     */
+    public float[] getFloats() {
+        return floats;
+    }
+
+    /**
+     * Free every allocation of the frame, growing the array if the frame did not fit. Must not be
+     * called while the memory is in use.
+     */
+    public void reset() {
+        int used = requested.getAndSet(0);
+        highWater = Math.max(highWater, used);
+        if (used > floats.length) {
+            floats = new float[Math.max(used, floats.length + floats.length / 2)];
+        }
+        top.set(0);
+    }
+
+    public int getCapacity() {
+        return floats.length;
+    }
+
+    public int getUsed() {
+        return top.get();
+    }
+
+    public String report() {
+        synchronized (this) {
+            return String.format("%d of %d kB at most, %d failed", highWater * 4 / 1024, floats.length * 4 / 1024,
+                    failed);
+        }
+    }
+}
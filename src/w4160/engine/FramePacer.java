@@ -0,0 +1,205 @@
+package w4160.engine;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the game loop to a target frame period when the display does not.
+ *
+ * <p>
+ * {@link Mode#PRECISE} waits for absolute deadlines, one period apart, so waiting late in one frame
+ * does not push back the following ones. It parks the thread until shortly before the deadline and
+ * spins the rest of the way. How early it stops parking is calibrated while running from how far
+ * the parks overshoot. {@link Mode#SLEEP} is the old loop, sleeping 1 ms at a time until one period
+ * after the previous frame, kept to compare against.
+ * </p>
+ *
+ * <p>
+ * {@link Mode#ADAPTIVE} relies on vsync while the frames fit into the refresh interval. When they
+ * stop fitting, it turns vsync off and paces precisely at the refresh rate, so a slow frame tears
+ * instead of waiting a whole extra refresh. Every mode records the deviation of the frame intervals
+ * from the period, the pacing jitter, for {@link #report()}, and tells each frame whether it missed
+ * its presentation deadline.
+ * </p>
+ */
+public class FramePacer {
+
+    public enum Mode {
+        /** The display paces the frames, nothing is waited for */
+        VSYNC,
+        /** Thread.sleep(1) until one period after the previous frame */
+        SLEEP,
+        /** Park and spin until an absolute deadline */
+        PRECISE,
+        /** Vsync while frames fit the refresh interval, precise pacing without vsync while they do not */
+        ADAPTIVE
+    }
+
+    /** Bounds of the time spun before a deadline */
+    private static final long MIN_SPIN_NANOS = 50_000;
+
+    private static final long MAX_SPIN_NANOS = 2_000_000;
+
+    /** Frames over which the adaptive mode averages the frame work */
+    private static final int ADAPTIVE_WINDOW = 30;
+
+    private final Mode mode;
+
+    private final long periodNanos;
+
+    private long deadline;
+
+    private long lastFrame;
+
+    /** Time before a deadline at which parking stops and spinning starts */
+    private long spinNanos = 1_000_000;
+
+    private boolean vsync;
+
+    private int vsyncSwitches;
+
+    private long workSum;
+
+    private int workFrames;
+
+    private final LatencyHistogram intervalJitter = new LatencyHistogram("pacing jitter");
+
+    private final LatencyHistogram wakeLateness = new LatencyHistogram("wake late");
+
+    /**
+     * @param periodNanos the target frame time; for the adaptive mode the refresh interval
+     */
+    public FramePacer(Mode mode, long periodNanos) {
+        this.mode = mode;
+        this.periodNanos = periodNanos;
+        this.vsync = mode == Mode.VSYNC || mode == Mode.ADAPTIVE;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return whether vsync should be on, which the adaptive mode changes while running
+     */
+    public boolean isVsync() {
+        return vsync;
+    }
+
+    /**
+     * Start timing from now; the first deadline is one period away.
+     */
+    public void start() {
+        lastFrame = System.nanoTime();
+        deadline = lastFrame + periodNanos;
+    }
+
+    /**
+     * Wait until the next frame is due, unless vsync does that, and record the pacing.
+     *
+     * <p>
+     * Without vsync a frame misses its deadline when it is done after the time it was due at. With
+     * vsync the swap returns at the refresh that showed the frame, and a frame that missed its
+     * refresh returns a whole interval after its deadline.
+     * </p>
+     *
+     * @param workNanos the time the frame took to produce, not counting the buffer swap
+     * @return whether the frame missed its presentation deadline
+     */
+    public boolean endFrame(long workNanos) {
+        boolean missed;
+        if (vsync) {
+            missed = System.nanoTime() > deadline + periodNanos / 2;
+        } else {
+            long target = mode == Mode.SLEEP ? lastFrame + periodNanos : deadline;
+            missed = System.nanoTime() > target;
+            if (mode == Mode.SLEEP) {
+                sleepUntil(target);
+            } else {
+                waitUntil(target);
+            }
+        }
+        long now = System.nanoTime();
+        intervalJitter.record(Math.abs(now - lastFrame - periodNanos));
+        lastFrame = now;
+        if (vsync) {
+            // the display keeps the time: the next refresh is one interval after this one
+            deadline = now + periodNanos;
+        } else {
+            deadline += periodNanos;
+            if (now > deadline) {
+                // more than a frame behind: start over rather than rush frames out to catch up
+                deadline = now + periodNanos;
+            }
+        }
+        if (mode == Mode.ADAPTIVE) {
+            adapt(workNanos);
+        }
+        return missed;
+    }
+
+    private void sleepUntil(long target) {
+        while (System.nanoTime() < target) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ie) {
+            }
+        }
+        wakeLateness.record(System.nanoTime() - target);
+    }
+
+    private void waitUntil(long target) {
+        while (true) {
+            long remaining = target - System.nanoTime();
+            if (remaining <= spinNanos) {
+                break;
+            }
+            long request = remaining - spinNanos;
+            long before = System.nanoTime();
+            LockSupport.parkNanos(request);
+            long overshoot = System.nanoTime() - before - request;
+            // follow a larger overshoot at once, shrink back slowly
+            spinNanos = Math.max(MIN_SPIN_NANOS, Math.min(MAX_SPIN_NANOS,
+                    Math.max(overshoot + MIN_SPIN_NANOS, spinNanos - spinNanos / 64)));
+        }
+        while (System.nanoTime() < target) {
+            Thread.onSpinWait();
+        }
+        wakeLateness.record(System.nanoTime() - target);
+    }
+
+    private void adapt(long workNanos) {
+        workSum += workNanos;
+        if (++workFrames < ADAPTIVE_WINDOW) {
+            return;
+        }
+        long mean = workSum / workFrames;
+        workSum = 0;
+        workFrames = 0;
+        // hysteresis, so a scene right at the limit does not switch every window
+        if (vsync && mean > periodNanos * 95 / 100) {
+            vsync = false;
+            vsyncSwitches++;
+            deadline = System.nanoTime() + periodNanos;
+        } else if (!vsync && mean < periodNanos * 80 / 100) {
+            vsync = true;
+            vsyncSwitches++;
+        }
+    }
+
+    public LatencyHistogram getIntervalJitter() {
+        return intervalJitter;
+    }
+
+    public long getSpinNanos() {
+        return spinNanos;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("FramePacer: %s at %.1f fps, spin %.3f ms, %d vsync switches%n",
+                mode.name().toLowerCase(), 1e9 / periodNanos, spinNanos / 1e6, vsyncSwitches));
+        sb.append(intervalJitter.summary()).append('\n');
+        sb.append(wakeLateness.summary());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,128 @@
+package w4160.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms of the phases of the game loop.
+ *
+ * <p>
+ * {@link GameEngine} records the time spent in each {@link Phase} of every frame, the number of fixed
+ * update steps the accumulator forced and the whole frame time measured from one frame start to the
+ * next. The missed deadlines are those the {@link FramePacer} reports against its absolute
+ * presentation deadlines, as the time from one frame start to the next jitters around the period
+ * even while every frame is on time. The input
+ * latency runs from the arrival of the oldest input event a frame applied to the swap of its buffers.
+ * </p>
+ */
+public class FrameStats {
+
+    /**
+     * The phases of one iteration of the game loop.
+     */
+    public enum Phase {
+        /** Polling the mouse and {@link IControlLogic#input}, on the update thread when it has one */
+        INPUT,
+        /** All fixed steps of {@link IControlLogic#update} in this frame, or in one wake-up of the update thread */
+        UPDATE,
+        /** {@link IControlLogic#render} */
+        RENDER,
+        /** {@link Window#update()}: buffer swap and event polling */
+        SWAP,
+        /** Frame start to the next frame start, including the frame rate sync */
+        FRAME
+    }
+
+    private final LatencyHistogram[] histograms;
+
+    /** Number of fixed update steps per frame, recorded as plain counts */
+    private final LatencyHistogram updateSteps;
+
+    /** Arrival of the oldest input event applied in a frame to the buffer swap of that frame */
+    private final LatencyHistogram inputLatency;
+
+    private final AtomicLong missedDeadlines = new AtomicLong();
+
+    private final long deadlineNanos;
+
+    /**
+     * @param deadlineNanos the target frame time
+     */
+    public FrameStats(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        histograms = new LatencyHistogram[Phase.values().length];
+        for (Phase phase : Phase.values()) {
+            histograms[phase.ordinal()] = new LatencyHistogram(phase.name().toLowerCase());
+        }
+        updateSteps = new LatencyHistogram("update steps");
+        inputLatency = new LatencyHistogram("input to present");
+    }
+
+    public void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Count a frame that missed its presentation deadline.
+     */
+    public void recordMissedDeadline() {
+        missedDeadlines.incrementAndGet();
+    }
+
+    public void recordUpdateSteps(int steps) {
+        updateSteps.record(steps);
+    }
+
+    public void recordInputLatency(long nanos) {
+        inputLatency.record(nanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    public LatencyHistogram getUpdateSteps() {
+        return updateSteps;
+    }
+
+    public LatencyHistogram getInputLatency() {
+        return inputLatency;
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * @return the number of frames that missed their presentation deadline
+     */
+    public long getMissedDeadlines() {
+        return missedDeadlines.get();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        updateSteps.reset();
+        inputLatency.reset();
+        missedDeadlines.set(0);
+    }
+
+    /**
+     * @return one line per phase, followed by the input latency, update steps and missed deadlines
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (LatencyHistogram histogram : histograms) {
+            sb.append(histogram.summary()).append('\n');
+        }
+        sb.append(inputLatency.summary()).append('\n');
+        sb.append(String.format("update steps per frame: p50=%d p99=%d max=%d%n",
+                updateSteps.getValueAtPercentile(50), updateSteps.getValueAtPercentile(99), updateSteps.getMax()));
+        long frames = getHistogram(Phase.FRAME).getCount();
+        sb.append(String.format("missed presentation deadlines (%.2f ms period): %d of %d frames (%.2f%%)",
+                deadlineNanos / 1e6, getMissedDeadlines(), frames,
+                frames == 0 ? 0.0 : 100.0 * getMissedDeadlines() / frames));
+        return sb.toString();
+    }
+}
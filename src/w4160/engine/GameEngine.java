@@ -1,5 +1,9 @@
 package w4160.engine;
 
+import java.util.concurrent.locks.LockSupport;
+
+import w4160.engine.jfr.FrameEvent;
+
 /**
  * This class encapsulates the basic logic for controls an OpenGL display.
  * 
@@ -13,6 +17,9 @@ public class GameEngine implements Runnable {
     /** how many update per second */
     public static final int TARGET_UPS = 30;
 
+    /** Update steps run at once by the update thread before it gives up catching up */
+    private static final int MAX_CATCH_UP_STEPS = 5;
+
     private final Window window;
 
     private final Thread gameLoopThread;
@@ -23,6 +30,29 @@ public class GameEngine implements Runnable {
 
     private final MouseInput mouseInput;
 
+    private FrameStats frameStats;
+
+    private long renderNanos;
+
+    private long swapNanos;
+
+    private boolean threadedUpdate;
+
+    /** Pacing requested before start, null to follow the vSync flag of the window */
+    private FramePacer.Mode pacingMode;
+
+    private FramePacer framePacer;
+
+    private volatile boolean updating;
+
+    private TripleBuffer<SceneSnapshot> snapshots;
+
+    private JobSystem jobSystem;
+
+    private boolean latencyTracking;
+
+    private LatencyTracker latencyTracker;
+
     public GameEngine(String windowTitle, int width, int height, boolean vSync, IControlLogic gameLogic) throws Exception {
         gameLoopThread = new Thread(this, "GAME_LOOP_THREAD");
         window = new Window(windowTitle, width, height, vSync);
@@ -31,6 +61,61 @@ public class GameEngine implements Runnable {
         timer = new Timer();
     }
 
+    /**
+     * Run the updates on a thread of their own, so a slow update does not delay rendering. Only
+     * takes effect for an {@link ISnapshotLogic}; must be set before {@link #start()}.
+     */
+    public void setThreadedUpdate(boolean threadedUpdate) {
+        this.threadedUpdate = threadedUpdate;
+    }
+
+    public boolean isThreadedUpdate() {
+        return threadedUpdate;
+    }
+
+    /**
+     * Select how frames are paced. Without a mode, frames are paced by vsync if the window was
+     * created with it and by {@link FramePacer.Mode#PRECISE} otherwise. Must be set before
+     * {@link #start()}.
+     */
+    public void setPacingMode(FramePacer.Mode pacingMode) {
+        this.pacingMode = pacingMode;
+    }
+
+    /**
+     * Start a frame of the given job system before every render, and print its report and shut it
+     * down when the engine stops. The game logic decides which of its stages use it.
+     */
+    public void setJobSystem(JobSystem jobSystem) {
+        this.jobSystem = jobSystem;
+    }
+
+    public JobSystem getJobSystem() {
+        return jobSystem;
+    }
+
+    /**
+     * Measure the latency from input events to the screen with a {@link LatencyTracker}, which
+     * prints its report when the engine stops. Must be set before {@link #start()}.
+     */
+    public void setLatencyTracking(boolean latencyTracking) {
+        this.latencyTracking = latencyTracking;
+    }
+
+    /**
+     * @return the latency tracker, or null if latency is not tracked or the engine is not initialized
+     */
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * @return the frame pacer, or null before the engine is initialized
+     */
+    public FramePacer getFramePacer() {
+        return framePacer;
+    }
+
     public void start() {
         String osName = System.getProperty("os.name");
         if ( osName.contains("Mac") ) {
@@ -57,55 +142,297 @@ public class GameEngine implements Runnable {
     }
 
     protected void init() throws Exception {
+        FramePacer.Mode mode = pacingMode != null ? pacingMode
+                : window.isvSync() ? FramePacer.Mode.VSYNC : FramePacer.Mode.PRECISE;
+        boolean displayPaced = mode == FramePacer.Mode.VSYNC || mode == FramePacer.Mode.ADAPTIVE;
+        window.setvSync(displayPaced);
         window.init();
         timer.init();
+        // with vSync the frames are paced by the display instead of TARGET_FPS
+        int fps = displayPaced && window.getRefreshRate() > 0 ? window.getRefreshRate() : TARGET_FPS;
+        frameStats = new FrameStats(1_000_000_000L / fps);
+        framePacer = new FramePacer(mode, 1_000_000_000L / fps);
         mouseInput.init(window);
+        if (latencyTracking) {
+            boolean threaded = threadedUpdate && gameLogic instanceof ISnapshotLogic;
+            latencyTracker = new LatencyTracker(String.format("%s pacing at %d fps, %s update",
+                    mode.name().toLowerCase(), fps, threaded ? "threaded" : "single-threaded"));
+            mouseInput.setLatencyTracker(latencyTracker);
+        }
         gameLogic.init(window);
     }
 
     protected void gameLoop() {
+        if (threadedUpdate) {
+            if (gameLogic instanceof ISnapshotLogic) {
+                threadedGameLoop((ISnapshotLogic) gameLogic);
+                return;
+            }
+            System.out.println("GameEngine: " + gameLogic.getClass().getSimpleName()
+                    + " does not write snapshots, updating on the render thread");
+        }
         float elapsedTime;
         float accumulator = 0f;
         float interval = 1f / TARGET_UPS;
 
         boolean running = true;
+        framePacer.start();
+        long frameStart = System.nanoTime();
+        long frame = 0;
+        FrameEvent event = new FrameEvent();
+        event.begin();
         while (running && !window.windowShouldClose()) {
             elapsedTime = timer.getElapsedTime();
             accumulator += elapsedTime;
 
+            long start = System.nanoTime();
             input();
+            long end = System.nanoTime();
+            frameStats.record(FrameStats.Phase.INPUT, end - start);
+            long inputNanos = end - start;
 
+            start = end;
+            int steps = 0;
             while (accumulator >= interval) {
                 update(interval);
                 accumulator -= interval;
+                steps++;
+            }
+            if (latencyTracker != null && steps > 0) {
+                latencyTracker.updated(0);
             }
+            end = System.nanoTime();
+            frameStats.record(FrameStats.Phase.UPDATE, end - start);
+            frameStats.recordUpdateSteps(steps);
+            long updateNanos = end - start;
 
             render();
 
-            if ( !window.isvSync() ) {
-                sync();
+            pace(inputNanos + updateNanos + renderNanos);
+
+            long frameEnd = System.nanoTime();
+            frameStats.record(FrameStats.Phase.FRAME, frameEnd - frameStart);
+            frameStart = frameEnd;
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.frame = frame;
+                event.input = inputNanos;
+                event.update = updateNanos;
+                event.updateSteps = steps;
+                event.render = renderNanos;
+                event.swap = swapNanos;
+                event.commit();
             }
+            frame++;
+            event = new FrameEvent();
+            event.begin();
+        }
+    }
+
+    /**
+     * The render side of the two-thread model. Event polling and rendering run here, the input and
+     * updates on the <code>UPDATE_THREAD</code>, which publishes a snapshot after its steps. The
+     * callbacks of the polled events only queue them, so the threads share no lock: the render
+     * thread takes the latest snapshot and draws the blend of the last two at one update interval in
+     * the past, so motion stays smooth whatever the render rate.
+     */
+    private void threadedGameLoop(ISnapshotLogic logic) {
+        long intervalNanos = 1_000_000_000L / TARGET_UPS;
+        snapshots = new TripleBuffer<>(SceneSnapshot::new);
+        SceneSnapshot previous = new SceneSnapshot();
+        SceneSnapshot current = new SceneSnapshot();
+        SceneSnapshot blended = new SceneSnapshot();
+
+        // the first snapshot is written before any update, so there is always something to draw
+        logic.writeSnapshot(snapshots.getBack());
+        snapshots.getBack().setTime(System.nanoTime());
+        snapshots.publish();
+        snapshots.update();
+        previous.set(snapshots.getFront());
+        current.set(snapshots.getFront());
+
+        updating = true;
+        Thread updateThread = new Thread(() -> updateLoop(logic, intervalNanos), "UPDATE_THREAD");
+        updateThread.start();
+        try {
+            framePacer.start();
+            long frameStart = System.nanoTime();
+            long frame = 0;
+            FrameEvent event = new FrameEvent();
+            event.begin();
+            while (!window.windowShouldClose()) {
+                timer.getElapsedTime();
+
+                // the oldest input of a new snapshot, which this frame is the first to present
+                long inputTime = 0;
+                if (snapshots.update()) {
+                    SceneSnapshot tmp = previous;
+                    previous = current;
+                    current = tmp;
+                    current.set(snapshots.getFront());
+                    inputTime = current.getInputTime();
+                }
+                long end = System.nanoTime();
+                // the remainder of the update interval since the latest step
+                long span = current.getTime() - previous.getTime();
+                float alpha = span > 0
+                        ? Math.min(1f, Math.max(0f, (float) (end - intervalNanos - previous.getTime()) / span)) : 1f;
+                blended.interpolate(previous, current, alpha);
+
+                long start = System.nanoTime();
+                if (jobSystem != null) {
+                    jobSystem.beginFrame();
+                }
+                logic.render(window, blended);
+                long rendered = System.nanoTime();
+                window.swapBuffers();
+                long swapped = System.nanoTime();
+                if (inputTime != 0) {
+                    frameStats.recordInputLatency(swapped - inputTime);
+                }
+                if (latencyTracker != null) {
+                    latencyTracker.swapped(current.getTime());
+                }
+                window.pollEvents();
+                renderNanos = rendered - start;
+                swapNanos = System.nanoTime() - rendered;
+                frameStats.record(FrameStats.Phase.RENDER, renderNanos);
+                frameStats.record(FrameStats.Phase.SWAP, swapNanos);
+
+                pace(rendered - frameStart);
+
+                long frameEnd = System.nanoTime();
+                frameStats.record(FrameStats.Phase.FRAME, frameEnd - frameStart);
+                frameStart = frameEnd;
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.frame = frame;
+                    event.render = renderNanos;
+                    event.swap = swapNanos;
+                    event.commit();
+                }
+                frame++;
+                event = new FrameEvent();
+                event.begin();
+            }
+        } finally {
+            updating = false;
+            LockSupport.unpark(updateThread);
+            try {
+                updateThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run the fixed update steps that are due, each after the input queued since the last one,
+     * publish a snapshot after them and sleep until the next step. If the updates fall behind by
+     * more than {@link #MAX_CATCH_UP_STEPS} steps the missed time is dropped instead of being made
+     * up.
+     */
+    private void updateLoop(ISnapshotLogic logic, long intervalNanos) {
+        float interval = 1f / TARGET_UPS;
+        long next = System.nanoTime() + intervalNanos;
+        while (updating) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            int steps = 0;
+            long inputNanos = 0;
+            long inputTime = 0;
+            while (now >= next && steps < MAX_CATCH_UP_STEPS) {
+                long start = System.nanoTime();
+                input();
+                long oldest = mouseInput.getOldestEventTime();
+                if (oldest != 0 && (inputTime == 0 || oldest < inputTime)) {
+                    inputTime = oldest;
+                }
+                inputNanos += System.nanoTime() - start;
+                update(interval);
+                next += intervalNanos;
+                steps++;
+            }
+            SceneSnapshot snapshot = snapshots.getBack();
+            logic.writeSnapshot(snapshot);
+            snapshot.setTime(next - intervalNanos);
+            snapshot.setInputTime(inputTime);
+            if (latencyTracker != null) {
+                latencyTracker.updated(snapshot.getTime());
+            }
+            snapshots.publish();
+            if (now >= next) {
+                next = now + intervalNanos;
+            }
+            frameStats.record(FrameStats.Phase.INPUT, inputNanos);
+            frameStats.record(FrameStats.Phase.UPDATE, System.nanoTime() - now - inputNanos);
+            frameStats.recordUpdateSteps(steps);
         }
     }
 
     protected void cleanup() {
         gameLogic.cleanup();                
+        if (frameStats != null) {
+            System.out.println("Frame statistics:");
+            System.out.println(frameStats.report());
+        }
+        if (framePacer != null) {
+            System.out.println(framePacer.report());
+        }
+        if (latencyTracker != null) {
+            System.out.println(latencyTracker.report());
+            latencyTracker.cleanup();
+        }
+        if (jobSystem != null) {
+            System.out.println(jobSystem.report());
+            jobSystem.shutdown();
+        }
+    }
+
+    /**
+     * @return the latency histograms of the game loop, or null before the engine is initialized
+     */
+    public FrameStats getFrameStats() {
+        return frameStats;
     }
     
-    private void sync() {
-        float loopSlot = 1f / TARGET_FPS;
-        double endTime = timer.getLastLoopTime() + loopSlot;
-        while (timer.getTime() < endTime) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException ie) {
-            }
+    /**
+     * Wait for the next frame as the pacer decides and apply its vsync choice.
+     *
+     * @param workNanos the CPU time of the frame up to the buffer swap, without the time blocked in
+     *        it, which with vsync on would make every frame look as long as the refresh interval
+     */
+    private void pace(long workNanos) {
+        if (framePacer.endFrame(workNanos)) {
+            frameStats.recordMissedDeadline();
+        }
+        if (framePacer.isVsync() != window.isvSync()) {
+            window.setvSync(framePacer.isVsync());
         }
     }
 
     protected void input() {
-        mouseInput.input(window);
+        mouseInput.input(window, gameLogic);
         gameLogic.input(window, mouseInput);
+        if (latencyTracker != null) {
+            latencyTracker.endInput();
+        }
+    }
+
+    /**
+     * Record how long the input applied in this frame waited until its frame was presented.
+     * Called right after the buffer swap.
+     */
+    private void recordInputLatency(long swapped) {
+        long oldest = mouseInput.getOldestEventTime();
+        if (oldest != 0) {
+            frameStats.recordInputLatency(swapped - oldest);
+        }
     }
 
     protected void update(float interval) {
@@ -113,7 +440,22 @@ public class GameEngine implements Runnable {
     }
 
     protected void render() {
+        long start = System.nanoTime();
+        if (jobSystem != null) {
+            jobSystem.beginFrame();
+        }
         gameLogic.render(window);
-        window.update();
+        long rendered = System.nanoTime();
+        window.swapBuffers();
+        long swapped = System.nanoTime();
+        recordInputLatency(swapped);
+        if (latencyTracker != null) {
+            latencyTracker.swapped(Long.MAX_VALUE);
+        }
+        window.pollEvents();
+        renderNanos = rendered - start;
+        swapNanos = System.nanoTime() - rendered;
+        frameStats.record(FrameStats.Phase.RENDER, renderNanos);
+        frameStats.record(FrameStats.Phase.SWAP, swapNanos);
     }
 }
@@ -19,6 +19,9 @@ public class GameItem {
 
     private final Vector3f rotation;
 
+    /** Whether the item is rasterized into the occlusion depth buffer */
+    private boolean occluder;
+
     public GameItem(Mesh mesh) {
         this.mesh = mesh;
         position = new Vector3f(0, 0, 0);
@@ -63,4 +66,16 @@ public class GameItem {
     public Mesh getMesh() {
         return mesh;
     }
+
+    public boolean isOccluder() {
+        return occluder;
+    }
+
+    /**
+     * Mark the item as an occluder. Occluders hide the items behind them from the occlusion
+     * culling stage and are always drawn themselves.
+     */
+    public void setOccluder(boolean occluder) {
+        this.occluder = occluder;
+    }
 }
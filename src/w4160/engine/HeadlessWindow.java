@@ -0,0 +1,235 @@
+package w4160.engine;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.egl.EGL;
+import org.lwjgl.egl.EGLCapabilities;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryStack;
+
+import static org.lwjgl.egl.EGL10.*;
+import static org.lwjgl.egl.EGL12.*;
+import static org.lwjgl.egl.EGL14.*;
+import static org.lwjgl.egl.EGL15.*;
+import static org.lwjgl.egl.EXTPlatformBase.eglGetPlatformDisplayEXT;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+import java.nio.IntBuffer;
+
+/**
+ * A {@link Window} without a display, for batch rendering on machines without an X server.
+ *
+ * <p>
+ * The OpenGL context is created through EGL instead of GLFW: on Mesa the surfaceless platform is
+ * used (so it also runs on llvmpipe), otherwise the default display with a surfaceless context or a
+ * 1x1 pbuffer. Everything is rendered into a framebuffer object of the window size that stays bound,
+ * so the renderer does not notice the difference; {@link #getReadBuffer()} names its colour attachment
+ * for read-backs.
+ * </p>
+ */
+public class HeadlessWindow extends Window {
+
+    /** <code>EGL_MESA_platform_surfaceless</code>, not exposed by this LWJGL version */
+    private static final int EGL_PLATFORM_SURFACELESS_MESA = 0x31DD;
+
+    private static final long EGL_DEFAULT_DISPLAY = NULL;
+
+    private long display = EGL_NO_DISPLAY;
+
+    private long context = EGL_NO_CONTEXT;
+
+    private long surface = EGL_NO_SURFACE;
+
+    private int fboId;
+
+    private int colourRenderbuffer;
+
+    private int depthRenderbuffer;
+
+    /**
+     * @param width width of the framebuffer in pixels
+     * @param height height of the framebuffer in pixels
+     */
+    public HeadlessWindow(int width, int height) {
+        super("headless", width, height, false);
+    }
+
+    /**
+     * Create the EGL context and the framebuffer object, and leave both current.
+     */
+    @Override
+    public void init() {
+        // the default GL function provider loads libGL through GLX, which needs a display
+        Configuration.OPENGL_EXPLICIT_INIT.set(true);
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            display = getDisplay();
+            IntBuffer major = stack.mallocInt(1);
+            IntBuffer minor = stack.mallocInt(1);
+            if (display == EGL_NO_DISPLAY || !eglInitialize(display, major, minor)) {
+                throw eglError("Unable to initialize EGL");
+            }
+            EGLCapabilities caps = EGL.createDisplayCapabilities(display, major.get(0), minor.get(0));
+            System.out.println("HeadlessWindow: EGL " + major.get(0) + "." + minor.get(0)
+                    + " " + eglQueryString(display, EGL_VENDOR));
+
+            if (!eglBindAPI(EGL_OPENGL_API)) {
+                throw eglError("Desktop OpenGL is not supported by EGL");
+            }
+
+            boolean surfaceless = caps.EGL_KHR_surfaceless_context;
+            IntBuffer configAttribs = stack.ints(
+                    EGL_SURFACE_TYPE, surfaceless ? 0 : EGL_PBUFFER_BIT,
+                    EGL_RENDERABLE_TYPE, EGL_OPENGL_BIT,
+                    EGL_RED_SIZE, 8,
+                    EGL_GREEN_SIZE, 8,
+                    EGL_BLUE_SIZE, 8,
+                    EGL_NONE);
+            PointerBuffer configs = stack.mallocPointer(1);
+            IntBuffer numConfigs = stack.mallocInt(1);
+            if (!eglChooseConfig(display, configAttribs, configs, numConfigs) || numConfigs.get(0) == 0) {
+                throw eglError("No EGL config for OpenGL");
+            }
+            long config = configs.get(0);
+
+            // same version and profile as the GLFW window
+            IntBuffer contextAttribs = stack.ints(
+                    EGL_CONTEXT_MAJOR_VERSION, 3,
+                    EGL_CONTEXT_MINOR_VERSION, 2,
+                    EGL_CONTEXT_OPENGL_PROFILE_MASK, EGL_CONTEXT_OPENGL_CORE_PROFILE_BIT,
+                    EGL_CONTEXT_OPENGL_FORWARD_COMPATIBLE, EGL_TRUE,
+                    EGL_NONE);
+            context = eglCreateContext(display, config, EGL_NO_CONTEXT, contextAttribs);
+            if (context == EGL_NO_CONTEXT) {
+                throw eglError("Failed to create the EGL context");
+            }
+
+            if (!surfaceless) {
+                surface = eglCreatePbufferSurface(display, config, stack.ints(EGL_WIDTH, 1, EGL_HEIGHT, 1, EGL_NONE));
+                if (surface == EGL_NO_SURFACE) {
+                    throw eglError("Failed to create the EGL pbuffer");
+                }
+            }
+            if (!eglMakeCurrent(display, surface, surface, context)) {
+                throw eglError("Failed to make the EGL context current");
+            }
+        }
+
+        GL.create(EGL.getFunctionProvider());
+        GL.createCapabilities();
+
+        createFramebuffer();
+        glViewport(0, 0, getBufferWidth(), getBufferHeight());
+
+        // Set the clear color
+        glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        glEnable(GL_DEPTH_TEST);
+    }
+
+    private static long getDisplay() {
+        String clientExtensions = eglQueryString(EGL_NO_DISPLAY, EGL_EXTENSIONS);
+        if (clientExtensions != null && clientExtensions.contains("EGL_EXT_platform_base")
+                && clientExtensions.contains("EGL_MESA_platform_surfaceless")) {
+            long display = eglGetPlatformDisplayEXT(EGL_PLATFORM_SURFACELESS_MESA, EGL_DEFAULT_DISPLAY, (IntBuffer) null);
+            if (display != EGL_NO_DISPLAY) {
+                return display;
+            }
+        }
+        return eglGetDisplay(EGL_DEFAULT_DISPLAY);
+    }
+
+    private void createFramebuffer() {
+        int width = getBufferWidth();
+        int height = getBufferHeight();
+
+        colourRenderbuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, colourRenderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+
+        depthRenderbuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, depthRenderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH24_STENCIL8, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        fboId = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, colourRenderbuffer);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_RENDERBUFFER, depthRenderbuffer);
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("Headless framebuffer is incomplete: 0x" + Integer.toHexString(status));
+        }
+        glDrawBuffer(GL_COLOR_ATTACHMENT0);
+        glReadBuffer(GL_COLOR_ATTACHMENT0);
+    }
+
+    private static IllegalStateException eglError(String message) {
+        return new IllegalStateException(message + " (EGL error 0x" + Integer.toHexString(eglGetError()) + ")");
+    }
+
+    /**
+     * There is no window to share with; the shader warm-up falls back to the render thread.
+     */
+    @Override
+    public long createSharedContext() {
+        return NULL;
+    }
+
+    @Override
+    public boolean isKeyPressed(int keyCode) {
+        return false;
+    }
+
+    @Override
+    public boolean windowShouldClose() {
+        return false;
+    }
+
+    @Override
+    public int getRefreshRate() {
+        return 0;
+    }
+
+    @Override
+    public int getReadBuffer() {
+        return GL_COLOR_ATTACHMENT0;
+    }
+
+    /**
+     * There is nothing to present; only flush the commands of the frame.
+     */
+    @Override
+    public void swapBuffers() {
+        glFlush();
+    }
+
+    @Override
+    public void pollEvents() {
+    }
+
+    /**
+     * Delete the framebuffer and release the EGL context.
+     */
+    public void cleanup() {
+        if (context != EGL_NO_CONTEXT) {
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+            glDeleteFramebuffers(fboId);
+            glDeleteRenderbuffers(colourRenderbuffer);
+            glDeleteRenderbuffers(depthRenderbuffer);
+            GL.setCapabilities(null);
+            eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+            eglDestroyContext(display, context);
+            context = EGL_NO_CONTEXT;
+        }
+        if (surface != EGL_NO_SURFACE) {
+            eglDestroySurface(display, surface);
+            surface = EGL_NO_SURFACE;
+        }
+        if (display != EGL_NO_DISPLAY) {
+            eglTerminate(display);
+            display = EGL_NO_DISPLAY;
+        }
+    }
+}
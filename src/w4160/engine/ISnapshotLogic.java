@@ -0,0 +1,28 @@
+package w4160.engine;
+
+/**
+ * An {@link IControlLogic} that can run its updates on a thread of their own.
+ *
+ * <p>
+ * With {@link GameEngine#setThreadedUpdate(boolean)} the engine calls
+ * {@link #input(Window, MouseInput) input}, the key callbacks and
+ * {@link #update(float, MouseInput) update} on the <code>UPDATE_THREAD</code>, followed by
+ * {@link #writeSnapshot(SceneSnapshot)}, and draws with {@link #render(Window, SceneSnapshot)} on
+ * the render thread, which only polls the window events into a queue. Rendering runs concurrently
+ * with input and updates and must only read the snapshot and objects they do not change; input
+ * that has to touch OpenGL or the renderer hands the work to the render thread.
+ * </p>
+ */
+public interface ISnapshotLogic extends IControlLogic {
+
+    /**
+     * Copy the state rendering needs after the update steps. Called on the update thread.
+     */
+    void writeSnapshot(SceneSnapshot snapshot);
+
+    /**
+     * Render the given state, the blend of the two latest snapshots. Called on the render thread
+     * instead of {@link #render(Window)} when updates run on their own thread.
+     */
+    void render(Window window, SceneSnapshot snapshot);
+}
@@ -0,0 +1,89 @@
+package w4160.engine;
+
+/**
+ * One key, mouse button or cursor event as a GLFW callback reported it, with the time it arrived.
+ * Instances are reused: {@link InputEventQueue#poll(InputEvent)} overwrites the one it is given.
+ */
+public class InputEvent {
+
+    public enum Type {
+        /** A key was pressed, repeated or released */
+        KEY,
+        /** A mouse button was pressed or released */
+        MOUSE_BUTTON,
+        /** The cursor moved to {@link #getX()}, {@link #getY()} */
+        CURSOR_POS,
+        /** The cursor entered the window, or left it if the action is 0 */
+        CURSOR_ENTER
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private Type type;
+
+    private int code;
+
+    private int scancode;
+
+    private int action;
+
+    private int mods;
+
+    private double x;
+
+    private double y;
+
+    private long time;
+
+    void set(int type, int code, int scancode, int action, int mods, double x, double y, long time) {
+        this.type = TYPES[type];
+        this.code = code;
+        this.scancode = scancode;
+        this.action = action;
+        this.mods = mods;
+        this.x = x;
+        this.y = y;
+        this.time = time;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the key or mouse button
+     */
+    public int getCode() {
+        return code;
+    }
+
+    public int getScancode() {
+        return scancode;
+    }
+
+    /**
+     * @return GLFW_PRESS, GLFW_RELEASE or GLFW_REPEAT; for {@link Type#CURSOR_ENTER} 1 if entered
+     */
+    public int getAction() {
+        return action;
+    }
+
+    public int getMods() {
+        return mods;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return when the callback ran, on the {@link System#nanoTime()} clock
+     */
+    public long getTime() {
+        return time;
+    }
+}
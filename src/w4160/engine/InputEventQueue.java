@@ -0,0 +1,145 @@
+package w4160.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ring buffer passing input events from the GLFW callbacks to the game loop without locks or
+ * allocation.
+ *
+ * <p>
+ * There is exactly one producer, the thread that polls the GLFW events, and one consumer, the
+ * thread that runs the input phase; they may be the same thread. The events are stored field by
+ * field in preallocated arrays. The producer publishes an event by a release store of its write
+ * index, the consumer frees slots the same way with its read index. When the ring is full the
+ * newest event is dropped and counted rather than blocking the callback; the capacity is meant to
+ * be large enough for that not to happen.
+ * </p>
+ */
+public class InputEventQueue {
+
+    private static final int KEY = InputEvent.Type.KEY.ordinal();
+
+    private static final int MOUSE_BUTTON = InputEvent.Type.MOUSE_BUTTON.ordinal();
+
+    private static final int CURSOR_POS = InputEvent.Type.CURSOR_POS.ordinal();
+
+    private static final int CURSOR_ENTER = InputEvent.Type.CURSOR_ENTER.ordinal();
+
+    private final int mask;
+
+    private final byte[] types;
+
+    private final int[] codes;
+
+    private final int[] scancodes;
+
+    private final byte[] actions;
+
+    private final int[] mods;
+
+    private final double[] xs;
+
+    private final double[] ys;
+
+    private final long[] times;
+
+    /** Next slot the producer writes */
+    private final AtomicLong writeIndex = new AtomicLong();
+
+    /** Next slot the consumer reads */
+    private final AtomicLong readIndex = new AtomicLong();
+
+    /** The producer's last look at the read index, so it rarely has to read the shared one */
+    private long cachedReadIndex;
+
+    /** The consumer's last look at the write index */
+    private long cachedWriteIndex;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity the number of events held at once, rounded up to a power of two
+     */
+    public InputEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        types = new byte[size];
+        codes = new int[size];
+        scancodes = new int[size];
+        actions = new byte[size];
+        mods = new int[size];
+        xs = new double[size];
+        ys = new double[size];
+        times = new long[size];
+    }
+
+    public void pushKey(int key, int scancode, int action, int mods) {
+        push(KEY, key, scancode, action, mods, 0, 0);
+    }
+
+    public void pushMouseButton(int button, int action, int mods) {
+        push(MOUSE_BUTTON, button, 0, action, mods, 0, 0);
+    }
+
+    public void pushCursorPos(double x, double y) {
+        push(CURSOR_POS, 0, 0, 0, 0, x, y);
+    }
+
+    public void pushCursorEnter(boolean entered) {
+        push(CURSOR_ENTER, 0, 0, entered ? 1 : 0, 0, 0, 0);
+    }
+
+    private void push(int type, int code, int scancode, int action, int mod, double x, double y) {
+        long time = System.nanoTime();
+        long index = writeIndex.get();
+        if (index - cachedReadIndex > mask) {
+            cachedReadIndex = readIndex.get();
+            if (index - cachedReadIndex > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        int slot = (int) index & mask;
+        types[slot] = (byte) type;
+        codes[slot] = code;
+        scancodes[slot] = scancode;
+        actions[slot] = (byte) action;
+        mods[slot] = mod;
+        xs[slot] = x;
+        ys[slot] = y;
+        times[slot] = time;
+        writeIndex.lazySet(index + 1);
+    }
+
+    /**
+     * Take the oldest event.
+     *
+     * @param event overwritten with the event
+     * @return false if there was none
+     */
+    public boolean poll(InputEvent event) {
+        long index = readIndex.get();
+        if (index == cachedWriteIndex) {
+            cachedWriteIndex = writeIndex.get();
+            if (index == cachedWriteIndex) {
+                return false;
+            }
+        }
+        int slot = (int) index & mask;
+        event.set(types[slot], codes[slot], scancodes[slot], actions[slot], mods[slot], xs[slot], ys[slot],
+                times[slot]);
+        readIndex.lazySet(index + 1);
+        return true;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of events lost because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,395 @@
+package w4160.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the per-frame work of the engine stages on a fixed pool of worker threads.
+ *
+ * <p>
+ * A stage declares its work as a small graph of {@link Job}s: a job starts once all the jobs it was
+ * declared after have finished, and {@link #parallelFor} jobs split an index range into chunks
+ * that run in parallel. The workers are those of a dedicated {@link ForkJoinPool}, each of which
+ * owns a work-stealing deque: jobs released or split on a worker are pushed to its own deque and
+ * idle workers steal from the others. A range that fits into one chunk runs at once on the calling
+ * thread, so tiny jobs cost no more than a method call.
+ * </p>
+ *
+ * <p>
+ * Job data that lives for one frame goes into the {@link FrameAllocator} of {@link #getFrameAllocator()},
+ * which {@link #beginFrame()} resets. The workers record how long they were busy for {@link #report()}.
+ * </p>
+ */
+public class JobSystem {
+
+    /** Work over the index range [from, to) */
+    public interface RangeWork {
+        void run(int from, int to);
+    }
+
+    /** Floats of the frame allocator to start with; it grows to the largest frame */
+    private static final int FRAME_ALLOCATOR_FLOATS = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    private final WorkerStats[] stats;
+
+    private final AtomicInteger workerCount = new AtomicInteger();
+
+    /** Time threads outside the pool spent in {@link #await}, and the small jobs they ran inline */
+    private final AtomicLong callerNanos = new AtomicLong();
+
+    private final AtomicLong callerJobs = new AtomicLong();
+
+    /** Stands for the jobs run inline, which are done by the time they are returned */
+    private final Job finished;
+
+    private final FrameAllocator frameAllocator = new FrameAllocator(FRAME_ALLOCATOR_FLOATS);
+
+    private long statsStart = System.nanoTime();
+
+    private long frames;
+
+    /**
+     * @param workers the number of worker threads, at least 1
+     */
+    public JobSystem(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("JobSystem: needs at least one worker, got " + workers);
+        }
+        finished = new Job("inline", null, null, 0, 0, 1, 0);
+        finished.takeDependents();
+        finished.quietlyComplete();
+        stats = new WorkerStats[workers];
+        for (int i = 0; i < workers; i++) {
+            stats[i] = new WorkerStats();
+        }
+        // the workers stay alive while idle, so their statistics do not move to new threads, and a
+        // worker blocked in a join is not replaced, so there are never more threads than workers
+        pool = new ForkJoinPool(workers, Worker::new, null, false, workers, workers, 1, p -> true,
+                1, TimeUnit.DAYS);
+    }
+
+    /**
+     * @return a job system with a worker for every processor but the one of the game loop
+     */
+    public static JobSystem withDefaultWorkers() {
+        return new JobSystem(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public int getWorkers() {
+        return stats.length;
+    }
+
+    /**
+     * Start a new frame: the memory handed out by the frame allocator in the previous frame is
+     * reused from now on, so no job of that frame may still be running.
+     */
+    public void beginFrame() {
+        frameAllocator.reset();
+        frames++;
+    }
+
+    public FrameAllocator getFrameAllocator() {
+        return frameAllocator;
+    }
+
+    /**
+     * Declare a job that runs once the given jobs have finished.
+     *
+     * @param after the jobs to wait for, none to start at once
+     */
+    public Job submit(String name, Runnable work, Job... after) {
+        Job job = new Job(name, work, null, 0, 0, 1, after.length);
+        job.schedule(after);
+        return job;
+    }
+
+    /**
+     * Declare a job that runs the work over [from, to) in chunks of at least <code>grain</code>
+     * indices once the given jobs have finished. A range of one chunk with nothing to wait for runs
+     * at once on the calling thread, which then gets a shared job that is already done.
+     *
+     * @param grain the smallest number of indices worth a chunk of their own
+     * @param after the jobs to wait for, none to start at once
+     */
+    public Job parallelFor(String name, int from, int to, int grain, RangeWork work, Job... after) {
+        if (after.length == 0 && to - from <= grain) {
+            // not even a job object, which is most of the cost of a tiny job
+            work.run(from, to);
+            callerJobs.incrementAndGet();
+            return finished;
+        }
+        Job job = new Job(name, null, work, from, to, Math.max(1, grain), after.length);
+        job.schedule(after);
+        return job;
+    }
+
+    /**
+     * Wait for a job to finish. A thread of the pool runs other jobs meanwhile.
+     *
+     * @throws RuntimeException whatever the job, or one it waited for, threw
+     */
+    public void await(Job job) {
+        if (job.isDone()) {
+            job.join();
+            return;
+        }
+        long start = System.nanoTime();
+        job.join();
+        if (!(Thread.currentThread() instanceof Worker)) {
+            // the time the caller spent helping is not told apart from the time it blocked
+            callerNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Start counting the utilization anew.
+     */
+    public void resetStats() {
+        for (WorkerStats s : stats) {
+            s.busyNanos = 0;
+            s.jobs = 0;
+        }
+        callerNanos.set(0);
+        callerJobs.set(0);
+        frames = 0;
+        statsStart = System.nanoTime();
+    }
+
+    /**
+     * @return the share of the time since the statistics were reset that the worker spent running jobs
+     */
+    public double getUtilization(int worker) {
+        long elapsed = System.nanoTime() - statsStart;
+        return elapsed > 0 ? (double) stats[worker].busyNanos / elapsed : 0;
+    }
+
+    public long getJobsRun(int worker) {
+        return stats[worker].jobs;
+    }
+
+    /**
+     * Utilization of every worker since the statistics were reset. The counters are read without
+     * synchronization, so the numbers of running workers can be slightly behind.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("JobSystem: %d workers, %d steals, %d frames, frame allocator %s%n",
+                stats.length, pool.getStealCount(), frames, frameAllocator.report()));
+        for (int i = 0; i < stats.length; i++) {
+            sb.append(String.format("  worker %d: %5.1f%% busy, %d chunks%n", i,
+                    100.0 * getUtilization(i), stats[i].jobs));
+        }
+        sb.append(String.format("  callers: %.1f ms waiting, %d inline jobs",
+                callerNanos.get() / 1e6, callerJobs.get()));
+        return sb.toString();
+    }
+
+    /**
+     * Stop the workers after the jobs already declared have run.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /** Written by its worker only */
+    private static final class WorkerStats {
+        long busyNanos;
+        long jobs;
+    }
+
+    private final class Worker extends ForkJoinWorkerThread {
+
+        private final WorkerStats stats;
+
+        Worker(ForkJoinPool pool) {
+            super(pool);
+            int index = workerCount.getAndIncrement();
+            stats = JobSystem.this.stats[index % JobSystem.this.stats.length];
+            setName("JOB_WORKER_THREAD-" + index);
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Run a chunk and count it for the worker that ran it.
+     */
+    private void runChunk(Job job, int from, int to) {
+        long start = System.nanoTime();
+        if (job.work != null) {
+            job.work.run();
+        } else {
+            job.rangeWork.run(from, to);
+        }
+        Thread thread = Thread.currentThread();
+        // a caller helping out in await() has its time counted there
+        if (thread instanceof Worker) {
+            WorkerStats s = ((Worker) thread).stats;
+            s.busyNanos += System.nanoTime() - start;
+            s.jobs++;
+        }
+    }
+
+    /**
+     * A unit of work in the graph of a frame. Its pending count is that of the
+     * {@link CountedCompleter}: the chunks still running. The jobs it waits for are counted apart,
+     * in <code>unfinished</code>, which holds one more until the job is fully declared.
+     */
+    public final class Job extends CountedCompleter<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private final Runnable work;
+
+        private final RangeWork rangeWork;
+
+        private final int from;
+
+        private final int to;
+
+        private final int grain;
+
+        private final AtomicInteger unfinished;
+
+        /** Jobs waiting for this one, null once it finished */
+        private List<Job> dependents = new ArrayList<>(2);
+
+        private Job(String name, Runnable work, RangeWork rangeWork, int from, int to, int grain, int after) {
+            this.name = name;
+            this.work = work;
+            this.rangeWork = rangeWork;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.unfinished = new AtomicInteger(after + 1);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        private void schedule(Job[] after) {
+            for (Job job : after) {
+                if (!job.addDependent(this)) {
+                    Throwable failure = job.getException();
+                    if (failure != null) {
+                        completeExceptionally(failure);
+                        return;
+                    }
+                    unfinished.decrementAndGet();
+                }
+            }
+            dependencyFinished();
+        }
+
+        /**
+         * @return false if this job already finished, so the dependent has nothing to wait for
+         */
+        private synchronized boolean addDependent(Job job) {
+            if (dependents == null) {
+                return false;
+            }
+            dependents.add(job);
+            return true;
+        }
+
+        private synchronized List<Job> takeDependents() {
+            List<Job> list = dependents;
+            dependents = null;
+            return list;
+        }
+
+        private void dependencyFinished() {
+            if (unfinished.decrementAndGet() == 0) {
+                Thread thread = Thread.currentThread();
+                if (thread instanceof Worker && ((Worker) thread).getPool() == pool) {
+                    fork();
+                } else {
+                    pool.execute(this);
+                }
+            }
+        }
+
+        @Override
+        public void compute() {
+            int hi = to;
+            if (rangeWork != null) {
+                while (hi - from > grain) {
+                    int mid = (from + hi) >>> 1;
+                    addToPendingCount(1);
+                    new Chunk(this, mid, hi).fork();
+                    hi = mid;
+                }
+            }
+            runChunk(this, from, hi);
+            tryComplete();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            List<Job> list = takeDependents();
+            for (Job job : list) {
+                job.dependencyFinished();
+            }
+        }
+
+        @Override
+        public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+            List<Job> list = takeDependents();
+            if (list != null) {
+                for (Job job : list) {
+                    job.completeExceptionally(ex);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Job[" + name + "]";
+        }
+    }
+
+    /**
+     * A part of the range of a {@link #parallelFor} job, split in half until it is no larger than
+     * the grain.
+     */
+    private final class Chunk extends CountedCompleter<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Job job;
+
+        private final int from;
+
+        private int to;
+
+        Chunk(CountedCompleter<?> parent, int from, int to) {
+            super(parent);
+            this.job = parent instanceof Job ? (Job) parent : ((Chunk) parent).job;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void compute() {
+            while (to - from > job.grain) {
+                int mid = (from + to) >>> 1;
+                addToPendingCount(1);
+                new Chunk(this, mid, to).fork();
+                to = mid;
+            }
+            runChunk(job, from, to);
+            tryComplete();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package w4160.engine;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Follows input events through the game loop and measures how long each takes to reach the
+ * screen.
+ *
+ * <p>
+ * The events applied by one input phase form a batch. For every event the tracker records the
+ * time from its arrival to the end of the first update step after that input phase, to the return
+ * of the buffer swap of the first frame drawn from that update, and to the moment the GPU finished
+ * that frame. The GPU time comes from a <code>GL_TIMESTAMP</code> query issued right after the
+ * swap and mapped onto the {@link System#nanoTime()} clock; a fence tells when it can be read
+ * without waiting. Without timer queries, the time the fence was seen signalled is used instead,
+ * which is late by up to a frame.
+ * </p>
+ *
+ * <p>
+ * With the threaded update, a frame counts as drawn from an update once it blends in the snapshot
+ * that update published. The {@link #report()} names the pacing and threading the numbers were
+ * taken with, so runs in different modes can be put side by side.
+ * </p>
+ */
+public class LatencyTracker {
+
+    public enum Stage {
+        /** The first update step after the input phase finished */
+        UPDATE,
+        /** The buffer swap of the first frame drawn from that update returned */
+        SWAP,
+        /** The GPU finished that frame */
+        GPU
+    }
+
+    /** Batches between an input phase and the GPU finishing its frame */
+    private static final int BATCHES = 16;
+
+    private static final int MAX_EVENTS_PER_BATCH = 512;
+
+    /** Swaps between two measurements of the offset of the GPU clock */
+    private static final int CALIBRATION_FRAMES = 300;
+
+    private static final class Batch {
+
+        final long[] times = new long[MAX_EVENTS_PER_BATCH];
+
+        final byte[] types = new byte[MAX_EVENTS_PER_BATCH];
+
+        int count;
+
+        /** Time of the snapshot of the update that applied the batch */
+        long snapshotTime;
+
+        long fence;
+
+        int query;
+    }
+
+    private final String configuration;
+
+    private final LatencyHistogram[][] histograms;
+
+    private final Batch[] batches = new Batch[BATCHES];
+
+    private final boolean gpuTimers;
+
+    /** Batch sequence numbers: the one collecting events, the next to update, swap and finish */
+    private long open;
+
+    private long toUpdate;
+
+    private long toSwap;
+
+    private long toFinish;
+
+    private long gpuClockOffset;
+
+    private int framesSinceCalibration = CALIBRATION_FRAMES;
+
+    private long droppedEvents;
+
+    /**
+     * Must be created on the thread that owns the GL context, like the other methods that touch the
+     * GL, {@link #swapped(long)} and {@link #cleanup()}.
+     *
+     * @param configuration the modes the game loop runs in, for the report
+     */
+    public LatencyTracker(String configuration) {
+        this.configuration = configuration;
+        InputEvent.Type[] types = InputEvent.Type.values();
+        histograms = new LatencyHistogram[types.length][Stage.values().length];
+        for (InputEvent.Type type : types) {
+            for (Stage stage : Stage.values()) {
+                histograms[type.ordinal()][stage.ordinal()] = new LatencyHistogram(
+                        type.name().toLowerCase() + " to " + stage.name().toLowerCase());
+            }
+        }
+        GLCapabilities caps = GL.getCapabilities();
+        gpuTimers = caps.OpenGL33 || caps.GL_ARB_timer_query;
+        for (int i = 0; i < BATCHES; i++) {
+            batches[i] = new Batch();
+            if (gpuTimers) {
+                batches[i].query = glGenQueries();
+            }
+        }
+    }
+
+    /**
+     * Add an event applied by the current input phase.
+     */
+    public synchronized void event(InputEvent.Type type, long time) {
+        if (open - toFinish >= BATCHES) {
+            // the GPU is that far behind: there is no batch to collect into
+            droppedEvents++;
+            return;
+        }
+        Batch batch = batches[(int) (open % BATCHES)];
+        if (batch.count == MAX_EVENTS_PER_BATCH) {
+            droppedEvents++;
+            return;
+        }
+        batch.times[batch.count] = time;
+        batch.types[batch.count] = (byte) type.ordinal();
+        batch.count++;
+    }
+
+    /**
+     * End the input phase; its events wait for the next update.
+     */
+    public synchronized void endInput() {
+        if (open - toFinish < BATCHES && batches[(int) (open % BATCHES)].count > 0) {
+            open++;
+        }
+    }
+
+    /**
+     * An update step that saw the input of the phases ended so far has finished.
+     *
+     * @param snapshotTime the time of the snapshot the update publishes, if the update is threaded
+     */
+    public synchronized void updated(long snapshotTime) {
+        long now = System.nanoTime();
+        for (; toUpdate < open; toUpdate++) {
+            Batch batch = batches[(int) (toUpdate % BATCHES)];
+            batch.snapshotTime = snapshotTime;
+            record(batch, Stage.UPDATE, now);
+        }
+    }
+
+    /**
+     * A frame was swapped. Marks the batches the frame shows and reads the GPU times that are ready.
+     *
+     * @param snapshotTime the newest snapshot the frame blended in, if the update is threaded, or
+     *                     {@link Long#MAX_VALUE}
+     */
+    public synchronized void swapped(long snapshotTime) {
+        long now = System.nanoTime();
+        if (gpuTimers && ++framesSinceCalibration >= CALIBRATION_FRAMES) {
+            // the clocks drift apart slowly, so measure again now and then
+            gpuClockOffset = glGetInteger64(GL_TIMESTAMP) - System.nanoTime();
+            framesSinceCalibration = 0;
+        }
+        for (; toSwap < toUpdate; toSwap++) {
+            Batch batch = batches[(int) (toSwap % BATCHES)];
+            if (batch.snapshotTime > snapshotTime) {
+                break;
+            }
+            record(batch, Stage.SWAP, now);
+            if (gpuTimers) {
+                glQueryCounter(batch.query, GL_TIMESTAMP);
+            }
+            batch.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+        finish(now);
+    }
+
+    /**
+     * Record the GPU stage of the swapped batches whose fences have signalled, oldest first.
+     */
+    private void finish(long now) {
+        for (; toFinish < toSwap; toFinish++) {
+            Batch batch = batches[(int) (toFinish % BATCHES)];
+            int status = glClientWaitSync(batch.fence, 0, 0);
+            if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) {
+                return;
+            }
+            glDeleteSync(batch.fence);
+            batch.fence = 0;
+            long done = now;
+            // the query came before the fence, so its result should be there by now
+            if (gpuTimers && glGetQueryObjecti(batch.query, GL_QUERY_RESULT_AVAILABLE) != 0) {
+                done = glGetQueryObjectui64(batch.query, GL_QUERY_RESULT) - gpuClockOffset;
+            }
+            record(batch, Stage.GPU, done);
+            batch.count = 0;
+        }
+    }
+
+    private void record(Batch batch, Stage stage, long time) {
+        for (int i = 0; i < batch.count; i++) {
+            histograms[batch.types[i]][stage.ordinal()].record(Math.max(0, time - batch.times[i]));
+        }
+    }
+
+    public LatencyHistogram getHistogram(InputEvent.Type type, Stage stage) {
+        return histograms[type.ordinal()][stage.ordinal()];
+    }
+
+    public boolean hasGpuTimers() {
+        return gpuTimers;
+    }
+
+    /**
+     * @return the configuration, then one line per event type and stage that saw events
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("LatencyTracker: %s, gpu %s, %d events dropped", configuration,
+                gpuTimers ? "timestamp queries" : "fences only", droppedEvents));
+        for (LatencyHistogram[] row : histograms) {
+            for (LatencyHistogram histogram : row) {
+                if (histogram.getCount() > 0) {
+                    sb.append('\n').append(histogram.summary());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    public synchronized void cleanup() {
+        for (Batch batch : batches) {
+            if (batch.fence != 0) {
+                glDeleteSync(batch.fence);
+                batch.fence = 0;
+            }
+            if (batch.query != 0) {
+                glDeleteQueries(batch.query);
+                batch.query = 0;
+            }
+        }
+    }
+}
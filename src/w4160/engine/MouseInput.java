@@ -1,51 +1,88 @@
 package w4160.engine;
 
+import java.util.Arrays;
+
 import org.joml.Vector2d;
 import org.joml.Vector2f;
 import static org.lwjgl.glfw.GLFW.*;
 import org.lwjgl.glfw.GLFWCursorPosCallback;
 import org.lwjgl.glfw.GLFWCursorEnterCallback;
+import org.lwjgl.glfw.GLFWKeyCallback;
 import org.lwjgl.glfw.GLFWMouseButtonCallback;
 
+/**
+ * The mouse and keyboard state of the game loop.
+ *
+ * <p>
+ * The GLFW callbacks only push timestamped events into an {@link InputEventQueue}, which
+ * {@link #input(Window, IControlLogic)} drains once per frame. Every event is seen in order, so a
+ * button pressed and released between two frames still counts, key actions reach
+ * {@link IControlLogic#respond_key_action} on the game loop thread, and the cursor motion made while
+ * the left button was held is kept apart in {@link #getDragVec()}.
+ * </p>
+ */
 public class MouseInput {
 
+    /** Events held between two frames; a fast mouse reports a few hundred per second */
+    private static final int QUEUE_CAPACITY = 4096;
+
     private final Vector2d previousPos;
 
     private final Vector2d currentPos;
 
     private final Vector2f displVec;
 
+    private final Vector2f dragVec;
+
     private boolean inWindow = false;
 
     private boolean leftButtonPressed = false;
 
     private boolean rightButtonPressed = false;
 
+    private final boolean[] keysDown = new boolean[GLFW_KEY_LAST + 1];
+
+    /** Keys pressed during the events of the last frame, even if released again */
+    private final boolean[] keysHit = new boolean[GLFW_KEY_LAST + 1];
+
+    private final InputEventQueue events = new InputEventQueue(QUEUE_CAPACITY);
+
+    private final InputEvent event = new InputEvent();
+
+    private long oldestEventTime;
+
+    private LatencyTracker latencyTracker;
+
     public MouseInput() {
         previousPos = new Vector2d(-1, -1);
         currentPos = new Vector2d(0, 0);
         displVec = new Vector2f();
+        dragVec = new Vector2f();
     }
 
     public void init(Window window) {
         glfwSetCursorPosCallback(window.getWindowHandle(), new GLFWCursorPosCallback() {
             @Override
             public void invoke(long window, double xpos, double ypos) {
-                currentPos.x = xpos;
-                currentPos.y = ypos;
+                events.pushCursorPos(xpos, ypos);
             }
         });
         glfwSetCursorEnterCallback(window.getWindowHandle(), new GLFWCursorEnterCallback() {
             @Override
             public void invoke(long window, boolean entered) {
-                inWindow = entered;
+                events.pushCursorEnter(entered);
             }
         });
         glfwSetMouseButtonCallback(window.getWindowHandle(), new GLFWMouseButtonCallback() {
             @Override
             public void invoke(long window, int button, int action, int mods) {
-                leftButtonPressed = button == GLFW_MOUSE_BUTTON_1 && action == GLFW_PRESS;
-                rightButtonPressed = button == GLFW_MOUSE_BUTTON_2 && action == GLFW_PRESS;
+                events.pushMouseButton(button, action, mods);
+            }
+        });
+        glfwSetKeyCallback(window.getWindowHandle(), new GLFWKeyCallback() {
+            @Override
+            public void invoke(long window, int key, int scancode, int action, int mods) {
+                events.pushKey(key, scancode, action, mods);
             }
         });
     }
@@ -54,23 +91,77 @@ public class MouseInput {
         return displVec;
     }
 
+    /**
+     * @return the part of {@link #getDisplVec()} made while the left button was held, which may
+     *         have been pressed and released again since the last frame
+     */
+    public Vector2f getDragVec() {
+        return dragVec;
+    }
+
     public void input(Window window) {
+        input(window, null);
+    }
+
+    /**
+     * Apply the events that arrived since the last call.
+     *
+     * @param keyHandler gets the key events, or null to only track the key state
+     */
+    public void input(Window window, IControlLogic keyHandler) {
         displVec.x = 0;
         displVec.y = 0;
-        if (previousPos.x > 0 && previousPos.y > 0 && inWindow) {
-            double deltax = currentPos.x - previousPos.x;
-            double deltay = currentPos.y - previousPos.y;
-            boolean rotateX = deltax != 0;
-            boolean rotateY = deltay != 0;
-            if (rotateX) {
-                displVec.y = (float) deltax;
+        dragVec.x = 0;
+        dragVec.y = 0;
+        Arrays.fill(keysHit, false);
+        oldestEventTime = 0;
+        while (events.poll(event)) {
+            if (oldestEventTime == 0) {
+                oldestEventTime = event.getTime();
             }
-            if (rotateY) {
-                displVec.x = (float) deltay;
+            if (latencyTracker != null) {
+                latencyTracker.event(event.getType(), event.getTime());
+            }
+            switch (event.getType()) {
+                case CURSOR_POS:
+                    currentPos.x = event.getX();
+                    currentPos.y = event.getY();
+                    if (previousPos.x > 0 && previousPos.y > 0 && inWindow) {
+                        float deltax = (float) (currentPos.x - previousPos.x);
+                        float deltay = (float) (currentPos.y - previousPos.y);
+                        displVec.y += deltax;
+                        displVec.x += deltay;
+                        if (leftButtonPressed) {
+                            dragVec.y += deltax;
+                            dragVec.x += deltay;
+                        }
+                    }
+                    previousPos.x = currentPos.x;
+                    previousPos.y = currentPos.y;
+                    break;
+                case CURSOR_ENTER:
+                    inWindow = event.getAction() != 0;
+                    break;
+                case MOUSE_BUTTON:
+                    if (event.getCode() == GLFW_MOUSE_BUTTON_1) {
+                        leftButtonPressed = event.getAction() == GLFW_PRESS;
+                    } else if (event.getCode() == GLFW_MOUSE_BUTTON_2) {
+                        rightButtonPressed = event.getAction() == GLFW_PRESS;
+                    }
+                    break;
+                case KEY:
+                    int key = event.getCode();
+                    if (key >= 0 && key < keysDown.length) {
+                        keysDown[key] = event.getAction() != GLFW_RELEASE;
+                        keysHit[key] |= event.getAction() == GLFW_PRESS;
+                    }
+                    if (keyHandler != null) {
+                        keyHandler.respond_key_action(window.getWindowHandle(), key, event.getScancode(),
+                                event.getAction(), event.getMods());
+                    }
+                    break;
             }
         }
-        previousPos.x = currentPos.x;
-        previousPos.y = currentPos.y;
     }
 
     public boolean isLeftButtonPressed() {
@@ -80,4 +171,33 @@ public class MouseInput {
     public boolean isRightButtonPressed() {
         return rightButtonPressed;
     }
+
+    /**
+     * @return whether the key is held, or was pressed at some point since the last frame
+     */
+    public boolean isKeyPressed(int keyCode) {
+        return keyCode >= 0 && keyCode < keysDown.length && (keysDown[keyCode] || keysHit[keyCode]);
+    }
+
+    /**
+     * @return when the oldest event applied by the last {@link #input} arrived, on the
+     *         {@link System#nanoTime()} clock, or 0 if there was none
+     */
+    public long getOldestEventTime() {
+        return oldestEventTime;
+    }
+
+    /**
+     * Report every event applied to the given tracker, or to none if null.
+     */
+    public void setLatencyTracker(LatencyTracker latencyTracker) {
+        this.latencyTracker = latencyTracker;
+    }
+
+    /**
+     * @return the number of events lost because too many arrived between two frames
+     */
+    public long getDroppedEvents() {
+        return events.getDropped();
+    }
 }
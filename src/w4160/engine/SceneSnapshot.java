@@ -0,0 +1,268 @@
+package w4160.engine;
+
+import org.joml.Vector3f;
+
+import w4160.engine.graphics.Camera;
+import w4160.engine.graphics.DirectionalLight;
+import w4160.engine.graphics.PointLight;
+
+/**
+ * The state the render thread needs from one simulation step: item transforms and occluder flags,
+ * the camera, the lights and the shader, copied out of the live objects so the simulation can go
+ * on changing them.
+ *
+ * <p>
+ * {@link GameEngine} passes snapshots from the update thread to the render thread through a
+ * {@link TripleBuffer} and draws the blend of the last two, see {@link #interpolate}. Snapshots
+ * are reused; the arrays only grow.
+ * </p>
+ */
+public class SceneSnapshot {
+
+    /** Position, rotation and scale */
+    private static final int ITEM_FLOATS = 7;
+
+    /** Position, colour, intensity and attenuation */
+    private static final int LIGHT_FLOATS = 10;
+
+    /** Simulated time of the step in nanoseconds, on the {@link System#nanoTime()} clock */
+    private long time;
+
+    /** When the oldest input the steps applied was queued, 0 if they applied none */
+    private long inputTime;
+
+    private int itemCount;
+
+    private float[] items = new float[0];
+
+    private boolean[] occluders = new boolean[0];
+
+    private final Vector3f cameraPosition = new Vector3f();
+
+    private final Vector3f cameraTarget = new Vector3f();
+
+    private final Vector3f cameraUp = new Vector3f(0, 1, 0);
+
+    private final Vector3f pointLightPosition = new Vector3f();
+
+    private final Vector3f pointLightColour = new Vector3f();
+
+    private float pointLightIntensity;
+
+    private int pointLightCount;
+
+    private float[] pointLights = new float[0];
+
+    private final Vector3f lightDirection = new Vector3f();
+
+    private final Vector3f lightColour = new Vector3f();
+
+    private float lightIntensity;
+
+    private String shaderName;
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public long getInputTime() {
+        return inputTime;
+    }
+
+    public void setInputTime(long inputTime) {
+        this.inputTime = inputTime;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public void setItems(GameItem[] gameItems) {
+        itemCount = gameItems.length;
+        if (items.length < itemCount * ITEM_FLOATS) {
+            items = new float[itemCount * ITEM_FLOATS];
+            occluders = new boolean[itemCount];
+        }
+        for (int i = 0; i < itemCount; i++) {
+            GameItem item = gameItems[i];
+            int o = i * ITEM_FLOATS;
+            Vector3f position = item.getPosition();
+            Vector3f rotation = item.getRotation();
+            items[o] = position.x;
+            items[o + 1] = position.y;
+            items[o + 2] = position.z;
+            items[o + 3] = rotation.x;
+            items[o + 4] = rotation.y;
+            items[o + 5] = rotation.z;
+            items[o + 6] = item.getScale();
+            occluders[i] = item.isOccluder();
+        }
+    }
+
+    public void setCamera(Camera camera) {
+        cameraPosition.set(camera.getPosition());
+        cameraTarget.set(camera.getTarget());
+        cameraUp.set(camera.getUp());
+    }
+
+    public void setPointLight(PointLight light) {
+        pointLightPosition.set(light.getPosition());
+        pointLightColour.set(light.getColor());
+        pointLightIntensity = light.getIntensity();
+    }
+
+    /**
+     * Copy the extra point lights of the scene.
+     */
+    public void setPointLights(PointLight[] lights) {
+        pointLightCount = lights.length;
+        if (pointLights.length < pointLightCount * LIGHT_FLOATS) {
+            pointLights = new float[pointLightCount * LIGHT_FLOATS];
+        }
+        for (int i = 0; i < pointLightCount; i++) {
+            PointLight light = lights[i];
+            int o = i * LIGHT_FLOATS;
+            Vector3f position = light.getPosition();
+            Vector3f colour = light.getColor();
+            PointLight.Attenuation attenuation = light.getAttenuation();
+            pointLights[o] = position.x;
+            pointLights[o + 1] = position.y;
+            pointLights[o + 2] = position.z;
+            pointLights[o + 3] = colour.x;
+            pointLights[o + 4] = colour.y;
+            pointLights[o + 5] = colour.z;
+            pointLights[o + 6] = light.getIntensity();
+            pointLights[o + 7] = attenuation.getConstant();
+            pointLights[o + 8] = attenuation.getLinear();
+            pointLights[o + 9] = attenuation.getExponent();
+        }
+    }
+
+    public int getPointLightCount() {
+        return pointLightCount;
+    }
+
+    public void setDirectionalLight(DirectionalLight light) {
+        lightDirection.set(light.getDirection());
+        lightColour.set(light.getColor());
+        lightIntensity = light.getIntensity();
+    }
+
+    public String getShaderName() {
+        return shaderName;
+    }
+
+    public void setShaderName(String shaderName) {
+        this.shaderName = shaderName;
+    }
+
+    /**
+     * Copy the transforms and occluder flags into the given items, which should be those the snapshot was taken of or
+     * render-side copies of them.
+     */
+    public void applyTo(GameItem[] gameItems) {
+        int n = Math.min(itemCount, gameItems.length);
+        for (int i = 0; i < n; i++) {
+            int o = i * ITEM_FLOATS;
+            gameItems[i].setPosition(items[o], items[o + 1], items[o + 2]);
+            gameItems[i].setRotation(items[o + 3], items[o + 4], items[o + 5]);
+            gameItems[i].setScale(items[o + 6]);
+            gameItems[i].setOccluder(occluders[i]);
+        }
+    }
+
+    public void applyTo(Camera camera) {
+        camera.setPosition(cameraPosition.x, cameraPosition.y, cameraPosition.z);
+        camera.setTarget(new Vector3f(cameraTarget));
+        camera.setUp(new Vector3f(cameraUp));
+    }
+
+    public void applyTo(PointLight light) {
+        light.getPosition().set(pointLightPosition);
+        light.getColor().set(pointLightColour);
+        light.setIntensity(pointLightIntensity);
+    }
+
+    /**
+     * Copy the extra point lights into render-side lights, of which there should be
+     * {@link #getPointLightCount()}.
+     */
+    public void applyTo(PointLight[] lights) {
+        int n = Math.min(pointLightCount, lights.length);
+        for (int i = 0; i < n; i++) {
+            PointLight light = lights[i];
+            int o = i * LIGHT_FLOATS;
+            PointLight.Attenuation attenuation = light.getAttenuation();
+            light.getPosition().set(pointLights[o], pointLights[o + 1], pointLights[o + 2]);
+            light.getColor().set(pointLights[o + 3], pointLights[o + 4], pointLights[o + 5]);
+            light.setIntensity(pointLights[o + 6]);
+            attenuation.setConstant(pointLights[o + 7]);
+            attenuation.setLinear(pointLights[o + 8]);
+            attenuation.setExponent(pointLights[o + 9]);
+        }
+    }
+
+    public void applyTo(DirectionalLight light) {
+        light.getDirection().set(lightDirection);
+        light.getColor().set(lightColour);
+        light.setIntensity(lightIntensity);
+    }
+
+    /**
+     * Make this snapshot a copy of another one.
+     */
+    public void set(SceneSnapshot other) {
+        time = other.time;
+        inputTime = other.inputTime;
+        itemCount = other.itemCount;
+        if (items.length < other.items.length) {
+            items = new float[other.items.length];
+            occluders = new boolean[other.occluders.length];
+        }
+        System.arraycopy(other.items, 0, items, 0, itemCount * ITEM_FLOATS);
+        System.arraycopy(other.occluders, 0, occluders, 0, itemCount);
+        cameraPosition.set(other.cameraPosition);
+        cameraTarget.set(other.cameraTarget);
+        cameraUp.set(other.cameraUp);
+        pointLightPosition.set(other.pointLightPosition);
+        pointLightColour.set(other.pointLightColour);
+        pointLightIntensity = other.pointLightIntensity;
+        pointLightCount = other.pointLightCount;
+        if (pointLights.length < other.pointLights.length) {
+            pointLights = new float[other.pointLights.length];
+        }
+        System.arraycopy(other.pointLights, 0, pointLights, 0, pointLightCount * LIGHT_FLOATS);
+        lightDirection.set(other.lightDirection);
+        lightColour.set(other.lightColour);
+        lightIntensity = other.lightIntensity;
+        shaderName = other.shaderName;
+    }
+
+    /**
+     * Make this snapshot the linear blend of two others. Items that only exist in <code>b</code>,
+     * the occluder flags, the extra point lights and the shader are taken from it unblended.
+     *
+     * @param alpha 0 for <code>a</code>, 1 for <code>b</code>
+     */
+    public void interpolate(SceneSnapshot a, SceneSnapshot b, float alpha) {
+        set(b);
+        time = a.time + (long) ((b.time - a.time) * (double) alpha);
+        int n = Math.min(a.itemCount, b.itemCount) * ITEM_FLOATS;
+        for (int i = 0; i < n; i++) {
+            items[i] = a.items[i] + (b.items[i] - a.items[i]) * alpha;
+        }
+        a.cameraPosition.lerp(b.cameraPosition, alpha, cameraPosition);
+        a.cameraTarget.lerp(b.cameraTarget, alpha, cameraTarget);
+        a.cameraUp.lerp(b.cameraUp, alpha, cameraUp);
+        a.pointLightPosition.lerp(b.pointLightPosition, alpha, pointLightPosition);
+        a.pointLightColour.lerp(b.pointLightColour, alpha, pointLightColour);
+        pointLightIntensity = a.pointLightIntensity + (b.pointLightIntensity - a.pointLightIntensity) * alpha;
+        a.lightDirection.lerp(b.lightDirection, alpha, lightDirection);
+        a.lightColour.lerp(b.lightColour, alpha, lightColour);
+        lightIntensity = a.lightIntensity + (b.lightIntensity - a.lightIntensity) * alpha;
+    }
+}
@@ -0,0 +1,78 @@
+package w4160.engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hands values from one writer thread to one reader thread without locks and without either
+ * ever waiting for the other.
+ *
+ * <p>
+ * Of the three buffers the writer owns one (the back buffer), the reader owns one (the front
+ * buffer) and the third is in the middle. {@link #publish()} swaps the back buffer with the middle
+ * one and {@link #update()} swaps the middle one with the front buffer if something new was
+ * published since, each with a single atomic exchange. The reader always gets the most recently
+ * published value; values published in between are skipped.
+ * </p>
+ *
+ * @param <T> the type of the buffers, which are reused and written in place
+ */
+public class TripleBuffer<T> {
+
+    /** Set in the middle index while the middle buffer holds a value the reader has not taken */
+    private static final int FRESH = 4;
+
+    private static final int INDEX = 3;
+
+    private final Object[] buffers = new Object[3];
+
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    /** Only used by the writer */
+    private int back = 0;
+
+    /** Only used by the reader */
+    private int front = 2;
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = factory.get();
+        }
+    }
+
+    /**
+     * @return the buffer the writer fills, only to be used by the writer thread
+     */
+    @SuppressWarnings("unchecked")
+    public T getBack() {
+        return (T) buffers[back];
+    }
+
+    /**
+     * Make the back buffer the latest value and continue with another buffer. Writer thread only.
+     */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX;
+    }
+
+    /**
+     * Take the latest published value if there is one the reader has not seen. Reader thread only.
+     *
+     * @return true if {@link #getFront()} changed
+     */
+    public boolean update() {
+        if ((middle.get() & FRESH) == 0) {
+            return false;
+        }
+        front = middle.getAndSet(front) & INDEX;
+        return true;
+    }
+
+    /**
+     * @return the buffer the reader reads, only to be used by the reader thread
+     */
+    @SuppressWarnings("unchecked")
+    public T getFront() {
+        return (T) buffers[front];
+    }
+}
@@ -131,6 +131,23 @@ public class Window {
         glEnable(GL_DEPTH_TEST);
     }
 
+    /**
+     * Create a hidden window whose OpenGL context shares objects (programs, buffers, textures)
+     * with the context of this window. It can be made current on a worker thread to create
+     * resources in the background. Must be called on the thread that initialized the window.
+     *
+     * @return the handle of the hidden window, or NULL if it could not be created
+     */
+    public long createSharedContext() {
+        glfwDefaultWindowHints();
+        glfwWindowHint(GLFW_VISIBLE, GL_FALSE);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 2);
+        glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
+        glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GL_TRUE);
+        return glfwCreateWindow(1, 1, title, NULL, windowHandle);
+    }
+
     /**
      * @return return the handle of current window 
      */
@@ -196,19 +213,55 @@ public class Window {
        this.resized = resized;
     }
 
+    /**
+     * @return the refresh rate of the primary monitor in Hz, or 0 if it is unknown
+     */
+    public int getRefreshRate() {
+        GLFWVidMode vidmode = glfwGetVideoMode(glfwGetPrimaryMonitor());
+        return vidmode == null ? 0 : vidmode.refreshRate();
+    }
+
+    /**
+     * @return the buffer that holds the last finished frame, for <code>glReadBuffer</code>
+     */
+    public int getReadBuffer() {
+        return GL_FRONT;
+    }
+
     public boolean isvSync() {
         return vSync;
     }
 
+    /**
+     * Turn vsync on or off, also on a window that is already open.
+     */
     public void setvSync(boolean vSync) {
         this.vSync = vSync;
+        if (windowHandle != NULL) {
+            glfwSwapInterval(vSync ? 1 : 0);
+        }
     }
 
     /*
      * Run the OpenGL update to refresh the current display buffer.
      */
     public void update() {
+        swapBuffers();
+        pollEvents();
+    }
+
+    /**
+     * Present the frame. Together with {@link #pollEvents()} this is {@link #update()}, split for
+     * engines that time the swap or must not wait for the display before polling.
+     */
+    public void swapBuffers() {
         glfwSwapBuffers(windowHandle);
+    }
+
+    /**
+     * Process the pending window events, which runs the key and mouse callbacks.
+     */
+    public void pollEvents() {
         glfwPollEvents();
     }
 }
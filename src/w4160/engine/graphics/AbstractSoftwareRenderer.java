@@ -0,0 +1,268 @@
+package w4160.engine.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import w4160.engine.GameItem;
+
+/**
+ * What the renderers on the CPU share: the frame and its readback, the fork/join pool, the
+ * projection of the renderer, the textures of the materials and the chunks the vertices are
+ * transformed in.
+ *
+ * <p>
+ * A frame starts with {@link #beginFrame}, which sets up the matrices and the shading; the renderer
+ * then declares the vertex chunks of its items with {@link #addVertexChunks}, runs the vertex stage
+ * on them with {@link #shadeVertices}, and runs its other phases with {@link #runInParallel}.
+ * </p>
+ */
+abstract class AbstractSoftwareRenderer implements ISoftwareRenderer {
+
+    /** Vertices transformed by one task */
+    static final int VERTEX_GRAIN = 1024;
+
+    static final PointLight[] NO_LIGHTS = new PointLight[0];
+
+    /** The name of the renderer in its messages */
+    private final String name;
+
+    final int width;
+
+    final int height;
+
+    final int threads;
+
+    final ForkJoinPool pool;
+
+    /** RGBA bytes from the lowest bits up, bottom row first */
+    final int[] pixels;
+
+    final SoftwareShading shading = new SoftwareShading();
+
+    final Transformation transformation = new Transformation();
+
+    final Matrix4f viewMatrix = new Matrix4f();
+
+    final Matrix4f projectionMatrix = new Matrix4f();
+
+    /** Textures by file, null for those that failed to load */
+    private final Map<String, SoftwareTexture> textures = new HashMap<>();
+
+    /** The items of the frame being rendered, null between frames */
+    GameItem[] gameItems;
+
+    /** Vertex chunks of the frame: item, first and end vertex */
+    int[] vertexChunks = new int[0];
+
+    int numVertexChunks;
+
+    /**
+     * @param name the name of the renderer in its messages
+     * @param threadName the name of the worker threads, followed by their index
+     */
+    AbstractSoftwareRenderer(String name, String threadName, int width, int height, int threads) {
+        if (width < 1 || height < 1 || threads < 1) {
+            throw new IllegalArgumentException(name + ": bad size " + width + "x" + height
+                    + " or thread count " + threads);
+        }
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.threads = threads;
+        pixels = new int[width * height];
+        pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(threadName + "-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    @Override
+    public void render(Camera camera, GameItem[] gameItems, Vector3f ambientLight, PointLight pointLight,
+            DirectionalLight directionalLight, String shaderName) {
+        render(camera, gameItems, ambientLight, pointLight, NO_LIGHTS, directionalLight, shaderName);
+    }
+
+    /**
+     * Set up the matrices and the shading of a frame with the projection of the renderer, and forget
+     * the vertex chunks of the last one.
+     *
+     * @return the shading model of the shader
+     */
+    SoftwareShading.Model beginFrame(Camera camera, GameItem[] gameItems, Vector3f ambientLight,
+            PointLight pointLight, PointLight[] pointLights, DirectionalLight directionalLight, String shaderName) {
+        SoftwareShading.Model model = SoftwareShading.Model.forShader(shaderName);
+        viewMatrix.set(transformation.getViewMatrix(camera));
+        projectionMatrix.set(transformation.getProjectionMatrix(Transformation.FOV, width, height,
+                Transformation.Z_NEAR, Transformation.Z_FAR));
+        shading.setup(model, viewMatrix, ambientLight, pointLight, pointLights, directionalLight);
+        this.gameItems = gameItems;
+        numVertexChunks = 0;
+        return model;
+    }
+
+    /**
+     * Declare the vertices of an item in chunks of {@link #VERTEX_GRAIN}.
+     */
+    void addVertexChunks(int item, int numVertices) {
+        for (int from = 0; from < numVertices; from += VERTEX_GRAIN) {
+            if (vertexChunks.length < 3 * (numVertexChunks + 1)) {
+                vertexChunks = Arrays.copyOf(vertexChunks, Math.max(48, vertexChunks.length * 2));
+            }
+            vertexChunks[3 * numVertexChunks] = item;
+            vertexChunks[3 * numVertexChunks + 1] = from;
+            vertexChunks[3 * numVertexChunks + 2] = Math.min(numVertices, from + VERTEX_GRAIN);
+            numVertexChunks++;
+        }
+    }
+
+    /**
+     * Run the work of every index below <code>count</code> on the pool and wait for it.
+     */
+    void runInParallel(int count, IntConsumer work) {
+        pool.invoke(new RangeTask(work, 0, count));
+    }
+
+    /**
+     * Run the vertex stage on a chunk of the vertices of an item: take them into view space, see
+     * {@link SoftwareShading#vertexInputs}, and light them if the model is lit per vertex.
+     *
+     * @param modelView the model view matrix of the item of the chunk
+     * @param varyings receives the varyings of vertex i at <code>offset + i * stride</code>
+     */
+    void shadeVertices(int chunk, Matrix4f modelView, Material material, float[] varyings, int offset, int stride) {
+        int item = vertexChunks[3 * chunk];
+        int from = vertexChunks[3 * chunk + 1];
+        int to = vertexChunks[3 * chunk + 2];
+        Mesh mesh = gameItems[item].getMesh();
+        float[] positions = mesh.getPositions();
+        float[] normals = mesh.getNormals();
+        float[] textCoords = mesh.getTextCoords();
+        float[] scratch = new float[4];
+        boolean perVertex = shading.getModel().isPerVertex();
+        for (int i = from; i < to; i++) {
+            int v = offset + i * stride;
+            SoftwareShading.vertexInputs(modelView, positions, normals, textCoords, i, varyings, v);
+            if (perVertex) {
+                shading.vertex(material, varyings, v, scratch);
+            }
+        }
+    }
+
+    /**
+     * @return the texture of a textured material, loaded on first use, or null
+     */
+    SoftwareTexture texture(Material material) {
+        String file = material.getTextureFile();
+        if (file == null) {
+            return null;
+        }
+        if (!textures.containsKey(file)) {
+            SoftwareTexture texture = null;
+            try {
+                texture = SoftwareTexture.load(file);
+            } catch (IOException e) {
+                System.err.println(name + ": using the material colour, could not load " + file + ": "
+                        + e.getMessage());
+            }
+            textures.put(file, texture);
+        }
+        return textures.get(file);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the last frame as RGBA bytes packed from the lowest bits up, bottom row first. The array
+     *         is reused by the next frame.
+     */
+    @Override
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Copy the last frame into a buffer as RGBA bytes, bottom row first, as <code>glReadPixels</code>
+     * would.
+     *
+     * @param buffer at least width * height * 4 bytes from its position, which is left unchanged
+     */
+    @Override
+    public void readPixels(ByteBuffer buffer) {
+        IntBuffer ints = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        ints.put(pixels);
+    }
+
+    /**
+     * Write the last frame to a PNG file.
+     */
+    @Override
+    public void writePNG(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4);
+        readPixels(buffer);
+        new ParallelPngWriter().write(buffer, width, height, file);
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Runs the work of a range of indices, splitting it until a task owns one.
+     */
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient IntConsumer work;
+
+        private final int from;
+
+        private final int to;
+
+        RangeTask(IntConsumer work, int from, int to) {
+            this.work = work;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(work, from, mid), new RangeTask(work, mid, to));
+                return;
+            }
+            if (from < to) {
+                work.accept(from);
+            }
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package w4160.engine.graphics;
+
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over the triangles of a mesh in model space, for tracing rays, or over
+ * boxes such as those of the items of a scene, see {@link #overBoxes}.
+ *
+ * <p>
+ * It is built top down: a node is split where the surface area heuristic over {@link #BINS} bins of
+ * the centroids is lowest, until it holds at most {@link #LEAF_SIZE} primitives or no split pays off.
+ * The nodes are kept in flat arrays with the two children of a node next to each other, and triangles
+ * are copied in leaf order as a vertex and the two edges from it, as the Moller-Trumbore test wants
+ * them. Once built it is only read, so any number of threads can trace it at once, each with a
+ * {@link Hit} of its own.
+ * </p>
+ */
+public class Bvh {
+
+    /** Bins of the centroids a split is chosen from */
+    private static final int BINS = 16;
+
+    /** Nodes with this many triangles are not split */
+    private static final int LEAF_SIZE = 2;
+
+    /** Nodes with more triangles are split even when the heuristic says it does not pay off */
+    private static final int MAX_LEAF_SIZE = 16;
+
+    /** Cost of visiting a node, in triangle tests */
+    private static final float TRAVERSAL_COST = 1f;
+
+    /** A triangle in leaf order: a vertex and the edges to the other two */
+    private static final int TRIANGLE_FLOATS = 9;
+
+    /** The mesh arrays the hierarchy was built from */
+    private final float[] positions;
+
+    private final int[] indices;
+
+    /** Per node its bounds: min x, y, z, then max x, y, z */
+    private final float[] nodeBounds;
+
+    /**
+     * Per node the first of its two children, or for a leaf its first primitive in leaf order, then
+     * the number of its primitives, 0 for an inner node; side by side so a visit loads one cache line
+     */
+    private final int[] nodes;
+
+    private int numNodes;
+
+    private int depth;
+
+    /** The triangles in leaf order, empty over boxes */
+    private final float[] triangles;
+
+    /** The index of each primitive in leaf order, in the mesh for triangles */
+    private final int[] primitives;
+
+    /**
+     * What a ray hit, and the stack to traverse with; one per thread.
+     */
+    public static final class Hit {
+
+        /** Distance along the ray, in lengths of its direction */
+        public float t;
+
+        /** Index of the triangle in the mesh */
+        public int triangle;
+
+        /** Barycentrics of the second and the third vertex */
+        public float b1;
+
+        public float b2;
+
+        private int[] stack = new int[64];
+
+        private float[] entries = new float[64];
+    }
+
+    /**
+     * @param positions xyz of each vertex
+     * @param indices three vertices per triangle
+     */
+    public Bvh(float[] positions, int[] indices) {
+        this(positions, indices, new float[6 * (indices.length / 3)], indices.length / 3);
+    }
+
+    /**
+     * @param boxes min x, y, z, then max x, y, z of each primitive; filled from the triangles if there
+     *        are positions
+     */
+    private Bvh(float[] positions, int[] indices, float[] boxes, int count) {
+        this.positions = positions;
+        this.indices = indices;
+        float[] centroids = new float[3 * count];
+        int[] order = new int[count];
+        for (int t = 0; t < count; t++) {
+            order[t] = t;
+            if (positions == null) {
+                for (int k = 0; k < 3; k++) {
+                    centroids[3 * t + k] = (boxes[6 * t + k] + boxes[6 * t + 3 + k]) / 2;
+                }
+                continue;
+            }
+            for (int k = 0; k < 3; k++) {
+                float a = positions[3 * indices[3 * t] + k];
+                float b = positions[3 * indices[3 * t + 1] + k];
+                float c = positions[3 * indices[3 * t + 2] + k];
+                boxes[6 * t + k] = Math.min(a, Math.min(b, c));
+                boxes[6 * t + 3 + k] = Math.max(a, Math.max(b, c));
+                centroids[3 * t + k] = (a + b + c) / 3;
+            }
+        }
+        int maxNodes = Math.max(1, 2 * count - 1);
+        nodeBounds = new float[6 * maxNodes];
+        nodes = new int[2 * maxNodes];
+        numNodes = 1;
+        build(0, 0, count, 1, order, boxes, centroids, new Bins());
+
+        primitives = order;
+        triangles = new float[positions == null ? 0 : TRIANGLE_FLOATS * count];
+        for (int i = 0; i < triangles.length / TRIANGLE_FLOATS; i++) {
+            int a = 3 * indices[3 * order[i]];
+            int b = 3 * indices[3 * order[i] + 1];
+            int c = 3 * indices[3 * order[i] + 2];
+            for (int k = 0; k < 3; k++) {
+                triangles[TRIANGLE_FLOATS * i + k] = positions[a + k];
+                triangles[TRIANGLE_FLOATS * i + 3 + k] = positions[b + k] - positions[a + k];
+                triangles[TRIANGLE_FLOATS * i + 6 + k] = positions[c + k] - positions[a + k];
+            }
+        }
+    }
+
+    /**
+     * A hierarchy over boxes, to find those a ray crosses with {@link #collect}.
+     *
+     * @param boxes min x, y, z, then max x, y, z of each box
+     */
+    public static Bvh overBoxes(float[] boxes, int count) {
+        return new Bvh(null, null, Arrays.copyOf(boxes, 6 * count), count);
+    }
+
+    /** The bins of a split, kept across the nodes of a build */
+    private static final class Bins {
+
+        final int[] counts = new int[BINS];
+
+        final float[] bounds = new float[6 * BINS];
+
+        /** Area and count of the bins right of each split */
+        final float[] rightAreas = new float[BINS];
+
+        final int[] rightCounts = new int[BINS];
+    }
+
+    /**
+     * Make a node of the triangles order[from, to) and split it until the leaves are small enough.
+     */
+    private void build(int node, int from, int to, int level, int[] order, float[] boxes, float[] centroids,
+            Bins bins) {
+        depth = Math.max(depth, level);
+        int b = 6 * node;
+        nodeBounds[b] = nodeBounds[b + 1] = nodeBounds[b + 2] = Float.POSITIVE_INFINITY;
+        nodeBounds[b + 3] = nodeBounds[b + 4] = nodeBounds[b + 5] = Float.NEGATIVE_INFINITY;
+        float[] cmin = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+        float[] cmax = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+        for (int i = from; i < to; i++) {
+            int t = order[i];
+            for (int k = 0; k < 3; k++) {
+                nodeBounds[b + k] = Math.min(nodeBounds[b + k], boxes[6 * t + k]);
+                nodeBounds[b + 3 + k] = Math.max(nodeBounds[b + 3 + k], boxes[6 * t + 3 + k]);
+                cmin[k] = Math.min(cmin[k], centroids[3 * t + k]);
+                cmax[k] = Math.max(cmax[k], centroids[3 * t + k]);
+            }
+        }
+        int count = to - from;
+        nodes[2 * node] = from;
+        nodes[2 * node + 1] = count;
+        if (count <= LEAF_SIZE) {
+            return;
+        }
+        int axis = 0;
+        for (int k = 1; k < 3; k++) {
+            if (cmax[k] - cmin[k] > cmax[axis] - cmin[axis]) {
+                axis = k;
+            }
+        }
+        float extent = cmax[axis] - cmin[axis];
+        if (!(extent > 0)) {
+            // all centroids in one point, no split can separate them
+            return;
+        }
+
+        float scale = BINS / extent;
+        Arrays.fill(bins.counts, 0);
+        for (int i = 0; i < BINS; i++) {
+            emptyBox(bins.bounds, 6 * i);
+        }
+        for (int i = from; i < to; i++) {
+            int t = order[i];
+            int bin = Math.min(BINS - 1, (int) ((centroids[3 * t + axis] - cmin[axis]) * scale));
+            bins.counts[bin]++;
+            growBox(bins.bounds, 6 * bin, boxes, 6 * t);
+        }
+        float[] box = new float[6];
+        emptyBox(box, 0);
+        int rightCount = 0;
+        for (int i = BINS - 1; i > 0; i--) {
+            growBox(box, 0, bins.bounds, 6 * i);
+            rightCount += bins.counts[i];
+            bins.rightAreas[i] = area(box, 0);
+            bins.rightCounts[i] = rightCount;
+        }
+        emptyBox(box, 0);
+        int leftCount = 0;
+        int split = -1;
+        float bestCost = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < BINS - 1; i++) {
+            growBox(box, 0, bins.bounds, 6 * i);
+            leftCount += bins.counts[i];
+            if (leftCount == 0 || bins.rightCounts[i + 1] == 0) {
+                continue;
+            }
+            float cost = area(box, 0) * leftCount + bins.rightAreas[i + 1] * bins.rightCounts[i + 1];
+            if (cost < bestCost) {
+                bestCost = cost;
+                split = i;
+            }
+        }
+        float nodeArea = area(nodeBounds, b);
+        if (split < 0 || (count <= MAX_LEAF_SIZE && nodeArea > 0 && TRAVERSAL_COST + bestCost / nodeArea >= count)) {
+            return;
+        }
+
+        int mid = from;
+        for (int i = from; i < to; i++) {
+            int t = order[i];
+            int bin = Math.min(BINS - 1, (int) ((centroids[3 * t + axis] - cmin[axis]) * scale));
+            if (bin <= split) {
+                order[i] = order[mid];
+                order[mid++] = t;
+            }
+        }
+        int left = numNodes;
+        numNodes += 2;
+        nodes[2 * node] = left;
+        nodes[2 * node + 1] = 0;
+        build(left, from, mid, level + 1, order, boxes, centroids, bins);
+        build(left + 1, mid, to, level + 1, order, boxes, centroids, bins);
+    }
+
+    private static void emptyBox(float[] box, int o) {
+        box[o] = box[o + 1] = box[o + 2] = Float.POSITIVE_INFINITY;
+        box[o + 3] = box[o + 4] = box[o + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void growBox(float[] box, int o, float[] other, int p) {
+        for (int k = 0; k < 3; k++) {
+            box[o + k] = Math.min(box[o + k], other[p + k]);
+            box[o + 3 + k] = Math.max(box[o + 3 + k], other[p + 3 + k]);
+        }
+    }
+
+    /**
+     * @return half the surface area of a box, 0 if it is empty
+     */
+    private static float area(float[] box, int o) {
+        float dx = box[o + 3] - box[o], dy = box[o + 4] - box[o + 1], dz = box[o + 5] - box[o + 2];
+        return dx >= 0 ? dx * dy + dy * dz + dz * dx : 0;
+    }
+
+    /**
+     * @return whether the hierarchy was built from these arrays of a mesh
+     */
+    public boolean isFor(float[] positions, int[] indices) {
+        return this.positions == positions && this.indices == indices;
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getNumTriangles() {
+        return triangles.length / TRIANGLE_FLOATS;
+    }
+
+    /**
+     * Find the nearest triangle a ray hits, both facings count. The direction need not be normalized;
+     * distances are in lengths of it.
+     *
+     * @param tMax the distance of the nearest hit found so far
+     * @return whether a triangle nearer than tMax was hit; if so the hit describes it
+     */
+    public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax,
+            Hit hit) {
+        return traverse(ox, oy, oz, dx, dy, dz, tMin, tMax, -1, false, hit);
+    }
+
+    /**
+     * @param skip a triangle to leave out, such as the one the ray starts on, or -1
+     * @return whether any triangle is hit between tMin and tMax
+     */
+    public boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax,
+            int skip, Hit hit) {
+        return traverse(ox, oy, oz, dx, dy, dz, tMin, tMax, skip, true, hit);
+    }
+
+    /**
+     * Find the primitives in the leaves a ray reaches, nearer leaves mostly first.
+     *
+     * @param found receives the primitives, room for all of them
+     * @param entries receives where the ray enters the leaf of each
+     * @return the number of primitives found
+     */
+    public int collect(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax,
+            int[] found, float[] entries, Hit hit) {
+        float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+        if (primitives.length == 0 || enter(0, ox, oy, oz, ix, iy, iz, tMin, tMax) == Float.POSITIVE_INFINITY) {
+            return 0;
+        }
+        int[] stack = stack(hit);
+        int sp = 0;
+        int node = 0;
+        int n = 0;
+        while (true) {
+            int count = nodes[2 * node + 1];
+            if (count > 0) {
+                float entry = enter(node, ox, oy, oz, ix, iy, iz, tMin, tMax);
+                for (int i = nodes[2 * node]; i < nodes[2 * node] + count; i++) {
+                    found[n] = primitives[i];
+                    entries[n++] = entry;
+                }
+            } else {
+                int left = nodes[2 * node];
+                float enterLeft = enter(left, ox, oy, oz, ix, iy, iz, tMin, tMax);
+                float enterRight = enter(left + 1, ox, oy, oz, ix, iy, iz, tMin, tMax);
+                if (enterLeft != Float.POSITIVE_INFINITY || enterRight != Float.POSITIVE_INFINITY) {
+                    boolean leftFirst = enterLeft <= enterRight;
+                    node = leftFirst ? left : left + 1;
+                    if ((leftFirst ? enterRight : enterLeft) != Float.POSITIVE_INFINITY) {
+                        stack[sp++] = leftFirst ? left + 1 : left;
+                    }
+                    continue;
+                }
+            }
+            if (sp == 0) {
+                return n;
+            }
+            node = stack[--sp];
+        }
+    }
+
+    /**
+     * @return the stack of a hit, deep enough for this hierarchy
+     */
+    private int[] stack(Hit hit) {
+        if (hit.stack.length < depth) {
+            hit.stack = new int[depth];
+            hit.entries = new float[depth];
+        }
+        return hit.stack;
+    }
+
+    private boolean traverse(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax,
+            int skip, boolean any, Hit hit) {
+        if (triangles.length == 0) {
+            return false;
+        }
+        float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+        if (enter(0, ox, oy, oz, ix, iy, iz, tMin, tMax) == Float.POSITIVE_INFINITY) {
+            return false;
+        }
+        int[] stack = stack(hit);
+        float[] entries = hit.entries;
+        int sp = 0;
+        int node = 0;
+        boolean found = false;
+        while (true) {
+            int count = nodes[2 * node + 1];
+            if (count > 0) {
+                int first = nodes[2 * node];
+                for (int i = first; i < first + count; i++) {
+                    int o = TRIANGLE_FLOATS * i;
+                    float e1x = triangles[o + 3], e1y = triangles[o + 4], e1z = triangles[o + 5];
+                    float e2x = triangles[o + 6], e2y = triangles[o + 7], e2z = triangles[o + 8];
+                    float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+                    float det = e1x * px + e1y * py + e1z * pz;
+                    if (det == 0) {
+                        continue;
+                    }
+                    float inv = 1 / det;
+                    float sx = ox - triangles[o], sy = oy - triangles[o + 1], sz = oz - triangles[o + 2];
+                    float u = (sx * px + sy * py + sz * pz) * inv;
+                    if (u < 0 || u > 1) {
+                        continue;
+                    }
+                    float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+                    float v = (dx * qx + dy * qy + dz * qz) * inv;
+                    if (v < 0 || u + v > 1) {
+                        continue;
+                    }
+                    float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+                    if (t > tMin && t < tMax && primitives[i] != skip) {
+                        if (any) {
+                            return true;
+                        }
+                        tMax = t;
+                        hit.t = t;
+                        hit.triangle = primitives[i];
+                        hit.b1 = u;
+                        hit.b2 = v;
+                        found = true;
+                    }
+                }
+            } else {
+                int left = nodes[2 * node];
+                float enterLeft = enter(left, ox, oy, oz, ix, iy, iz, tMin, tMax);
+                float enterRight = enter(left + 1, ox, oy, oz, ix, iy, iz, tMin, tMax);
+                if (enterLeft != Float.POSITIVE_INFINITY || enterRight != Float.POSITIVE_INFINITY) {
+                    // the nearer child first, the other one waits on the stack
+                    boolean leftFirst = enterLeft <= enterRight;
+                    node = leftFirst ? left : left + 1;
+                    float far = leftFirst ? enterRight : enterLeft;
+                    if (far != Float.POSITIVE_INFINITY) {
+                        stack[sp] = leftFirst ? left + 1 : left;
+                        entries[sp++] = far;
+                    }
+                    continue;
+                }
+            }
+            // the next waiting node the ray still reaches before its nearest hit
+            do {
+                if (sp == 0) {
+                    return found;
+                }
+                node = stack[--sp];
+            } while (entries[sp] >= tMax);
+        }
+    }
+
+    /**
+     * @return where the ray enters the bounds of a node between tMin and tMax, or infinity if it
+     *         misses them
+     */
+    private float enter(int node, float ox, float oy, float oz, float ix, float iy, float iz, float tMin,
+            float tMax) {
+        int b = 6 * node;
+        float tx0 = (nodeBounds[b] - ox) * ix, tx1 = (nodeBounds[b + 3] - ox) * ix;
+        float ty0 = (nodeBounds[b + 1] - oy) * iy, ty1 = (nodeBounds[b + 4] - oy) * iy;
+        float tz0 = (nodeBounds[b + 2] - oz) * iz, tz1 = (nodeBounds[b + 5] - oz) * iz;
+        float near = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)), Math.max(Math.min(tz0, tz1), tMin));
+        float far = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)), Math.min(Math.max(tz0, tz1), tMax));
+        return near <= far ? near : Float.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,212 @@
+package w4160.engine.graphics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * A texture with its whole mip chain in the GPU format, ready to upload without any processing.
+ *
+ * <p>
+ * {@link TextureCooker} produces it. On disk it is a small KTX-like container: a little-endian
+ * header with the format, size and level table, followed by the levels, largest first, each aligned
+ * to 16 bytes. {@link #read(Path)} maps the file, so the levels are uploaded straight from the page
+ * cache without being copied into the Java heap.
+ * </p>
+ */
+public class CookedTexture {
+
+    /**
+     * The pixel format of all levels.
+     */
+    public enum Format {
+        /** Uncompressed 8-bit RGBA */
+        RGBA8(GL_RGBA8, 0),
+        /** DXT1: opaque RGB, 8 bytes per 4x4 block */
+        BC1(GL_COMPRESSED_RGB_S3TC_DXT1_EXT, 8),
+        /** DXT5: RGB as BC1 plus interpolated alpha, 16 bytes per 4x4 block */
+        BC3(GL_COMPRESSED_RGBA_S3TC_DXT5_EXT, 16);
+
+        public final int internalFormat;
+
+        /** Bytes per 4x4 block, 0 if uncompressed */
+        public final int blockBytes;
+
+        Format(int internalFormat, int blockBytes) {
+            this.internalFormat = internalFormat;
+            this.blockBytes = blockBytes;
+        }
+
+        public boolean isCompressed() {
+            return blockBytes != 0;
+        }
+
+        /**
+         * @return the size of a level of the given dimensions in bytes
+         */
+        public int levelSize(int width, int height) {
+            if (!isCompressed()) {
+                return width * height * 4;
+            }
+            return ((width + 3) / 4) * ((height + 3) / 4) * blockBytes;
+        }
+    }
+
+    private static final int MAGIC = 0x58543457; // "W4TX" in little-endian
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 24;
+
+    private static final int LEVEL_ENTRY_BYTES = 16;
+
+    private final Format format;
+
+    private final int width;
+
+    private final int height;
+
+    private final ByteBuffer[] levels;
+
+    /**
+     * @param levels the data of each level, largest first; the buffers must be direct
+     */
+    public CookedTexture(Format format, int width, int height, ByteBuffer[] levels) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public int getLevelWidth(int level) {
+        return Math.max(1, width >> level);
+    }
+
+    public int getLevelHeight(int level) {
+        return Math.max(1, height >> level);
+    }
+
+    /**
+     * @return the data of a level; the buffer is shared, use {@link ByteBuffer#duplicate()} to read it
+     */
+    public ByteBuffer getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * @return the size of all levels together, i.e. the memory the texture takes on the GPU
+     */
+    public long getByteSize() {
+        long size = 0;
+        for (ByteBuffer level : levels) {
+            size += level.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Write the texture to a file. The file is written to a temporary file first and moved in place,
+     * so a reader never sees a partial file.
+     */
+    public void write(Path file) throws IOException {
+        int dataStart = align(HEADER_BYTES + LEVEL_ENTRY_BYTES * levels.length);
+        ByteBuffer header = ByteBuffer.allocate(dataStart).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(format.ordinal())
+                .putInt(width).putInt(height).putInt(levels.length);
+        long offset = dataStart;
+        for (ByteBuffer level : levels) {
+            header.putLong(offset).putInt(level.remaining()).putInt(0);
+            offset = align(offset + level.remaining());
+        }
+        header.position(0);
+
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.write(header);
+                for (ByteBuffer level : levels) {
+                    ByteBuffer src = level.duplicate();
+                    while (src.hasRemaining()) {
+                        channel.write(src);
+                    }
+                    long padding = align(channel.position()) - channel.position();
+                    channel.write(ByteBuffer.allocate((int) padding));
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Map a file written by {@link #write(Path)}.
+     *
+     * @return the texture whose levels are slices of the mapping
+     * @throws IOException if the file cannot be read or is not a cooked texture of this version
+     */
+    public static CookedTexture read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (map.remaining() < HEADER_BYTES || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("Not a cooked texture: " + file);
+            }
+            int formatIndex = map.getInt(8);
+            int width = map.getInt(12);
+            int height = map.getInt(16);
+            int levelCount = map.getInt(20);
+            if (formatIndex < 0 || formatIndex >= Format.values().length || levelCount <= 0
+                    || map.remaining() < HEADER_BYTES + LEVEL_ENTRY_BYTES * levelCount) {
+                throw new IOException("Corrupt cooked texture: " + file);
+            }
+            Format format = Format.values()[formatIndex];
+
+            ByteBuffer[] levels = new ByteBuffer[levelCount];
+            for (int i = 0; i < levelCount; i++) {
+                int entry = HEADER_BYTES + LEVEL_ENTRY_BYTES * i;
+                long offset = map.getLong(entry);
+                int size = map.getInt(entry + 8);
+                int expected = format.levelSize(Math.max(1, width >> i), Math.max(1, height >> i));
+                if (size != expected || offset + size > map.limit()) {
+                    throw new IOException("Corrupt cooked texture: " + file);
+                }
+                ByteBuffer level = map.duplicate();
+                level.position((int) offset).limit((int) offset + size);
+                levels[i] = level.slice();
+            }
+            return new CookedTexture(format, width, height, levels);
+        }
+    }
+
+    private static int align(long offset) {
+        return (int) ((offset + 15) & ~15L);
+    }
+}
@@ -0,0 +1,232 @@
+package w4160.engine.graphics;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Draws the scene into an offscreen framebuffer at a resolution that follows the GPU time of the
+ * recent frames, and scales it up to the window.
+ *
+ * <p>
+ * The framebuffer is allocated at the full size of the window and the scene is drawn into its
+ * lower left part, so changing the scale only changes the viewport. {@link #update(float)} feeds
+ * the controller with the GPU time of a frame: while the smoothed time is above the target the
+ * scale goes down, while it is well below the target it goes up again, always within the
+ * configured bounds. The cost of a frame is roughly proportional to its pixels, so the scale
+ * moves by the square root of the ratio of the target to the measured time. The GPU times arrive
+ * {@link GpuProfiler#FRAME_LATENCY} frames late, so after every change the controller waits for
+ * frames drawn at the new scale before it judges again.
+ * </p>
+ *
+ * <p>
+ * {@link #present(int, int)} draws the scene onto the framebuffer that was bound before
+ * {@link #beginScene(int, int)}, the default one or that of a {@link w4160.engine.HeadlessWindow}, with
+ * a bilinear upscale and a light sharpening that grows as the scale shrinks.
+ * </p>
+ */
+public class DynamicResolution {
+
+    /** Scales are multiples of this, so small jitter in the timings does not change the viewport */
+    private static final float SCALE_STEP = 1f / 32;
+
+    /** Frames to wait after a change, until the GPU times are of frames drawn at the new scale */
+    private static final int SETTLE_FRAMES = GpuProfiler.FRAME_LATENCY + 4;
+
+    /** Weight of a new GPU time in the smoothed time */
+    private static final float SMOOTHING = 0.25f;
+
+    /** The scale only goes up while the frames take less than this share of the target */
+    private static final float RAISE_THRESHOLD = 0.8f;
+
+    /** The share of the target a change aims for, to keep some headroom */
+    private static final float AIM = 0.9f;
+
+    /** Sharpening at the smallest scales */
+    private static final float MAX_SHARPNESS = 0.6f;
+
+    private final ShaderProgram upscaleShader;
+
+    private final float minScale;
+
+    private final float maxScale;
+
+    private final float targetMillis;
+
+    private float scale;
+
+    private float gpuMillis;
+
+    private int samples;
+
+    private int framesSinceChange;
+
+    private int changes;
+
+    private final int fboId;
+
+    private final int colorTextureId;
+
+    private final int depthBufferId;
+
+    /** Empty vertex array for the fullscreen triangle, core profile needs one bound */
+    private final int emptyVaoId;
+
+    private int width;
+
+    private int height;
+
+    private int sceneWidth;
+
+    private int sceneHeight;
+
+    /** The framebuffer bound before {@link #beginScene(int, int)}, which the scene is presented on */
+    private int targetFboId;
+
+    /**
+     * @param minScale the smallest scale of each axis, above 0
+     * @param maxScale the largest scale of each axis, at most 1
+     * @param targetMillis the GPU time a frame should take
+     */
+    public DynamicResolution(ShaderProgram upscaleShader, float minScale, float maxScale, float targetMillis) {
+        if (minScale <= 0 || maxScale > 1 || minScale > maxScale) {
+            throw new IllegalArgumentException("DynamicResolution: bad scale bounds " + minScale + ".." + maxScale);
+        }
+        this.upscaleShader = upscaleShader;
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.targetMillis = targetMillis;
+        this.scale = maxScale;
+
+        fboId = glGenFramebuffers();
+        colorTextureId = glGenTextures();
+        depthBufferId = glGenRenderbuffers();
+        emptyVaoId = glGenVertexArrays();
+        int target = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+
+        glBindTexture(GL_TEXTURE_2D, colorTextureId);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, colorTextureId, 0);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthBufferId);
+        glBindFramebuffer(GL_FRAMEBUFFER, target);
+    }
+
+    /**
+     * Judge the GPU time of a frame and change the scale if it is off the target.
+     */
+    public void update(float frameGpuMillis) {
+        framesSinceChange++;
+        if (framesSinceChange < SETTLE_FRAMES) {
+            return;
+        }
+        gpuMillis = samples == 0 ? frameGpuMillis : gpuMillis + SMOOTHING * (frameGpuMillis - gpuMillis);
+        samples++;
+        if (gpuMillis <= 0 || (gpuMillis <= targetMillis && gpuMillis >= targetMillis * RAISE_THRESHOLD)) {
+            return;
+        }
+        float wanted = scale * (float) Math.sqrt(targetMillis * AIM / gpuMillis);
+        wanted = Math.round(wanted / SCALE_STEP) * SCALE_STEP;
+        wanted = Math.max(minScale, Math.min(maxScale, wanted));
+        if (wanted != scale) {
+            scale = wanted;
+            changes++;
+            framesSinceChange = 0;
+            samples = 0;
+        }
+    }
+
+    /**
+     * Bind the offscreen framebuffer at the current scale of the given window size and clear it.
+     */
+    public void beginScene(int width, int height) {
+        targetFboId = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        resize(width, height);
+        sceneWidth = Math.max(1, Math.round(width * scale));
+        sceneHeight = Math.max(1, Math.round(height * scale));
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glViewport(0, 0, sceneWidth, sceneHeight);
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+    }
+
+    /**
+     * Reallocate the attachments if the window size has changed.
+     */
+    private void resize(int width, int height) {
+        if (width == this.width && height == this.height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        glBindTexture(GL_TEXTURE_2D, colorTextureId);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glBindRenderbuffer(GL_RENDERBUFFER, depthBufferId);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        glBindFramebuffer(GL_FRAMEBUFFER, targetFboId);
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("DynamicResolution: framebuffer is incomplete: 0x"
+                    + Integer.toHexString(status));
+        }
+    }
+
+    /**
+     * Scale the scene up onto the framebuffer bound before {@link #beginScene(int, int)}, which is left
+     * bound with a full-size viewport.
+     */
+    public void present(int width, int height) {
+        glBindFramebuffer(GL_FRAMEBUFFER, targetFboId);
+        glViewport(0, 0, width, height);
+        glDisable(GL_DEPTH_TEST);
+        upscaleShader.bind();
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, colorTextureId);
+        upscaleShader.setUniform("sceneTexture", 0);
+        upscaleShader.setUniform("uvScale", (float) sceneWidth / this.width, (float) sceneHeight / this.height);
+        upscaleShader.setUniform("texelSize", 1f / this.width, 1f / this.height);
+        upscaleShader.setUniform("sharpness", MAX_SHARPNESS * (1 - scale) / Math.max(1e-3f, 1 - minScale));
+        glBindVertexArray(emptyVaoId);
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+        glBindVertexArray(0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        upscaleShader.unbind();
+        glEnable(GL_DEPTH_TEST);
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getSceneWidth() {
+        return sceneWidth;
+    }
+
+    public int getSceneHeight() {
+        return sceneHeight;
+    }
+
+    public String report() {
+        return String.format("DynamicResolution: scale %.3f (%dx%d of %dx%d), gpu %.2f of %.2f ms, %d changes",
+                scale, sceneWidth, sceneHeight, width, height, gpuMillis, targetMillis, changes);
+    }
+
+    public void cleanup() {
+        // deleting the framebuffer unbinds it if it is bound, and leaves that of the window bound otherwise
+        glDeleteFramebuffers(fboId);
+        glDeleteTextures(colorTextureId);
+        glDeleteRenderbuffers(depthBufferId);
+        glDeleteVertexArrays(emptyVaoId);
+        upscaleShader.cleanup();
+    }
+}
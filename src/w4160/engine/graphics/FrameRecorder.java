@@ -0,0 +1,486 @@
+package w4160.engine.graphics;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * Records every frame as numbered PNG files or as one uncompressed Y4M video.
+ *
+ * <p>
+ * Each frame is read back into a ring of pixel buffer objects as in {@link ScreenCapture}. Once its
+ * fence has signalled, the buffer is mapped and the frame goes to a pool of encoder threads through a
+ * bounded queue. When the encoders fall behind and the queue is full, the {@link Policy} decides what
+ * happens to the frame. Encoders work straight from the mapped buffers, which are recycled on the
+ * render thread as they finish.
+ * </p>
+ *
+ * <p>
+ * {@link #capture} and {@link #stop} must be called on the render thread.
+ * </p>
+ */
+public class FrameRecorder {
+
+    public enum Format {
+        /** <code>frame_000000.png</code>, ... in the output directory, numbered by captured frame */
+        PNG,
+        /** A single YUV4MPEG2 stream with 4:4:4 frames; dropped frames shorten the video */
+        Y4M
+    }
+
+    /**
+     * What to do with a frame when the encoder queue is full.
+     */
+    public enum Policy {
+        /** Skip the frame; the render loop is never held up */
+        DROP,
+        /** Wait on the render thread until an encoder takes a frame, so no frame is lost */
+        BLOCK,
+        /** Encode PNGs with the fastest deflate level and a cheap filter while the queue is over half full, drop when full */
+        DEGRADE
+    }
+
+    /** Frames a read-back normally takes before it can be mapped without waiting */
+    private static final int READBACK_LATENCY = 2;
+
+    private final ParallelPngWriter pngWriter = new ParallelPngWriter();
+
+    /** Used for degraded frames: the fastest deflate level with the cheapest useful filter */
+    private final ParallelPngWriter fastPngWriter = new ParallelPngWriter(1, ParallelPngWriter.Filter.UP);
+
+    private static final int FREE = 0;
+
+    private static final int READING = 1;
+
+    private static final int ENCODING = 2;
+
+    private static class Slot {
+
+        final int pboId;
+
+        int state = FREE;
+
+        long capacity;
+
+        long fence;
+
+        long frameIndex;
+
+        /** Position in the Y4M stream */
+        long sequence;
+
+        int width;
+
+        int height;
+
+        ByteBuffer pixels;
+
+        boolean degraded;
+
+        volatile boolean encoded;
+
+        Slot(int pboId) {
+            this.pboId = pboId;
+        }
+    }
+
+    /** Handed to the encoders to make them exit */
+    private static final Slot STOP = new Slot(0);
+
+    private final File output;
+
+    private final Format format;
+
+    private final Policy policy;
+
+    private final int fps;
+
+    private final Slot[] slots;
+
+    /** Slots with a read-back in flight, oldest first */
+    private final ArrayDeque<Slot> reading = new ArrayDeque<>();
+
+    private final BlockingQueue<Slot> queue;
+
+    private final Thread[] encoders;
+
+    private long capturedFrames;
+
+    private long enqueuedFrames;
+
+    private final AtomicLong encodedFrames = new AtomicLong();
+
+    private long droppedFrames;
+
+    private long degradedFrames;
+
+    private final AtomicLong failedFrames = new AtomicLong();
+
+    /** The Y4M stream, written in sequence order by whichever encoder holds the next frame */
+    private OutputStream y4m;
+
+    private long nextSequence;
+
+    private boolean headerWritten;
+
+    private int streamWidth;
+
+    private int streamHeight;
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Create the pixel buffers and start the encoders. Must be called on the render thread.
+     *
+     * @param output the directory for {@link Format#PNG} or the file for {@link Format#Y4M}
+     * @param format the output format
+     * @param policy what to do when the encoders fall behind
+     * @param fps frame rate written to the Y4M header
+     * @param queueCapacity frames that may wait for an encoder
+     * @param numEncoders number of encoder threads
+     */
+    public FrameRecorder(File output, Format format, Policy policy, int fps, int queueCapacity, int numEncoders)
+            throws IOException {
+        this.output = output;
+        this.format = format;
+        this.policy = policy;
+        this.fps = fps;
+        if (format == Format.PNG) {
+            if (!output.isDirectory() && !output.mkdirs()) {
+                throw new IOException("Cannot create " + output);
+            }
+        } else {
+            y4m = new BufferedOutputStream(new FileOutputStream(output), 1 << 20);
+        }
+
+        // enough buffers that only the queue, not the ring, holds back frames
+        slots = new Slot[queueCapacity + numEncoders + READBACK_LATENCY + 1];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(glGenBuffers());
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        encoders = new Thread[numEncoders];
+        for (int i = 0; i < numEncoders; i++) {
+            encoders[i] = new Thread(this::encodeLoop, "FRAME_ENCODER_THREAD-" + i);
+            encoders[i].setDaemon(true);
+            encoders[i].start();
+        }
+    }
+
+    /**
+     * Record with the default queue of 4 frames and half of the processors as encoders.
+     */
+    public FrameRecorder(File output, Format format, Policy policy, int fps) throws IOException {
+        this(output, format, policy, fps, 4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Capture the frame in the given buffer and pass on the earlier frames whose read-back is done.
+     * Call once per frame before anything is drawn.
+     *
+     * @param readBuffer the buffer to read from, see {@link w4160.engine.Window#getReadBuffer()}
+     * @param width width of the frame in pixels
+     * @param height height of the frame in pixels
+     */
+    public void capture(int readBuffer, int width, int height) {
+        long frameIndex = capturedFrames++;
+        recycle();
+        handOff(false);
+
+        Slot slot = freeSlot();
+        while (slot == null && policy == Policy.BLOCK) {
+            // wait for the oldest read-back, then for an encoder to finish a frame
+            if (!handOff(true)) {
+                Thread.yield();
+            }
+            recycle();
+            slot = freeSlot();
+        }
+        if (slot == null) {
+            droppedFrames++;
+            return;
+        }
+        startReading(slot, frameIndex, readBuffer, width, height);
+    }
+
+    private Slot freeSlot() {
+        for (Slot slot : slots) {
+            if (slot.state == FREE) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private void startReading(Slot slot, long frameIndex, int readBuffer, int width, int height) {
+        long size = (long) width * height * 4;
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pboId);
+        if (slot.capacity != size) {
+            glBufferData(GL_PIXEL_PACK_BUFFER, size, GL_STREAM_READ);
+            slot.capacity = size;
+        }
+        glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        glReadBuffer(readBuffer);
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        slot.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.frameIndex = frameIndex;
+        slot.width = width;
+        slot.height = height;
+        slot.state = READING;
+        reading.add(slot);
+    }
+
+    /**
+     * Map the finished read-backs in frame order and queue them for the encoders.
+     *
+     * @param wait block for the oldest read-back instead of stopping at the first unfinished one
+     * @return true if a frame was handed off
+     */
+    private boolean handOff(boolean wait) {
+        boolean any = false;
+        while (!reading.isEmpty()) {
+            Slot slot = reading.peek();
+            int status = glClientWaitSync(slot.fence, wait ? GL_SYNC_FLUSH_COMMANDS_BIT : 0, wait ? Long.MAX_VALUE : 0);
+            if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) {
+                break;
+            }
+            wait = false;
+            reading.poll();
+            glDeleteSync(slot.fence);
+            slot.fence = 0;
+            enqueue(slot);
+            any = true;
+        }
+        return any;
+    }
+
+    private void enqueue(Slot slot) {
+        if (format == Format.Y4M) {
+            if (streamWidth == 0) {
+                streamWidth = slot.width;
+                streamHeight = slot.height;
+            } else if (slot.width != streamWidth || slot.height != streamHeight) {
+                // a Y4M stream cannot change size
+                droppedFrames++;
+                slot.state = FREE;
+                return;
+            }
+        }
+        if (queue.remainingCapacity() == 0 && policy != Policy.BLOCK) {
+            droppedFrames++;
+            slot.state = FREE;
+            return;
+        }
+
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pboId);
+        slot.pixels = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, slot.capacity, GL_MAP_READ_BIT);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        if (slot.pixels == null) {
+            failedFrames.incrementAndGet();
+            slot.state = FREE;
+            return;
+        }
+        slot.degraded = policy == Policy.DEGRADE && queue.size() >= queue.remainingCapacity();
+        if (slot.degraded) {
+            degradedFrames++;
+        }
+        slot.sequence = enqueuedFrames++;
+        slot.encoded = false;
+        slot.state = ENCODING;
+        try {
+            // only blocks with Policy.BLOCK, the other policies checked for room above
+            queue.put(slot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Unmap the buffers the encoders are done with.
+     */
+    private void recycle() {
+        for (Slot slot : slots) {
+            if (slot.state == ENCODING && slot.encoded) {
+                glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pboId);
+                glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+                glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+                slot.pixels = null;
+                slot.state = FREE;
+            }
+        }
+    }
+
+    private void encodeLoop() {
+        byte[] yuv = null;
+        try {
+            while (true) {
+                Slot slot = queue.take();
+                if (slot == STOP) {
+                    return;
+                }
+                // the slot's fields are read before it is marked encoded, after that the render thread owns it
+                long sequence = slot.sequence;
+                boolean written = false;
+                try {
+                    if (format == Format.PNG) {
+                        File file = new File(output, String.format("frame_%06d.png", slot.frameIndex));
+                        (slot.degraded ? fastPngWriter : pngWriter).write(slot.pixels, slot.width, slot.height, file);
+                        slot.encoded = true;
+                    } else {
+                        int planeSize = slot.width * slot.height;
+                        if (yuv == null || yuv.length != 3 * planeSize) {
+                            yuv = new byte[3 * planeSize];
+                        }
+                        toYuv444(slot.pixels, slot.width, slot.height, yuv);
+                        slot.encoded = true;
+                        written = true;
+                        if (!writeY4mFrame(sequence, yuv)) {
+                            continue;
+                        }
+                    }
+                    encodedFrames.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    slot.encoded = true;
+                    if (format == Format.Y4M && !written) {
+                        // let the frames after this one through
+                        writeY4mFrame(sequence, null);
+                    }
+                    if (failedFrames.incrementAndGet() == 1) {
+                        System.err.println("FrameRecorder: failed to encode a frame: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Convert bottom-up RGBA pixels to top-down planar BT.601 studio-range YCbCr.
+     */
+    private static void toYuv444(ByteBuffer rgba, int width, int height, byte[] yuv) {
+        int planeSize = width * height;
+        for (int row = 0; row < height; row++) {
+            int src = (height - row - 1) * width * 4;
+            int dst = row * width;
+            for (int col = 0; col < width; col++, src += 4, dst++) {
+                int r = rgba.get(src) & 0xFF;
+                int g = rgba.get(src + 1) & 0xFF;
+                int b = rgba.get(src + 2) & 0xFF;
+                yuv[dst]                 = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                yuv[planeSize + dst]     = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                yuv[2 * planeSize + dst] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+            }
+        }
+    }
+
+    /**
+     * Append a frame to the stream once all earlier frames are written.
+     *
+     * @param yuv the planes of the frame, or null to skip a frame that failed
+     * @return true if the frame was written
+     */
+    private boolean writeY4mFrame(long sequence, byte[] yuv) throws InterruptedException {
+        synchronized (this) {
+            // encoders take frames in sequence order, so the earlier frames are already being converted
+            while (nextSequence != sequence) {
+                wait();
+            }
+            try {
+                if (yuv == null) {
+                    return false;
+                }
+                if (!headerWritten) {
+                    String header = "YUV4MPEG2 W" + streamWidth + " H" + streamHeight + " F" + fps
+                            + ":1 Ip A1:1 C444\n";
+                    y4m.write(header.getBytes(StandardCharsets.US_ASCII));
+                    headerWritten = true;
+                }
+                y4m.write("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+                y4m.write(yuv);
+                return true;
+            } catch (IOException e) {
+                if (failedFrames.incrementAndGet() == 1) {
+                    System.err.println("FrameRecorder: failed to write " + output + ": " + e.getMessage());
+                }
+                return false;
+            } finally {
+                nextSequence++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Encode the frames in flight, stop the encoders, delete the buffers and print a report.
+     */
+    public void stop() {
+        while (!reading.isEmpty()) {
+            handOff(true);
+            recycle();
+        }
+        try {
+            for (int i = 0; i < encoders.length; i++) {
+                queue.put(STOP);
+            }
+            for (Thread encoder : encoders) {
+                encoder.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        recycle();
+        for (Slot slot : slots) {
+            glDeleteBuffers(slot.pboId);
+        }
+        if (y4m != null) {
+            try {
+                y4m.close();
+            } catch (IOException e) {
+                System.err.println("FrameRecorder: failed to close " + output + ": " + e.getMessage());
+            }
+        }
+        System.out.println(report());
+    }
+
+    public long getCapturedFrames() {
+        return capturedFrames;
+    }
+
+    public long getEncodedFrames() {
+        return encodedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the frames encoded with the fast compression level under {@link Policy#DEGRADE}
+     */
+    public long getDegradedFrames() {
+        return degradedFrames;
+    }
+
+    public String report() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return String.format("FrameRecorder: %s %d frames in %.1f s: %d encoded, %d dropped, %d degraded, %d failed (%s)",
+                output, capturedFrames, seconds, getEncodedFrames(), droppedFrames, degradedFrames,
+                failedFrames.get(), policy.name().toLowerCase());
+    }
+}
@@ -0,0 +1,150 @@
+package w4160.engine.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.system.MemoryStack;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL20.glDrawBuffers;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * The geometry buffer of the deferred render path: a framebuffer object with one texture per
+ * surface attribute and a depth renderbuffer.
+ *
+ * <ul>
+ * <li>{@link #POSITION}: view-space position (RGBA16F)</li>
+ * <li>{@link #NORMAL}: view-space normal, w = 0 where nothing was drawn (RGBA16F)</li>
+ * <li>{@link #ALBEDO}: base colour from the material colour or texture (RGBA8)</li>
+ * <li>{@link #MATERIAL}: reflectance and shading model (RGBA8)</li>
+ * </ul>
+ */
+public class GBuffer {
+
+    public static final int POSITION = 0;
+
+    public static final int NORMAL = 1;
+
+    public static final int ALBEDO = 2;
+
+    public static final int MATERIAL = 3;
+
+    private static final int NUM_TEXTURES = 4;
+
+    private static final int[] INTERNAL_FORMATS = { GL_RGBA16F, GL_RGBA16F, GL_RGBA8, GL_RGBA8 };
+
+    private final int fboId;
+
+    private final int[] textureIds = new int[NUM_TEXTURES];
+
+    private final int depthBufferId;
+
+    private int width;
+
+    private int height;
+
+    public GBuffer(int width, int height) {
+        int target = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        fboId = glGenFramebuffers();
+        glGenTextures(textureIds);
+        depthBufferId = glGenRenderbuffers();
+
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        for (int i = 0; i < NUM_TEXTURES; i++) {
+            glBindTexture(GL_TEXTURE_2D, textureIds[i]);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0 + i, GL_TEXTURE_2D, textureIds[i], 0);
+        }
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthBufferId);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer drawBuffers = stack.mallocInt(NUM_TEXTURES);
+            for (int i = 0; i < NUM_TEXTURES; i++) {
+                drawBuffers.put(GL_COLOR_ATTACHMENT0 + i);
+            }
+            drawBuffers.flip();
+            glDrawBuffers(drawBuffers);
+        }
+        glBindTexture(GL_TEXTURE_2D, 0);
+        // the window may draw into a framebuffer of its own, see HeadlessWindow
+        glBindFramebuffer(GL_FRAMEBUFFER, target);
+
+        resize(width, height);
+    }
+
+    /**
+     * Reallocate the attachments if the size has changed.
+     */
+    public void resize(int width, int height) {
+        if (width == this.width && height == this.height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+
+        for (int i = 0; i < NUM_TEXTURES; i++) {
+            glBindTexture(GL_TEXTURE_2D, textureIds[i]);
+            int type = INTERNAL_FORMATS[i] == GL_RGBA8 ? GL_UNSIGNED_BYTE : GL_FLOAT;
+            glTexImage2D(GL_TEXTURE_2D, 0, INTERNAL_FORMATS[i], width, height, 0, GL_RGBA, type, (ByteBuffer) null);
+        }
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glBindRenderbuffer(GL_RENDERBUFFER, depthBufferId);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        int target = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        glBindFramebuffer(GL_FRAMEBUFFER, target);
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("G-buffer is incomplete: 0x" + Integer.toHexString(status));
+        }
+    }
+
+    /**
+     * Bind the G-buffer as the render target and clear it. The attachments are cleared to zero
+     * without touching the clear colour of the window.
+     */
+    public void bindForWriting() {
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glViewport(0, 0, width, height);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer zero = stack.callocFloat(4);
+            for (int i = 0; i < NUM_TEXTURES; i++) {
+                glClearBufferfv(GL_COLOR, i, zero);
+            }
+        }
+        glClear(GL_DEPTH_BUFFER_BIT);
+    }
+
+    /**
+     * Bind the attachments to consecutive texture units for the lighting pass.
+     *
+     * @param firstUnit texture unit of {@link #POSITION}
+     */
+    public void bindTextures(int firstUnit) {
+        for (int i = 0; i < NUM_TEXTURES; i++) {
+            glActiveTexture(GL_TEXTURE0 + firstUnit + i);
+            glBindTexture(GL_TEXTURE_2D, textureIds[i]);
+        }
+        glActiveTexture(GL_TEXTURE0);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void cleanup() {
+        // deleting the framebuffer unbinds it if it is bound, and leaves that of the window bound otherwise
+        glDeleteFramebuffers(fboId);
+        glDeleteTextures(textureIds);
+        glDeleteRenderbuffers(depthBufferId);
+    }
+}
@@ -0,0 +1,340 @@
+package w4160.engine.graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Measures the CPU and GPU time of named render passes.
+ *
+ * <p>
+ * Each pass is bracketed by two <code>GL_TIMESTAMP</code> queries, so passes may nest. The queries of a
+ * frame are kept in a ring {@link #FRAME_LATENCY} frames deep and only read back once the oldest frame
+ * of the ring comes around again; if the GPU is still not done with it the frame is dropped instead of
+ * waiting, so profiling never stalls the pipeline. The CPU time of a pass is measured with
+ * {@link System#nanoTime()} around the same calls. Without timer queries only CPU times are recorded.
+ * </p>
+ *
+ * <pre>
+ * profiler.nextFrame();
+ * profiler.begin("draw");
+ * ...
+ * profiler.end();
+ * </pre>
+ */
+public class GpuProfiler {
+
+    /** Frames between issuing the queries of a frame and reading them */
+    public static final int FRAME_LATENCY = 4;
+
+    /** Samples kept per pass for the rolling statistics */
+    public static final int WINDOW = 120;
+
+    private static final int MAX_PASSES_PER_FRAME = 64;
+
+    private static final int MAX_DEPTH = 16;
+
+    /**
+     * Rolling CPU and GPU times of one pass over the last {@link GpuProfiler#WINDOW} frames it ran in.
+     */
+    public static class PassStats {
+
+        private final String name;
+
+        private final long[] cpuNanos = new long[WINDOW];
+
+        private final long[] gpuNanos = new long[WINDOW];
+
+        private int cpuCount;
+
+        private int gpuCount;
+
+        PassStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        void addCpu(long nanos) {
+            cpuNanos[cpuCount++ % WINDOW] = nanos;
+        }
+
+        void addGpu(long nanos) {
+            gpuNanos[gpuCount++ % WINDOW] = nanos;
+        }
+
+        /**
+         * @return the number of GPU samples in the window
+         */
+        public int getGpuSamples() {
+            return Math.min(gpuCount, WINDOW);
+        }
+
+        /**
+         * @return the number of GPU samples taken since the last reset, which can exceed the window
+         */
+        public int getTotalGpuSamples() {
+            return gpuCount;
+        }
+
+        /**
+         * @return the most recent GPU time, 0 if there is none
+         */
+        public float getLatestGpuMillis() {
+            return gpuCount == 0 ? 0f : gpuNanos[(gpuCount - 1) % WINDOW] / 1e6f;
+        }
+
+        public float getCpuAverageMillis() {
+            return average(cpuNanos, Math.min(cpuCount, WINDOW));
+        }
+
+        public float getGpuAverageMillis() {
+            return average(gpuNanos, Math.min(gpuCount, WINDOW));
+        }
+
+        /**
+         * @param p percentile between 0 and 100
+         */
+        public float getCpuPercentileMillis(float p) {
+            return percentile(cpuNanos, Math.min(cpuCount, WINDOW), p);
+        }
+
+        /**
+         * @param p percentile between 0 and 100
+         */
+        public float getGpuPercentileMillis(float p) {
+            return percentile(gpuNanos, Math.min(gpuCount, WINDOW), p);
+        }
+
+        void reset() {
+            cpuCount = 0;
+            gpuCount = 0;
+        }
+
+        private static float average(long[] samples, int n) {
+            if (n == 0) {
+                return 0f;
+            }
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += samples[i];
+            }
+            return sum / (n * 1e6f);
+        }
+
+        private static float percentile(long[] samples, int n, float p) {
+            if (n == 0) {
+                return 0f;
+            }
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100f * n) - 1;
+            return sorted[Math.max(0, Math.min(n - 1, index))] / 1e6f;
+        }
+    }
+
+    /** Queries and pass records of one frame in the ring */
+    private static class Frame {
+
+        final int[] queries = new int[2 * MAX_PASSES_PER_FRAME];
+
+        final PassStats[] passes = new PassStats[MAX_PASSES_PER_FRAME];
+
+        int numPasses;
+
+        /** Index of the query issued last, the last one the GPU reaches */
+        int lastQuery;
+    }
+
+    private final Map<String, PassStats> stats = new LinkedHashMap<>();
+
+    private final Frame[] frames = new Frame[FRAME_LATENCY];
+
+    private final boolean gpuTimers;
+
+    private final int[] openPasses = new int[MAX_DEPTH];
+
+    private final long[] openCpuStart = new long[MAX_DEPTH];
+
+    private int depth;
+
+    private int current;
+
+    private long frameIndex;
+
+    private long droppedFrames;
+
+    private boolean enabled = true;
+
+    public GpuProfiler() {
+        GLCapabilities caps = GL.getCapabilities();
+        gpuTimers = caps.OpenGL33 || caps.GL_ARB_timer_query;
+        for (int i = 0; i < FRAME_LATENCY; i++) {
+            frames[i] = new Frame();
+            if (gpuTimers) {
+                glGenQueries(frames[i].queries);
+            }
+        }
+    }
+
+    /**
+     * @return true if GPU times are measured, false if only CPU times are available
+     */
+    public boolean hasGpuTimers() {
+        return gpuTimers;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Close the current frame and start the next one. The GPU times of the frame issued
+     * {@link #FRAME_LATENCY} frames ago are collected if they are available.
+     */
+    public void nextFrame() {
+        while (depth > 0) {
+            end();
+        }
+        frameIndex++;
+        current = (int) (frameIndex % FRAME_LATENCY);
+        Frame frame = frames[current];
+        if (frame.numPasses > 0 && gpuTimers) {
+            collect(frame);
+        }
+        frame.numPasses = 0;
+    }
+
+    /**
+     * Start timing a pass. Passes of the same name in one frame are recorded as separate samples.
+     *
+     * @param name name of the pass
+     */
+    public void begin(String name) {
+        if (depth >= MAX_DEPTH) {
+            // still count the nesting so the matching end() is ignored
+            depth++;
+            return;
+        }
+        Frame frame = frames[current];
+        if (!enabled || frame.numPasses == MAX_PASSES_PER_FRAME) {
+            openPasses[depth++] = -1;
+            return;
+        }
+        PassStats pass = stats.get(name);
+        if (pass == null) {
+            pass = new PassStats(name);
+            stats.put(name, pass);
+        }
+        int index = frame.numPasses++;
+        frame.passes[index] = pass;
+        if (gpuTimers) {
+            glQueryCounter(frame.queries[2 * index], GL_TIMESTAMP);
+            frame.lastQuery = 2 * index;
+        }
+        openPasses[depth] = index;
+        openCpuStart[depth] = System.nanoTime();
+        depth++;
+    }
+
+    /**
+     * End the pass most recently started.
+     */
+    public void end() {
+        if (depth == 0) {
+            throw new IllegalStateException("GpuProfiler.end() without begin()");
+        }
+        depth--;
+        if (depth >= MAX_DEPTH || openPasses[depth] < 0) {
+            return;
+        }
+        int index = openPasses[depth];
+        Frame frame = frames[current];
+        frame.passes[index].addCpu(System.nanoTime() - openCpuStart[depth]);
+        if (gpuTimers) {
+            glQueryCounter(frame.queries[2 * index + 1], GL_TIMESTAMP);
+            frame.lastQuery = 2 * index + 1;
+        }
+    }
+
+    private void collect(Frame frame) {
+        if (glGetQueryObjecti(frame.queries[frame.lastQuery], GL_QUERY_RESULT_AVAILABLE) == 0) {
+            droppedFrames++;
+            return;
+        }
+        for (int i = 0; i < frame.numPasses; i++) {
+            long start = glGetQueryObjectui64(frame.queries[2 * i], GL_QUERY_RESULT);
+            long stop = glGetQueryObjectui64(frame.queries[2 * i + 1], GL_QUERY_RESULT);
+            frame.passes[i].addGpu(stop - start);
+        }
+    }
+
+    /**
+     * @param name name of a pass
+     * @return the statistics of the pass, or null if it never ran
+     */
+    public PassStats getStats(String name) {
+        return stats.get(name);
+    }
+
+    /**
+     * @return the statistics of every pass in the order the passes first ran
+     */
+    public Collection<PassStats> getAllStats() {
+        return Collections.unmodifiableCollection(new ArrayList<>(stats.values()));
+    }
+
+    /**
+     * @return the number of frames whose GPU times were not ready in time and were skipped
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Forget all samples collected so far.
+     */
+    public void reset() {
+        for (PassStats pass : stats.values()) {
+            pass.reset();
+        }
+        droppedFrames = 0;
+    }
+
+    /**
+     * Format the statistics as one line per pass.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder(String.format("%-24s %8s %8s %8s %8s\n",
+                "pass", "cpu ms", "gpu ms", "gpu p50", "gpu p95"));
+        for (PassStats pass : stats.values()) {
+            sb.append(String.format("%-24s %8.3f %8.3f %8.3f %8.3f\n", pass.getName(),
+                    pass.getCpuAverageMillis(), pass.getGpuAverageMillis(),
+                    pass.getGpuPercentileMillis(50), pass.getGpuPercentileMillis(95)));
+        }
+        return sb.toString();
+    }
+
+    public void cleanup() {
+        if (gpuTimers) {
+            for (Frame frame : frames) {
+                glDeleteQueries(frame.queries);
+            }
+        }
+    }
+}
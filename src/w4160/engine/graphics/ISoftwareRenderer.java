@@ -0,0 +1,65 @@
+package w4160.engine.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.joml.Vector3f;
+
+import w4160.engine.GameItem;
+
+/**
+ * A renderer that runs on the CPU without an OpenGL context, drawing the scene of the renderer with
+ * the shaders of {@link SoftwareShading}.
+ *
+ * <p>
+ * The frame is kept as RGBA bytes packed into ints, bottom row first like <code>glReadPixels</code>
+ * returns it.
+ * </p>
+ */
+public interface ISoftwareRenderer {
+
+    void render(Camera camera, GameItem[] gameItems, Vector3f ambientLight, PointLight pointLight,
+            DirectionalLight directionalLight, String shaderName);
+
+    /**
+     * Render a frame into the pixels.
+     *
+     * @param pointLights further point lights, may be empty
+     * @param shaderName one of the shaders of {@link SoftwareShading.Model}
+     */
+    void render(Camera camera, GameItem[] gameItems, Vector3f ambientLight, PointLight pointLight,
+            PointLight[] pointLights, DirectionalLight directionalLight, String shaderName);
+
+    int getWidth();
+
+    int getHeight();
+
+    int getThreads();
+
+    /**
+     * @return the last frame as RGBA bytes packed into ints, bottom row first
+     */
+    int[] getPixels();
+
+    /**
+     * Copy the last frame into a buffer as RGBA bytes, bottom row first.
+     *
+     * @param buffer at least width * height * 4 bytes from its position, which is left unchanged
+     */
+    void readPixels(ByteBuffer buffer);
+
+    /**
+     * Write the last frame to a PNG file.
+     */
+    void writePNG(File file) throws IOException;
+
+    /**
+     * @return the timings and throughput of the frames so far
+     */
+    String report();
+
+    void resetStats();
+
+    void shutdown();
+}
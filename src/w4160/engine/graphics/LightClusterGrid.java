@@ -0,0 +1,504 @@
+package w4160.engine.graphics;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+
+/**
+ * A 3D grid of clusters over the view frustum used for clustered forward shading of many point lights.
+ *
+ * <p>
+ * The frustum is divided into {@link #GRID_X} x {@link #GRID_Y} screen tiles and {@link #GRID_Z}
+ * exponentially spaced depth slices. Every frame the lights are transformed to view space and binned
+ * into the clusters their range sphere touches. Binning runs on a fork/join pool over the lights in two
+ * passes: the first counts the lights per cluster, the second writes the light indices into the ranges
+ * found by a prefix sum. The light data, the per-cluster ranges and the index list are uploaded into
+ * texture buffers that <code>clustered_lights.glsl</code> reads, so each fragment only loops over the
+ * lights of its own cluster.
+ * </p>
+ */
+public class LightClusterGrid {
+
+    public static final int GRID_X = 16;
+
+    public static final int GRID_Y = 9;
+
+    public static final int GRID_Z = 24;
+
+    private static final int NUM_CLUSTERS = GRID_X * GRID_Y * GRID_Z;
+
+    /** Lights beyond this count in a single cluster are dropped */
+    private static final int MAX_LIGHTS_PER_CLUSTER = 256;
+
+    /** A light is cut off where its contribution falls under 1/256 */
+    private static final float LIGHT_CUTOFF = 256f;
+
+    /** Number of lights binned by a fork/join task before it stops splitting */
+    private static final int BIN_THRESHOLD = 64;
+
+    /** Texture units used by the cluster texture buffers */
+    private static final int LIGHT_DATA_UNIT = TextureUnits.CLUSTER_LIGHT_DATA;
+
+    private static final int GRID_DATA_UNIT = TextureUnits.CLUSTER_GRID_DATA;
+
+    private static final int LIGHT_INDEX_UNIT = TextureUnits.CLUSTER_LIGHT_INDEX;
+
+    private static final int FLOATS_PER_LIGHT = 12;
+
+    private final int[] bufferIds = new int[3];
+
+    private final int[] textureIds = new int[3];
+
+    private final Matrix4f projection = new Matrix4f();
+
+    /** View-space bounds of every cluster: minX, minY, minZ, maxX, maxY, maxZ */
+    private final float[] clusterBounds = new float[NUM_CLUSTERS * 6];
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(NUM_CLUSTERS);
+
+    private final int[] offsets = new int[NUM_CLUSTERS];
+
+    private float[] lightData = new float[0];
+
+    private int[] lightIndices = new int[0];
+
+    private FloatBuffer lightBuffer;
+
+    private IntBuffer gridBuffer;
+
+    private IntBuffer indexBuffer;
+
+    private int maxTexels;
+
+    private float zNear;
+
+    private float zFar;
+
+    private float depthScale;
+
+    private float depthBias;
+
+    private float tanX;
+
+    private float tanY;
+
+    private int numLights;
+
+    private int numIndices;
+
+    private long lastBuildNanos;
+
+    public LightClusterGrid() {
+        for (int i = 0; i < 3; i++) {
+            bufferIds[i] = glGenBuffers();
+            textureIds[i] = glGenTextures();
+        }
+        maxTexels = glGetInteger(GL_MAX_TEXTURE_BUFFER_SIZE);
+        gridBuffer = MemoryUtil.memAllocInt(NUM_CLUSTERS * 2);
+    }
+
+    /**
+     * Create the uniforms read by <code>clustered_lights.glsl</code>.
+     *
+     * @param shaderProgram a program that includes the clustered lights code
+     */
+    public static void createUniforms(ShaderProgram shaderProgram) throws GLSLShaderException {
+        shaderProgram.createUniform("clusterEnabled");
+        shaderProgram.createUniform("clusterGrid");
+        shaderProgram.createUniform("clusterDepth");
+        shaderProgram.createUniform("clusterProjection");
+        shaderProgram.createUniform("clusterLightData");
+        shaderProgram.createUniform("clusterGridData");
+        shaderProgram.createUniform("clusterLightIndex");
+    }
+
+    /**
+     * Bin the lights into the clusters of the current view and upload the result.
+     *
+     * @param lights the point lights in world coordinates
+     * @param viewMatrix the current view matrix
+     * @param projectionMatrix the current perspective projection
+     * @param zNear near clipping plane of the projection
+     * @param zFar far clipping plane of the projection
+     */
+    public void update(PointLight[] lights, Matrix4f viewMatrix, Matrix4f projectionMatrix, float zNear, float zFar) {
+        long start = System.nanoTime();
+        if (!projectionMatrix.equals(projection) || zNear != this.zNear || zFar != this.zFar) {
+            computeClusterBounds(projectionMatrix, zNear, zFar);
+        }
+
+        numLights = Math.min(lights.length, maxTexels / 3);
+        if (lightData.length < numLights * FLOATS_PER_LIGHT) {
+            lightData = new float[numLights * FLOATS_PER_LIGHT];
+        }
+        for (int i = 0; i < NUM_CLUSTERS; i++) {
+            counts.set(i, 0);
+        }
+
+        // pass 1: transform the lights and count them per cluster
+        ForkJoinPool.commonPool().invoke(new BinTask(lights, viewMatrix, 0, numLights, false));
+
+        numIndices = 0;
+        for (int i = 0; i < NUM_CLUSTERS; i++) {
+            int count = Math.min(counts.get(i), MAX_LIGHTS_PER_CLUSTER);
+            count = Math.min(count, maxTexels - numIndices);
+            offsets[i] = numIndices;
+            gridBuffer.put(2 * i, numIndices);
+            gridBuffer.put(2 * i + 1, count);
+            numIndices += count;
+            counts.set(i, 0);
+        }
+        if (lightIndices.length < numIndices) {
+            lightIndices = new int[numIndices];
+        }
+
+        // pass 2: write the light indices into the ranges of their clusters
+        ForkJoinPool.commonPool().invoke(new BinTask(lights, viewMatrix, 0, numLights, true));
+
+        upload();
+        lastBuildNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Bind the cluster data and set the uniforms of a program created with {@link #createUniforms(ShaderProgram)}.
+     *
+     * @param shaderProgram the bound program
+     * @param enabled false to only loop over the regular point light
+     */
+    public void setUniforms(ShaderProgram shaderProgram, boolean enabled) {
+        setSamplerUnits(shaderProgram);
+        shaderProgram.setUniform("clusterEnabled", enabled && numLights > 0 ? 1 : 0);
+        if (!enabled) {
+            return;
+        }
+        shaderProgram.setUniform("clusterGrid", GRID_X, GRID_Y, GRID_Z);
+        shaderProgram.setUniform("clusterDepth", depthScale, depthBias);
+        shaderProgram.setUniform("clusterProjection", projection);
+        bindTexture(LIGHT_DATA_UNIT, 0);
+        bindTexture(GRID_DATA_UNIT, 1);
+        bindTexture(LIGHT_INDEX_UNIT, 2);
+        glActiveTexture(GL_TEXTURE0);
+    }
+
+    /**
+     * Point the cluster samplers of a program created with {@link #createUniforms(ShaderProgram)} at
+     * their units. They must be set even while clustering is off, as left on unit 0 they would clash
+     * with the material sampler2D.
+     *
+     * @param shaderProgram the bound program
+     */
+    public static void setSamplerUnits(ShaderProgram shaderProgram) {
+        shaderProgram.setUniform("clusterLightData", LIGHT_DATA_UNIT);
+        shaderProgram.setUniform("clusterGridData", GRID_DATA_UNIT);
+        shaderProgram.setUniform("clusterLightIndex", LIGHT_INDEX_UNIT);
+    }
+
+    /**
+     * @return the number of lights binned by the last update
+     */
+    public int getNumLights() {
+        return numLights;
+    }
+
+    /**
+     * @return the total length of the per-cluster light lists of the last update
+     */
+    public int getNumIndices() {
+        return numIndices;
+    }
+
+    /**
+     * @return the CPU time of the last update in milliseconds, including the upload
+     */
+    public float getLastBuildMillis() {
+        return lastBuildNanos / 1e6f;
+    }
+
+    public void cleanup() {
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+        glBindTexture(GL_TEXTURE_BUFFER, 0);
+        for (int i = 0; i < 3; i++) {
+            glDeleteBuffers(bufferIds[i]);
+            glDeleteTextures(textureIds[i]);
+        }
+        MemoryUtil.memFree(gridBuffer);
+        if (lightBuffer != null) {
+            MemoryUtil.memFree(lightBuffer);
+        }
+        if (indexBuffer != null) {
+            MemoryUtil.memFree(indexBuffer);
+        }
+    }
+
+    private void bindTexture(int unit, int index) {
+        glActiveTexture(GL_TEXTURE0 + unit);
+        glBindTexture(GL_TEXTURE_BUFFER, textureIds[index]);
+    }
+
+    private void upload() {
+        int lightFloats = Math.max(numLights * FLOATS_PER_LIGHT, 4);
+        if (lightBuffer == null || lightBuffer.capacity() < lightFloats) {
+            if (lightBuffer != null) {
+                MemoryUtil.memFree(lightBuffer);
+            }
+            lightBuffer = MemoryUtil.memAllocFloat(lightFloats);
+        }
+        lightBuffer.clear();
+        lightBuffer.put(lightData, 0, numLights * FLOATS_PER_LIGHT);
+        // texture buffers must not be empty
+        while (lightBuffer.position() < 4) {
+            lightBuffer.put(0f);
+        }
+        lightBuffer.flip();
+
+        int indexInts = Math.max(numIndices, 1);
+        if (indexBuffer == null || indexBuffer.capacity() < indexInts) {
+            if (indexBuffer != null) {
+                MemoryUtil.memFree(indexBuffer);
+            }
+            indexBuffer = MemoryUtil.memAllocInt(indexInts);
+        }
+        indexBuffer.clear();
+        indexBuffer.put(lightIndices, 0, numIndices);
+        if (numIndices == 0) {
+            indexBuffer.put(0);
+        }
+        indexBuffer.flip();
+
+        uploadBuffer(0, lightBuffer, GL_RGBA32F);
+        uploadBuffer(1, gridBuffer, GL_RG32UI);
+        uploadBuffer(2, indexBuffer, GL_R32UI);
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+    }
+
+    private void uploadBuffer(int index, FloatBuffer data, int format) {
+        glBindBuffer(GL_TEXTURE_BUFFER, bufferIds[index]);
+        glBufferData(GL_TEXTURE_BUFFER, data, GL_STREAM_DRAW);
+        attach(index, format);
+    }
+
+    private void uploadBuffer(int index, IntBuffer data, int format) {
+        glBindBuffer(GL_TEXTURE_BUFFER, bufferIds[index]);
+        glBufferData(GL_TEXTURE_BUFFER, data, GL_STREAM_DRAW);
+        attach(index, format);
+    }
+
+    private void attach(int index, int format) {
+        glBindTexture(GL_TEXTURE_BUFFER, textureIds[index]);
+        glTexBuffer(GL_TEXTURE_BUFFER, format, bufferIds[index]);
+        glBindTexture(GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Compute the view-space bounding box of every cluster. Assumes a symmetric perspective projection.
+     */
+    private void computeClusterBounds(Matrix4f projectionMatrix, float zNear, float zFar) {
+        projection.set(projectionMatrix);
+        this.zNear = zNear;
+        this.zFar = zFar;
+        float logRatio = (float) Math.log(zFar / zNear);
+        depthScale = GRID_Z / logRatio;
+        depthBias = -GRID_Z * (float) Math.log(zNear) / logRatio;
+        tanX = 1f / projectionMatrix.m00();
+        tanY = 1f / projectionMatrix.m11();
+
+        for (int z = 0; z < GRID_Z; z++) {
+            float dNear = sliceDepth(z);
+            float dFar = sliceDepth(z + 1);
+            for (int y = 0; y < GRID_Y; y++) {
+                float y0 = (2f * y / GRID_Y - 1f) * tanY;
+                float y1 = (2f * (y + 1) / GRID_Y - 1f) * tanY;
+                for (int x = 0; x < GRID_X; x++) {
+                    float x0 = (2f * x / GRID_X - 1f) * tanX;
+                    float x1 = (2f * (x + 1) / GRID_X - 1f) * tanX;
+                    int b = 6 * (x + GRID_X * (y + GRID_Y * z));
+                    // the tile is widest at the far end of the slice
+                    clusterBounds[b]     = Math.min(x0 * dNear, x0 * dFar);
+                    clusterBounds[b + 1] = Math.min(y0 * dNear, y0 * dFar);
+                    clusterBounds[b + 2] = -dFar;
+                    clusterBounds[b + 3] = Math.max(x1 * dNear, x1 * dFar);
+                    clusterBounds[b + 4] = Math.max(y1 * dNear, y1 * dFar);
+                    clusterBounds[b + 5] = -dNear;
+                }
+            }
+        }
+    }
+
+    private float sliceDepth(int slice) {
+        return zNear * (float) Math.pow(zFar / zNear, (float) slice / GRID_Z);
+    }
+
+    private int depthSlice(float depth) {
+        if (depth <= zNear) {
+            return 0;
+        }
+        int slice = (int) Math.floor(Math.log(depth) * depthScale + depthBias);
+        return Math.max(0, Math.min(GRID_Z - 1, slice));
+    }
+
+    private int tile(float tangent, float tanMax, int count) {
+        int t = (int) Math.floor((tangent / tanMax * 0.5f + 0.5f) * count);
+        return Math.max(0, Math.min(count - 1, t));
+    }
+
+    /**
+     * Distance at which the attenuated light falls under the cutoff.
+     */
+    private static float lightRange(PointLight light) {
+        Vector3f c = light.getColor();
+        float k = light.getIntensity() * Math.max(c.x, Math.max(c.y, c.z)) * LIGHT_CUTOFF;
+        PointLight.Attenuation att = light.getAttenuation();
+        float a = att.getExponent();
+        float b = att.getLinear();
+        float cc = att.getConstant() - k;
+        if (cc >= 0) {
+            return 0;
+        }
+        if (a > 0) {
+            return (float) ((-b + Math.sqrt(b * b - 4 * a * cc)) / (2 * a));
+        }
+        if (b > 0) {
+            return -cc / b;
+        }
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Transform light i into view space and store it in {@link #lightData}.
+     */
+    private void storeLight(PointLight light, Matrix4f viewMatrix, int i, Vector4f aux) {
+        Vector3f p = light.getPosition();
+        aux.set(p.x, p.y, p.z, 1f);
+        aux.mul(viewMatrix);
+        Vector3f c = light.getColor();
+        PointLight.Attenuation att = light.getAttenuation();
+        int o = i * FLOATS_PER_LIGHT;
+        lightData[o]      = aux.x;
+        lightData[o + 1]  = aux.y;
+        lightData[o + 2]  = aux.z;
+        lightData[o + 3]  = light.getIntensity();
+        lightData[o + 4]  = c.x;
+        lightData[o + 5]  = c.y;
+        lightData[o + 6]  = c.z;
+        lightData[o + 7]  = Math.min(lightRange(light), zFar);
+        lightData[o + 8]  = att.getConstant();
+        lightData[o + 9]  = att.getLinear();
+        lightData[o + 10] = att.getExponent();
+        lightData[o + 11] = 0f;
+    }
+
+    /**
+     * Visit the clusters touched by light i, counting it or writing its index.
+     */
+    private void binLight(int i, boolean fill) {
+        int o = i * FLOATS_PER_LIGHT;
+        float lx = lightData[o];
+        float ly = lightData[o + 1];
+        float lz = lightData[o + 2];
+        float r = lightData[o + 7];
+        if (r <= 0 || lz - r > -zNear || -lz - r > zFar) {
+            return;
+        }
+
+        int z0 = depthSlice(-lz - r);
+        int z1 = depthSlice(-lz + r);
+        int x0 = 0, x1 = GRID_X - 1, y0 = 0, y1 = GRID_Y - 1;
+        float dMin = -lz - r;
+        if (dMin > zNear) {
+            // bound the sphere by the tangents of its box at the nearest depth
+            x0 = tile((lx - r) / dMin, tanX, GRID_X);
+            x1 = tile((lx + r) / dMin, tanX, GRID_X);
+            y0 = tile((ly - r) / dMin, tanY, GRID_Y);
+            y1 = tile((ly + r) / dMin, tanY, GRID_Y);
+            float dMax = -lz + r;
+            x0 = Math.min(x0, tile((lx - r) / dMax, tanX, GRID_X));
+            x1 = Math.max(x1, tile((lx + r) / dMax, tanX, GRID_X));
+            y0 = Math.min(y0, tile((ly - r) / dMax, tanY, GRID_Y));
+            y1 = Math.max(y1, tile((ly + r) / dMax, tanY, GRID_Y));
+        }
+
+        float r2 = r * r;
+        for (int z = z0; z <= z1; z++) {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    int cluster = x + GRID_X * (y + GRID_Y * z);
+                    if (!sphereIntersects(cluster, lx, ly, lz, r2)) {
+                        continue;
+                    }
+                    if (!fill) {
+                        counts.incrementAndGet(cluster);
+                    } else {
+                        int slot = counts.getAndIncrement(cluster);
+                        if (slot < gridBuffer.get(2 * cluster + 1)) {
+                            lightIndices[offsets[cluster] + slot] = i;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean sphereIntersects(int cluster, float x, float y, float z, float r2) {
+        int b = 6 * cluster;
+        float dx = Math.max(clusterBounds[b] - x, Math.max(0, x - clusterBounds[b + 3]));
+        float dy = Math.max(clusterBounds[b + 1] - y, Math.max(0, y - clusterBounds[b + 4]));
+        float dz = Math.max(clusterBounds[b + 2] - z, Math.max(0, z - clusterBounds[b + 5]));
+        return dx * dx + dy * dy + dz * dz <= r2;
+    }
+
+    /**
+     * Bins a range of lights, splitting it in halves until it is small enough.
+     */
+    private class BinTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PointLight[] lights;
+
+        private final Matrix4f viewMatrix;
+
+        private final int from;
+
+        private final int to;
+
+        private final boolean fill;
+
+        BinTask(PointLight[] lights, Matrix4f viewMatrix, int from, int to, boolean fill) {
+            this.lights = lights;
+            this.viewMatrix = viewMatrix;
+            this.from = from;
+            this.to = to;
+            this.fill = fill;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BIN_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BinTask(lights, viewMatrix, from, mid, fill),
+                        new BinTask(lights, viewMatrix, mid, to, fill));
+                return;
+            }
+            Vector4f aux = new Vector4f();
+            for (int i = from; i < to; i++) {
+                if (!fill) {
+                    storeLight(lights[i], viewMatrix, i, aux);
+                }
+                binLight(i, fill);
+            }
+        }
+    }
+}
@@ -15,14 +15,61 @@ public class Material {
     private float reflectance = 1;
 
     private Texture texture = null;
+
+    private TextureManager textureManager = null;
+
+    private TextureArray.Layer textureLayer = null;
+
+    private TextureStreamer textureStreamer = null;
+
+    /** The image of the texture, if it was given as a file */
+    private String textureFile = null;
     
     public Material() { }
     
+    /**
+     * A textured material. The texture is shared through {@link TextureManager#getShared()}.
+     */
     public Material(String texFile, float reflectance) throws Exception {
-    	this.texture = new Texture(texFile); //
+    	this(TextureManager.getShared(), texFile, reflectance);
+    }
+
+    public Material(TextureManager textureManager, String texFile, float reflectance) throws Exception {
+    	this.texture = textureManager.acquire(texFile);
+    	this.textureManager = textureManager;
+    	this.textureFile = texFile;
     	this.reflectance = reflectance;
     }
     
+    /**
+     * A textured material whose fine mip levels are streamed in as needed.
+     */
+    public Material(TextureStreamer textureStreamer, String texFile, float reflectance) throws Exception {
+        this.texture = textureStreamer.load(texFile);
+        this.textureStreamer = textureStreamer;
+        this.textureFile = texFile;
+        this.reflectance = reflectance;
+    }
+
+    /**
+     * A textured material that only records the image without loading it into OpenGL, for renderers
+     * that run without an OpenGL context such as {@link SoftwareRasterizer}.
+     */
+    public static Material inMemory(String texFile, float reflectance) {
+        Material material = new Material();
+        material.textureFile = texFile;
+        material.reflectance = reflectance;
+        return material;
+    }
+
+    /**
+     * A material textured by a layer of a texture array, see {@link TextureArrayBuilder}.
+     */
+    public Material(TextureArray.Layer textureLayer, float reflectance) {
+        this.textureLayer = textureLayer;
+        this.reflectance = reflectance;
+    }
+    
     public Material(Vector3f colour, float reflectance) {
         this();
         this.colour = colour;
@@ -49,8 +96,40 @@ public class Material {
     	return texture;
     }
     
+    /**
+     * @return the texture array layer of the material, or null if it uses a texture of its own
+     */
+    public TextureArray.Layer getTextureLayer() {
+        return textureLayer;
+    }
+    
+    /**
+     * @return the image the texture was loaded from, or null if the material has none or got its
+     *         texture otherwise
+     */
+    public String getTextureFile() {
+        return textureFile;
+    }
+    
     public boolean isTextured() {
-        return texture != null;
+        return texture != null || textureLayer != null || textureFile != null;
+    }
+
+    /**
+     * Give the texture back to its manager or streamer. The material is untextured afterwards.
+     */
+    public void cleanup() {
+        if (textureManager != null && texture != null) {
+            textureManager.release(texture);
+        }
+        if (textureStreamer != null && texture != null) {
+            textureStreamer.release(texture);
+        }
+        texture = null;
+        textureFile = null;
+        textureManager = null;
+        textureLayer = null;
+        textureStreamer = null;
     }
 
 }
@@ -9,12 +9,11 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
 
-import org.joml.AxisAngle4f;
-import org.joml.Math;
 import org.joml.Vector3f;
-import org.joml.Vector3fc;
 import org.lwjgl.system.MemoryUtil;
 
+import w4160.engine.jfr.MeshEditEvent;
+
 /**
  * A class containing the structure of an object, as well as texture and material.
  */
@@ -32,6 +31,14 @@ public class Mesh {
     private float[] textco;
     private float[] norms;
     private int[] inds;
+
+    /** Axis-aligned bounding box of the positions in model space */
+    private final Vector3f boundsMin = new Vector3f();
+
+    private final Vector3f boundsMax = new Vector3f();
+
+    /** Whether the vertex arrays are uploaded to OpenGL buffers, see {@link #inMemory(MeshData)} */
+    private final boolean buffered;
     
     /**
      * Default constructor. Create a mesh representing a cube.
@@ -61,6 +68,11 @@ public class Mesh {
     	textco = textCoords;
     	norms = normals;
     	inds = indices;
+    	computeBounds();
+    	if (!buffered) {
+    	    vertexCount = indices.length;
+    	    return;
+    	}
     	
     	FloatBuffer posBuffer = null;
         FloatBuffer textCoordsBuffer = null;
@@ -144,9 +156,36 @@ public class Mesh {
      * @param indices An array of the indices of vertices. Each group of 3 indices corresponds to a face.
      */
     public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indices) {
+    	buffered = true;
     	setMesh(positions, textCoords, normals, indices);        
     }
 
+    private Mesh(MeshData data, boolean buffered) {
+    	this.buffered = buffered;
+    	setMesh(data.getPositions(), data.getTextCoords(), data.getNormals(), data.getIndices());
+    }
+
+    /**
+     * Construct a triangle mesh from vertex arrays loaded without an OpenGL context.
+     *
+     * @param data the vertex arrays, shared with the mesh
+     * @see OBJLoader#loadMeshData(String)
+     */
+    public Mesh(MeshData data) {
+    	this(data, true);
+    }
+
+    /**
+     * Construct a triangle mesh that keeps its vertex arrays in main memory only, for renderers that
+     * run without an OpenGL context such as {@link SoftwareRasterizer}. The mesh can be edited, but
+     * not drawn with {@link #render()}.
+     *
+     * @param data the vertex arrays, shared with the mesh
+     */
+    public static Mesh inMemory(MeshData data) {
+    	return new Mesh(data, false);
+    }
+
     public Material getMaterial() {
         return material;
     }
@@ -163,10 +202,82 @@ public class Mesh {
         return vertexCount;
     }
 
+    /**
+     * @return the vertex positions (x,y,z) in model space. The array is shared with the mesh.
+     */
+    public float[] getPositions() {
+        return pos;
+    }
+
+    /**
+     * @return the triangle indices. The array is shared with the mesh.
+     */
+    public int[] getIndices() {
+        return inds;
+    }
+
+    /**
+     * @return the texture coordinates (tx,ty) of the vertices. The array is shared with the mesh.
+     */
+    public float[] getTextCoords() {
+        return textco;
+    }
+
+    /**
+     * @return the vertex normals (nx,ny,nz) in model space. The array is shared with the mesh.
+     */
+    public float[] getNormals() {
+        return norms;
+    }
+
+    /**
+     * @return false if the mesh was made by {@link #inMemory(MeshData)} and has no OpenGL buffers
+     */
+    public boolean isBuffered() {
+        return buffered;
+    }
+
+    public Vector3f getBoundsMin() {
+        return boundsMin;
+    }
+
+    public Vector3f getBoundsMax() {
+        return boundsMax;
+    }
+
+    private void commitEdit(MeshEditEvent event, String operation) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.vertices = pos.length / 3;
+            event.commit();
+        }
+    }
+
+    private void computeBounds() {
+        boundsMin.set(Float.POSITIVE_INFINITY);
+        boundsMax.set(Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < pos.length / 3; i++) {
+            boundsMin.x = Math.min(boundsMin.x, pos[3*i]);
+            boundsMin.y = Math.min(boundsMin.y, pos[3*i+1]);
+            boundsMin.z = Math.min(boundsMin.z, pos[3*i+2]);
+            boundsMax.x = Math.max(boundsMax.x, pos[3*i]);
+            boundsMax.y = Math.max(boundsMax.y, pos[3*i+1]);
+            boundsMax.z = Math.max(boundsMax.z, pos[3*i+2]);
+        }
+        if (pos.length == 0) {
+            boundsMin.zero();
+            boundsMax.zero();
+        }
+    }
+
     /**
      * Display the mesh on the screen by calling OpenGL routines.
      */
     public void render() {
+        if (!buffered) {
+            throw new IllegalStateException("Mesh: kept in main memory only, there is nothing to draw with OpenGL");
+        }
     	// Draw the mesh
         glBindVertexArray(getVaoId());
         glEnableVertexAttribArray(0);
@@ -180,10 +291,13 @@ public class Mesh {
         glDisableVertexAttribArray(1);
         glDisableVertexAttribArray(2);
         glBindVertexArray(0);
-        glBindTexture(GL_TEXTURE_2D, 0);
+        // The texture stays bound: ShaderProgram.setMaterialTexture skips rebinding it for the next item
     }
 
     public void cleanUp() {
+        if (!buffered) {
+            return;
+        }
         glDisableVertexAttribArray(0);
 
         // Delete the VBOs
@@ -205,15 +319,13 @@ public class Mesh {
      * @param sz The scale along z axis
      */
     public void scaleMesh(float sx, float sy, float sz){
+    	MeshEditEvent event = new MeshEditEvent();
+    	event.begin();
     	cleanUp(); //clean up buffer
     	//reset position of each point
-    	for (int i = 0; i < pos.length/3; i++) {
-			pos[3*i]   = pos[3*i]*sx;
-			pos[3*i+1] = pos[3*i+1]*sy;
-			pos[3*i+2] = pos[3*i+2]*sz;
-		}
-    	
+    	MeshData.scale(pos, sx, sy, sz);
     	setMesh(pos, textco, norms, inds);
+    	commitEdit(event, "scale");
     }
 
     /**
@@ -222,14 +334,13 @@ public class Mesh {
      * @param trans The vector along which to translate
      */
     public void translateMesh(Vector3f trans) {
+    	MeshEditEvent event = new MeshEditEvent();
+    	event.begin();
     	cleanUp();
     	//reset position of each point
-    	for(int i=0; i< pos.length/3; i++){
-    		pos[3*i]   = pos[3*i]   + trans.x;
-    		pos[3*i+1] = pos[3*i+1] + trans.y;
-    		pos[3*i+2] = pos[3*i+2] + trans.z;
-    	}
+    	MeshData.translate(pos, trans);
     	setMesh(pos, textco, norms, inds);
+    	commitEdit(event, "translate");
     }
     
     /**
@@ -240,18 +351,13 @@ public class Mesh {
      * @see <a href="http://mathworld.wolfram.com/RotationFormula.html">Rotation</a>
      */
     public void rotateMesh(Vector3f axis, float angle) {
+    	MeshEditEvent event = new MeshEditEvent();
+    	event.begin();
     	cleanUp();
-    	Vector3fc nml = axis.normalize();
-    	AxisAngle4f rot = new AxisAngle4f((float)Math.toRadians(angle), nml);
     	//reset position of each point
-    	for(int i=0; i< pos.length/3; i++) {
-    		Vector3f vtx = new Vector3f(pos[3*i], pos[3*i+1], pos[3*i+2]);
-    		rot.transform(vtx);
-    		pos[3*i]   = vtx.x;
-    		pos[3*i+1] = vtx.y;
-    		pos[3*i+2] = vtx.z;
-    	}
+    	MeshData.rotate(pos, axis, angle);
     	setMesh(pos, textco, norms, inds);
+    	commitEdit(event, "rotate");
     }
     
     /**
@@ -264,18 +370,12 @@ public class Mesh {
      * @see <a href="http://mathworld.wolfram.com/Reflection.html">Reflection</a>
      */
     public void reflectMesh(Vector3f p, Vector3f n) {
+    	MeshEditEvent event = new MeshEditEvent();
+    	event.begin();
     	cleanUp();
-    	Vector3fc nml = n.normalize();
     	//reset position of each point
-    	for(int i=0; i< pos.length/3; i++) {
-    		Vector3f vtx = new Vector3f(pos[3*i], pos[3*i+1], pos[3*i+2]);
-    		vtx.sub(p);	// vtx - p
-    		
-    		float dist = vtx.dot(nml)*2.f;
-    		pos[3*i]   -= dist*nml.x();
-    		pos[3*i+1] -= dist*nml.y();
-    		pos[3*i+2] -= dist*nml.z();
-    	}
+    	MeshData.reflect(pos, p, n);
     	setMesh(pos, textco, norms, inds);
+    	commitEdit(event, "reflect");
     }
 }
@@ -0,0 +1,122 @@
+package w4160.engine.graphics;
+
+import org.joml.AxisAngle4f;
+import org.joml.Math;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * The vertex arrays of a triangle mesh in main memory, without any OpenGL objects.
+ *
+ * <p>
+ * This is what {@link OBJLoader#loadMeshData(String)} produces before a {@link Mesh} uploads it, and
+ * it holds the position transforms used by the mesh edits, so both can run without an OpenGL context.
+ * </p>
+ */
+public class MeshData {
+
+    private final float[] positions;
+
+    private final float[] textCoords;
+
+    private final float[] normals;
+
+    private final int[] indices;
+
+    /**
+     * @param positions An array of the individual positions (x,y,z) of all the vertices
+     * @param textCoords An array of the individual texture coordinates (tx, ty) of all the vertices
+     * @param normals An array of the individual normal coordinates (nx, ny, nz) of all the vertices
+     * @param indices An array of the indices of vertices. Each group of 3 indices corresponds to a face.
+     */
+    public MeshData(float[] positions, float[] textCoords, float[] normals, int[] indices) {
+        this.positions = positions;
+        this.textCoords = textCoords;
+        this.normals = normals;
+        this.indices = indices;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getTextCoords() {
+        return textCoords;
+    }
+
+    public float[] getNormals() {
+        return normals;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int getVertexCount() {
+        return positions.length / 3;
+    }
+
+    /**
+     * Scale positions in place.
+     *
+     * @see Mesh#scaleMesh(float, float, float)
+     */
+    public static void scale(float[] pos, float sx, float sy, float sz) {
+        for (int i = 0; i < pos.length/3; i++) {
+            pos[3*i]   = pos[3*i]*sx;
+            pos[3*i+1] = pos[3*i+1]*sy;
+            pos[3*i+2] = pos[3*i+2]*sz;
+        }
+    }
+
+    /**
+     * Translate positions in place.
+     *
+     * @see Mesh#translateMesh(Vector3f)
+     */
+    public static void translate(float[] pos, Vector3f trans) {
+        for (int i = 0; i < pos.length/3; i++) {
+            pos[3*i]   = pos[3*i]   + trans.x;
+            pos[3*i+1] = pos[3*i+1] + trans.y;
+            pos[3*i+2] = pos[3*i+2] + trans.z;
+        }
+    }
+
+    /**
+     * Rotate positions in place counterclockwise around an axis.
+     *
+     * @param angle Rotated angle in degree
+     * @see Mesh#rotateMesh(Vector3f, float)
+     */
+    public static void rotate(float[] pos, Vector3f axis, float angle) {
+        Vector3fc nml = axis.normalize();
+        AxisAngle4f rot = new AxisAngle4f((float)Math.toRadians(angle), nml);
+        Vector3f vtx = new Vector3f();
+        for (int i = 0; i < pos.length/3; i++) {
+            vtx.set(pos[3*i], pos[3*i+1], pos[3*i+2]);
+            rot.transform(vtx);
+            pos[3*i]   = vtx.x;
+            pos[3*i+1] = vtx.y;
+            pos[3*i+2] = vtx.z;
+        }
+    }
+
+    /**
+     * Reflect positions in place with respect to the plane through p with normal n.
+     *
+     * @see Mesh#reflectMesh(Vector3f, Vector3f)
+     */
+    public static void reflect(float[] pos, Vector3f p, Vector3f n) {
+        Vector3fc nml = n.normalize();
+        Vector3f vtx = new Vector3f();
+        for (int i = 0; i < pos.length/3; i++) {
+            vtx.set(pos[3*i], pos[3*i+1], pos[3*i+2]);
+            vtx.sub(p);	// vtx - p
+
+            float dist = vtx.dot(nml)*2.f;
+            pos[3*i]   -= dist*nml.x();
+            pos[3*i+1] -= dist*nml.y();
+            pos[3*i+2] -= dist*nml.z();
+        }
+    }
+}
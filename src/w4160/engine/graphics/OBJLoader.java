@@ -1,6 +1,7 @@
 package w4160.engine.graphics;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -12,6 +13,8 @@ import org.joml.Vector2fc;
 import org.joml.Vector3f;
 import org.joml.Vector3fc;
 
+import w4160.engine.jfr.MeshLoadEvent;
+
 /**
  * 	This class implements the method that loads an .obj file and returns a {@link Mesh}
  *  instance.
@@ -35,9 +38,36 @@ public class OBJLoader {
 	 * @see Mesh
 	 */
     public static Mesh loadMesh(String fileName) throws IOException {
+    	System.out.println("OBJLoader: loading "+fileName);
+    	MeshLoadEvent event = new MeshLoadEvent();
+    	event.begin();
+
+    	MeshData data = loadMeshData(fileName);
+    	System.out.println(data.getVertexCount() + " vertices will be created in memory.");
+        Mesh mesh = new Mesh(data);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = fileName;
+            event.bytes = new File(fileName).length();
+            event.vertices = data.getVertexCount();
+            event.triangles = data.getIndices().length / 3;
+            event.commit();
+        }
+        return mesh;
+    }
+
+	/**
+	 * Read an .OBJ file into vertex arrays without creating any OpenGL objects.
+	 *
+	 * @param fileName file name of the .OBJ file.
+	 * @return the vertex arrays of the mesh
+	 * @throws IOException if the given input file cannot be read successfully.
+	 * @see #loadMesh(String)
+	 */
+    public static MeshData loadMeshData(String fileName) throws IOException {
     	//student code
     	
-    	System.out.println("OBJLoader: loading "+fileName);
         // List<String> lines = Utils.readAllLines(fileName);
     	
     	List<Vector3fc> vertices = new ArrayList<>();
@@ -82,10 +112,10 @@ public class OBJLoader {
         }
     	in.close();
 
-        return createMesh(vertices, textures, normals, faces);
+        return createMeshData(vertices, textures, normals, faces);
     }
 
-    private static Mesh createMesh(
+    private static MeshData createMeshData(
     		List<Vector3fc> posList, 
     		List<Vector2fc> textCoordList,
             List<Vector3fc> normList, 
@@ -101,7 +131,6 @@ public class OBJLoader {
     			}
     		} // end for
     	}
-    	System.out.println(cnt + " vertices will be created in memory.");
     	
     	float[] posArr = new float[cnt * 3];
     	float[] textCoordArr = new float[cnt * 2];
@@ -153,7 +182,7 @@ public class OBJLoader {
     	} // end for face
     	assert cnt == indicesArr.length : "Something wrong!";
     	// finally create the mesh
-        return new Mesh(posArr, textCoordArr, normArr, indicesArr);
+        return new MeshData(posArr, textCoordArr, normArr, indicesArr);
     }
 
     private static class Face {
@@ -0,0 +1,329 @@
+package w4160.engine.graphics;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+
+import w4160.engine.GameItem;
+
+/**
+ * Software occlusion culling on a coarse depth buffer.
+ *
+ * <p>
+ * Every frame the triangles of the items marked as occluders are transformed on the CPU and
+ * rasterized into a low resolution depth buffer. The buffer is split into horizontal bands of
+ * {@link #BAND_HEIGHT} rows that are rasterized in parallel on a fork/join pool; each band only
+ * touches its own rows, so no synchronization is needed. The screen-space bounding rectangle of every
+ * other item's bounding box is then tested against the buffer, and the item is culled if every pixel
+ * under the rectangle holds an occluder nearer than the nearest corner of the box.
+ * </p>
+ *
+ * <p>
+ * The test is conservative except for the coarse resolution: occluder triangles crossing the near
+ * plane are skipped and boxes crossing the near plane are always visible. Occluders themselves are
+ * never culled.
+ * </p>
+ */
+public class OcclusionCuller {
+
+    /** Resolution of the depth buffer */
+    public static final int WIDTH = 256;
+
+    public static final int HEIGHT = 128;
+
+    /** Rows rasterized by one fork/join task */
+    private static final int BAND_HEIGHT = 8;
+
+    private static final int NUM_BANDS = HEIGHT / BAND_HEIGHT;
+
+    /** Vertices with a smaller clip w are treated as crossing the near plane */
+    private static final float MIN_W = 1e-5f;
+
+    private static final int FLOATS_PER_TRIANGLE = 9;
+
+    private final float[] depth = new float[WIDTH * HEIGHT];
+
+    /** Screen-space triangles: x, y, depth of each vertex, counter-clockwise */
+    private float[] triangles = new float[FLOATS_PER_TRIANGLE * 1024];
+
+    private int numTriangles;
+
+    /** Transformed vertices of the occluder being set up: x, y, depth, or NaN when behind the near plane */
+    private float[] screenVertices = new float[0];
+
+    private final Matrix4f viewProjection = new Matrix4f();
+
+    private final Matrix4f mvp = new Matrix4f();
+
+    /** Vertex being transformed while setting up occluders and testing items, on the calling thread */
+    private final Vector4f scratch = new Vector4f();
+
+    private final Transformation transformation = new Transformation();
+
+    private int numTested;
+
+    private int numOccluded;
+
+    private long lastRasterNanos;
+
+    private long lastTestNanos;
+
+    /**
+     * Rasterize the occluders and test the other items against them.
+     *
+     * @param gameItems the items of the scene
+     * @param viewMatrix the view matrix
+     * @param projectionMatrix the projection matrix
+     * @param visible receives false for every item that is hidden, true otherwise. Must be at least as
+     *        long as <code>gameItems</code>.
+     * @return the number of items culled
+     */
+    public int cull(GameItem[] gameItems, Matrix4f viewMatrix, Matrix4f projectionMatrix, boolean[] visible) {
+        long start = System.nanoTime();
+        projectionMatrix.mul(viewMatrix, viewProjection);
+
+        numTriangles = 0;
+        for (GameItem gameItem : gameItems) {
+            if (gameItem.isOccluder()) {
+                setupOccluder(gameItem);
+            }
+        }
+        Arrays.fill(depth, 1f);
+        if (numTriangles > 0) {
+            ForkJoinPool.commonPool().invoke(new RasterTask(0, NUM_BANDS));
+        }
+        long rasterEnd = System.nanoTime();
+        lastRasterNanos = rasterEnd - start;
+
+        numTested = 0;
+        numOccluded = 0;
+        for (int i = 0; i < gameItems.length; i++) {
+            visible[i] = true;
+            if (gameItems[i].isOccluder()) {
+                continue;
+            }
+            numTested++;
+            if (numTriangles > 0 && isOccluded(gameItems[i])) {
+                visible[i] = false;
+                numOccluded++;
+            }
+        }
+        lastTestNanos = System.nanoTime() - rasterEnd;
+        return numOccluded;
+    }
+
+    /**
+     * @return the number of items tested in the last call to {@link #cull}, not counting the occluders
+     */
+    public int getNumTested() {
+        return numTested;
+    }
+
+    public int getNumOccluded() {
+        return numOccluded;
+    }
+
+    public int getNumOccluderTriangles() {
+        return numTriangles;
+    }
+
+    public float getLastRasterMillis() {
+        return lastRasterNanos / 1e6f;
+    }
+
+    public float getLastTestMillis() {
+        return lastTestNanos / 1e6f;
+    }
+
+    /**
+     * Transform the triangles of an occluder to the screen and append them to the triangle list.
+     */
+    private void setupOccluder(GameItem gameItem) {
+        Mesh mesh = gameItem.getMesh();
+        float[] positions = mesh.getPositions();
+        int[] indices = mesh.getIndices();
+        viewProjection.mul(transformation.getModelMatrix(gameItem), mvp);
+
+        int numVertices = positions.length / 3;
+        if (screenVertices.length < numVertices * 3) {
+            screenVertices = new float[numVertices * 3];
+        }
+        Vector4f v = scratch;
+        for (int i = 0; i < numVertices; i++) {
+            v.set(positions[3*i], positions[3*i+1], positions[3*i+2], 1f);
+            mvp.transform(v);
+            if (v.w < MIN_W) {
+                screenVertices[3*i] = Float.NaN;
+                continue;
+            }
+            float invW = 1f / v.w;
+            screenVertices[3*i] = (v.x * invW * 0.5f + 0.5f) * WIDTH;
+            screenVertices[3*i+1] = (v.y * invW * 0.5f + 0.5f) * HEIGHT;
+            screenVertices[3*i+2] = v.z * invW * 0.5f + 0.5f;
+        }
+
+        int needed = (numTriangles + indices.length / 3) * FLOATS_PER_TRIANGLE;
+        if (triangles.length < needed) {
+            triangles = Arrays.copyOf(triangles, Math.max(needed, triangles.length * 2));
+        }
+        for (int t = 0; t + 2 < indices.length; t += 3) {
+            int a = 3 * indices[t];
+            int b = 3 * indices[t + 1];
+            int c = 3 * indices[t + 2];
+            if (Float.isNaN(screenVertices[a]) || Float.isNaN(screenVertices[b]) || Float.isNaN(screenVertices[c])) {
+                continue;
+            }
+            float area = (screenVertices[b] - screenVertices[a]) * (screenVertices[c + 1] - screenVertices[a + 1])
+                    - (screenVertices[c] - screenVertices[a]) * (screenVertices[b + 1] - screenVertices[a + 1]);
+            if (area == 0f) {
+                continue;
+            }
+            if (area < 0f) {
+                // both facings occlude, store every triangle counter-clockwise
+                int tmp = b;
+                b = c;
+                c = tmp;
+            }
+            int o = numTriangles * FLOATS_PER_TRIANGLE;
+            System.arraycopy(screenVertices, a, triangles, o, 3);
+            System.arraycopy(screenVertices, b, triangles, o + 3, 3);
+            System.arraycopy(screenVertices, c, triangles, o + 6, 3);
+            numTriangles++;
+        }
+    }
+
+    /**
+     * Rasterize all triangles into the rows of one band, keeping the nearest depth per pixel.
+     * Pixels are covered when their center is inside the triangle.
+     */
+    private void rasterizeBand(int band) {
+        int bandMinY = band * BAND_HEIGHT;
+        int bandMaxY = bandMinY + BAND_HEIGHT - 1;
+        for (int t = 0; t < numTriangles; t++) {
+            int o = t * FLOATS_PER_TRIANGLE;
+            float x0 = triangles[o], y0 = triangles[o + 1], z0 = triangles[o + 2];
+            float x1 = triangles[o + 3], y1 = triangles[o + 4], z1 = triangles[o + 5];
+            float x2 = triangles[o + 6], y2 = triangles[o + 7], z2 = triangles[o + 8];
+
+            int minY = Math.max(bandMinY, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+            int maxY = Math.min(bandMaxY, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+            if (minY > maxY) {
+                continue;
+            }
+            int minX = Math.max(0, (int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f));
+            int maxX = Math.min(WIDTH - 1, (int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f));
+            if (minX > maxX) {
+                continue;
+            }
+
+            // edge functions, positive inside a counter-clockwise triangle
+            float a0 = y1 - y2, b0 = x2 - x1;
+            float a1 = y2 - y0, b1 = x0 - x2;
+            float a2 = y0 - y1, b2 = x1 - x0;
+            float area = a0 * (x0 - x1) + b0 * (y0 - y1);
+            float invArea = 1f / area;
+            // depth is affine in screen space: z = z0 + dzdx * (x - x0) + dzdy * (y - y0)
+            float dzdx = (a0 * z0 + a1 * z1 + a2 * z2) * invArea;
+            float dzdy = (b0 * z0 + b1 * z1 + b2 * z2) * invArea;
+
+            float px = minX + 0.5f;
+            for (int y = minY; y <= maxY; y++) {
+                float py = y + 0.5f;
+                float e0 = a0 * (px - x1) + b0 * (py - y1);
+                float e1 = a1 * (px - x2) + b1 * (py - y2);
+                float e2 = a2 * (px - x0) + b2 * (py - y0);
+                float z = z0 + dzdx * (px - x0) + dzdy * (py - y0);
+                int row = y * WIDTH;
+                for (int x = minX; x <= maxX; x++) {
+                    if (e0 >= 0f && e1 >= 0f && e2 >= 0f && z < depth[row + x]) {
+                        depth[row + x] = z;
+                    }
+                    e0 += a0;
+                    e1 += a1;
+                    e2 += a2;
+                    z += dzdx;
+                }
+            }
+        }
+    }
+
+    /**
+     * Test the bounding box of an item against the depth buffer.
+     */
+    private boolean isOccluded(GameItem gameItem) {
+        Mesh mesh = gameItem.getMesh();
+        Vector3f bmin = mesh.getBoundsMin();
+        Vector3f bmax = mesh.getBoundsMax();
+        viewProjection.mul(transformation.getModelMatrix(gameItem), mvp);
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        Vector4f v = scratch;
+        for (int corner = 0; corner < 8; corner++) {
+            v.set((corner & 1) == 0 ? bmin.x : bmax.x,
+                    (corner & 2) == 0 ? bmin.y : bmax.y,
+                    (corner & 4) == 0 ? bmin.z : bmax.z, 1f);
+            mvp.transform(v);
+            if (v.w < MIN_W) {
+                return false;
+            }
+            float invW = 1f / v.w;
+            float sx = (v.x * invW * 0.5f + 0.5f) * WIDTH;
+            float sy = (v.y * invW * 0.5f + 0.5f) * HEIGHT;
+            minX = Math.min(minX, sx);
+            maxX = Math.max(maxX, sx);
+            minY = Math.min(minY, sy);
+            maxY = Math.max(maxY, sy);
+            minZ = Math.min(minZ, v.z * invW * 0.5f + 0.5f);
+        }
+
+        int x0 = Math.max(0, (int) Math.floor(minX));
+        int x1 = Math.min(WIDTH - 1, (int) Math.ceil(maxX));
+        int y0 = Math.max(0, (int) Math.floor(minY));
+        int y1 = Math.min(HEIGHT - 1, (int) Math.ceil(maxY));
+        if (x0 > x1 || y0 > y1) {
+            // off screen, that is left to the frustum clipping
+            return false;
+        }
+        for (int y = y0; y <= y1; y++) {
+            int row = y * WIDTH;
+            for (int x = x0; x <= x1; x++) {
+                if (depth[row + x] >= minZ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rasterizes a range of bands, splitting it until a task owns a single band.
+     */
+    private class RasterTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+
+        private final int to;
+
+        RasterTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RasterTask(from, mid), new RasterTask(mid, to));
+                return;
+            }
+            rasterizeBand(from);
+        }
+    }
+}
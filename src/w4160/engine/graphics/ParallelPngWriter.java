@@ -0,0 +1,395 @@
+package w4160.engine.graphics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes pixels read back from OpenGL as an RGB PNG image, filtering and compressing bands of rows
+ * in parallel.
+ *
+ * <p>
+ * The image is filtered band by band on the common fork/join pool, then every band is deflated on its
+ * own, primed with the last 32 KB of the band before it as dictionary, as pigz does. All bands but the
+ * last end on a sync flush, so the compressed bands concatenate to a single zlib stream; each is
+ * written as its own IDAT chunk. The Adler-32 of the stream is combined from the checksums of the bands.
+ * The result is a standard PNG that is only a little larger than a single-threaded one.
+ * </p>
+ *
+ * @see PngEncoder
+ */
+public class ParallelPngWriter {
+
+    /**
+     * The PNG row filter applied to every row.
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /** Per row, the filter with the smallest sum of absolute differences */
+        ADAPTIVE
+    }
+
+    /** Deflate window, the most a band can refer back into the previous one */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** Uncompressed bytes per band, the block size of pigz */
+    private static final int BAND_BYTES = 128 * 1024;
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private static final int BPP = 3;
+
+    private final int compressionLevel;
+
+    private final Filter filter;
+
+    public ParallelPngWriter(int compressionLevel, Filter filter) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+    }
+
+    /**
+     * The default deflate level with adaptive filtering, as PNGJ uses.
+     */
+    public ParallelPngWriter() {
+        this(6, Filter.ADAPTIVE);
+    }
+
+    /**
+     * Write RGBA pixels to a PNG file, overwriting it if it exists.
+     *
+     * @param buffer RGBA bytes as returned by <code>glReadPixels</code>, bottom row first
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param file the file to write
+     */
+    public void write(ByteBuffer buffer, int width, int height, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(buffer, width, height, out);
+        }
+    }
+
+    /**
+     * Write RGBA pixels as a PNG image to a stream. The stream is not closed.
+     *
+     * @param buffer RGBA bytes as returned by <code>glReadPixels</code>, bottom row first
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param out the stream to write to
+     */
+    public void write(ByteBuffer buffer, int width, int height, OutputStream out) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Empty image: " + width + "x" + height);
+        }
+        Encoding encoding = new Encoding(buffer, width, height);
+        ForkJoinPool.commonPool().invoke(new BandTask(encoding, 0, encoding.numBands, false));
+        ForkJoinPool.commonPool().invoke(new BandTask(encoding, 0, encoding.numBands, true));
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(8);  // bit depth
+        ihdr.writeByte(2);  // colour type RGB
+        ihdr.writeByte(0);  // deflate
+        ihdr.writeByte(0);  // adaptive filtering
+        ihdr.writeByte(0);  // no interlace
+        writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+        long adler = 1;
+        for (int band = 0; band < encoding.numBands; band++) {
+            adler = adler32Combine(adler, encoding.adlers[band], encoding.bandLength(band));
+        }
+        // the zlib header goes in front of the first band, the checksum after the last
+        byte[] zlibHeader = { 0x78, zlibFlags(compressionLevel) };
+        byte[] trailer = { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler };
+        for (int band = 0; band < encoding.numBands; band++) {
+            ByteArrayOutputStream compressed = encoding.compressed[band];
+            if (band == 0) {
+                byte[] first = new byte[zlibHeader.length + compressed.size()];
+                System.arraycopy(zlibHeader, 0, first, 0, zlibHeader.length);
+                System.arraycopy(compressed.toByteArray(), 0, first, zlibHeader.length, compressed.size());
+                writeChunk(data, "IDAT", first, first.length);
+            } else {
+                writeChunk(data, "IDAT", compressed.toByteArray(), compressed.size());
+            }
+        }
+        writeChunk(data, "IDAT", trailer, trailer.length);
+        writeChunk(data, "IEND", new byte[0], 0);
+        data.flush();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * @return the FLG byte of the zlib header, with the level hint and the check bits for CMF 0x78
+     */
+    private static byte zlibFlags(int level) {
+        if (level < 2) {
+            return 0x01;
+        } else if (level < 6) {
+            return 0x5E;
+        } else if (level == 6) {
+            return (byte) 0x9C;
+        }
+        return (byte) 0xDA;
+    }
+
+    /**
+     * The Adler-32 of two concatenated sequences from the checksums of each, as
+     * <code>adler32_combine</code> in zlib.
+     *
+     * @param len2 length of the second sequence
+     */
+    static long adler32Combine(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return (sum2 << 16) | sum1;
+    }
+
+    /**
+     * The state of one image being written.
+     */
+    private class Encoding {
+
+        final ByteBuffer rgba;
+
+        final int width;
+
+        final int height;
+
+        /** Bytes of a filtered row: the filter type and the RGB bytes */
+        final int rowBytes;
+
+        final int rowsPerBand;
+
+        final int numBands;
+
+        /** All filtered rows, top row first */
+        final byte[] filtered;
+
+        final long[] adlers;
+
+        final ByteArrayOutputStream[] compressed;
+
+        Encoding(ByteBuffer rgba, int width, int height) {
+            this.rgba = rgba;
+            this.width = width;
+            this.height = height;
+            rowBytes = 1 + width * BPP;
+            rowsPerBand = Math.max(1, BAND_BYTES / rowBytes);
+            numBands = (height + rowsPerBand - 1) / rowsPerBand;
+            filtered = new byte[rowBytes * height];
+            adlers = new long[numBands];
+            compressed = new ByteArrayOutputStream[numBands];
+        }
+
+        int bandStart(int band) {
+            return band * rowsPerBand * rowBytes;
+        }
+
+        int bandLength(int band) {
+            return Math.min(height, (band + 1) * rowsPerBand) * rowBytes - bandStart(band);
+        }
+
+        /**
+         * Copy row <code>row</code> of the image, counted from the top, as RGB.
+         */
+        void readRow(int row, byte[] rgbaRow, byte[] rgb) {
+            ByteBuffer src = rgba.duplicate();
+            // OpenGL returns the bottom row first
+            src.position((height - row - 1) * width * 4);
+            src.get(rgbaRow);
+            for (int col = 0, i = 0, j = 0; col < width; col++, i += 4, j += BPP) {
+                rgb[j]     = rgbaRow[i];
+                rgb[j + 1] = rgbaRow[i + 1];
+                rgb[j + 2] = rgbaRow[i + 2];
+            }
+        }
+
+        void filterBand(int band) {
+            int first = band * rowsPerBand;
+            int last = Math.min(height, first + rowsPerBand);
+            byte[] rgbaRow = new byte[width * 4];
+            byte[] prev = new byte[width * BPP];
+            byte[] cur = new byte[width * BPP];
+            byte[] scratch = new byte[width * BPP];
+            if (first > 0) {
+                readRow(first - 1, rgbaRow, prev);
+            }
+            for (int row = first; row < last; row++) {
+                readRow(row, rgbaRow, cur);
+                filterRow(cur, prev, filtered, row * rowBytes, scratch);
+                byte[] tmp = prev;
+                prev = cur;
+                cur = tmp;
+            }
+            Adler32 adler = new Adler32();
+            adler.update(filtered, bandStart(band), bandLength(band));
+            adlers[band] = adler.getValue();
+        }
+
+        void compressBand(int band) {
+            int start = bandStart(band);
+            int length = bandLength(band);
+            Deflater deflater = new Deflater(compressionLevel, true);
+            if (band > 0) {
+                int dictionary = Math.min(DICTIONARY_SIZE, start);
+                deflater.setDictionary(filtered, start - dictionary, dictionary);
+            }
+            deflater.setInput(filtered, start, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buf = new byte[16 * 1024];
+            if (band == numBands - 1) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                // ends on a byte boundary without closing the stream
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            deflater.end();
+            compressed[band] = out;
+        }
+    }
+
+    /**
+     * Write one filtered row: the filter type byte followed by the filtered bytes.
+     */
+    private void filterRow(byte[] cur, byte[] prev, byte[] out, int offset, byte[] scratch) {
+        Filter rowFilter = filter;
+        if (rowFilter == Filter.ADAPTIVE) {
+            long best = Long.MAX_VALUE;
+            for (Filter candidate : new Filter[] { Filter.NONE, Filter.SUB, Filter.UP, Filter.AVERAGE, Filter.PAETH }) {
+                applyFilter(candidate, cur, prev, scratch, 0);
+                long sum = 0;
+                for (byte b : scratch) {
+                    sum += Math.abs(b);
+                }
+                if (sum < best) {
+                    best = sum;
+                    rowFilter = candidate;
+                }
+            }
+        }
+        out[offset] = (byte) rowFilter.ordinal();
+        applyFilter(rowFilter, cur, prev, out, offset + 1);
+    }
+
+    private static void applyFilter(Filter filter, byte[] cur, byte[] prev, byte[] out, int offset) {
+        int n = cur.length;
+        switch (filter) {
+            case NONE:
+                System.arraycopy(cur, 0, out, offset, n);
+                break;
+            case SUB:
+                for (int i = 0; i < n; i++) {
+                    int left = i >= BPP ? cur[i - BPP] & 0xFF : 0;
+                    out[offset + i] = (byte) (cur[i] - left);
+                }
+                break;
+            case UP:
+                for (int i = 0; i < n; i++) {
+                    out[offset + i] = (byte) (cur[i] - prev[i]);
+                }
+                break;
+            case AVERAGE:
+                for (int i = 0; i < n; i++) {
+                    int left = i >= BPP ? cur[i - BPP] & 0xFF : 0;
+                    out[offset + i] = (byte) (cur[i] - ((left + (prev[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case PAETH:
+                for (int i = 0; i < n; i++) {
+                    int a = i >= BPP ? cur[i - BPP] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i >= BPP ? prev[i - BPP] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                    out[offset + i] = (byte) (cur[i] - predictor);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(filter.name());
+        }
+    }
+
+    /**
+     * Filters or compresses a range of bands, splitting it until a task owns a single band.
+     */
+    private static class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Encoding encoding;
+
+        private final int from;
+
+        private final int to;
+
+        private final boolean compress;
+
+        BandTask(Encoding encoding, int from, int to, boolean compress) {
+            this.encoding = encoding;
+            this.from = from;
+            this.to = to;
+            this.compress = compress;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(encoding, from, mid, compress), new BandTask(encoding, mid, to, compress));
+                return;
+            }
+            if (compress) {
+                encoding.compressBand(from);
+            } else {
+                encoding.filterBand(from);
+            }
+        }
+    }
+}
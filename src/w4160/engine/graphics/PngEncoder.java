@@ -0,0 +1,50 @@
+package w4160.engine.graphics;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import ar.com.hjg.pngj.ImageInfo;
+import ar.com.hjg.pngj.ImageLineByte;
+import ar.com.hjg.pngj.PngWriter;
+
+/**
+ * Encodes pixels read back from OpenGL as an RGB PNG image.
+ */
+public class PngEncoder {
+
+    // Disable the constructor. Only the static methods are exposed.
+    private PngEncoder() {}
+
+    /**
+     * Write RGBA pixels as a PNG image to a stream. The stream is closed afterwards.
+     *
+     * @param buffer RGBA bytes as returned by <code>glReadPixels</code>, bottom row first
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param out the stream to write to
+     */
+    public static void encode(ByteBuffer buffer, int width, int height, OutputStream out) {
+        ImageInfo imi = new ImageInfo(width, height, 8, false);
+        writeRows(buffer, new PngWriter(out, imi), imi);
+    }
+
+    private static void writeRows(ByteBuffer buffer, PngWriter png, ImageInfo imi) {
+        int bpp = 4; // a byte each for red, green, blue, and alpha
+        ImageLineByte iline = new ImageLineByte(imi);
+        byte[] scanline = iline.getScanline();
+        byte[] rgba = new byte[imi.cols * bpp];
+        ByteBuffer src = buffer.duplicate();
+        for (int row = 0; row < imi.rows; row++) {
+            // OpenGL returns the bottom row first
+            src.position(imi.cols * (imi.rows - row - 1) * bpp);
+            src.get(rgba);
+            for (int col = 0, i = 0, j = 0; col < imi.cols; col++, i += bpp, j += 3) {
+                scanline[j]     = rgba[i];
+                scanline[j + 1] = rgba[i + 1];
+                scanline[j + 2] = rgba[i + 2];
+            }
+            png.writeRow(iline);
+        }
+        png.end();
+    }
+}
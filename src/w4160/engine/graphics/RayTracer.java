@@ -0,0 +1,420 @@
+package w4160.engine.graphics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import w4160.engine.GameItem;
+
+import static w4160.engine.graphics.SoftwareShading.POSITION;
+import static w4160.engine.graphics.SoftwareShading.TEXCOORD;
+import static w4160.engine.graphics.SoftwareShading.VARYINGS;
+
+/**
+ * Renders the items of a scene by tracing rays on the CPU, as a reference to check the shaders and
+ * the other renderers against.
+ *
+ * <p>
+ * It draws the same {@link GameItem}s, {@link Camera} and lights as the renderer with the Java versions
+ * of its shaders in {@link SoftwareShading}, so its images line up pixel for pixel with those of the
+ * renderer and of {@link SoftwareRasterizer}: one primary ray goes through the center of every pixel
+ * with the projection of the renderer, and hits before the near plane or past the far plane do not
+ * count. The varyings of the vertex stage are interpolated with the barycentrics of the hit, which are
+ * exact where those of a rasterizer are only as good as its setup.
+ * </p>
+ *
+ * <p>
+ * Unlike the renderer it casts a shadow ray from every hit to every light, unless told not to with
+ * {@link #setShadows(boolean)}; the lights a shadow ray finds blocked leave the lighting of the
+ * fragment stage, while gouraud and gooch, lit in the vertex stage, stay unshadowed. Every mesh gets a
+ * {@link Bvh} in model space on first use, which is kept for the next frames; every frame puts the
+ * bounds of the items in view space into a hierarchy of their own, and the rays are taken into the
+ * space of each item whose bounds they cross. A frame transforms the vertices in chunks, then
+ * traces tiles of {@link #TILE_SIZE} pixels, both on a fork/join pool of its own. The frame is kept
+ * like that of {@link SoftwareRasterizer}, RGBA bytes packed into ints, bottom row first.
+ * </p>
+ */
+public class RayTracer extends AbstractSoftwareRenderer {
+
+    /** Side of a tile in pixels; neighbouring rays visit the same nodes */
+    public static final int TILE_SIZE = 16;
+
+    /** Shadow rays start this far from the hit, relative to its distance, to clear the surface they leave */
+    private static final float SHADOW_BIAS = 1e-4f;
+
+    private final int tilesX;
+
+    private final int tilesY;
+
+    private boolean shadows = true;
+
+    /** Hierarchies of the meshes drawn so far */
+    private final Map<Mesh, Bvh> hierarchies = new HashMap<>();
+
+    /** The items of the frame in view space */
+    private final List<ItemRays> itemRays = new ArrayList<>();
+
+    /** Bounds of the items of the frame in view space: min x, y, z, then max x, y, z */
+    private float[] itemBounds = new float[0];
+
+    /** Hierarchy over the bounds of the items */
+    private Bvh items;
+
+    private long primaryRays;
+
+    private long shadowRays;
+
+    private long buildNanos;
+
+    private long vertexNanos;
+
+    private long traceNanos;
+
+    private long frames;
+
+    /**
+     * @param threads the number of threads to render with
+     */
+    public RayTracer(int width, int height, int threads) {
+        super("RayTracer", "RAY_WORKER_THREAD", width, height, threads);
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * A ray tracer with a thread for every processor.
+     */
+    public RayTracer(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Whether to cast shadow rays; without them the images are those of the renderer.
+     */
+    public void setShadows(boolean shadows) {
+        this.shadows = shadows;
+    }
+
+    public boolean isShadows() {
+        return shadows;
+    }
+
+    /**
+     * Render a frame into the pixels.
+     *
+     * @param pointLights further point lights, may be empty
+     * @param shaderName one of the shaders of {@link SoftwareShading.Model}
+     */
+    @Override
+    public void render(Camera camera, GameItem[] gameItems, Vector3f ambientLight, PointLight pointLight,
+            PointLight[] pointLights, DirectionalLight directionalLight, String shaderName) {
+        SoftwareShading.Model model = beginFrame(camera, gameItems, ambientLight, pointLight, pointLights,
+                directionalLight, shaderName);
+        if (itemBounds.length < 6 * gameItems.length) {
+            itemBounds = new float[6 * gameItems.length];
+        }
+        for (int i = 0; i < gameItems.length; i++) {
+            prepareItem(i, model);
+        }
+        long start = System.nanoTime();
+        items = Bvh.overBoxes(itemBounds, gameItems.length);
+        runInParallel(numVertexChunks, this::transformVertices);
+        long vertexEnd = System.nanoTime();
+        runInParallel(tilesX * tilesY, this::renderTile);
+        long end = System.nanoTime();
+
+        synchronized (this) {
+            vertexNanos += vertexEnd - start;
+            traceNanos += end - vertexEnd;
+            frames++;
+        }
+        this.gameItems = null;
+    }
+
+    /**
+     * Size the vertex buffer of an item, find its hierarchy, bounds and texture and declare its
+     * vertex chunks.
+     */
+    private void prepareItem(int item, SoftwareShading.Model model) {
+        if (itemRays.size() <= item) {
+            itemRays.add(new ItemRays());
+        }
+        ItemRays rays = itemRays.get(item);
+        GameItem gameItem = gameItems[item];
+        Mesh mesh = gameItem.getMesh();
+        int numVertices = mesh.getPositions().length / 3;
+        if (rays.varyings.length < numVertices * VARYINGS) {
+            rays.varyings = new float[numVertices * VARYINGS];
+        }
+        Transformation.getModelViewMatrix(gameItem, viewMatrix, rays.modelView);
+        rays.modelView.invertAffine(rays.inverse);
+        rays.indices = mesh.getIndices();
+        rays.material = mesh.getMaterial();
+        rays.texture = model.samplesTexture() ? texture(rays.material) : null;
+        rays.bvh = hierarchy(mesh);
+        viewBounds(mesh.getBoundsMin(), mesh.getBoundsMax(), rays.modelView, itemBounds, 6 * item);
+        addVertexChunks(item, numVertices);
+    }
+
+    /**
+     * @return the hierarchy of a mesh, built when it is first drawn or its arrays were replaced
+     */
+    private Bvh hierarchy(Mesh mesh) {
+        Bvh bvh = hierarchies.get(mesh);
+        if (bvh == null || !bvh.isFor(mesh.getPositions(), mesh.getIndices())) {
+            long start = System.nanoTime();
+            bvh = new Bvh(mesh.getPositions(), mesh.getIndices());
+            long nanos = System.nanoTime() - start;
+            synchronized (this) {
+                buildNanos += nanos;
+            }
+            System.out.println(String.format("RayTracer: built a hierarchy of %d nodes, %d deep, over %d triangles"
+                    + " in %.2f ms", bvh.getNumNodes(), bvh.getDepth(), bvh.getNumTriangles(), nanos / 1e6));
+            hierarchies.put(mesh, bvh);
+        }
+        return bvh;
+    }
+
+    /**
+     * Bound the box of a mesh, taken into view space.
+     */
+    private static void viewBounds(Vector3f min, Vector3f max, Matrix4f modelView, float[] bounds, int o) {
+        bounds[o] = bounds[o + 1] = bounds[o + 2] = Float.POSITIVE_INFINITY;
+        bounds[o + 3] = bounds[o + 4] = bounds[o + 5] = Float.NEGATIVE_INFINITY;
+        Vector3f corner = new Vector3f();
+        for (int i = 0; i < 8; i++) {
+            corner.set((i & 1) == 0 ? min.x : max.x, (i & 2) == 0 ? min.y : max.y, (i & 4) == 0 ? min.z : max.z);
+            modelView.transformPosition(corner);
+            bounds[o] = Math.min(bounds[o], corner.x);
+            bounds[o + 1] = Math.min(bounds[o + 1], corner.y);
+            bounds[o + 2] = Math.min(bounds[o + 2], corner.z);
+            bounds[o + 3] = Math.max(bounds[o + 3], corner.x);
+            bounds[o + 4] = Math.max(bounds[o + 4], corner.y);
+            bounds[o + 5] = Math.max(bounds[o + 5], corner.z);
+        }
+    }
+
+    /**
+     * Take a chunk of vertices into view space and run the vertex stage on them.
+     */
+    private void transformVertices(int chunk) {
+        ItemRays rays = itemRays.get(vertexChunks[3 * chunk]);
+        shadeVertices(chunk, rays.modelView, rays.material, rays.varyings, 0, VARYINGS);
+    }
+
+    /**
+     * Trace and shade the pixels of a tile.
+     */
+    private void renderTile(int tile) {
+        int x0 = (tile % tilesX) * TILE_SIZE;
+        int y0 = (tile / tilesX) * TILE_SIZE;
+        int x1 = Math.min(width, x0 + TILE_SIZE);
+        int y1 = Math.min(height, y0 + TILE_SIZE);
+        Bvh.Hit hit = new Bvh.Hit();
+        Candidates candidates = new Candidates(gameItems.length);
+        float[] v = new float[VARYINGS];
+        float[] scratch = new float[4];
+        float[] toLight = new float[3];
+        int numLights = shading.getNumLights();
+        float[] visibility = shadows && !shading.getModel().isPerVertex() ? new float[numLights] : null;
+        // with a direction of z -1 the distance along a ray is the depth in view space
+        float sx = 1 / projectionMatrix.m00();
+        float sy = 1 / projectionMatrix.m11();
+        long shadowed = 0;
+
+        for (int y = y0; y < y1; y++) {
+            float dy = ((y + 0.5f) * 2 / height - 1) * sy;
+            for (int x = x0; x < x1; x++) {
+                float dx = ((x + 0.5f) * 2 / width - 1) * sx;
+                int p = y * width + x;
+                int item = intersect(0, 0, 0, dx, dy, -1, Transformation.Z_NEAR, Transformation.Z_FAR, hit, candidates);
+                if (item < 0) {
+                    pixels[p] = 0;
+                    continue;
+                }
+                ItemRays rays = itemRays.get(item);
+                float[] vertices = rays.varyings;
+                int a = rays.indices[3 * hit.triangle] * VARYINGS;
+                int b = rays.indices[3 * hit.triangle + 1] * VARYINGS;
+                int c = rays.indices[3 * hit.triangle + 2] * VARYINGS;
+                float b1 = hit.b1, b2 = hit.b2, b0 = 1 - b1 - b2;
+                for (int j = 0; j < VARYINGS; j++) {
+                    v[j] = b0 * vertices[a + j] + b1 * vertices[b + j] + b2 * vertices[c + j];
+                }
+                float lod = rays.texture != null ? lod(rays.texture, vertices, a, b, c) : 0;
+
+                if (visibility != null) {
+                    float px = dx * hit.t, py = dy * hit.t, pz = -hit.t;
+                    float bias = SHADOW_BIAS * (1 + hit.t);
+                    int triangle = hit.triangle;
+                    for (int l = 0; l < numLights; l++) {
+                        float distance = shading.toLight(l, px, py, pz, toLight);
+                        visibility[l] = occluded(px, py, pz, toLight[0], toLight[1], toLight[2], bias, distance,
+                                item, triangle, hit, candidates) ? 0 : 1;
+                    }
+                    shadowed += numLights;
+                }
+                pixels[p] = shading.fragment(rays.material, rays.texture, lod, v, 0, visibility, scratch);
+            }
+        }
+        synchronized (this) {
+            primaryRays += (x1 - x0) * (y1 - y0);
+            shadowRays += shadowed;
+        }
+    }
+
+    /**
+     * Find the nearest hit of a ray in view space among the items.
+     *
+     * @return the item hit, or -1
+     */
+    private int intersect(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax,
+            Bvh.Hit hit, Candidates candidates) {
+        int found = -1;
+        float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+        int n = items.collect(ox, oy, oz, dx, dy, dz, tMin, tMax, candidates.items, candidates.entries, hit);
+        for (int k = 0; k < n; k++) {
+            int i = candidates.items[k];
+            if (candidates.entries[k] >= tMax || !crosses(itemBounds, 6 * i, ox, oy, oz, ix, iy, iz, tMin, tMax)) {
+                continue;
+            }
+            Matrix4f m = itemRays.get(i).inverse;
+            if (itemRays.get(i).bvh.intersect(
+                    m.m00() * ox + m.m10() * oy + m.m20() * oz + m.m30(),
+                    m.m01() * ox + m.m11() * oy + m.m21() * oz + m.m31(),
+                    m.m02() * ox + m.m12() * oy + m.m22() * oz + m.m32(),
+                    m.m00() * dx + m.m10() * dy + m.m20() * dz,
+                    m.m01() * dx + m.m11() * dy + m.m21() * dz,
+                    m.m02() * dx + m.m12() * dy + m.m22() * dz, tMin, tMax, hit)) {
+                // an affine transform keeps the distances along the ray
+                tMax = hit.t;
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param skipItem the item whose triangle <code>skipTriangle</code> the ray starts on
+     * @return whether a ray in view space hits any item between tMin and tMax
+     */
+    private boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax,
+            int skipItem, int skipTriangle, Bvh.Hit hit, Candidates candidates) {
+        float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+        int n = items.collect(ox, oy, oz, dx, dy, dz, tMin, tMax, candidates.items, candidates.entries, hit);
+        for (int k = 0; k < n; k++) {
+            int i = candidates.items[k];
+            if (!crosses(itemBounds, 6 * i, ox, oy, oz, ix, iy, iz, tMin, tMax)) {
+                continue;
+            }
+            Matrix4f m = itemRays.get(i).inverse;
+            if (itemRays.get(i).bvh.occluded(
+                    m.m00() * ox + m.m10() * oy + m.m20() * oz + m.m30(),
+                    m.m01() * ox + m.m11() * oy + m.m21() * oz + m.m31(),
+                    m.m02() * ox + m.m12() * oy + m.m22() * oz + m.m32(),
+                    m.m00() * dx + m.m10() * dy + m.m20() * dz,
+                    m.m01() * dx + m.m11() * dy + m.m21() * dz,
+                    m.m02() * dx + m.m12() * dy + m.m22() * dz, tMin, tMax,
+                    i == skipItem ? skipTriangle : -1, hit)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a ray crosses a box between tMin and tMax
+     */
+    private static boolean crosses(float[] box, int o, float ox, float oy, float oz, float ix, float iy, float iz,
+            float tMin, float tMax) {
+        float tx0 = (box[o] - ox) * ix, tx1 = (box[o + 3] - ox) * ix;
+        float ty0 = (box[o + 1] - oy) * iy, ty1 = (box[o + 4] - oy) * iy;
+        float tz0 = (box[o + 2] - oz) * iz, tz1 = (box[o + 5] - oz) * iz;
+        float near = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)), Math.max(Math.min(tz0, tz1), tMin));
+        float far = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)), Math.min(Math.max(tz0, tz1), tMax));
+        return near <= far;
+    }
+
+    /**
+     * @return the level of detail of a triangle, from its area on the screen as {@link SoftwareRasterizer}
+     *         finds it, or 0 if it reaches behind the near plane
+     */
+    private float lod(SoftwareTexture texture, float[] vertices, int a, int b, int c) {
+        float za = vertices[a + POSITION + 2], zb = vertices[b + POSITION + 2], zc = vertices[c + POSITION + 2];
+        float near = -Transformation.Z_NEAR;
+        if (za > near || zb > near || zc > near) {
+            return 0;
+        }
+        float fx = projectionMatrix.m00() * 0.5f * width, fy = projectionMatrix.m11() * 0.5f * height;
+        float xa = vertices[a + POSITION] * fx / -za, ya = vertices[a + POSITION + 1] * fy / -za;
+        float xb = vertices[b + POSITION] * fx / -zb, yb = vertices[b + POSITION + 1] * fy / -zb;
+        float xc = vertices[c + POSITION] * fx / -zc, yc = vertices[c + POSITION + 1] * fy / -zc;
+        float area = (xb - xa) * (yc - ya) - (xc - xa) * (yb - ya);
+        float du1 = vertices[b + TEXCOORD] - vertices[a + TEXCOORD];
+        float dv1 = vertices[b + TEXCOORD + 1] - vertices[a + TEXCOORD + 1];
+        float du2 = vertices[c + TEXCOORD] - vertices[a + TEXCOORD];
+        float dv2 = vertices[c + TEXCOORD + 1] - vertices[a + TEXCOORD + 1];
+        return texture.getLod(0.5f * Math.abs(du1 * dv2 - du2 * dv1), 0.5f * Math.abs(area));
+    }
+
+    /**
+     * @return the mean time per frame of each phase and the rays traced per second so far
+     */
+    @Override
+    public synchronized String report() {
+        long n = Math.max(1, frames);
+        double seconds = traceNanos / 1e9;
+        return String.format("RayTracer: %dx%d, %d threads, %d frames, hierarchies %.2f ms in all, vertices %.2f ms, "
+                + "tracing %.2f ms, %d primary and %d shadow rays, %.2f Mrays/s",
+                width, height, threads, frames, buildNanos / 1e6, vertexNanos / 1e6 / n, traceNanos / 1e6 / n,
+                primaryRays, shadowRays, seconds > 0 ? (primaryRays + shadowRays) / seconds / 1e6 : 0);
+    }
+
+    @Override
+    public synchronized void resetStats() {
+        primaryRays = 0;
+        shadowRays = 0;
+        buildNanos = 0;
+        vertexNanos = 0;
+        traceNanos = 0;
+        frames = 0;
+    }
+
+    /** An item of the frame as the rays see it */
+    private static final class ItemRays {
+
+        final Matrix4f modelView = new Matrix4f();
+
+        /** From view space into model space */
+        final Matrix4f inverse = new Matrix4f();
+
+        /** The varyings of each vertex after the vertex stage */
+        float[] varyings = new float[0];
+
+        int[] indices;
+
+        Material material;
+
+        SoftwareTexture texture;
+
+        Bvh bvh;
+    }
+
+    /** The items a ray may hit, as the hierarchy over their bounds finds them; one per thread */
+    private static final class Candidates {
+
+        final int[] items;
+
+        /** Where the ray enters the leaf of each item */
+        final float[] entries;
+
+        Candidates(int numItems) {
+            items = new int[numItems];
+            entries = new float[numItems];
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package w4160.engine.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import w4160.engine.jfr.ScreenshotEvent;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * Asynchronous screenshots through pixel buffer objects.
+ *
+ * <p>
+ * A requested capture is read back into a free pixel buffer object at the start of the next frame,
+ * which only queues the copy on the GPU. A frame or more later, once its fence has signalled, the
+ * buffer is mapped and a worker thread flips, converts and encodes the mapped pixels to PNG
+ * straight from the mapping, with the bands of large images compressed in parallel by a
+ * {@link ParallelPngWriter}. The buffer is unmapped and reused after the worker is done, so the
+ * render thread never waits for the GPU or the encoder and never copies the pixels.
+ * </p>
+ *
+ * <p>
+ * All methods must be called on the render thread.
+ * </p>
+ */
+public class ScreenCapture {
+
+    /** Number of pixel buffers, i.e. captures that can be in flight at once */
+    private static final int NUM_BUFFERS = 2;
+
+    private static final int FREE = 0;
+
+    /** The read-back is queued and the fence not signalled yet */
+    private static final int READING = 1;
+
+    /** Mapped and handed to the encoder */
+    private static final int ENCODING = 2;
+
+    private static class Request {
+
+        final File file;
+
+        final int readBuffer;
+
+        final int width;
+
+        final int height;
+
+        Request(File file, int readBuffer, int width, int height) {
+            this.file = file;
+            this.readBuffer = readBuffer;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static class Slot {
+
+        final int pboId = glGenBuffers();
+
+        int state = FREE;
+
+        long capacity;
+
+        long fence;
+
+        Request request;
+
+        /** Render thread time spent queueing and mapping, reported with the encode */
+        long renderNanos;
+
+        volatile boolean encoded;
+    }
+
+    private final Slot[] slots = new Slot[NUM_BUFFERS];
+
+    private final ArrayDeque<Request> requests = new ArrayDeque<>();
+
+    private final ParallelPngWriter pngWriter;
+
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SCREEN_CAPTURE_THREAD");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ScreenCapture() {
+        this(new ParallelPngWriter());
+    }
+
+    /**
+     * @param pngWriter encodes the captures, with its compression level and row filter
+     */
+    public ScreenCapture(ParallelPngWriter pngWriter) {
+        this.pngWriter = pngWriter;
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Capture the frame that is in the given buffer at the start of the next {@link #update()}.
+     *
+     * @param file the PNG file to write
+     * @param readBuffer the buffer to read from, see {@link w4160.engine.Window#getReadBuffer()}
+     * @param width width of the frame in pixels
+     * @param height height of the frame in pixels
+     */
+    public void request(File file, int readBuffer, int width, int height) {
+        requests.add(new Request(file, readBuffer, width, height));
+    }
+
+    /**
+     * @return true while captures are requested or in flight
+     */
+    public boolean isBusy() {
+        if (!requests.isEmpty()) {
+            return true;
+        }
+        for (Slot slot : slots) {
+            if (slot.state != FREE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advance the captures without blocking: recycle buffers the encoder is done with, hand the
+     * finished read-backs to the encoder and queue read-backs for the pending requests. Call once
+     * per frame before anything is drawn.
+     */
+    public void update() {
+        if (!isBusy()) {
+            return;
+        }
+        for (Slot slot : slots) {
+            if (slot.state == ENCODING && slot.encoded) {
+                unmap(slot);
+            }
+        }
+        for (Slot slot : slots) {
+            if (slot.state == READING) {
+                int status = glClientWaitSync(slot.fence, 0, 0);
+                if (status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED) {
+                    startEncoding(slot);
+                }
+            }
+        }
+        for (Slot slot : slots) {
+            if (requests.isEmpty()) {
+                break;
+            }
+            if (slot.state == FREE) {
+                startReading(slot, requests.poll());
+            }
+        }
+    }
+
+    /**
+     * Block until all requested captures are written, e.g. before the window is closed.
+     */
+    public void finish() {
+        while (isBusy()) {
+            update();
+            for (Slot slot : slots) {
+                if (slot.state == READING) {
+                    glClientWaitSync(slot.fence, GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE);
+                    startEncoding(slot);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private void startReading(Slot slot, Request request) {
+        long start = System.nanoTime();
+        long size = (long) request.width * request.height * 4;
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pboId);
+        if (slot.capacity != size) {
+            glBufferData(GL_PIXEL_PACK_BUFFER, size, GL_STREAM_READ);
+            slot.capacity = size;
+        }
+        glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        glReadBuffer(request.readBuffer);
+        // with a pixel pack buffer bound this only queues the copy
+        glReadPixels(0, 0, request.width, request.height, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        slot.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.request = request;
+        slot.state = READING;
+        slot.renderNanos = System.nanoTime() - start;
+    }
+
+    private void startEncoding(Slot slot) {
+        long start = System.nanoTime();
+        glDeleteSync(slot.fence);
+        slot.fence = 0;
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pboId);
+        ByteBuffer pixels = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, slot.capacity, GL_MAP_READ_BIT);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        slot.renderNanos += System.nanoTime() - start;
+        slot.encoded = false;
+        slot.state = ENCODING;
+        if (pixels == null) {
+            System.err.println("ScreenCapture: could not map the pixel buffer for " + slot.request.file);
+            slot.encoded = true;
+            return;
+        }
+
+        Request request = slot.request;
+        long renderNanos = slot.renderNanos;
+        encoder.execute(() -> {
+            ScreenshotEvent event = new ScreenshotEvent();
+            event.begin();
+            try {
+                pngWriter.write(pixels, request.width, request.height, request.file);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("ScreenCapture: failed to write " + request.file + ": " + e.getMessage());
+            } finally {
+                slot.encoded = true;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = request.file.getPath();
+                event.width = request.width;
+                event.height = request.height;
+                event.readback = renderNanos;
+                event.commit();
+            }
+            System.out.println("ScreenCapture: wrote " + request.file + String.format(" (render thread %.3f ms)",
+                    renderNanos / 1e6));
+        });
+    }
+
+    private void unmap(Slot slot) {
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pboId);
+        glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        slot.request = null;
+        slot.state = FREE;
+    }
+
+    /**
+     * Write the outstanding captures, stop the encoder and delete the buffers.
+     */
+    public void cleanup() {
+        finish();
+        encoder.shutdown();
+        try {
+            encoder.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Slot slot : slots) {
+            glDeleteBuffers(slot.pboId);
+        }
+    }
+}
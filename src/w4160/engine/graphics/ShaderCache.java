@@ -0,0 +1,226 @@
+package w4160.engine.graphics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
+
+/**
+ * An on-disk cache of linked shader program binaries.
+ *
+ * <p>
+ * Binaries are retrieved with <code>glGetProgramBinary</code> after a successful link and
+ * stored in a local directory. Each file is keyed by a hash of the shader sources together with
+ * the driver vendor, renderer and version strings, so a driver update or an edited shader simply
+ * misses the cache. The binary format reported by the driver is stored in the file header and
+ * handed back to <code>glProgramBinary</code> on load. If the driver rejects the binary, the
+ * caller falls back to compiling the sources.
+ * </p>
+ *
+ * @see ShaderProgram#setBinaryCache(ShaderCache)
+ */
+public class ShaderCache {
+
+    private static final int MAGIC = 0x57344243; // "W4BC"
+
+    private static final int VERSION = 1;
+
+    private final Path directory;
+
+    private String driverId;
+
+    private boolean supported;
+
+    public ShaderCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return true if the current OpenGL context can save and restore program binaries
+     */
+    public boolean isSupported() {
+        initDriverInfo();
+        return supported;
+    }
+
+    /**
+     * Compute the cache key of a program from its sources. The key also covers the
+     * driver identification, so it has to be called with a current OpenGL context.
+     *
+     * @param vertexSource vertex shader code, may be null
+     * @param fragmentSource fragment shader code, may be null
+     * @return a hex string identifying the program binary
+     */
+    public String key(String vertexSource, String fragmentSource) {
+        initDriverInfo();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(driverId.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            if (vertexSource != null) {
+                md.update(vertexSource.getBytes(StandardCharsets.UTF_8));
+            }
+            md.update((byte) 0);
+            if (fragmentSource != null) {
+                md.update(fragmentSource.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Try to restore the given program from a cached binary.
+     *
+     * @param programId the program object to load the binary into
+     * @param key the cache key returned by {@link #key(String, String)}
+     * @return the compile and link time in nanoseconds recorded when the binary was stored,
+     *         or -1 if there is no usable binary for this key
+     */
+    public long load(int programId, String key) {
+        if (!isSupported()) {
+            return -1;
+        }
+        Path file = directory.resolve(key + ".bin");
+        if (!Files.isRegularFile(file)) {
+            return -1;
+        }
+
+        int binaryFormat;
+        long compileNanos;
+        byte[] binary;
+        try (InputStream is = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(is)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return -1;
+            }
+            binaryFormat = in.readInt();
+            compileNanos = in.readLong();
+            if (!driverId.equals(in.readUTF())) {
+                return -1;
+            }
+            binary = new byte[in.readInt()];
+            in.readFully(binary);
+        } catch (IOException e) {
+            System.err.println("ShaderCache: could not read " + file + ": " + e.getMessage());
+            return -1;
+        }
+
+        ByteBuffer buf = MemoryUtil.memAlloc(binary.length);
+        try {
+            buf.put(binary).flip();
+            glProgramBinary(programId, binaryFormat, buf);
+        } finally {
+            MemoryUtil.memFree(buf);
+        }
+        // a rejected binary only leaves an error flag and an unlinked program behind
+        glGetError();
+        if (glGetProgrami(programId, GL_LINK_STATUS) == 0) {
+            System.out.println("ShaderCache: driver rejected cached binary " + file.getFileName());
+            return -1;
+        }
+        return compileNanos;
+    }
+
+    /**
+     * Store the binary of a linked program.
+     *
+     * @param programId a successfully linked program object
+     * @param key the cache key returned by {@link #key(String, String)}
+     * @param compileNanos the time spent compiling and linking the program
+     * @return the size of the stored binary in bytes, or 0 if nothing was stored
+     */
+    public int store(int programId, String key, long compileNanos) {
+        if (!isSupported()) {
+            return 0;
+        }
+        int length = glGetProgrami(programId, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            return 0;
+        }
+
+        byte[] binary;
+        int binaryFormat;
+        ByteBuffer buf = MemoryUtil.memAlloc(length);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer pLength = stack.mallocInt(1);
+            IntBuffer pFormat = stack.mallocInt(1);
+            glGetProgramBinary(programId, pLength, pFormat, buf);
+            binaryFormat = pFormat.get(0);
+            buf.limit(pLength.get(0));
+            binary = new byte[buf.remaining()];
+            buf.get(binary);
+        } finally {
+            MemoryUtil.memFree(buf);
+        }
+        if (binary.length == 0) {
+            return 0;
+        }
+
+        Path file = directory.resolve(key + ".bin");
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory);
+            // write to a temporary file first so a crash never leaves a truncated binary behind
+            tmp = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmp);
+                    DataOutputStream out = new DataOutputStream(os)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(binaryFormat);
+                out.writeLong(compileNanos);
+                out.writeUTF(driverId);
+                out.writeInt(binary.length);
+                out.write(binary);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("ShaderCache: could not write " + file + ": " + e.getMessage());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ioe) {
+                    // nothing else to do, a stale .tmp file is never read
+                }
+            }
+            return 0;
+        }
+        return binary.length;
+    }
+
+    private synchronized void initDriverInfo() {
+        if (driverId != null) {
+            return;
+        }
+        driverId = glGetString(GL_VENDOR) + "|" + glGetString(GL_RENDERER) + "|" + glGetString(GL_VERSION);
+        GLCapabilities caps = GL.getCapabilities();
+        supported = (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+                && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+        if (!supported) {
+            System.out.println("ShaderCache: program binaries are not supported by " + driverId);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package w4160.engine.graphics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.GL11.glFinish;
+import static org.lwjgl.opengl.KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * A registry of named shader programs that are compiled on demand.
+ *
+ * <p>
+ * Programs are registered as descriptors (a name and a factory that creates the linked program)
+ * and only compiled the first time they are requested. The remaining programs can be warmed up
+ * in the background on a worker thread that owns an OpenGL context shared with the window, so the
+ * first frame only waits for the default shader. Once the warm-up started, programs that are not
+ * compiled yet are reported as not ready instead of blocking the render thread, and a program
+ * asked for moves to the front of the warm-up queue.
+ * </p>
+ *
+ * <p>
+ * All methods except the background worker itself must be called on the render thread.
+ * </p>
+ */
+public class ShaderLibrary {
+
+    /**
+     * Creates and links a shader program. Called with a current OpenGL context, which
+     * is the window context or the shared context of the warm-up worker.
+     */
+    public interface ShaderFactory {
+        ShaderProgram create() throws Exception;
+    }
+
+    private static final int PENDING = 0;
+
+    private static final int COMPILING = 1;
+
+    private static final int READY = 2;
+
+    private static final int FAILED = 3;
+
+    private static class Entry {
+
+        final String name;
+
+        final ShaderFactory factory;
+
+        final AtomicInteger state = new AtomicInteger(PENDING);
+
+        volatile ShaderProgram program;
+
+        /** Counted down once the program is ready or failed */
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /** Whether a request moved the entry to the front of the warm-up queue */
+        boolean promoted;
+
+        Entry(String name, ShaderFactory factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final List<String> names;
+
+    /** The pending programs in the order they are warmed up, null until the warm-up starts */
+    private BlockingDeque<Entry> warmupQueue;
+
+    private Thread warmupThread;
+
+    private volatile boolean stopWarmup;
+
+    private long sharedContext = NULL;
+
+    public ShaderLibrary() {
+        entries = new LinkedHashMap<>();
+        names = new ArrayList<>();
+    }
+
+    /**
+     * Register a shader program without compiling it.
+     *
+     * @param name name used to select the program
+     * @param factory creates the linked program on first use
+     */
+    public void register(String name, ShaderFactory factory) {
+        if (warmupThread != null) {
+            throw new IllegalStateException("Cannot register shader " + name + " after warm-up started");
+        }
+        entries.put(name, new Entry(name, factory));
+        names.add(name);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * Get a program for rendering. Before the warm-up starts a pending program is compiled on the
+     * calling thread; after, it is moved to the front of the warm-up queue instead.
+     *
+     * @param name name of the registered program
+     * @return the linked program, or null if it is left to the warm-up or failed to compile
+     */
+    public ShaderProgram get(String name) {
+        Entry entry = getEntry(name);
+        if (entry.state.get() == PENDING) {
+            if (warmupQueue == null) {
+                compile(entry, false);
+            } else if (!entry.promoted) {
+                entry.promoted = true;
+                warmupQueue.offerFirst(entry);
+            }
+        }
+        return entry.state.get() == READY ? entry.program : null;
+    }
+
+    /**
+     * Get a program, compiling it on the calling thread if it is pending or waiting for the
+     * background worker if it is compiling it right now.
+     *
+     * @param name name of the registered program
+     * @return the linked program
+     * @throws GLSLShaderException if the program failed to compile
+     */
+    public ShaderProgram getBlocking(String name) {
+        Entry entry = getEntry(name);
+        compile(entry, false);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                entry.done.await();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (entry.state.get() != READY) {
+            throw new GLSLShaderException("Shader " + name + " failed to compile");
+        }
+        return entry.program;
+    }
+
+    private Entry getEntry(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("Unknown shader: " + name);
+        }
+        return entry;
+    }
+
+    /**
+     * Compile every registered program on the calling thread.
+     */
+    public void compileAll() {
+        for (String name : names) {
+            getBlocking(name);
+        }
+    }
+
+    /**
+     * @return true once every registered program is either ready or has failed
+     */
+    public boolean isWarm() {
+        for (Entry entry : entries.values()) {
+            int state = entry.state.get();
+            if (state == PENDING || state == COMPILING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Start compiling the pending programs on a worker thread.
+     *
+     * @param sharedContext handle of a hidden GLFW window whose context is shared with the render
+     *        context. The library takes ownership of it. If it is NULL, call {@link #warmupStep()}
+     *        once per frame instead.
+     */
+    public void startWarmup(long sharedContext) {
+        enableParallelCompile();
+        warmupQueue = new LinkedBlockingDeque<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state.get() == PENDING) {
+                warmupQueue.offerLast(entry);
+            }
+        }
+        if (sharedContext == NULL) {
+            return;
+        }
+        this.sharedContext = sharedContext;
+        warmupThread = new Thread(this::warmup, "SHADER_WARMUP_THREAD");
+        warmupThread.setDaemon(true);
+        warmupThread.start();
+    }
+
+    /**
+     * Compile at most one pending program on the render thread. This is the fallback warm-up when
+     * no shared context could be created; with <code>KHR_parallel_shader_compile</code> the driver
+     * spreads the work over its own threads.
+     */
+    public void warmupStep() {
+        if (warmupThread != null || warmupQueue == null) {
+            return;
+        }
+        Entry entry;
+        while ((entry = warmupQueue.pollFirst()) != null) {
+            if (compile(entry, false)) {
+                return;
+            }
+        }
+    }
+
+    private void warmup() {
+        glfwMakeContextCurrent(sharedContext);
+        GL.createCapabilities();
+        enableParallelCompile();
+
+        long start = System.nanoTime();
+        int count = 0;
+        Entry entry;
+        while (!stopWarmup && (entry = warmupQueue.pollFirst()) != null) {
+            if (compile(entry, true)) {
+                count++;
+            }
+        }
+        System.out.println(String.format("ShaderLibrary: warmed up %d programs in background in %.1f ms",
+                count, (System.nanoTime() - start) / 1e6));
+        glfwMakeContextCurrent(NULL);
+        GL.setCapabilities(null);
+    }
+
+    /**
+     * Compile the entry if it is still pending.
+     *
+     * @param shared true if called on the shared context of the warm-up worker
+     * @return true if this call compiled the program
+     */
+    private boolean compile(Entry entry, boolean shared) {
+        if (!entry.state.compareAndSet(PENDING, COMPILING)) {
+            return false;
+        }
+        try {
+            ShaderProgram program = entry.factory.create();
+            if (shared) {
+                // make sure the program is complete before the render context binds it
+                glFinish();
+            }
+            entry.program = program;
+            entry.state.set(READY);
+        } catch (Exception excp) {
+            System.err.println("ShaderLibrary: could not create shader " + entry.name);
+            excp.printStackTrace();
+            entry.state.set(FAILED);
+        } finally {
+            entry.done.countDown();
+        }
+        return true;
+    }
+
+    private static void enableParallelCompile() {
+        GLCapabilities caps = GL.getCapabilities();
+        if (caps.GL_KHR_parallel_shader_compile) {
+            glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+        }
+    }
+
+    public void cleanup() {
+        stopWarmup = true;
+        if (warmupThread != null) {
+            try {
+                warmupThread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            warmupThread = null;
+        }
+        if (sharedContext != NULL) {
+            glfwDestroyWindow(sharedContext);
+            sharedContext = NULL;
+        }
+        for (Entry entry : entries.values()) {
+            if (entry.program != null) {
+                entry.program.cleanup();
+            }
+        }
+    }
+}
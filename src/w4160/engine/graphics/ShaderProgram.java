@@ -6,8 +6,13 @@ import java.util.Map;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
+import static org.lwjgl.opengl.GL41.glProgramParameteri;
 import org.lwjgl.system.MemoryStack;
 
+import w4160.engine.jfr.ShaderCompileEvent;
+import w4160.engine.jfr.ShaderLinkEvent;
+
 /**
  * This class reads, compiles, and links vertex and/or fragment shader.
  * It will be used when {@link w4160.game.Renderer} renders meshes. 
@@ -17,20 +22,55 @@ public class ShaderProgram {
 
     private final int programId;
 
+    private final String name;
+
     private int vertexShaderId;
 
     private int fragmentShaderId;
 
+    private String vertexSource;
+
+    private String fragmentSource;
+
+    private ShaderCache binaryCache;
+
     private final Map<String, Integer> uniforms;
 
+    /** The Texture or TextureArray last bound by {@link #setMaterialTexture(Material)}, reset by {@link #bind()} */
+    private Object boundTexture;
+
     public ShaderProgram() throws Exception {
+        this("shader");
+    }
+
+    /**
+     * @param name a readable name of the program, used in log messages
+     * @throws Exception if the program object cannot be created
+     */
+    public ShaderProgram(String name) throws Exception {
         programId = glCreateProgram();
         if (programId == 0) {
             throw new Exception("Could not create Shader");
         }
+        this.name = name;
         uniforms = new HashMap<>();
     }
 
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Use the given on-disk cache for the linked program binary. This has to be set before
+     * the shaders are created: with a cache, compilation is deferred to {@link #link()} and
+     * skipped entirely when a matching binary can be restored.
+     *
+     * @param binaryCache the cache to load from and store to, or null to always compile
+     */
+    public void setBinaryCache(ShaderCache binaryCache) {
+        this.binaryCache = binaryCache;
+    }
+
     public void createUniform(String uniformName) throws GLSLShaderException {
         int uniformLocation = glGetUniformLocation(programId, uniformName);
         if ( uniformLocation == GL_INVALID_VALUE || uniformLocation == GL_INVALID_OPERATION )
@@ -83,6 +123,14 @@ public class ShaderProgram {
         glUniform3f(uniforms.get(uniformName), value.x, value.y, value.z);
     }
 
+    public void setUniform(String uniformName, float x, float y) {
+        glUniform2f(uniforms.get(uniformName), x, y);
+    }
+
+    public void setUniform(String uniformName, int x, int y, int z) {
+        glUniform3i(uniforms.get(uniformName), x, y, z);
+    }
+
     public void setUniform(String uniformName, PointLight pointLight) {
         setUniform(uniformName + ".colour", pointLight.getColor());
         setUniform(uniformName + ".position", pointLight.getPosition());
@@ -106,9 +154,51 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, Texture texture) {
-        glActiveTexture(GL_TEXTURE0);
+        glActiveTexture(GL_TEXTURE0 + TextureUnits.MATERIAL);
         texture.bind();
-        setUniform(uniformName, 0);   
+        setUniform(uniformName, TextureUnits.MATERIAL);
+    }
+
+    /**
+     * Bind a texture array to its own unit, {@link TextureUnits#TEXTURE_ARRAY}.
+     */
+    public void setUniform(String uniformName, TextureArray textureArray) {
+        glActiveTexture(GL_TEXTURE0 + TextureUnits.TEXTURE_ARRAY);
+        textureArray.bind();
+        glActiveTexture(GL_TEXTURE0);
+        setUniform(uniformName, TextureUnits.TEXTURE_ARRAY);
+    }
+
+    /**
+     * Create the uniforms of material_texture.glsl.
+     */
+    public void createMaterialTextureUniforms() throws GLSLShaderException {
+        createUniform("texture_sampler");
+        createUniform("texture_array");
+        createUniform("texture_layer");
+    }
+
+    /**
+     * Set the texture of a textured material for material_texture.glsl: a texture is bound to
+     * texture_sampler, a texture array layer to texture_array and texture_layer. The texture or
+     * array is only bound if the previous item of this program used a different one, so items
+     * sharing an array are drawn without any binds.
+     */
+    public void setMaterialTexture(Material material) {
+        TextureArray.Layer layer = material.getTextureLayer();
+        if (layer != null) {
+            if (boundTexture != layer.getArray()) {
+                setUniform("texture_array", layer.getArray());
+                boundTexture = layer.getArray();
+            }
+            setUniform("texture_layer", layer.getIndex());
+        } else {
+            if (boundTexture != material.getTexture()) {
+                setUniform("texture_sampler", material.getTexture());
+                boundTexture = material.getTexture();
+            }
+            setUniform("texture_layer", -1);
+        }
     }
 
 
@@ -120,7 +210,10 @@ public class ShaderProgram {
      */
     
     public void createVertexShader(String shaderCode) throws GLSLShaderException {
-        vertexShaderId = createShader(shaderCode, GL_VERTEX_SHADER);
+        vertexSource = shaderCode;
+        if (binaryCache == null) {
+            vertexShaderId = createShader(shaderCode, GL_VERTEX_SHADER);
+        }
     }
 
     /**
@@ -130,7 +223,10 @@ public class ShaderProgram {
      * @throws Exception 
      */
     public void createFragmentShader(String shaderCode) throws GLSLShaderException {
-        fragmentShaderId = createShader(shaderCode, GL_FRAGMENT_SHADER);
+        fragmentSource = shaderCode;
+        if (binaryCache == null) {
+            fragmentShaderId = createShader(shaderCode, GL_FRAGMENT_SHADER);
+        }
     }
 
     protected int createShader(String shaderCode, int shaderType) throws GLSLShaderException {
@@ -139,10 +235,21 @@ public class ShaderProgram {
             throw new GLSLShaderException("Error creating shader. Type: " + shaderType);
         }
 
+        ShaderCompileEvent event = new ShaderCompileEvent();
+        event.begin();
         glShaderSource(shaderId, shaderCode);
         glCompileShader(shaderId);
+        boolean compiled = glGetShaderi(shaderId, GL_COMPILE_STATUS) != 0;
+        event.end();
+        if (event.shouldCommit()) {
+            event.program = name;
+            event.stage = shaderType == GL_VERTEX_SHADER ? "vertex" : "fragment";
+            event.sourceLength = shaderCode.length();
+            event.success = compiled;
+            event.commit();
+        }
 
-        if (glGetShaderi(shaderId, GL_COMPILE_STATUS) == 0) {
+        if (!compiled) {
             throw new GLSLShaderException("Error compiling Shader code: " + glGetShaderInfoLog(shaderId, 1024));
         }
 
@@ -152,8 +259,65 @@ public class ShaderProgram {
     }
 
     public void link() throws GLSLShaderException {
+        if (binaryCache != null) {
+            linkCached();
+            return;
+        }
+        linkProgram();
+    }
+
+    /**
+     * Restore the program from the binary cache, or compile, link and store it on a miss.
+     */
+    private void linkCached() throws GLSLShaderException {
+        long start = System.nanoTime();
+        ShaderLinkEvent event = new ShaderLinkEvent();
+        event.begin();
+        String key = binaryCache.key(vertexSource, fragmentSource);
+        long compileNanos = binaryCache.load(programId, key);
+        if (compileNanos >= 0) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.program = name;
+                event.fromCache = true;
+                event.success = true;
+                event.commit();
+            }
+            long loadNanos = System.nanoTime() - start;
+            System.out.println(String.format("ShaderCache: loaded %s in %.2f ms (compile took %.2f ms, saved %.2f ms)",
+                    name, loadNanos / 1e6, compileNanos / 1e6, (compileNanos - loadNanos) / 1e6));
+            return;
+        }
+
+        if (vertexSource != null) {
+            vertexShaderId = createShader(vertexSource, GL_VERTEX_SHADER);
+        }
+        if (fragmentSource != null) {
+            fragmentShaderId = createShader(fragmentSource, GL_FRAGMENT_SHADER);
+        }
+        if (binaryCache.isSupported()) {
+            glProgramParameteri(programId, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
+        linkProgram();
+        compileNanos = System.nanoTime() - start;
+        int size = binaryCache.store(programId, key, compileNanos);
+        System.out.println(String.format("ShaderCache: compiled %s in %.2f ms, %s", name, compileNanos / 1e6,
+                size > 0 ? "stored " + size + " bytes"
+                        : binaryCache.isSupported() ? "not stored" : "binaries unsupported"));
+    }
+
+    private void linkProgram() throws GLSLShaderException {
+        ShaderLinkEvent event = new ShaderLinkEvent();
+        event.begin();
         glLinkProgram(programId);
-        if (glGetProgrami(programId, GL_LINK_STATUS) == 0) {
+        boolean linked = glGetProgrami(programId, GL_LINK_STATUS) != 0;
+        event.end();
+        if (event.shouldCommit()) {
+            event.program = name;
+            event.success = linked;
+            event.commit();
+        }
+        if (!linked) {
             throw new GLSLShaderException("Error linking Shader code: " + glGetProgramInfoLog(programId, 1024));
         }
 
@@ -175,6 +339,12 @@ public class ShaderProgram {
      */
     public void bind() {
         glUseProgram(programId);
+        boundTexture = null;
+        if (uniforms.containsKey("texture_array")) {
+            // sampler2D and sampler2DArray must never share a unit
+            setUniform("texture_sampler", TextureUnits.MATERIAL);
+            setUniform("texture_array", TextureUnits.TEXTURE_ARRAY);
+        }
     }
 
     /**
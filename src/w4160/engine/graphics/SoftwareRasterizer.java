@@ -0,0 +1,615 @@
+package w4160.engine.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import w4160.engine.GameItem;
+
+import static w4160.engine.graphics.SoftwareShading.TEXCOORD;
+import static w4160.engine.graphics.SoftwareShading.VARYINGS;
+
+/**
+ * Renders the items of a scene on the CPU, for machines without a GPU.
+ *
+ * <p>
+ * It draws the same {@link GameItem}s, {@link Camera} and lights as the renderer, with the Java
+ * versions of its shaders in {@link SoftwareShading}, and needs no OpenGL context: meshes and
+ * materials made by {@link Mesh#inMemory} and {@link Material#inMemory} will do. A frame runs in three
+ * phases on a fork/join pool of its own:
+ * </p>
+ * <ol>
+ * <li>the vertices are transformed and run through the vertex stage, in chunks;</li>
+ * <li>the triangles are clipped against the near plane, set up in screen space and binned into
+ * tiles of {@link #TILE_SIZE} pixels, in batches that each keep their own bins;</li>
+ * <li>every tile rasterizes the triangles of its bins in submission order into its part of the depth
+ * buffer, keeping the nearest triangle and its barycentrics per pixel, then shades each covered pixel
+ * once with perspective-correct varyings.</li>
+ * </ol>
+ * <p>
+ * Tiles own disjoint pixels, so no phase needs synchronization, and there are enough tiles and
+ * batches for the work to spread over all the threads. Pixels are covered when their center is inside
+ * a triangle, both facings are drawn and the depth test keeps the nearer fragment, as in the OpenGL
+ * state of the renderer.
+ * </p>
+ *
+ * <p>
+ * The frame is kept as RGBA bytes packed into ints, bottom row first like
+ * <code>glReadPixels</code> returns it, so {@link #readPixels(ByteBuffer)} can fill a direct buffer
+ * for the PNG writers.
+ * </p>
+ */
+public class SoftwareRasterizer extends AbstractSoftwareRenderer {
+
+    /** Side of a tile in pixels; its depth and visibility buffers stay in the L1 cache */
+    public static final int TILE_SIZE = 32;
+
+    /** Triangles set up and binned by one task */
+    private static final int TRIANGLE_GRAIN = 1024;
+
+    /** A vertex in clip space: x, y, z, w and its varyings */
+    private static final int CLIP_FLOATS = 4 + VARYINGS;
+
+    /** A vertex on the screen: x, y, depth and 1/w */
+    private static final int VERTEX_FLOATS = 4;
+
+    /**
+     * A triangle on the screen: its three vertices, then the level of detail of its texture. The
+     * varyings stay with the clip-space vertices, only the visible triangles need them.
+     */
+    private static final int TRIANGLE_FLOATS = 3 * VERTEX_FLOATS + 1;
+
+    private static final int LOD = 3 * VERTEX_FLOATS;
+
+    /** Outcode bit of the near plane, see {@link #outcode} */
+    private static final int NEAR = 1 << 4;
+
+    private final int tilesX;
+
+    private final int tilesY;
+
+    private final float[] depth;
+
+    /** Per pixel the batch of the nearest triangle, or -1, its index in the batch and its barycentrics */
+    private final int[] visibleBatch;
+
+    private final int[] visibleTriangle;
+
+    private final float[] visibleB1;
+
+    private final float[] visibleB2;
+
+    /** Transformed vertices of the items of the frame */
+    private final List<ItemVertices> itemVertices = new ArrayList<>();
+
+    private final List<Batch> batches = new ArrayList<>();
+
+    private int numBatches;
+
+    private long triangles;
+
+    private long binnedTriangles;
+
+    private long shadedPixels;
+
+    private long vertexNanos;
+
+    private long setupNanos;
+
+    private long tileNanos;
+
+    private long frames;
+
+    /**
+     * @param threads the number of threads to render with
+     */
+    public SoftwareRasterizer(int width, int height, int threads) {
+        super("SoftwareRasterizer", "RASTER_WORKER_THREAD", width, height, threads);
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        depth = new float[width * height];
+        visibleBatch = new int[width * height];
+        visibleTriangle = new int[width * height];
+        visibleB1 = new float[width * height];
+        visibleB2 = new float[width * height];
+    }
+
+    /**
+     * A rasterizer with a thread for every processor.
+     */
+    public SoftwareRasterizer(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Render a frame into the pixels.
+     *
+     * @param pointLights further point lights, may be empty
+     * @param shaderName one of the shaders of {@link SoftwareShading.Model}
+     */
+    @Override
+    public void render(Camera camera, GameItem[] gameItems, Vector3f ambientLight, PointLight pointLight,
+            PointLight[] pointLights, DirectionalLight directionalLight, String shaderName) {
+        long start = System.nanoTime();
+        SoftwareShading.Model model = beginFrame(camera, gameItems, ambientLight, pointLight, pointLights,
+                directionalLight, shaderName);
+        numBatches = 0;
+        for (int i = 0; i < gameItems.length; i++) {
+            prepareItem(i, model);
+        }
+        runInParallel(numVertexChunks, this::transformVertices);
+        long vertexEnd = System.nanoTime();
+        runInParallel(numBatches, b -> setupTriangles(batches.get(b)));
+        long setupEnd = System.nanoTime();
+        runInParallel(tilesX * tilesY, this::renderTile);
+        long end = System.nanoTime();
+
+        for (int b = 0; b < numBatches; b++) {
+            triangles += batches.get(b).to - batches.get(b).from;
+            binnedTriangles += batches.get(b).count;
+        }
+        vertexNanos += vertexEnd - start;
+        setupNanos += setupEnd - vertexEnd;
+        tileNanos += end - setupEnd;
+        frames++;
+        this.gameItems = null;
+    }
+
+    /**
+     * Size the vertex buffers of an item, load its texture and declare its vertex chunks and
+     * triangle batches.
+     */
+    private void prepareItem(int item, SoftwareShading.Model model) {
+        if (itemVertices.size() <= item) {
+            itemVertices.add(new ItemVertices());
+        }
+        ItemVertices vertices = itemVertices.get(item);
+        GameItem gameItem = gameItems[item];
+        Mesh mesh = gameItem.getMesh();
+        int numVertices = mesh.getPositions().length / 3;
+        if (vertices.clip.length < numVertices * CLIP_FLOATS) {
+            vertices.clip = new float[numVertices * CLIP_FLOATS];
+        }
+        Transformation.getModelViewMatrix(gameItem, viewMatrix, vertices.modelView);
+        projectionMatrix.mul(vertices.modelView, vertices.modelViewProjection);
+        vertices.material = mesh.getMaterial();
+        vertices.texture = model.samplesTexture() ? texture(vertices.material) : null;
+        addVertexChunks(item, numVertices);
+        int numTriangles = mesh.getIndices().length / 3;
+        for (int from = 0; from < numTriangles; from += TRIANGLE_GRAIN) {
+            if (batches.size() <= numBatches) {
+                batches.add(new Batch(tilesX * tilesY));
+            }
+            Batch batch = batches.get(numBatches++);
+            batch.item = item;
+            batch.from = from;
+            batch.to = Math.min(numTriangles, from + TRIANGLE_GRAIN);
+        }
+    }
+
+    /**
+     * Transform a chunk of vertices to clip space and run the vertex stage on them.
+     */
+    private void transformVertices(int chunk) {
+        int item = vertexChunks[3 * chunk];
+        int from = vertexChunks[3 * chunk + 1];
+        int to = vertexChunks[3 * chunk + 2];
+        ItemVertices vertices = itemVertices.get(item);
+        float[] positions = gameItems[item].getMesh().getPositions();
+        Matrix4f mvp = vertices.modelViewProjection;
+        float[] clip = vertices.clip;
+        for (int i = from; i < to; i++) {
+            float x = positions[3 * i], y = positions[3 * i + 1], z = positions[3 * i + 2];
+            int o = i * CLIP_FLOATS;
+            clip[o] = mvp.m00() * x + mvp.m10() * y + mvp.m20() * z + mvp.m30();
+            clip[o + 1] = mvp.m01() * x + mvp.m11() * y + mvp.m21() * z + mvp.m31();
+            clip[o + 2] = mvp.m02() * x + mvp.m12() * y + mvp.m22() * z + mvp.m32();
+            clip[o + 3] = mvp.m03() * x + mvp.m13() * y + mvp.m23() * z + mvp.m33();
+        }
+        // the varyings follow the clip-space position of each vertex
+        shadeVertices(chunk, vertices.modelView, vertices.material, clip, 4, CLIP_FLOATS);
+    }
+
+    /**
+     * Clip, set up and bin a batch of triangles.
+     */
+    private void setupTriangles(Batch batch) {
+        ItemVertices vertices = itemVertices.get(batch.item);
+        int[] indices = gameItems[batch.item].getMesh().getIndices();
+        float[] clip = vertices.clip;
+        // near plane clipping turns a triangle into at most two
+        int capacity = 2 * (batch.to - batch.from);
+        if (batch.triangles.length < capacity * TRIANGLE_FLOATS) {
+            batch.triangles = new float[capacity * TRIANGLE_FLOATS];
+            batch.vertices = new int[capacity * 3];
+            batch.bounds = new int[capacity * 4];
+        }
+        batch.count = 0;
+        batch.numClipped = 0;
+        float[] polygon = new float[4 * CLIP_FLOATS];
+        float[] triangle = new float[3 * CLIP_FLOATS];
+
+        for (int t = batch.from; t < batch.to; t++) {
+            int a = indices[3 * t] * CLIP_FLOATS;
+            int b = indices[3 * t + 1] * CLIP_FLOATS;
+            int c = indices[3 * t + 2] * CLIP_FLOATS;
+            int outA = outcode(clip, a), outB = outcode(clip, b), outC = outcode(clip, c);
+            if ((outA & outB & outC) != 0) {
+                // all three outside the same plane
+                continue;
+            }
+            if (((outA | outB | outC) & NEAR) == 0) {
+                emit(batch, vertices.texture, clip, a, b, c);
+                continue;
+            }
+            System.arraycopy(clip, a, triangle, 0, CLIP_FLOATS);
+            System.arraycopy(clip, b, triangle, CLIP_FLOATS, CLIP_FLOATS);
+            System.arraycopy(clip, c, triangle, 2 * CLIP_FLOATS, CLIP_FLOATS);
+            int n = clipNear(triangle, polygon);
+            if (batch.clipped.length < (batch.numClipped + n) * CLIP_FLOATS) {
+                batch.clipped = Arrays.copyOf(batch.clipped, Math.max(64 * CLIP_FLOATS, batch.clipped.length * 2));
+            }
+            int first = batch.numClipped * CLIP_FLOATS;
+            System.arraycopy(polygon, 0, batch.clipped, first, n * CLIP_FLOATS);
+            batch.numClipped += n;
+            for (int k = 2; k < n; k++) {
+                emit(batch, vertices.texture, batch.clipped, first, first + (k - 1) * CLIP_FLOATS,
+                        first + k * CLIP_FLOATS);
+            }
+        }
+        bin(batch);
+    }
+
+    /**
+     * @return a bit for each clip plane the vertex is outside of. Only the near plane has to be clipped
+     *         against: past the sides the pixel bounds cut the triangle off, past the far plane the
+     *         depth test does.
+     */
+    private static int outcode(float[] clip, int o) {
+        float x = clip[o], y = clip[o + 1], z = clip[o + 2], w = clip[o + 3];
+        int code = 0;
+        if (x < -w) {
+            code |= 1;
+        }
+        if (x > w) {
+            code |= 2;
+        }
+        if (y < -w) {
+            code |= 4;
+        }
+        if (y > w) {
+            code |= 8;
+        }
+        if (z < -w) {
+            code |= NEAR;
+        }
+        if (z > w) {
+            // beyond the far plane the depth test fails
+            code |= 32;
+        }
+        return code;
+    }
+
+    /**
+     * Clip a triangle against the near plane, z = -w, interpolating the varyings along the cut edges.
+     *
+     * @return the number of vertices written to <code>polygon</code>, 0, 3 or 4
+     */
+    private static int clipNear(float[] triangle, float[] polygon) {
+        int n = 0;
+        for (int i = 0; i < 3; i++) {
+            int p = i * CLIP_FLOATS;
+            int q = ((i + 1) % 3) * CLIP_FLOATS;
+            float dp = triangle[p + 2] + triangle[p + 3];
+            float dq = triangle[q + 2] + triangle[q + 3];
+            if (dp >= 0) {
+                System.arraycopy(triangle, p, polygon, n++ * CLIP_FLOATS, CLIP_FLOATS);
+            }
+            if ((dp >= 0) != (dq >= 0)) {
+                float s = dp / (dp - dq);
+                int o = n++ * CLIP_FLOATS;
+                for (int j = 0; j < CLIP_FLOATS; j++) {
+                    polygon[o + j] = triangle[p + j] + s * (triangle[q + j] - triangle[p + j]);
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Project a triangle in clip space to the screen and append it to the batch, counter-clockwise,
+     * unless it covers no pixel center.
+     */
+    private void emit(Batch batch, SoftwareTexture texture, float[] src, int a, int b, int c) {
+        float invWa = 1f / src[a + 3], invWb = 1f / src[b + 3], invWc = 1f / src[c + 3];
+        float x0 = (src[a] * invWa * 0.5f + 0.5f) * width, y0 = (src[a + 1] * invWa * 0.5f + 0.5f) * height;
+        float x1 = (src[b] * invWb * 0.5f + 0.5f) * width, y1 = (src[b + 1] * invWb * 0.5f + 0.5f) * height;
+        float x2 = (src[c] * invWc * 0.5f + 0.5f) * width, y2 = (src[c + 1] * invWc * 0.5f + 0.5f) * height;
+        float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+        if (!(area != 0)) {
+            return;
+        }
+        int minX = Math.max(0, (int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f));
+        int maxX = Math.min(width - 1, (int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f));
+        int minY = Math.max(0, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+        int maxY = Math.min(height - 1, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+        if (minX > maxX || minY > maxY) {
+            // most triangles of a distant mesh fall between the pixel centers
+            return;
+        }
+
+        if (area < 0) {
+            // both facings are drawn, store every triangle counter-clockwise
+            int swap = b;
+            b = c;
+            c = swap;
+        }
+        int o = batch.count * TRIANGLE_FLOATS;
+        float[] dst = batch.triangles;
+        project(src, a, dst, o);
+        project(src, b, dst, o + VERTEX_FLOATS);
+        project(src, c, dst, o + 2 * VERTEX_FLOATS);
+        // vertices made by clipping are referred to by the complement of their offset
+        boolean clipped = src == batch.clipped;
+        batch.vertices[3 * batch.count] = clipped ? ~a : a;
+        batch.vertices[3 * batch.count + 1] = clipped ? ~b : b;
+        batch.vertices[3 * batch.count + 2] = clipped ? ~c : c;
+
+        float lod = 0;
+        if (texture != null) {
+            float du1 = src[b + 4 + TEXCOORD] - src[a + 4 + TEXCOORD];
+            float dv1 = src[b + 4 + TEXCOORD + 1] - src[a + 4 + TEXCOORD + 1];
+            float du2 = src[c + 4 + TEXCOORD] - src[a + 4 + TEXCOORD];
+            float dv2 = src[c + 4 + TEXCOORD + 1] - src[a + 4 + TEXCOORD + 1];
+            lod = texture.getLod(0.5f * Math.abs(du1 * dv2 - du2 * dv1), 0.5f * Math.abs(area));
+        }
+        dst[o + LOD] = lod;
+        int[] bounds = batch.bounds;
+        bounds[4 * batch.count] = minX / TILE_SIZE;
+        bounds[4 * batch.count + 1] = minY / TILE_SIZE;
+        bounds[4 * batch.count + 2] = maxX / TILE_SIZE;
+        bounds[4 * batch.count + 3] = maxY / TILE_SIZE;
+        batch.count++;
+    }
+
+    /**
+     * Divide a clip-space vertex by w and map it onto the screen.
+     */
+    private void project(float[] src, int s, float[] dst, int d) {
+        float invW = 1f / src[s + 3];
+        dst[d] = (src[s] * invW * 0.5f + 0.5f) * width;
+        dst[d + 1] = (src[s + 1] * invW * 0.5f + 0.5f) * height;
+        dst[d + 2] = src[s + 2] * invW * 0.5f + 0.5f;
+        dst[d + 3] = invW;
+    }
+
+    /**
+     * Sort the triangles of a batch into per-tile lists: count, prefix sum, fill.
+     */
+    private void bin(Batch batch) {
+        int[] start = batch.tileStart;
+        Arrays.fill(start, 0);
+        int[] bounds = batch.bounds;
+        int total = 0;
+        for (int t = 0; t < batch.count; t++) {
+            for (int ty = bounds[4 * t + 1]; ty <= bounds[4 * t + 3]; ty++) {
+                for (int tx = bounds[4 * t]; tx <= bounds[4 * t + 2]; tx++) {
+                    start[ty * tilesX + tx + 1]++;
+                    total++;
+                }
+            }
+        }
+        for (int i = 1; i < start.length; i++) {
+            start[i] += start[i - 1];
+        }
+        if (batch.tileTriangles.length < total) {
+            batch.tileTriangles = new int[Math.max(total, batch.tileTriangles.length * 2)];
+        }
+        int[] cursor = batch.cursor;
+        System.arraycopy(start, 0, cursor, 0, cursor.length);
+        for (int t = 0; t < batch.count; t++) {
+            for (int ty = bounds[4 * t + 1]; ty <= bounds[4 * t + 3]; ty++) {
+                for (int tx = bounds[4 * t]; tx <= bounds[4 * t + 2]; tx++) {
+                    batch.tileTriangles[cursor[ty * tilesX + tx]++] = t;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rasterize the triangles binned into a tile, then shade its visible pixels.
+     */
+    private void renderTile(int tile) {
+        int tileX0 = (tile % tilesX) * TILE_SIZE;
+        int tileY0 = (tile / tilesX) * TILE_SIZE;
+        int tileX1 = Math.min(width, tileX0 + TILE_SIZE) - 1;
+        int tileY1 = Math.min(height, tileY0 + TILE_SIZE) - 1;
+        for (int y = tileY0; y <= tileY1; y++) {
+            Arrays.fill(depth, y * width + tileX0, y * width + tileX1 + 1, 1f);
+            Arrays.fill(visibleBatch, y * width + tileX0, y * width + tileX1 + 1, -1);
+        }
+        for (int b = 0; b < numBatches; b++) {
+            Batch batch = batches.get(b);
+            for (int k = batch.tileStart[tile]; k < batch.tileStart[tile + 1]; k++) {
+                rasterize(batch, b, batch.tileTriangles[k], tileX0, tileY0, tileX1, tileY1);
+            }
+        }
+
+        float[] v = new float[VARYINGS];
+        float[] scratch = new float[4];
+        long shaded = 0;
+        for (int y = tileY0; y <= tileY1; y++) {
+            for (int p = y * width + tileX0, end = y * width + tileX1; p <= end; p++) {
+                int b = visibleBatch[p];
+                if (b < 0) {
+                    pixels[p] = 0;
+                    continue;
+                }
+                Batch batch = batches.get(b);
+                ItemVertices vertices = itemVertices.get(batch.item);
+                float[] tri = batch.triangles;
+                int t = visibleTriangle[p];
+                int o = t * TRIANGLE_FLOATS;
+                // the varyings over w and 1/w are linear on the screen, so dividing the one by the
+                // other interpolates the varyings with perspective
+                float b1 = visibleB1[p], b2 = visibleB2[p], b0 = 1 - b1 - b2;
+                float f0 = b0 * tri[o + 3], f1 = b1 * tri[o + VERTEX_FLOATS + 3], f2 = b2 * tri[o + 2 * VERTEX_FLOATS + 3];
+                float w = 1 / (f0 + f1 + f2);
+                f0 *= w;
+                f1 *= w;
+                f2 *= w;
+                int r0 = batch.vertices[3 * t], r1 = batch.vertices[3 * t + 1], r2 = batch.vertices[3 * t + 2];
+                float[] s0 = r0 >= 0 ? vertices.clip : batch.clipped;
+                float[] s1 = r1 >= 0 ? vertices.clip : batch.clipped;
+                float[] s2 = r2 >= 0 ? vertices.clip : batch.clipped;
+                int v0 = (r0 >= 0 ? r0 : ~r0) + 4, v1 = (r1 >= 0 ? r1 : ~r1) + 4, v2 = (r2 >= 0 ? r2 : ~r2) + 4;
+                for (int j = 0; j < VARYINGS; j++) {
+                    v[j] = f0 * s0[v0 + j] + f1 * s1[v1 + j] + f2 * s2[v2 + j];
+                }
+                pixels[p] = shading.fragment(vertices.material, vertices.texture, tri[o + LOD], v, 0, scratch);
+                shaded++;
+            }
+        }
+        synchronized (this) {
+            shadedPixels += shaded;
+        }
+    }
+
+    /**
+     * Rasterize a triangle into the part of the visibility buffer inside the given pixel bounds,
+     * keeping the nearest triangle per pixel.
+     */
+    private void rasterize(Batch batch, int b, int t, int boundsX0, int boundsY0, int boundsX1, int boundsY1) {
+        float[] tri = batch.triangles;
+        int o = t * TRIANGLE_FLOATS;
+        float x0 = tri[o], y0 = tri[o + 1], z0 = tri[o + 2];
+        float x1 = tri[o + VERTEX_FLOATS], y1 = tri[o + VERTEX_FLOATS + 1], z1 = tri[o + VERTEX_FLOATS + 2];
+        float x2 = tri[o + 2 * VERTEX_FLOATS], y2 = tri[o + 2 * VERTEX_FLOATS + 1], z2 = tri[o + 2 * VERTEX_FLOATS + 2];
+
+        int minY = Math.max(boundsY0, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+        int maxY = Math.min(boundsY1, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+        int minX = Math.max(boundsX0, (int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f));
+        int maxX = Math.min(boundsX1, (int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f));
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
+
+        // edge functions, positive inside a counter-clockwise triangle
+        float a0 = y1 - y2, b0 = x2 - x1;
+        float a1 = y2 - y0, b1 = x0 - x2;
+        float a2 = y0 - y1, b2 = x1 - x0;
+        float area = a0 * (x0 - x1) + b0 * (y0 - y1);
+        float invArea = 1f / area;
+        // depth is affine in screen space: z = z0 + dzdx * (x - x0) + dzdy * (y - y0)
+        float dzdx = (a0 * z0 + a1 * z1 + a2 * z2) * invArea;
+        float dzdy = (b0 * z0 + b1 * z1 + b2 * z2) * invArea;
+
+        float px = minX + 0.5f;
+        for (int y = minY; y <= maxY; y++) {
+            float py = y + 0.5f;
+            float e0 = a0 * (px - x1) + b0 * (py - y1);
+            float e1 = a1 * (px - x2) + b1 * (py - y2);
+            float e2 = a2 * (px - x0) + b2 * (py - y0);
+            float z = z0 + dzdx * (px - x0) + dzdy * (py - y0);
+            int row = y * width;
+            for (int x = minX; x <= maxX; x++) {
+                if (e0 >= 0f && e1 >= 0f && e2 >= 0f && z < depth[row + x]) {
+                    depth[row + x] = z;
+                    visibleBatch[row + x] = b;
+                    visibleTriangle[row + x] = t;
+                    visibleB1[row + x] = e1 * invArea;
+                    visibleB2[row + x] = e2 * invArea;
+                }
+                e0 += a0;
+                e1 += a1;
+                e2 += a2;
+                z += dzdx;
+            }
+        }
+    }
+
+    /**
+     * @return the mean time per frame of each phase and the throughput over the frames so far
+     */
+    @Override
+    public synchronized String report() {
+        long n = Math.max(1, frames);
+        double seconds = (vertexNanos + setupNanos + tileNanos) / 1e9;
+        return String.format("SoftwareRasterizer: %dx%d, %d threads, %d frames, vertices %.2f ms, setup %.2f ms, "
+                + "tiles %.2f ms, %.1f%% of the triangles drawn, %.1f Mtriangles/s, %.1f Mpixels/s",
+                width, height, threads, frames, vertexNanos / 1e6 / n, setupNanos / 1e6 / n, tileNanos / 1e6 / n,
+                100.0 * binnedTriangles / Math.max(1, triangles), seconds > 0 ? triangles / seconds / 1e6 : 0,
+                seconds > 0 ? shadedPixels / seconds / 1e6 : 0);
+    }
+
+    @Override
+    public synchronized void resetStats() {
+        triangles = 0;
+        binnedTriangles = 0;
+        shadedPixels = 0;
+        vertexNanos = 0;
+        setupNanos = 0;
+        tileNanos = 0;
+        frames = 0;
+    }
+
+    /** The transformed vertices of an item, and what it is shaded with */
+    private static final class ItemVertices {
+
+        final Matrix4f modelView = new Matrix4f();
+
+        final Matrix4f modelViewProjection = new Matrix4f();
+
+        /** Per vertex: clip-space position, then the varyings */
+        float[] clip = new float[0];
+
+        Material material;
+
+        SoftwareTexture texture;
+    }
+
+    /** A range of the triangles of an item, set up and binned together */
+    private static final class Batch {
+
+        int item;
+
+        int from;
+
+        int to;
+
+        /** Triangles set up, see {@link #TRIANGLE_FLOATS} */
+        float[] triangles = new float[0];
+
+        int count;
+
+        /**
+         * The clip-space vertices of each triangle, as offsets into the vertices of the item, or as the
+         * complement of offsets into {@link #clipped}
+         */
+        int[] vertices = new int[0];
+
+        /** Vertices made by clipping against the near plane */
+        float[] clipped = new float[0];
+
+        int numClipped;
+
+        /** Tile bounds of each triangle: x0, y0, x1, y1 */
+        int[] bounds = new int[0];
+
+        /** The triangles of tile i are tileTriangles[tileStart[i]] to tileTriangles[tileStart[i + 1] - 1] */
+        final int[] tileStart;
+
+        final int[] cursor;
+
+        int[] tileTriangles = new int[0];
+
+        Batch(int tiles) {
+            tileStart = new int[tiles + 1];
+            cursor = new int[tiles + 1];
+        }
+    }
+}
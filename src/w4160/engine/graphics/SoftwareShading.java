@@ -0,0 +1,460 @@
+package w4160.engine.graphics;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+
+/**
+ * Java versions of the shaders in <code>src/resources/shaders</code>, for renderers that run on the
+ * CPU.
+ *
+ * <p>
+ * {@link #setup} takes the lights of a frame into view space the way the renderer does before it sets
+ * the uniforms, so the terms below are those of the shaders line for line: the vertex stage of
+ * gouraud and gooch runs in {@link #vertex}, the fragment stage of every model in
+ * {@link #fragment}. Both work on the varyings of one vertex or fragment, {@link #VARYINGS} floats
+ * at an offset of an array. The extra point lights are all added up rather than looked up in light
+ * clusters, which only leaves out lights weaker than the clusters' cutoff. A renderer that traces
+ * shadows can tell {@link #fragment} how much of each light reaches the fragment.
+ * </p>
+ *
+ * <p>
+ * A frame's setup is only read while shading, so any number of threads can shade at once.
+ * </p>
+ */
+public class SoftwareShading {
+
+    /**
+     * The shaders with a Java version.
+     */
+    public enum Model {
+        PHONG("phong"),
+        GOURAUD("gouraud"),
+        CEL("cel"),
+        GOOCH("gooch"),
+        CHECKERBOARD("checkerboard"),
+        HATCHING("hatching"),
+        TEXTURE("texture-modulated");
+
+        private final String shaderName;
+
+        Model(String shaderName) {
+            this.shaderName = shaderName;
+        }
+
+        /**
+         * @return the name of the shader in the renderer's shader library
+         */
+        public String getShaderName() {
+            return shaderName;
+        }
+
+        /**
+         * @return whether the lighting is computed in the vertex stage
+         */
+        public boolean isPerVertex() {
+            return this == GOURAUD || this == GOOCH;
+        }
+
+        /**
+         * @return whether textured materials are sampled
+         */
+        public boolean samplesTexture() {
+            return this == CEL || this == TEXTURE;
+        }
+
+        public static Model forShader(String shaderName) {
+            for (Model model : values()) {
+                if (model.shaderName.equals(shaderName)) {
+                    return model;
+                }
+            }
+            throw new IllegalArgumentException("SoftwareShading: no Java version of shader " + shaderName);
+        }
+    }
+
+    /** Varyings: position in view space, or the view direction for gooch */
+    public static final int POSITION = 0;
+
+    /** Normal in view space, or the reflected light direction for gooch */
+    public static final int NORMAL = 3;
+
+    public static final int TEXCOORD = 6;
+
+    /** Colour computed by the vertex stage, or N.L for gooch */
+    public static final int COLOUR = 8;
+
+    public static final int VARYINGS = 11;
+
+    /** The uniforms the renderer sets */
+    public static final float SPECULAR_POWER = 4f;
+
+    private static final float DIRECTIONAL_SCALE = 0.3f;
+
+    private static final float[] GOOCH_WARM = { 0.8f, 0.8f, 0.0f };
+
+    private static final float[] GOOCH_COOL = { 0.0f, 0.0f, 1.0f };
+
+    private static final float GOOCH_DIFFUSE_WARM = 0.2f;
+
+    private static final float GOOCH_DIFFUSE_COOL = 0.6f;
+
+    /** Point lights: position in view space, colour, intensity, constant, linear and exponent attenuation */
+    private static final int LIGHT_FLOATS = 10;
+
+    private Model model = Model.PHONG;
+
+    private final float[] ambient = new float[3];
+
+    private final float[] directional = new float[7];
+
+    private float[] pointLights = new float[0];
+
+    private int numPointLights;
+
+    /**
+     * Set the model and lights of a frame.
+     *
+     * @param pointLights further point lights, may be empty
+     */
+    public void setup(Model model, Matrix4f viewMatrix, Vector3f ambientLight, PointLight pointLight,
+            PointLight[] pointLights, DirectionalLight directionalLight) {
+        this.model = model;
+        ambient[0] = ambientLight.x;
+        ambient[1] = ambientLight.y;
+        ambient[2] = ambientLight.z;
+
+        Vector4f aux = new Vector4f(directionalLight.getDirection(), 0).mul(viewMatrix);
+        float len = (float) Math.sqrt(aux.x * aux.x + aux.y * aux.y + aux.z * aux.z);
+        directional[0] = len > 0 ? aux.x / len : 0;
+        directional[1] = len > 0 ? aux.y / len : 0;
+        directional[2] = len > 0 ? aux.z / len : 0;
+        directional[3] = directionalLight.getColor().x;
+        directional[4] = directionalLight.getColor().y;
+        directional[5] = directionalLight.getColor().z;
+        directional[6] = directionalLight.getIntensity() * DIRECTIONAL_SCALE;
+
+        numPointLights = 1 + pointLights.length;
+        if (this.pointLights.length < numPointLights * LIGHT_FLOATS) {
+            this.pointLights = new float[numPointLights * LIGHT_FLOATS];
+        }
+        setPointLight(0, pointLight, viewMatrix, aux);
+        for (int i = 0; i < pointLights.length; i++) {
+            setPointLight(i + 1, pointLights[i], viewMatrix, aux);
+        }
+    }
+
+    private void setPointLight(int index, PointLight light, Matrix4f viewMatrix, Vector4f aux) {
+        int o = index * LIGHT_FLOATS;
+        aux.set(light.getPosition(), 1).mul(viewMatrix);
+        pointLights[o] = aux.x;
+        pointLights[o + 1] = aux.y;
+        pointLights[o + 2] = aux.z;
+        pointLights[o + 3] = light.getColor().x;
+        pointLights[o + 4] = light.getColor().y;
+        pointLights[o + 5] = light.getColor().z;
+        pointLights[o + 6] = light.getIntensity();
+        PointLight.Attenuation att = light.getAttenuation();
+        pointLights[o + 7] = att.getConstant();
+        pointLights[o + 8] = att.getLinear();
+        pointLights[o + 9] = att.getExponent();
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * @return the number of lights of the frame, the directional light and the point lights
+     */
+    public int getNumLights() {
+        return 1 + numPointLights;
+    }
+
+    /**
+     * The way from a point in view space to a light: 0 is the directional light, the point lights
+     * follow.
+     *
+     * @param dir receives the normalized direction to the light
+     * @return the distance to the light, infinite for the directional light
+     */
+    public float toLight(int light, float x, float y, float z, float[] dir) {
+        if (light == 0) {
+            dir[0] = directional[0];
+            dir[1] = directional[1];
+            dir[2] = directional[2];
+            return Float.POSITIVE_INFINITY;
+        }
+        int l = (light - 1) * LIGHT_FLOATS;
+        float dx = pointLights[l] - x, dy = pointLights[l + 1] - y, dz = pointLights[l + 2] - z;
+        float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        float inv = distance > 0 ? 1 / distance : 0;
+        dir[0] = dx * inv;
+        dir[1] = dy * inv;
+        dir[2] = dz * inv;
+        return distance;
+    }
+
+    /**
+     * Write the varyings a vertex of a mesh comes into the vertex stage with: its position and
+     * normalized normal in view space and its texture coordinates, 0 where the mesh has none.
+     */
+    public static void vertexInputs(Matrix4f mv, float[] positions, float[] normals, float[] textCoords,
+            int i, float[] v, int o) {
+        float x = positions[3 * i], y = positions[3 * i + 1], z = positions[3 * i + 2];
+        v[o + POSITION] = mv.m00() * x + mv.m10() * y + mv.m20() * z + mv.m30();
+        v[o + POSITION + 1] = mv.m01() * x + mv.m11() * y + mv.m21() * z + mv.m31();
+        v[o + POSITION + 2] = mv.m02() * x + mv.m12() * y + mv.m22() * z + mv.m32();
+        float nx = 0, ny = 0, nz = 0;
+        if (normals.length >= 3 * i + 3) {
+            nx = mv.m00() * normals[3 * i] + mv.m10() * normals[3 * i + 1] + mv.m20() * normals[3 * i + 2];
+            ny = mv.m01() * normals[3 * i] + mv.m11() * normals[3 * i + 1] + mv.m21() * normals[3 * i + 2];
+            nz = mv.m02() * normals[3 * i] + mv.m12() * normals[3 * i + 1] + mv.m22() * normals[3 * i + 2];
+            float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (len > 0) {
+                nx /= len;
+                ny /= len;
+                nz /= len;
+            }
+        }
+        v[o + NORMAL] = nx;
+        v[o + NORMAL + 1] = ny;
+        v[o + NORMAL + 2] = nz;
+        boolean textured = textCoords.length >= 2 * i + 2;
+        v[o + TEXCOORD] = textured ? textCoords[2 * i] : 0;
+        v[o + TEXCOORD + 1] = textured ? textCoords[2 * i + 1] : 0;
+    }
+
+    /**
+     * The vertex stage. The varyings come in with the position, the normalized normal and the
+     * texture coordinates of the vertex; gouraud adds the lit colour, gooch replaces them with its own.
+     *
+     * @param scratch at least 3 floats to work in
+     */
+    public void vertex(Material material, float[] v, int o, float[] scratch) {
+        if (model == Model.GOURAUD) {
+            phongLight(material, v, o, null, scratch);
+            Vector3f colour = material.getColour();
+            v[o + COLOUR] = colour.x * scratch[0];
+            v[o + COLOUR + 1] = colour.y * scratch[1];
+            v[o + COLOUR + 2] = colour.z * scratch[2];
+        } else if (model == Model.GOOCH) {
+            float px = v[o + POSITION], py = v[o + POSITION + 1], pz = v[o + POSITION + 2];
+            float nx = v[o + NORMAL], ny = v[o + NORMAL + 1], nz = v[o + NORMAL + 2];
+            float lx = pointLights[0] - px, ly = pointLights[1] - py, lz = pointLights[2] - pz;
+            float inv = invLength(lx, ly, lz);
+            lx *= inv;
+            ly *= inv;
+            lz *= inv;
+            float ndotl = nx * lx + ny * ly + nz * lz;
+            // reflect(-lightDir, normal)
+            float rx = -lx + 2 * ndotl * nx, ry = -ly + 2 * ndotl * ny, rz = -lz + 2 * ndotl * nz;
+            inv = invLength(rx, ry, rz);
+            v[o + NORMAL] = rx * inv;
+            v[o + NORMAL + 1] = ry * inv;
+            v[o + NORMAL + 2] = rz * inv;
+            inv = invLength(px, py, pz);
+            v[o + POSITION] = -px * inv;
+            v[o + POSITION + 1] = -py * inv;
+            v[o + POSITION + 2] = -pz * inv;
+            v[o + COLOUR] = ndotl * 0.5f + 0.5f;
+        }
+    }
+
+    /**
+     * The fragment stage.
+     *
+     * @param texture the texture of a textured material, or null to use the colour of the material
+     * @param lod the level of detail to sample the texture at
+     * @param scratch at least 4 floats to work in
+     * @return the colour as RGBA bytes from the lowest bits up, alpha opaque
+     */
+    public int fragment(Material material, SoftwareTexture texture, float lod, float[] v, int o, float[] scratch) {
+        return fragment(material, texture, lod, v, o, null, scratch);
+    }
+
+    /**
+     * The fragment stage with some of the light blocked. Gouraud and gooch are lit in the vertex stage
+     * and ignore it.
+     *
+     * @param visibility the share of each light that reaches the fragment, in the order of
+     *        {@link #toLight}, or null if all of every light does
+     */
+    public int fragment(Material material, SoftwareTexture texture, float lod, float[] v, int o, float[] visibility,
+            float[] scratch) {
+        float r, g, b;
+        switch (model) {
+            case GOURAUD:
+                return pack(v[o + COLOUR], v[o + COLOUR + 1], v[o + COLOUR + 2]);
+            case GOOCH:
+                return gooch(material, v, o);
+            case CHECKERBOARD:
+                float u = v[o + TEXCOORD], t = v[o + TEXCOORD + 1];
+                r = g = b = ((int) (Math.floor(u * 25) + Math.floor(t * 25))) % 2 == 1 ? 0 : 1;
+                break;
+            case HATCHING:
+                r = g = b = (int) Math.floor((v[o + TEXCOORD] + v[o + TEXCOORD + 1]) * 300) % 5 == 0 ? 0 : 1;
+                break;
+            default:
+                // Cel and texture shade the texture where there is one, all others the material colour
+                boolean textured = texture != null && (model == Model.CEL || model == Model.TEXTURE);
+                if (textured) {
+                    texture.sample(v[o + TEXCOORD], v[o + TEXCOORD + 1], lod, scratch);
+                    r = scratch[0];
+                    g = scratch[1];
+                    b = scratch[2];
+                } else {
+                    Vector3f colour = material.getColour();
+                    r = colour.x;
+                    g = colour.y;
+                    b = colour.z;
+                }
+        }
+        if (model == Model.CEL) {
+            return cel(material, r, g, b, v, o, visibility, scratch);
+        }
+        phongLight(material, v, o, visibility, scratch);
+        return pack(r * scratch[0], g * scratch[1], b * scratch[2]);
+    }
+
+    /**
+     * The light of the phong family: ambient, directional and all point lights.
+     */
+    private void phongLight(Material material, float[] v, int o, float[] visibility, float[] light) {
+        light[0] = ambient[0];
+        light[1] = ambient[1];
+        light[2] = ambient[2];
+        float reflectance = material.getReflectance();
+        lightColour(directional[3], directional[4], directional[5], directional[6], v, o,
+                directional[0], directional[1], directional[2], reflectance, visible(visibility, 0), light);
+        for (int i = 0; i < numPointLights; i++) {
+            float visible = visible(visibility, i + 1);
+            if (visible > 0) {
+                pointLight(i, v, o, reflectance, visible, light);
+            }
+        }
+    }
+
+    private static float visible(float[] visibility, int light) {
+        return visibility == null ? 1 : visibility[light];
+    }
+
+    private void pointLight(int index, float[] v, int o, float reflectance, float visible, float[] light) {
+        int l = index * LIGHT_FLOATS;
+        float dx = pointLights[l] - v[o + POSITION];
+        float dy = pointLights[l + 1] - v[o + POSITION + 1];
+        float dz = pointLights[l + 2] - v[o + POSITION + 2];
+        float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        float attenuationInv = pointLights[l + 7] + pointLights[l + 8] * distance
+                + pointLights[l + 9] * distance * distance;
+        float inv = distance > 0 ? 1 / distance : 0;
+        lightColour(pointLights[l + 3], pointLights[l + 4], pointLights[l + 5], pointLights[l + 6], v, o,
+                dx * inv, dy * inv, dz * inv, reflectance, visible / attenuationInv, light);
+    }
+
+    /**
+     * Add the diffuse and specular light of one light, times <code>scale</code>, to <code>light</code>.
+     */
+    private static void lightColour(float cr, float cg, float cb, float intensity, float[] v, int o,
+            float lx, float ly, float lz, float reflectance, float scale, float[] light) {
+        float px = v[o + POSITION], py = v[o + POSITION + 1], pz = v[o + POSITION + 2];
+        float nx = v[o + NORMAL], ny = v[o + NORMAL + 1], nz = v[o + NORMAL + 2];
+        float ndotl = nx * lx + ny * ly + nz * lz;
+        float diffuse = intensity * Math.max(ndotl, 0);
+
+        float inv = invLength(px, py, pz);
+        // reflect(-to_light_dir, normal)
+        float rx = -lx + 2 * ndotl * nx, ry = -ly + 2 * ndotl * ny, rz = -lz + 2 * ndotl * nz;
+        float rinv = invLength(rx, ry, rz);
+        float spec = Math.max(-(px * rx + py * ry + pz * rz) * inv * rinv, 0);
+        spec = power(spec, SPECULAR_POWER) * intensity * reflectance;
+
+        float k = (diffuse + spec) * scale;
+        light[0] += cr * k;
+        light[1] += cg * k;
+        light[2] += cb * k;
+    }
+
+    /**
+     * The cel shader: the directional light as phong, the point lights in three bands.
+     */
+    private int cel(Material material, float r, float g, float b, float[] v, int o, float[] visibility,
+            float[] light) {
+        light[0] = ambient[0];
+        light[1] = ambient[1];
+        light[2] = ambient[2];
+        lightColour(directional[3], directional[4], directional[5], directional[6], v, o,
+                directional[0], directional[1], directional[2], material.getReflectance(),
+                visible(visibility, 0), light);
+        float pr = 0, pg = 0, pb = 0;
+        float nx = v[o + NORMAL], ny = v[o + NORMAL + 1], nz = v[o + NORMAL + 2];
+        for (int i = 0; i < numPointLights; i++) {
+            int l = i * LIGHT_FLOATS;
+            float dx = pointLights[l] - v[o + POSITION];
+            float dy = pointLights[l + 1] - v[o + POSITION + 1];
+            float dz = pointLights[l + 2] - v[o + POSITION + 2];
+            float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            float inv = distance > 0 ? 1 / distance : 0;
+            float d = pointLights[l + 6] * Math.max((nx * dx + ny * dy + nz * dz) * inv, 0);
+            float band = d > 0.65f ? 10 : d > 0.4f ? 8 : 5;
+            band *= visible(visibility, i + 1);
+            band /= pointLights[l + 7] + pointLights[l + 8] * distance + pointLights[l + 9] * distance * distance;
+            pr += pointLights[l + 3] * band;
+            pg += pointLights[l + 4] * band;
+            pb += pointLights[l + 5] * band;
+        }
+        return pack(r * light[0] * pr, g * light[1] * pg, b * light[2] * pb);
+    }
+
+    private static int gooch(Material material, float[] v, int o) {
+        Vector3f colour = material.getColour();
+        float t = v[o + COLOUR];
+        float inv = invLength(v[o + NORMAL], v[o + NORMAL + 1], v[o + NORMAL + 2])
+                * invLength(v[o + POSITION], v[o + POSITION + 1], v[o + POSITION + 2]);
+        float spec = Math.max((v[o + NORMAL] * v[o + POSITION] + v[o + NORMAL + 1] * v[o + POSITION + 1]
+                + v[o + NORMAL + 2] * v[o + POSITION + 2]) * inv, 0);
+        spec = power(spec, 32);
+        return pack(goochChannel(0, colour.x, t, spec), goochChannel(1, colour.y, t, spec),
+                goochChannel(2, colour.z, t, spec));
+    }
+
+    private static float goochChannel(int i, float colour, float t, float spec) {
+        float kcool = Math.min(GOOCH_COOL[i] + GOOCH_DIFFUSE_COOL * colour, 1);
+        float kwarm = Math.min(GOOCH_WARM[i] + GOOCH_DIFFUSE_WARM * colour, 1);
+        return Math.min(kcool + (kwarm - kcool) * t + spec, 1);
+    }
+
+    /**
+     * @return x to the power p, by squaring for the powers of two the shaders use
+     */
+    private static float power(float x, float p) {
+        if (p == 4) {
+            x *= x;
+            return x * x;
+        }
+        if (p == 32) {
+            for (int i = 0; i < 5; i++) {
+                x *= x;
+            }
+            return x;
+        }
+        return (float) Math.pow(x, p);
+    }
+
+    private static float invLength(float x, float y, float z) {
+        float len = (float) Math.sqrt(x * x + y * y + z * z);
+        return len > 0 ? 1 / len : 0;
+    }
+
+    /**
+     * @return the colour clamped and rounded to bytes the way an RGBA8 framebuffer stores it
+     */
+    public static int pack(float r, float g, float b) {
+        return toByte(r) | toByte(g) << 8 | toByte(b) << 16 | 0xFF << 24;
+    }
+
+    private static int toByte(float c) {
+        // NaN ends up 0, as the clamp of a GPU does
+        return c > 0 ? (int) (Math.min(c, 1) * 255 + 0.5f) : 0;
+    }
+}
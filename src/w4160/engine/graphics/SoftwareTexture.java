@@ -0,0 +1,136 @@
+package w4160.engine.graphics;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+/**
+ * The texels of a texture in main memory, sampled the way OpenGL samples a {@link Texture}.
+ *
+ * <p>
+ * The levels are those the {@link TextureCooker} builds, kept uncompressed. Like the OpenGL texture,
+ * magnification takes the nearest texel and minification blends bilinear samples of the two
+ * nearest mip levels; texture coordinates repeat. The level of detail is up to the caller, see
+ * {@link #getLod(float, float)}.
+ * </p>
+ */
+public class SoftwareTexture {
+
+    private static final TextureCooker COOKER = new TextureCooker(TextureCooker.DEFAULT_CACHE_DIR);
+
+    /** RGBA texels of each level, a byte each from the lowest bits up, top row first */
+    private final int[][] levels;
+
+    private final int[] widths;
+
+    private final int[] heights;
+
+    public SoftwareTexture(CookedTexture cooked) {
+        if (cooked.getFormat() != CookedTexture.Format.RGBA8) {
+            throw new IllegalArgumentException("SoftwareTexture: needs uncompressed levels, got " + cooked.getFormat());
+        }
+        int count = cooked.getLevelCount();
+        levels = new int[count][];
+        widths = new int[count];
+        heights = new int[count];
+        for (int level = 0; level < count; level++) {
+            widths[level] = cooked.getLevelWidth(level);
+            heights[level] = cooked.getLevelHeight(level);
+            levels[level] = new int[widths[level] * heights[level]];
+            cooked.getLevel(level).duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(levels[level]);
+        }
+    }
+
+    /**
+     * Load a PNG image through the texture cache, cooked without compression.
+     */
+    public static SoftwareTexture load(String fileName) throws IOException {
+        return new SoftwareTexture(COOKER.load(fileName, TextureCooker.Compression.NONE));
+    }
+
+    public int getWidth() {
+        return widths[0];
+    }
+
+    public int getHeight() {
+        return heights[0];
+    }
+
+    /**
+     * @param texCoordArea the area a primitive covers in texture coordinates
+     * @param pixelArea the area it covers on the screen in pixels
+     * @return the level of detail, log2 of the texels per pixel along a side
+     */
+    public float getLod(float texCoordArea, float pixelArea) {
+        float texels = texCoordArea * widths[0] * heights[0];
+        if (!(texels > 0) || !(pixelArea > 0)) {
+            return 0;
+        }
+        return 0.5f * (float) (Math.log(texels / pixelArea) / Math.log(2));
+    }
+
+    /**
+     * Sample the texture.
+     *
+     * @param lod the level of detail, 0 or less magnifies
+     * @param rgba receives red, green, blue and alpha between 0 and 1
+     */
+    public void sample(float u, float v, float lod, float[] rgba) {
+        if (lod <= 0) {
+            int p = texel(0, (int) Math.floor(u * widths[0]), (int) Math.floor(v * heights[0]));
+            rgba[0] = (p & 0xFF) / 255f;
+            rgba[1] = (p >>> 8 & 0xFF) / 255f;
+            rgba[2] = (p >>> 16 & 0xFF) / 255f;
+            rgba[3] = (p >>> 24) / 255f;
+            return;
+        }
+        int last = levels.length - 1;
+        int level = Math.min((int) lod, last);
+        float blend = level < last ? lod - level : 0;
+        rgba[0] = rgba[1] = rgba[2] = rgba[3] = 0;
+        bilinear(level, u, v, 1 - blend, rgba);
+        if (blend > 0) {
+            bilinear(level + 1, u, v, blend, rgba);
+        }
+    }
+
+    /**
+     * Add the weighted bilinear sample of a level to <code>rgba</code>.
+     */
+    private void bilinear(int level, float u, float v, float weight, float[] rgba) {
+        float x = u * widths[level] - 0.5f;
+        float y = v * heights[level] - 0.5f;
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        float fx = x - x0;
+        float fy = y - y0;
+        int p00 = texel(level, x0, y0);
+        int p10 = texel(level, x0 + 1, y0);
+        int p01 = texel(level, x0, y0 + 1);
+        int p11 = texel(level, x0 + 1, y0 + 1);
+        float w00 = (1 - fx) * (1 - fy) * weight / 255f;
+        float w10 = fx * (1 - fy) * weight / 255f;
+        float w01 = (1 - fx) * fy * weight / 255f;
+        float w11 = fx * fy * weight / 255f;
+        for (int c = 0, shift = 0; c < 4; c++, shift += 8) {
+            rgba[c] += (p00 >>> shift & 0xFF) * w00 + (p10 >>> shift & 0xFF) * w10
+                    + (p01 >>> shift & 0xFF) * w01 + (p11 >>> shift & 0xFF) * w11;
+        }
+    }
+
+    /**
+     * @return the texel at x, y of a level, wrapping around its edges
+     */
+    private int texel(int level, int x, int y) {
+        int w = widths[level];
+        int h = heights[level];
+        x %= w;
+        y %= h;
+        if (x < 0) {
+            x += w;
+        }
+        if (y < 0) {
+            y += h;
+        }
+        return levels[level][y * w + x];
+    }
+}
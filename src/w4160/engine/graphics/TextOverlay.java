@@ -0,0 +1,135 @@
+package w4160.engine.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.stb.STBEasyFont.stb_easy_font_print;
+
+/**
+ * Draws lines of text on top of the frame with the stb_easy_font bitmap font.
+ *
+ * <p>
+ * The font generates one quad per pixel run of each glyph. The quads are streamed into a vertex buffer
+ * every call and drawn as indexed triangles, since the core profile has no quads.
+ * </p>
+ */
+public class TextOverlay {
+
+    /** Size of the vertex buffer handed to stb_easy_font, about 3000 characters */
+    private static final int VERTEX_BUFFER_SIZE = 256 * 1024;
+
+    /** stb_easy_font writes x, y, z and a packed colour per vertex */
+    private static final int VERTEX_STRIDE = 16;
+
+    private static final int MAX_QUADS = VERTEX_BUFFER_SIZE / (4 * VERTEX_STRIDE);
+
+    private final ShaderProgram shaderProgram;
+
+    private final ByteBuffer vertices;
+
+    private final int vaoId;
+
+    private final int vboId;
+
+    private final int iboId;
+
+    private final Vector3f colour = new Vector3f(1, 1, 0);
+
+    private float scale = 1.5f;
+
+    /**
+     * @param shaderProgram the linked overlay shader with the uniforms
+     *        <code>screenSize</code>, <code>scale</code> and <code>colour</code>
+     */
+    public TextOverlay(ShaderProgram shaderProgram) {
+        this.shaderProgram = shaderProgram;
+        vertices = MemoryUtil.memAlloc(VERTEX_BUFFER_SIZE);
+
+        vaoId = glGenVertexArrays();
+        glBindVertexArray(vaoId);
+        vboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, VERTEX_BUFFER_SIZE, GL_STREAM_DRAW);
+        glVertexAttribPointer(0, 2, GL_FLOAT, false, VERTEX_STRIDE, 0);
+
+        // two triangles per quad, the same for every quad
+        IntBuffer indices = MemoryUtil.memAllocInt(MAX_QUADS * 6);
+        try {
+            for (int q = 0; q < MAX_QUADS; q++) {
+                int v = 4 * q;
+                indices.put(v).put(v + 1).put(v + 2).put(v).put(v + 2).put(v + 3);
+            }
+            indices.flip();
+            iboId = glGenBuffers();
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, iboId);
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+        } finally {
+            MemoryUtil.memFree(indices);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    public void setColour(float r, float g, float b) {
+        colour.set(r, g, b);
+    }
+
+    public void setScale(float scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Draw text at the given position. Lines are separated by <code>\n</code>.
+     *
+     * @param text the text to draw
+     * @param x left edge in pixels
+     * @param y top edge in pixels
+     * @param width width of the framebuffer in pixels
+     * @param height height of the framebuffer in pixels
+     */
+    public void render(String text, float x, float y, int width, int height) {
+        vertices.clear();
+        int numQuads = stb_easy_font_print(x / scale, y / scale, text, null, vertices);
+        if (numQuads == 0) {
+            return;
+        }
+        vertices.limit(numQuads * 4 * VERTEX_STRIDE);
+
+        boolean depthTest = glIsEnabled(GL_DEPTH_TEST);
+        glDisable(GL_DEPTH_TEST);
+        shaderProgram.bind();
+        shaderProgram.setUniform("screenSize", (float) width, (float) height);
+        shaderProgram.setUniform("scale", scale);
+        shaderProgram.setUniform("colour", colour);
+
+        glBindVertexArray(vaoId);
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        // orphan the previous contents so the driver does not wait for the last draw
+        glBufferData(GL_ARRAY_BUFFER, VERTEX_BUFFER_SIZE, GL_STREAM_DRAW);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, vertices);
+        glEnableVertexAttribArray(0);
+        glDrawElements(GL_TRIANGLES, numQuads * 6, GL_UNSIGNED_INT, 0);
+        glDisableVertexAttribArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+        shaderProgram.unbind();
+        if (depthTest) {
+            glEnable(GL_DEPTH_TEST);
+        }
+    }
+
+    public void cleanup() {
+        glDeleteBuffers(vboId);
+        glDeleteBuffers(iboId);
+        glDeleteVertexArrays(vaoId);
+        MemoryUtil.memFree(vertices);
+        shaderProgram.cleanup();
+    }
+}
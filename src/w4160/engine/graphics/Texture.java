@@ -1,38 +1,77 @@
 package w4160.engine.graphics;
 
-import de.matthiasmann.twl.utils.PNGDecoder;
-import de.matthiasmann.twl.utils.PNGDecoder.Format;
-
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL30.glGenerateMipmap;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_BASE_LEVEL;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_MAX_LEVEL;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage2D;
+
+import w4160.engine.jfr.TextureLoadEvent;
 
 public class Texture {
 
+    private static final TextureCooker COOKER = new TextureCooker(TextureCooker.DEFAULT_CACHE_DIR);
+
     private final int id;
 
     private final int width;
 
     private final int height;
 
+    private long byteSize;
+
+    /** The finest mip level uploaded; finer levels are streamed in by a {@link TextureStreamer} */
+    private int baseLevel;
+
+    /**
+     * Load a PNG image through the texture cache: the first load cooks the image, later ones only
+     * map the cooked file.
+     */
     public Texture(String fileName) throws Exception {
-        this(new FileInputStream(fileName));
+        this(fileName, null);
     }
 
+    /**
+     * Decode and cook a PNG image in memory, bypassing the cache.
+     */
     public Texture(InputStream is) throws Exception {
-        // Load Texture file
-    	PNGDecoder decoder = new PNGDecoder(is);
+        this(null, is);
+    }
+
+    public Texture(CookedTexture cooked) {
+        this(cooked, "cooked", 0, 0);
+    }
+
+    /**
+     * Upload only the levels from <code>baseLevel</code> down, see {@link TextureStreamer}.
+     */
+    Texture(CookedTexture cooked, String source, int baseLevel) {
+        this(cooked, source, 0, baseLevel);
+    }
 
-        this.width = decoder.getWidth();
-        this.height = decoder.getHeight();
+    private Texture(String fileName, InputStream is) throws Exception {
+        this(cook(fileName, is), fileName != null ? fileName : "stream", System.nanoTime(), 0);
+    }
+
+    private static CookedTexture cook(String fileName, InputStream is) throws Exception {
+        TextureCooker.Compression compression = TextureCooker.getDefaultCompression();
+        return fileName != null ? COOKER.load(fileName, compression) : TextureCooker.cook(is, compression);
+    }
 
-        // Load texture contents into a byte buffer
-        ByteBuffer buf = ByteBuffer.allocateDirect(
-                4 * decoder.getWidth() * decoder.getHeight());
-        decoder.decode(buf, decoder.getWidth() * 4, Format.RGBA);
-        buf.flip();
+    /**
+     * @param cookStart when cooking or mapping started, 0 if the texture was cooked elsewhere
+     * @param baseLevel the finest level to upload
+     */
+    private Texture(CookedTexture cooked, String source, long cookStart, int baseLevel) {
+        TextureLoadEvent event = new TextureLoadEvent();
+        event.begin();
+        long uploadStart = System.nanoTime();
+
+        this.width = cooked.getWidth();
+        this.height = cooked.getHeight();
+        this.baseLevel = baseLevel;
+        CookedTexture.Format format = cooked.getFormat();
 
         // Create a new OpenGL texture
         this.id = glGenTextures();
@@ -42,12 +81,34 @@ public class Texture {
         // Tell OpenGL how to unpack the RGBA bytes. Each component is 1 byte size
         glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
 
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        // Upload the texture data
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, buf);
-        // Generate Mip Map
-        glGenerateMipmap(GL_TEXTURE_2D);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, baseLevel);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, cooked.getLevelCount() - 1);
+        // Upload the prebuilt mip chain, straight from the mapped file
+        for (int level = baseLevel; level < cooked.getLevelCount(); level++) {
+            ByteBuffer data = cooked.getLevel(level).duplicate();
+            int w = cooked.getLevelWidth(level);
+            int h = cooked.getLevelHeight(level);
+            if (format.isCompressed()) {
+                glCompressedTexImage2D(GL_TEXTURE_2D, level, format.internalFormat, w, h, 0, data);
+            } else {
+                glTexImage2D(GL_TEXTURE_2D, level, format.internalFormat, w, h, 0, GL_RGBA, GL_UNSIGNED_BYTE, data);
+            }
+            byteSize += data.remaining();
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.width = width;
+            event.height = height;
+            event.format = format.name();
+            event.bytes = byteSize;
+            event.cook = cookStart != 0 ? uploadStart - cookStart : 0;
+            event.upload = System.nanoTime() - uploadStart;
+            event.commit();
+        }
     }
 
     public int getWidth() {
@@ -58,6 +119,28 @@ public class Texture {
         return this.height;
     }
 
+    /**
+     * @return the size of the uploaded mip levels on the GPU in bytes
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * @return the finest mip level on the GPU, 0 unless the texture is streamed
+     */
+    public int getBaseLevel() {
+        return baseLevel;
+    }
+
+    /**
+     * Record a change of the uploaded levels made by a {@link TextureStreamer}.
+     */
+    void setBaseLevel(int baseLevel, long byteSize) {
+        this.baseLevel = baseLevel;
+        this.byteSize = byteSize;
+    }
+
     public void bind() {
         glBindTexture(GL_TEXTURE_2D, id);
     }
@@ -69,4 +152,4 @@ public class Texture {
     public void cleanup() {
         glDeleteTextures(id);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+package w4160.engine.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage3D;
+import static org.lwjgl.opengl.GL13.glCompressedTexSubImage3D;
+import static org.lwjgl.opengl.GL30.GL_TEXTURE_2D_ARRAY;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Textures of the same format and size stored as the layers of one <code>GL_TEXTURE_2D_ARRAY</code>.
+ *
+ * <p>
+ * Items whose materials sample different layers of the same array can be drawn one after the other
+ * with a single bind; only the layer index changes per item. {@link TextureArrayBuilder} groups
+ * textures into arrays.
+ * </p>
+ */
+public class TextureArray {
+
+    /**
+     * One texture of an array.
+     */
+    public static class Layer {
+
+        private final TextureArray array;
+
+        private final int index;
+
+        Layer(TextureArray array, int index) {
+            this.array = array;
+            this.index = index;
+        }
+
+        public TextureArray getArray() {
+            return array;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+    }
+
+    private final int id;
+
+    private final CookedTexture.Format format;
+
+    private final int width;
+
+    private final int height;
+
+    private final int layerCount;
+
+    private final long byteSize;
+
+    /**
+     * Upload the textures as layers, in the given order, with their whole mip chains.
+     *
+     * @param textures cooked textures that all have the same format, size and level count
+     */
+    public TextureArray(List<CookedTexture> textures) {
+        CookedTexture first = textures.get(0);
+        for (CookedTexture texture : textures) {
+            if (texture.getFormat() != first.getFormat() || texture.getWidth() != first.getWidth()
+                    || texture.getHeight() != first.getHeight() || texture.getLevelCount() != first.getLevelCount()) {
+                throw new IllegalArgumentException("Textures of an array must have the same format and size");
+            }
+        }
+        this.format = first.getFormat();
+        this.width = first.getWidth();
+        this.height = first.getHeight();
+        this.layerCount = textures.size();
+
+        this.id = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_BASE_LEVEL, 0);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_LEVEL, first.getLevelCount() - 1);
+
+        long size = 0;
+        for (int level = 0; level < first.getLevelCount(); level++) {
+            int w = first.getLevelWidth(level);
+            int h = first.getLevelHeight(level);
+            int levelSize = format.levelSize(w, h);
+            // allocate all layers of the level, then fill them one by one
+            if (format.isCompressed()) {
+                glCompressedTexImage3D(GL_TEXTURE_2D_ARRAY, level, format.internalFormat, w, h, layerCount, 0,
+                        levelSize * layerCount, NULL);
+            } else {
+                glTexImage3D(GL_TEXTURE_2D_ARRAY, level, format.internalFormat, w, h, layerCount, 0, GL_RGBA,
+                        GL_UNSIGNED_BYTE, (ByteBuffer) null);
+            }
+            for (int layer = 0; layer < layerCount; layer++) {
+                ByteBuffer data = textures.get(layer).getLevel(level).duplicate();
+                if (format.isCompressed()) {
+                    glCompressedTexSubImage3D(GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, w, h, 1, format.internalFormat,
+                            data);
+                } else {
+                    glTexSubImage3D(GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, w, h, 1, GL_RGBA, GL_UNSIGNED_BYTE, data);
+                }
+            }
+            size += (long) levelSize * layerCount;
+        }
+        this.byteSize = size;
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    /**
+     * @return the given layer of this array
+     */
+    public Layer getLayer(int index) {
+        if (index < 0 || index >= layerCount) {
+            throw new IndexOutOfBoundsException("Layer " + index + " of " + layerCount);
+        }
+        return new Layer(this, index);
+    }
+
+    public int getLayerCount() {
+        return layerCount;
+    }
+
+    public CookedTexture.Format getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the size of all layers and mip levels on the GPU in bytes
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+
+    public void bind() {
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void cleanup() {
+        glDeleteTextures(id);
+    }
+}
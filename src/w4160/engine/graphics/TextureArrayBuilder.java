@@ -0,0 +1,112 @@
+package w4160.engine.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.glGetInteger;
+import static org.lwjgl.opengl.GL30.GL_MAX_ARRAY_TEXTURE_LAYERS;
+
+/**
+ * Packs PNG images into as few {@link TextureArray}s as possible.
+ *
+ * <p>
+ * The images are cooked through the texture cache and grouped by format and size, the things the
+ * layers of one array must share. Each group becomes an array, or several if it has more images
+ * than the driver allows layers. The same image added twice, under any path, is stored once.
+ * </p>
+ */
+public class TextureArrayBuilder {
+
+    private final TextureCooker cooker;
+
+    private final TextureCooker.Compression compression;
+
+    /** File name as added to canonical path */
+    private final Map<String, String> paths = new LinkedHashMap<>();
+
+    /** Canonical path to texture, in the order added */
+    private final Map<String, CookedTexture> textures = new LinkedHashMap<>();
+
+    private final List<TextureArray> arrays = new ArrayList<>();
+
+    public TextureArrayBuilder() {
+        this(new TextureCooker(TextureCooker.DEFAULT_CACHE_DIR), TextureCooker.getDefaultCompression());
+    }
+
+    public TextureArrayBuilder(TextureCooker cooker, TextureCooker.Compression compression) {
+        this.cooker = cooker;
+        this.compression = compression;
+    }
+
+    /**
+     * Cook an image, or map its cached version, to be packed by {@link #build()}.
+     */
+    public void add(String fileName) throws IOException {
+        String path = new File(fileName).getCanonicalPath();
+        paths.put(fileName, path);
+        if (!textures.containsKey(path)) {
+            textures.put(path, cooker.load(path, compression));
+        }
+    }
+
+    /**
+     * Upload the added images into texture arrays. Must be called with a current OpenGL context.
+     *
+     * @return the layer of every added file name
+     */
+    public Map<String, TextureArray.Layer> build() {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (Map.Entry<String, CookedTexture> e : textures.entrySet()) {
+            CookedTexture texture = e.getValue();
+            String key = texture.getFormat() + " " + texture.getWidth() + "x" + texture.getHeight() + " "
+                    + texture.getLevelCount();
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(e.getKey());
+        }
+
+        int maxLayers = glGetInteger(GL_MAX_ARRAY_TEXTURE_LAYERS);
+        Map<String, TextureArray.Layer> layers = new HashMap<>();
+        for (List<String> group : groups.values()) {
+            for (int start = 0; start < group.size(); start += maxLayers) {
+                List<String> members = group.subList(start, Math.min(group.size(), start + maxLayers));
+                List<CookedTexture> cooked = new ArrayList<>();
+                for (String path : members) {
+                    cooked.add(textures.get(path));
+                }
+                TextureArray array = new TextureArray(cooked);
+                arrays.add(array);
+                for (int i = 0; i < members.size(); i++) {
+                    layers.put(members.get(i), array.getLayer(i));
+                }
+            }
+        }
+
+        Map<String, TextureArray.Layer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : paths.entrySet()) {
+            result.put(e.getKey(), layers.get(e.getValue()));
+        }
+        System.out.println("TextureArrayBuilder: " + textures.size() + " textures in " + arrays.size() + " arrays");
+        return result;
+    }
+
+    /**
+     * @return the arrays created by {@link #build()}
+     */
+    public List<TextureArray> getArrays() {
+        return arrays;
+    }
+
+    /**
+     * Delete the arrays created by {@link #build()}.
+     */
+    public void cleanup() {
+        for (TextureArray array : arrays) {
+            array.cleanup();
+        }
+        arrays.clear();
+    }
+}
@@ -0,0 +1,462 @@
+package w4160.engine.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import org.lwjgl.opengl.GL;
+
+import de.matthiasmann.twl.utils.PNGDecoder;
+
+/**
+ * Turns PNG images into {@link CookedTexture}s: decoded once, with a gamma-correct mip chain built
+ * on the CPU and optionally block-compressed, and cached on disk so later loads only map a file.
+ *
+ * <p>
+ * Mip levels are averaged in linear space (the images are taken to be sRGB encoded) and stored
+ * sRGB encoded again, so they do not darken the way a plain average of the stored bytes does.
+ * Building the levels and compressing the blocks runs on the common fork/join pool, a band of rows
+ * per task. Cache entries are keyed by the canonical path, size and modification time of the image,
+ * so an edited image simply misses the cache.
+ * </p>
+ *
+ * <p>
+ * Run as a program to cook images ahead of time:
+ * <code>TextureCooker [-c NONE|BC1|BC3|AUTO] [-cache dir] image.png ...</code>
+ * </p>
+ */
+public class TextureCooker {
+
+    /**
+     * Compression of the cooked levels.
+     */
+    public enum Compression {
+        NONE,
+        BC1,
+        BC3,
+        /** BC1 for opaque images, BC3 if any pixel is translucent */
+        AUTO
+    }
+
+    public static final Path DEFAULT_CACHE_DIR = Paths.get(".texturecache");
+
+    /** Part of the cache key; bump it when the cooked output changes */
+    private static final int COOKER_VERSION = 1;
+
+    /** Rows per fork/join task */
+    private static final int ROWS_PER_TASK = 16;
+
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+
+    private static final int LINEAR_STEPS = 4096;
+
+    private static final byte[] LINEAR_TO_SRGB = new byte[LINEAR_STEPS + 1];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+        for (int i = 0; i <= LINEAR_STEPS; i++) {
+            double l = (double) i / LINEAR_STEPS;
+            double c = l <= 0.0031308 ? l * 12.92 : 1.055 * Math.pow(l, 1 / 2.4) - 0.055;
+            LINEAR_TO_SRGB[i] = (byte) Math.round(c * 255);
+        }
+    }
+
+    /** Compression of the textures loaded without one of their own, see {@link #setDefaultCompression} */
+    private static volatile Compression defaultCompression = Compression.NONE;
+
+    private final Path cacheDir;
+
+    public TextureCooker(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Opt in to the lossy block compression of the textures loaded without a compression of their
+     * own. Only affects textures loaded afterwards.
+     */
+    public static void setDefaultCompression(Compression compression) {
+        defaultCompression = compression;
+    }
+
+    /**
+     * @return the compression set with {@link #setDefaultCompression}, which is NONE unless changed
+     *         and whenever the current OpenGL context does not support S3TC compressed textures
+     */
+    public static Compression getDefaultCompression() {
+        Compression compression = defaultCompression;
+        if (compression == Compression.NONE || !GL.getCapabilities().GL_EXT_texture_compression_s3tc) {
+            return Compression.NONE;
+        }
+        return compression;
+    }
+
+    /**
+     * Load the cooked version of a PNG image from the cache, cooking and storing it first if the
+     * cache has no current entry.
+     *
+     * @param fileName the PNG image
+     * @param compression the compression of the cooked levels
+     * @return the texture mapped from the cache file
+     */
+    public CookedTexture load(String fileName, Compression compression) throws IOException {
+        Path file = cacheFile(fileName, compression);
+        if (Files.isRegularFile(file)) {
+            try {
+                return CookedTexture.read(file);
+            } catch (IOException e) {
+                System.err.println("TextureCooker: ignoring " + file + ": " + e.getMessage());
+            }
+        }
+
+        long start = System.nanoTime();
+        CookedTexture cooked;
+        try (InputStream is = Files.newInputStream(Paths.get(fileName))) {
+            cooked = cook(is, compression);
+        }
+        try {
+            cooked.write(file);
+        } catch (IOException e) {
+            // still usable, only the next load has to cook again
+            System.err.println("TextureCooker: could not write " + file + ": " + e.getMessage());
+            return cooked;
+        }
+        System.out.println(String.format("TextureCooker: cooked %s as %s, %d levels, %d KB in %.1f ms", fileName,
+                cooked.getFormat(), cooked.getLevelCount(), cooked.getByteSize() / 1024,
+                (System.nanoTime() - start) / 1e6));
+        return CookedTexture.read(file);
+    }
+
+    /**
+     * @return the cache file of an image, named by a hash of its path, size and modification time
+     */
+    public Path cacheFile(String fileName, Compression compression) throws IOException {
+        File image = new File(fileName).getCanonicalFile();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            String id = image.getPath() + '\0' + image.length() + '\0' + image.lastModified()
+                    + '\0' + compression + '\0' + COOKER_VERSION;
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(id.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(String.format("%02x", b));
+            }
+            return cacheDir.resolve(sb.toString() + ".w4tex");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decode a PNG image and cook it in memory.
+     */
+    public static CookedTexture cook(InputStream png, Compression compression) throws IOException {
+        PNGDecoder decoder = new PNGDecoder(png);
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        ByteBuffer rgba = ByteBuffer.allocateDirect(4 * width * height);
+        decoder.decode(rgba, width * 4, PNGDecoder.Format.RGBA);
+        rgba.flip();
+        return cook(rgba, width, height, compression);
+    }
+
+    /**
+     * Build the mip chain of an RGBA image and compress it.
+     *
+     * @param rgba the pixels of the largest level, top row first; becomes level 0 if uncompressed
+     */
+    public static CookedTexture cook(ByteBuffer rgba, int width, int height, Compression compression) {
+        int levelCount = 1 + (31 - Integer.numberOfLeadingZeros(Math.max(width, height)));
+        ByteBuffer[] levels = new ByteBuffer[levelCount];
+        levels[0] = rgba;
+        for (int i = 1; i < levelCount; i++) {
+            levels[i] = downsample(levels[i - 1], Math.max(1, width >> (i - 1)), Math.max(1, height >> (i - 1)));
+        }
+
+        if (compression == Compression.AUTO) {
+            compression = isOpaque(rgba) ? Compression.BC1 : Compression.BC3;
+        }
+        CookedTexture.Format format = compression == Compression.BC1 ? CookedTexture.Format.BC1
+                : compression == Compression.BC3 ? CookedTexture.Format.BC3 : CookedTexture.Format.RGBA8;
+        if (format.isCompressed()) {
+            for (int i = 0; i < levelCount; i++) {
+                levels[i] = compress(levels[i], Math.max(1, width >> i), Math.max(1, height >> i), format);
+            }
+        }
+        return new CookedTexture(format, width, height, levels);
+    }
+
+    private static boolean isOpaque(ByteBuffer rgba) {
+        for (int i = 3; i < rgba.limit(); i += 4) {
+            if (rgba.get(i) != (byte) 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Halve an RGBA level, averaging 2x2 pixels in linear space. Odd sizes repeat the last row or column.
+     */
+    private static ByteBuffer downsample(ByteBuffer src, int srcWidth, int srcHeight) {
+        int width = Math.max(1, srcWidth >> 1);
+        int height = Math.max(1, srcHeight >> 1);
+        ByteBuffer dst = ByteBuffer.allocateDirect(4 * width * height);
+        forEachRow(height, y -> {
+            int y0 = Math.min(2 * y, srcHeight - 1);
+            int y1 = Math.min(2 * y + 1, srcHeight - 1);
+            for (int x = 0; x < width; x++) {
+                int x0 = Math.min(2 * x, srcWidth - 1);
+                int x1 = Math.min(2 * x + 1, srcWidth - 1);
+                int p00 = 4 * (y0 * srcWidth + x0);
+                int p01 = 4 * (y0 * srcWidth + x1);
+                int p10 = 4 * (y1 * srcWidth + x0);
+                int p11 = 4 * (y1 * srcWidth + x1);
+                int d = 4 * (y * width + x);
+                for (int c = 0; c < 3; c++) {
+                    float linear = SRGB_TO_LINEAR[src.get(p00 + c) & 0xFF] + SRGB_TO_LINEAR[src.get(p01 + c) & 0xFF]
+                            + SRGB_TO_LINEAR[src.get(p10 + c) & 0xFF] + SRGB_TO_LINEAR[src.get(p11 + c) & 0xFF];
+                    dst.put(d + c, LINEAR_TO_SRGB[Math.round(linear * 0.25f * LINEAR_STEPS)]);
+                }
+                int alpha = (src.get(p00 + 3) & 0xFF) + (src.get(p01 + 3) & 0xFF)
+                        + (src.get(p10 + 3) & 0xFF) + (src.get(p11 + 3) & 0xFF);
+                dst.put(d + 3, (byte) ((alpha + 2) >> 2));
+            }
+        });
+        return dst;
+    }
+
+    private static ByteBuffer compress(ByteBuffer rgba, int width, int height, CookedTexture.Format format) {
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        ByteBuffer dst = ByteBuffer.allocateDirect(format.levelSize(width, height)).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer src = rgba.duplicate().order(ByteOrder.BIG_ENDIAN);
+        forEachRow(blocksY, by -> {
+            int[] block = new int[16];
+            for (int bx = 0; bx < blocksX; bx++) {
+                // edge blocks repeat the last row and column
+                for (int i = 0; i < 16; i++) {
+                    int x = Math.min(4 * bx + (i & 3), width - 1);
+                    int y = Math.min(4 * by + (i >> 2), height - 1);
+                    block[i] = src.getInt(4 * (y * width + x));
+                }
+                int pos = (by * blocksX + bx) * format.blockBytes;
+                if (format == CookedTexture.Format.BC3) {
+                    encodeAlphaBlock(block, dst, pos);
+                    pos += 8;
+                }
+                encodeColourBlock(block, dst, pos);
+            }
+        });
+        return dst;
+    }
+
+    // the pixels of a block are packed as read with a big-endian getInt: 0xRRGGBBAA
+
+    private static int red(int p) {
+        return p >>> 24;
+    }
+
+    private static int green(int p) {
+        return (p >>> 16) & 0xFF;
+    }
+
+    private static int blue(int p) {
+        return (p >>> 8) & 0xFF;
+    }
+
+    private static int alpha(int p) {
+        return p & 0xFF;
+    }
+
+    /**
+     * Encode the colours of a block as BC1: the two endpoints are the pixels at the ends of the
+     * bounding box diagonal, every pixel takes the nearest of the four palette entries.
+     */
+    private static void encodeColourBlock(int[] block, ByteBuffer dst, int pos) {
+        int minR = 255, minG = 255, minB = 255, maxR = 0, maxG = 0, maxB = 0;
+        for (int p : block) {
+            minR = Math.min(minR, red(p));
+            minG = Math.min(minG, green(p));
+            minB = Math.min(minB, blue(p));
+            maxR = Math.max(maxR, red(p));
+            maxG = Math.max(maxG, green(p));
+            maxB = Math.max(maxB, blue(p));
+        }
+        int axisR = maxR - minR;
+        int axisG = maxG - minG;
+        int axisB = maxB - minB;
+        int minProj = Integer.MAX_VALUE, maxProj = Integer.MIN_VALUE, lo = 0, hi = 0;
+        for (int i = 0; i < 16; i++) {
+            int proj = red(block[i]) * axisR + green(block[i]) * axisG + blue(block[i]) * axisB;
+            if (proj < minProj) {
+                minProj = proj;
+                lo = block[i];
+            }
+            if (proj > maxProj) {
+                maxProj = proj;
+                hi = block[i];
+            }
+        }
+        int c0 = to565(hi);
+        int c1 = to565(lo);
+        if (c0 < c1) {
+            int tmp = c0;
+            c0 = c1;
+            c1 = tmp;
+        }
+        dst.putShort(pos, (short) c0);
+        dst.putShort(pos + 2, (short) c1);
+        if (c0 == c1) {
+            // single colour, c0 > c1 is required for four-colour mode but every index is 0 anyway
+            dst.putInt(pos + 4, 0);
+            return;
+        }
+
+        int[] palette = new int[12];
+        expand565(c0, palette, 0);
+        expand565(c1, palette, 3);
+        for (int c = 0; c < 3; c++) {
+            palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+            palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+        }
+        int indices = 0;
+        for (int i = 0; i < 16; i++) {
+            int best = 0;
+            int bestDist = Integer.MAX_VALUE;
+            for (int j = 0; j < 4; j++) {
+                int dr = red(block[i]) - palette[3 * j];
+                int dg = green(block[i]) - palette[3 * j + 1];
+                int db = blue(block[i]) - palette[3 * j + 2];
+                int dist = dr * dr + dg * dg + db * db;
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    best = j;
+                }
+            }
+            indices |= best << (2 * i);
+        }
+        dst.putInt(pos + 4, indices);
+    }
+
+    private static int to565(int p) {
+        return ((red(p) >> 3) << 11) | ((green(p) >> 2) << 5) | (blue(p) >> 3);
+    }
+
+    private static void expand565(int c, int[] rgb, int offset) {
+        int r = (c >> 11) & 0x1F;
+        int g = (c >> 5) & 0x3F;
+        int b = c & 0x1F;
+        rgb[offset] = (r << 3) | (r >> 2);
+        rgb[offset + 1] = (g << 2) | (g >> 4);
+        rgb[offset + 2] = (b << 3) | (b >> 2);
+    }
+
+    /**
+     * Encode the alpha of a block as the BC3 alpha block, with the eight-value palette between the
+     * largest and smallest alpha.
+     */
+    private static void encodeAlphaBlock(int[] block, ByteBuffer dst, int pos) {
+        int a0 = 0, a1 = 255;
+        for (int p : block) {
+            a0 = Math.max(a0, alpha(p));
+            a1 = Math.min(a1, alpha(p));
+        }
+        dst.put(pos, (byte) a0);
+        dst.put(pos + 1, (byte) a1);
+        long indices = 0;
+        if (a0 != a1) {
+            int[] palette = new int[8];
+            palette[0] = a0;
+            palette[1] = a1;
+            for (int j = 1; j < 7; j++) {
+                palette[j + 1] = ((7 - j) * a0 + j * a1) / 7;
+            }
+            for (int i = 0; i < 16; i++) {
+                int best = 0;
+                int bestDist = Integer.MAX_VALUE;
+                for (int j = 0; j < 8; j++) {
+                    int dist = Math.abs(alpha(block[i]) - palette[j]);
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        best = j;
+                    }
+                }
+                indices |= (long) best << (3 * i);
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            dst.put(pos + 2 + i, (byte) (indices >>> (8 * i)));
+        }
+    }
+
+    private static void forEachRow(int rows, IntConsumer row) {
+        ForkJoinPool.commonPool().invoke(new RowsTask(row, 0, rows));
+    }
+
+    /**
+     * Runs a range of rows, splitting it until a task owns at most {@link #ROWS_PER_TASK} rows.
+     */
+    private static class RowsTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient IntConsumer row;
+
+        private final int from;
+
+        private final int to;
+
+        RowsTask(IntConsumer row, int from, int to) {
+            this.row = row;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ROWS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowsTask(row, from, mid), new RowsTask(row, mid, to));
+                return;
+            }
+            for (int y = from; y < to; y++) {
+                row.accept(y);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Compression compression = Compression.AUTO;
+        Path cacheDir = DEFAULT_CACHE_DIR;
+        int cooked = 0;
+        for (int i = 0; i < args.length; i++) {
+            try {
+                if (args[i].equals("-c") && i + 1 < args.length) {
+                    compression = Compression.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                    cacheDir = Paths.get(args[++i]);
+                } else if (!args[i].isEmpty()) {
+                    new TextureCooker(cacheDir).load(args[i], compression);
+                    cooked++;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("TextureCooker: " + args[i] + ": " + e.getMessage());
+                System.exit(-1);
+            }
+        }
+        System.out.println("TextureCooker: " + cooked + " textures in " + cacheDir);
+    }
+}
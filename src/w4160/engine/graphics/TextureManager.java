@@ -0,0 +1,210 @@
+package w4160.engine.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares textures between their users.
+ *
+ * <p>
+ * Textures are looked up by the canonical path of their image first and by a hash of the image
+ * contents second, so the same image is loaded and uploaded once no matter how often, or under
+ * which path, it is requested. Every {@link #acquire(String)} has to be paired with a
+ * {@link #release(Texture)}. A texture nobody holds is kept resident, so acquiring it again is
+ * free, until the textures together exceed the memory budget; then the unreferenced ones are
+ * deleted in least recently released order. Referenced textures are never evicted, so the budget
+ * can be exceeded by what the scene actually uses.
+ * </p>
+ *
+ * <p>
+ * All methods must be called on the render thread.
+ * </p>
+ */
+public class TextureManager {
+
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    private static final TextureManager SHARED = new TextureManager(DEFAULT_BUDGET);
+
+    private static class Entry {
+
+        final String path;
+
+        final String contentHash;
+
+        final Texture texture;
+
+        int refCount;
+
+        Entry(String path, String contentHash, Texture texture) {
+            this.path = path;
+            this.contentHash = contentHash;
+            this.texture = texture;
+        }
+    }
+
+    private final Map<String, Entry> byPath = new HashMap<>();
+
+    private final Map<String, Entry> byContent = new HashMap<>();
+
+    private final Map<Texture, Entry> byTexture = new IdentityHashMap<>();
+
+    /** Unreferenced entries, least recently released first */
+    private final LinkedHashMap<Texture, Entry> idle = new LinkedHashMap<>();
+
+    private long budget;
+
+    private long residentBytes;
+
+    private int hits;
+
+    private int misses;
+
+    private int evictions;
+
+    public TextureManager(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the manager the materials load their textures through
+     */
+    public static TextureManager getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the texture of a PNG image, loading it if no user holds it yet.
+     *
+     * @return the shared texture; give it back with {@link #release(Texture)}
+     */
+    public Texture acquire(String fileName) throws Exception {
+        File file = new File(fileName).getCanonicalFile();
+        String path = file.getPath();
+        Entry entry = byPath.get(path);
+        if (entry == null) {
+            String contentHash = hash(file);
+            entry = byContent.get(contentHash);
+            if (entry == null) {
+                entry = new Entry(path, contentHash, new Texture(path));
+                byContent.put(contentHash, entry);
+                byTexture.put(entry.texture, entry);
+                residentBytes += entry.texture.getByteSize();
+                misses++;
+            } else {
+                hits++;
+            }
+            byPath.put(path, entry);
+        } else {
+            hits++;
+        }
+        if (entry.refCount++ == 0) {
+            idle.remove(entry.texture);
+        }
+        // a new texture may have pushed the unreferenced ones over the budget
+        evict();
+        return entry.texture;
+    }
+
+    /**
+     * Give back a texture obtained from {@link #acquire(String)}. The texture stays resident until
+     * the budget requires its memory.
+     */
+    public void release(Texture texture) {
+        Entry entry = byTexture.get(texture);
+        if (entry == null || entry.refCount == 0) {
+            throw new IllegalStateException("Texture is not held: " + texture.getId());
+        }
+        if (--entry.refCount == 0) {
+            idle.put(texture, entry);
+            evict();
+        }
+    }
+
+    /**
+     * @param budget the bytes the textures may take before unreferenced ones are evicted
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the GPU memory of all resident textures, referenced or not
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getTextureCount() {
+        return byTexture.size();
+    }
+
+    public String report() {
+        return String.format("TextureManager: %d textures (%d unused), %.1f of %.1f MB, %d hits, %d loads, %d evicted",
+                byTexture.size(), idle.size(), residentBytes / 1048576.0, budget / 1048576.0, hits, misses,
+                evictions);
+    }
+
+    private void evict() {
+        Iterator<Entry> it = idle.values().iterator();
+        while (residentBytes > budget && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            delete(entry);
+            evictions++;
+        }
+    }
+
+    private void delete(Entry entry) {
+        byTexture.remove(entry.texture);
+        byContent.remove(entry.contentHash);
+        byPath.values().removeIf(e -> e == entry);
+        residentBytes -= entry.texture.getByteSize();
+        entry.texture.cleanup();
+    }
+
+    /**
+     * Delete all textures, held or not.
+     */
+    public void cleanup() {
+        for (Entry entry : byTexture.values()) {
+            entry.texture.cleanup();
+        }
+        byPath.clear();
+        byContent.clear();
+        byTexture.clear();
+        idle.clear();
+        residentBytes = 0;
+    }
+
+    private static String hash(File file) throws IOException {
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[64 * 1024];
+            for (int n; (n = is.read(buf)) > 0;) {
+                md.update(buf, 0, n);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package w4160.engine.graphics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_BASE_LEVEL;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage2D;
+import static org.lwjgl.opengl.GL13.glCompressedTexSubImage2D;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Streams the fine mip levels of textures in and out while the scene is drawn.
+ *
+ * <p>
+ * A texture loaded through the streamer only gets its coarse levels, up to {@link #COARSE_SIZE}
+ * pixels, so it can be drawn right away. Every frame the renderer reports how large each textured
+ * item is on screen, which gives the finest level worth having. {@link #update()} then uploads the
+ * missing levels, coarsest first, through a ring of pixel unpack buffers: at most the per-frame byte
+ * budget is copied into a buffer and handed to the GPU, and a level larger than the budget is
+ * uploaded in bands of rows over several frames. A level only becomes visible, by lowering the
+ * texture's base level, once all of it is uploaded. The fine levels of textures that have not been
+ * drawn for a while are freed again.
+ * </p>
+ *
+ * <p>
+ * All methods must be called on the render thread.
+ * </p>
+ */
+public class TextureStreamer {
+
+    public static final long DEFAULT_UPLOAD_BUDGET = 4L * 1024 * 1024;
+
+    public static final int DEFAULT_EVICT_FRAMES = 300;
+
+    /** Levels up to this many pixels wide and high are uploaded when a texture is loaded */
+    public static final int COARSE_SIZE = 64;
+
+    /** Number of pixel buffers, so the buffer being filled is never one the GPU still reads */
+    private static final int NUM_BUFFERS = 3;
+
+    private static class Entry {
+
+        final CookedTexture cooked;
+
+        final Texture texture;
+
+        /** The level uploaded on load, which is never evicted */
+        final int coarseLevel;
+
+        /** The finest level the texture was drawn with in the last frame it was seen */
+        int wantedLevel;
+
+        long lastSeen;
+
+        /** The level being uploaded, -1 if none */
+        int uploadLevel = -1;
+
+        /** Rows of the upload level done, in blocks of four rows if compressed */
+        int uploadedRows;
+
+        Entry(CookedTexture cooked, Texture texture, int coarseLevel) {
+            this.cooked = cooked;
+            this.texture = texture;
+            this.coarseLevel = coarseLevel;
+            this.wantedLevel = coarseLevel;
+        }
+    }
+
+    /** A band of rows of a level, planned for this frame's buffer */
+    private static class Band {
+
+        final Entry entry;
+
+        final int row;
+
+        final int rows;
+
+        final long offset;
+
+        Band(Entry entry, int row, int rows, long offset) {
+            this.entry = entry;
+            this.row = row;
+            this.rows = rows;
+            this.offset = offset;
+        }
+    }
+
+    private static class Slot {
+
+        final int pboId = glGenBuffers();
+
+        long fence;
+    }
+
+    private final TextureCooker cooker;
+
+    private final TextureCooker.Compression compression;
+
+    private final Map<Texture, Entry> entries = new IdentityHashMap<>();
+
+    private long uploadBudget;
+
+    private int evictFrames;
+
+    private Slot[] slots;
+
+    private int nextSlot;
+
+    private long frame;
+
+    private long streamedBytes;
+
+    private int evictedLevels;
+
+    private int stalledFrames;
+
+    public TextureStreamer() {
+        this(new TextureCooker(TextureCooker.DEFAULT_CACHE_DIR), TextureCooker.getDefaultCompression(),
+                DEFAULT_UPLOAD_BUDGET, DEFAULT_EVICT_FRAMES);
+    }
+
+    /**
+     * @param uploadBudget bytes uploaded per frame at most
+     * @param evictFrames frames a texture may go undrawn before its fine levels are freed
+     */
+    public TextureStreamer(TextureCooker cooker, TextureCooker.Compression compression, long uploadBudget,
+            int evictFrames) {
+        this.cooker = cooker;
+        this.compression = compression;
+        this.uploadBudget = uploadBudget;
+        this.evictFrames = evictFrames;
+    }
+
+    public void setUploadBudget(long uploadBudget) {
+        this.uploadBudget = uploadBudget;
+    }
+
+    public long getUploadBudget() {
+        return uploadBudget;
+    }
+
+    public void setEvictFrames(int evictFrames) {
+        this.evictFrames = evictFrames;
+    }
+
+    /**
+     * Load a PNG image through the texture cache and upload its coarse levels.
+     *
+     * @return the texture; give it back with {@link #release(Texture)}
+     */
+    public Texture load(String fileName) throws IOException {
+        CookedTexture cooked = cooker.load(fileName, compression);
+        int coarseLevel = 0;
+        while (coarseLevel < cooked.getLevelCount() - 1 && Math.max(cooked.getLevelWidth(coarseLevel),
+                cooked.getLevelHeight(coarseLevel)) > COARSE_SIZE) {
+            coarseLevel++;
+        }
+        Texture texture = new Texture(cooked, fileName, coarseLevel);
+        Entry entry = new Entry(cooked, texture, coarseLevel);
+        entry.lastSeen = frame;
+        entries.put(texture, entry);
+        return texture;
+    }
+
+    /**
+     * Stop streaming a texture and delete it.
+     */
+    public void release(Texture texture) {
+        if (entries.remove(texture) != null) {
+            texture.cleanup();
+        }
+    }
+
+    /**
+     * Report that a texture is drawn in this frame on an item of the given size.
+     *
+     * @param screenSize the size of the item on screen in pixels
+     * @see Transformation#getScreenSize
+     */
+    public void requestSize(Texture texture, float screenSize) {
+        Entry entry = entries.get(texture);
+        if (entry == null) {
+            return;
+        }
+        // one texel per pixel across the item
+        int level = 0;
+        int texels = Math.max(entry.cooked.getWidth(), entry.cooked.getHeight());
+        while (level < entry.coarseLevel && (texels >> (level + 1)) >= screenSize) {
+            level++;
+        }
+        entry.wantedLevel = entry.lastSeen == frame ? Math.min(entry.wantedLevel, level) : level;
+        entry.lastSeen = frame;
+    }
+
+    /**
+     * Free the fine levels of textures not drawn recently and upload this frame's share of the
+     * missing ones. Call once per frame, before the items report their sizes.
+     */
+    public void update() {
+        if (slots == null) {
+            slots = new Slot[NUM_BUFFERS];
+            for (int i = 0; i < NUM_BUFFERS; i++) {
+                slots[i] = new Slot();
+            }
+        }
+        for (Entry entry : entries.values()) {
+            if (frame - entry.lastSeen > evictFrames) {
+                evict(entry);
+            }
+        }
+        upload();
+        frame++;
+    }
+
+    private void evict(Entry entry) {
+        Texture texture = entry.texture;
+        if (texture.getBaseLevel() == entry.coarseLevel && entry.uploadLevel < 0) {
+            return;
+        }
+        glBindTexture(GL_TEXTURE_2D, texture.getId());
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, entry.coarseLevel);
+        int first = entry.uploadLevel >= 0 ? entry.uploadLevel : texture.getBaseLevel();
+        for (int level = first; level < entry.coarseLevel; level++) {
+            // an empty image frees the level, it is outside the base..max range anyway
+            glTexImage2D(GL_TEXTURE_2D, level, GL_RGBA8, 0, 0, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+            evictedLevels++;
+        }
+        texture.setBaseLevel(entry.coarseLevel, residentBytes(entry.cooked, entry.coarseLevel));
+        entry.uploadLevel = -1;
+        entry.wantedLevel = entry.coarseLevel;
+    }
+
+    private void upload() {
+        List<Entry> wanted = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.lastSeen == frame && entry.wantedLevel < entry.texture.getBaseLevel()) {
+                wanted.add(entry);
+            }
+        }
+        if (wanted.isEmpty()) {
+            return;
+        }
+        Slot slot = slots[nextSlot];
+        if (slot.fence != 0) {
+            int status = glClientWaitSync(slot.fence, 0, 0);
+            if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) {
+                // the GPU is behind, try again next frame rather than wait
+                stalledFrames++;
+                return;
+            }
+            glDeleteSync(slot.fence);
+            slot.fence = 0;
+        }
+        // levels that started uploading first, then the textures missing the most levels
+        wanted.sort((a, b) -> a.uploadLevel >= 0 != b.uploadLevel >= 0 ? (a.uploadLevel >= 0 ? -1 : 1)
+                : Integer.compare(b.texture.getBaseLevel() - b.wantedLevel, a.texture.getBaseLevel() - a.wantedLevel));
+
+        // plan the bands, allocating the levels they go to while no unpack buffer is bound
+        List<Band> bands = new ArrayList<>();
+        long used = 0;
+        for (Entry entry : wanted) {
+            if (entry.uploadLevel < 0) {
+                entry.uploadLevel = entry.texture.getBaseLevel() - 1;
+                entry.uploadedRows = 0;
+                allocate(entry);
+            }
+            long rowBytes = rowBytes(entry);
+            int rows = (int) Math.min(totalRows(entry) - entry.uploadedRows, (uploadBudget - used) / rowBytes);
+            if (rows <= 0) {
+                if (!bands.isEmpty()) {
+                    break;
+                }
+                // a row larger than the whole budget still has to make progress
+                rows = 1;
+            }
+            bands.add(new Band(entry, entry.uploadedRows, rows, used));
+            used += align(rows * rowBytes);
+            if (used >= uploadBudget) {
+                break;
+            }
+        }
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, slot.pboId);
+        // orphan the previous contents, the driver must not wait for them
+        glBufferData(GL_PIXEL_UNPACK_BUFFER, Math.max(used, uploadBudget), GL_STREAM_DRAW);
+        ByteBuffer mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, used,
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (mapped == null) {
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+            System.err.println("TextureStreamer: could not map the pixel buffer");
+            return;
+        }
+        for (Band band : bands) {
+            long rowBytes = rowBytes(band.entry);
+            ByteBuffer src = band.entry.cooked.getLevel(band.entry.uploadLevel).duplicate();
+            src.position((int) (band.row * rowBytes)).limit((int) ((band.row + band.rows) * rowBytes));
+            mapped.position((int) band.offset);
+            mapped.put(src);
+        }
+        glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        for (Band band : bands) {
+            Entry entry = band.entry;
+            CookedTexture.Format format = entry.cooked.getFormat();
+            int level = entry.uploadLevel;
+            int w = entry.cooked.getLevelWidth(level);
+            int h = entry.cooked.getLevelHeight(level);
+            int rowHeight = format.isCompressed() ? 4 : 1;
+            int y = band.row * rowHeight;
+            int height = Math.min(band.rows * rowHeight, h - y);
+            glBindTexture(GL_TEXTURE_2D, entry.texture.getId());
+            if (format.isCompressed()) {
+                glCompressedTexSubImage2D(GL_TEXTURE_2D, level, 0, y, w, height, format.internalFormat,
+                        (int) (band.rows * rowBytes(entry)), band.offset);
+            } else {
+                glTexSubImage2D(GL_TEXTURE_2D, level, 0, y, w, height, GL_RGBA, GL_UNSIGNED_BYTE, band.offset);
+            }
+            entry.uploadedRows += band.rows;
+            if (entry.uploadedRows == totalRows(entry)) {
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, level);
+                entry.texture.setBaseLevel(level, residentBytes(entry.cooked, level));
+                entry.uploadLevel = -1;
+            }
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        slot.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        nextSlot = (nextSlot + 1) % NUM_BUFFERS;
+        streamedBytes += used;
+    }
+
+    /**
+     * Define the upload level without data. It stays invisible below the base level until it is complete.
+     */
+    private static void allocate(Entry entry) {
+        CookedTexture.Format format = entry.cooked.getFormat();
+        int level = entry.uploadLevel;
+        int w = entry.cooked.getLevelWidth(level);
+        int h = entry.cooked.getLevelHeight(level);
+        glBindTexture(GL_TEXTURE_2D, entry.texture.getId());
+        if (format.isCompressed()) {
+            glCompressedTexImage2D(GL_TEXTURE_2D, level, format.internalFormat, w, h, 0, format.levelSize(w, h), NULL);
+        } else {
+            glTexImage2D(GL_TEXTURE_2D, level, format.internalFormat, w, h, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+                    (ByteBuffer) null);
+        }
+    }
+
+    /**
+     * @return the bytes of one row of the upload level, or of one row of blocks if compressed
+     */
+    private static long rowBytes(Entry entry) {
+        return entry.cooked.getFormat().levelSize(entry.cooked.getLevelWidth(entry.uploadLevel), 1);
+    }
+
+    private static int totalRows(Entry entry) {
+        int h = entry.cooked.getLevelHeight(entry.uploadLevel);
+        return entry.cooked.getFormat().isCompressed() ? (h + 3) / 4 : h;
+    }
+
+    private static long residentBytes(CookedTexture cooked, int baseLevel) {
+        long size = 0;
+        for (int level = baseLevel; level < cooked.getLevelCount(); level++) {
+            size += cooked.getLevel(level).remaining();
+        }
+        return size;
+    }
+
+    private static long align(long offset) {
+        return (offset + 15) & ~15L;
+    }
+
+    /**
+     * @return the GPU memory of the streamed textures' uploaded levels
+     */
+    public long getResidentBytes() {
+        long size = 0;
+        for (Entry entry : entries.values()) {
+            size += entry.texture.getByteSize();
+        }
+        return size;
+    }
+
+    public String report() {
+        int streaming = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.uploadLevel >= 0) {
+                streaming++;
+            }
+        }
+        return String.format("TextureStreamer: %d textures (%d streaming), %.1f MB resident, %.1f MB streamed, "
+                + "%d levels evicted, %d stalled frames", entries.size(), streaming, getResidentBytes() / 1048576.0,
+                streamedBytes / 1048576.0, evictedLevels, stalledFrames);
+    }
+
+    /**
+     * Delete the streamed textures and the pixel buffers.
+     */
+    public void cleanup() {
+        for (Texture texture : entries.keySet()) {
+            texture.cleanup();
+        }
+        entries.clear();
+        if (slots != null) {
+            for (Slot slot : slots) {
+                if (slot.fence != 0) {
+                    glDeleteSync(slot.fence);
+                }
+                glDeleteBuffers(slot.pboId);
+            }
+            slots = null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package w4160.engine.graphics;
+
+/**
+ * The texture units the samplers of the shaders are bound to.
+ *
+ * <p>
+ * Samplers of different types must never share a unit, not even when a shader does not read one of
+ * them, or drawing fails with <code>GL_INVALID_OPERATION</code>. Every sampler a program declares
+ * therefore gets a unit of its own here, and is set to it whether or not the feature behind it is on.
+ * </p>
+ */
+public final class TextureUnits {
+
+    /** <code>texture_sampler</code>, the sampler2D of textured materials */
+    public static final int MATERIAL = 0;
+
+    /** The samplerBuffer and usamplerBuffers of <code>clustered_lights.glsl</code> */
+    public static final int CLUSTER_LIGHT_DATA = 1;
+
+    public static final int CLUSTER_GRID_DATA = 2;
+
+    public static final int CLUSTER_LIGHT_INDEX = 3;
+
+    /** <code>texture_array</code>, the sampler2DArray of materials on a {@link TextureArray} layer */
+    public static final int TEXTURE_ARRAY = 4;
+
+    /** The first of the four {@link GBuffer} attachments read by the deferred lighting pass */
+    public static final int GBUFFER = 5;
+
+    private TextureUnits() {
+    }
+}
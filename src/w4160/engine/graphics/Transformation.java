@@ -11,6 +11,13 @@ import w4160.engine.GameItem;
  */
 public class Transformation {
 
+    /** The projection all renderers draw with: the vertical field of view in radians */
+    public static final float FOV = (float) Math.toRadians(60.0f);
+
+    public static final float Z_NEAR = 0.01f;
+
+    public static final float Z_FAR = 1000.f;
+
     private final Matrix4f projectionMatrix;
     
     private final Matrix4f viewMatrix;
@@ -86,4 +93,44 @@ public class Transformation {
         Matrix4f viewCurr = new Matrix4f(viewMatrix);
         return viewCurr.mul(getModelMatrix(gameItem));
     }
+
+    /**
+     * Computes the Model View Matrix into <code>dest</code>. Unlike the other methods it leaves the
+     * matrices of this object alone, so it can be called from several threads at once.
+     *
+     * @return dest
+     */
+    public static Matrix4f getModelViewMatrix(GameItem gameItem, Matrix4f viewMatrix, Matrix4f dest) {
+        Vector3f rotation = gameItem.getRotation();
+        return dest.set(viewMatrix).translate(gameItem.getPosition()).
+                rotateX((float)Math.toRadians(-rotation.x)).
+                rotateY((float)Math.toRadians(-rotation.y)).
+                rotateZ((float)Math.toRadians(-rotation.z)).
+                scale(gameItem.getScale());
+    }
+
+    /**
+     * Estimates how large an item appears on screen: the projected diameter of the sphere around
+     * its bounding box.
+     *
+     * <p>
+     * Safe to call from several threads at once.
+     * </p>
+     *
+     * @param viewportHeight height of the viewport in pixels
+     * @return the size in pixels, which can exceed the viewport; infinite if the camera is inside the sphere
+     */
+    public static float getScreenSize(GameItem gameItem, Matrix4f viewMatrix, Matrix4f projectionMatrix, int viewportHeight) {
+        Mesh mesh = gameItem.getMesh();
+        Vector3f min = mesh.getBoundsMin();
+        Vector3f max = mesh.getBoundsMax();
+        float radius = 0.5f * max.distance(min) * gameItem.getScale();
+        Vector3f centre = new Vector3f(min).add(max).mul(0.5f);
+        getModelViewMatrix(gameItem, viewMatrix, new Matrix4f()).transformPosition(centre);
+        float distance = -centre.z;
+        if (distance <= radius) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return radius / distance * projectionMatrix.m11() * viewportHeight;
+    }
 }
@@ -0,0 +1,43 @@
+package w4160.engine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One iteration of the game loop, from frame start to the next frame start, with the time of each phase.
+ */
+@Name("w4160.Frame")
+@Label("Frame")
+@Category({ "W4160", "Engine" })
+@Description("One iteration of the game loop with its phase breakdown")
+@StackTrace(false)
+public class FrameEvent extends jdk.jfr.Event {
+
+    @Label("Frame")
+    public long frame;
+
+    @Label("Input")
+    @Timespan
+    public long input;
+
+    @Label("Update")
+    @Timespan
+    public long update;
+
+    @Label("Update Steps")
+    @Description("Fixed update steps the accumulator forced in this frame")
+    public int updateSteps;
+
+    @Label("Render")
+    @Timespan
+    public long render;
+
+    @Label("Swap")
+    @Description("Buffer swap and event polling")
+    @Timespan
+    public long swap;
+}
@@ -0,0 +1,22 @@
+package w4160.engine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An edit of the vertex positions of a mesh, including the upload of the new buffers.
+ */
+@Name("w4160.MeshEdit")
+@Label("Mesh Edit")
+@Category({ "W4160", "Resources" })
+@Description("Scaling, translating, rotating or reflecting a mesh")
+public class MeshEditEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Vertices")
+    public int vertices;
+}
@@ -0,0 +1,30 @@
+package w4160.engine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Loading a mesh from an .obj file.
+ */
+@Name("w4160.MeshLoad")
+@Label("Mesh Load")
+@Category({ "W4160", "Resources" })
+@Description("Parsing an .obj file and creating the mesh")
+public class MeshLoadEvent extends jdk.jfr.Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Vertices")
+    public int vertices;
+
+    @Label("Triangles")
+    public int triangles;
+}
@@ -0,0 +1,31 @@
+package w4160.engine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Encoding a captured frame to a PNG file on the capture worker.
+ */
+@Name("w4160.Screenshot")
+@Label("Screenshot")
+@Category({ "W4160", "Renderer" })
+@Description("Encoding a frame read back through a pixel buffer as PNG")
+public class ScreenshotEvent extends jdk.jfr.Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Width")
+    public int width;
+
+    @Label("Height")
+    public int height;
+
+    @Label("Render Thread")
+    @Description("Time the render thread spent queueing the read-back and mapping the buffer")
+    @Timespan
+    public long readback;
+}
@@ -0,0 +1,28 @@
+package w4160.engine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Compiling one shader stage of a program.
+ */
+@Name("w4160.ShaderCompile")
+@Label("Shader Compile")
+@Category({ "W4160", "Shaders" })
+@Description("Compiling a vertex or fragment shader")
+public class ShaderCompileEvent extends jdk.jfr.Event {
+
+    @Label("Program")
+    public String program;
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Source Length")
+    public int sourceLength;
+
+    @Label("Success")
+    public boolean success;
+}
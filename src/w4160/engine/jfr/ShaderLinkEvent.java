@@ -0,0 +1,25 @@
+package w4160.engine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Linking a program or restoring it from the binary cache.
+ */
+@Name("w4160.ShaderLink")
+@Label("Shader Link")
+@Category({ "W4160", "Shaders" })
+@Description("Linking a shader program or restoring its cached binary")
+public class ShaderLinkEvent extends jdk.jfr.Event {
+
+    @Label("Program")
+    public String program;
+
+    @Label("From Cache")
+    public boolean fromCache;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,45 @@
+package w4160.engine.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Uploading a cooked texture and its mip chain.
+ */
+@Name("w4160.TextureLoad")
+@Label("Texture Load")
+@Category({ "W4160", "Resources" })
+@Description("Uploading a cooked texture with its mip chain to the GPU")
+public class TextureLoadEvent extends jdk.jfr.Event {
+
+    @Label("Source")
+    public String source;
+
+    @Label("Width")
+    public int width;
+
+    @Label("Height")
+    public int height;
+
+    @Label("Format")
+    public String format;
+
+    @Label("Size")
+    @Description("All mip levels")
+    @DataAmount
+    public long bytes;
+
+    @Label("Cook")
+    @Description("Mapping the cache file, or decoding and cooking the image on a cache miss")
+    @Timespan
+    public long cook;
+
+    @Label("Upload")
+    @Description("glTexImage2D or glCompressedTexImage2D for every mip level")
+    @Timespan
+    public long upload;
+}
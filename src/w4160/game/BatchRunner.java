@@ -0,0 +1,383 @@
+package w4160.game;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Vector3f;
+
+import w4160.engine.GameItem;
+import w4160.engine.HeadlessWindow;
+import w4160.engine.LatencyHistogram;
+import w4160.engine.graphics.Camera;
+import w4160.engine.graphics.DirectionalLight;
+import w4160.engine.graphics.ISoftwareRenderer;
+import w4160.engine.graphics.Material;
+import w4160.engine.graphics.Mesh;
+import w4160.engine.graphics.OBJLoader;
+import w4160.engine.graphics.PointLight;
+import w4160.engine.graphics.RayTracer;
+import w4160.engine.graphics.SoftwareRasterizer;
+import w4160.engine.graphics.SoftwareShading;
+import w4160.engine.graphics.TextureArray;
+import w4160.engine.graphics.TextureArrayBuilder;
+import w4160.engine.graphics.TextureManager;
+import w4160.engine.graphics.TextureStreamer;
+
+import static org.lwjgl.opengl.GL11.glFinish;
+
+/**
+ * Render every combination of shaders, models and camera poses offscreen and write one image
+ * and one line of timings per combination.
+ *
+ * <p>
+ * Runs on a {@link HeadlessWindow}, so it needs no display, or on the CPU with a
+ * {@link SoftwareRasterizer} or the {@link RayTracer} reference, so it needs no GPU either; a run of
+ * the reference without shadows gives images to compare those of the others with. Options:
+ * </p>
+ * <ul>
+ * <li><code>-backend gl|software|reference</code> what renders the images, <code>gl</code> by default</li>
+ * <li><code>-threads n</code> threads of the CPU backends, one per processor by default</li>
+ * <li><code>-shadows on|off</code> whether the reference traces shadow rays, on by default</li>
+ * <li><code>-textures shared|array|stream</code> whether OpenGL gets a texture per image through the
+ * {@link TextureManager}, all of them packed into texture arrays, or textures whose fine levels a
+ * {@link TextureStreamer} uploads over the first frames, <code>shared</code> by default</li>
+ * <li><code>-shaders a,b,...</code> shader names registered in {@link Renderer}, or of
+ * {@link SoftwareShading.Model} for the CPU backends, all by default</li>
+ * <li><code>-models m.obj[=texture.png],...</code> models with an optional texture, the bundled models by default</li>
+ * <li><code>-poses n</code> camera positions on a circle around the model, 4 by default</li>
+ * <li><code>-size WxH</code> image size, 600x480 by default</li>
+ * <li><code>-frames n</code> timed frames per combination, 10 by default</li>
+ * <li><code>-out dir</code> output directory for the images and <code>timings.csv</code>, <code>batch</code> by default</li>
+ * </ul>
+ */
+public class BatchRunner {
+
+    private static final String MODEL_DIR = "src/resources/models/";
+
+    private static final String[] DEFAULT_MODELS = {
+        MODEL_DIR + "cube.obj",
+        MODEL_DIR + "sphere.obj",
+        MODEL_DIR + "monkey.obj",
+        MODEL_DIR + "spot/spot.obj=" + MODEL_DIR + "spot/spot_texture.png",
+        MODEL_DIR + "bob/bob.obj=" + MODEL_DIR + "bob/bob_tex.png",
+    };
+
+    /** Frames rendered before timing a combination, to get past shader and driver warm-up */
+    private static final int WARMUP_FRAMES = 3;
+
+    /** Distance of the camera from the model, which is scaled to a unit box */
+    private static final float CAMERA_DISTANCE = 1.8f;
+
+    private static final float CAMERA_HEIGHT = 0.5f;
+
+    private List<String> shaders = null;
+
+    private List<String> models = Arrays.asList(DEFAULT_MODELS);
+
+    private int poses = 4;
+
+    private int width = 600;
+
+    private int height = 480;
+
+    private int frames = 10;
+
+    private File outDir = new File("batch");
+
+    private String backend = "gl";
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private boolean shadows = true;
+
+    private String textures = "shared";
+
+    /** Packs the textures of all models before the first is drawn when rendering from texture arrays */
+    private TextureArrayBuilder textureArrayBuilder;
+
+    /** The texture array layer of every texture file, or null without texture arrays */
+    private Map<String, TextureArray.Layer> textureLayers;
+
+    /** Streams the textures of the models when asked to, installed on the renderer */
+    private TextureStreamer textureStreamer;
+
+    private final Renderer renderer = new Renderer();
+
+    /** The CPU backend, or null when rendering with OpenGL */
+    private ISoftwareRenderer software;
+
+    private final Camera camera = new Camera();
+
+    private Vector3f ambientLight;
+
+    private PointLight pointLight;
+
+    private DirectionalLight directionalLight;
+
+    public static void main(String[] args) {
+        try {
+            BatchRunner runner = new BatchRunner();
+            runner.parseArgs(args);
+            runner.run();
+        } catch (Exception excp) {
+            excp.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].isEmpty()) {
+                continue;
+            }
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "-shaders":
+                    shaders = Arrays.asList(value.split(","));
+                    break;
+                case "-models":
+                    models = Arrays.asList(value.split(","));
+                    break;
+                case "-poses":
+                    poses = Integer.parseInt(value);
+                    break;
+                case "-size":
+                    String[] size = value.split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "-frames":
+                    frames = Integer.parseInt(value);
+                    break;
+                case "-out":
+                    outDir = new File(value);
+                    break;
+                case "-backend":
+                    backend = value;
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "-shadows":
+                    shadows = value.equals("on");
+                    break;
+                case "-textures":
+                    textures = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        HeadlessWindow window = null;
+        if (backend.equals("software")) {
+            software = new SoftwareRasterizer(width, height, threads);
+        } else if (backend.equals("reference")) {
+            RayTracer rayTracer = new RayTracer(width, height, threads);
+            rayTracer.setShadows(shadows);
+            software = rayTracer;
+        } else if (backend.equals("gl")) {
+            window = new HeadlessWindow(width, height);
+            window.init();
+        } else {
+            throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+        try {
+            if (software == null) {
+                renderer.init(window);
+                setupTextures();
+            }
+            if (shaders == null) {
+                shaders = new ArrayList<>();
+                if (software != null) {
+                    for (SoftwareShading.Model model : SoftwareShading.Model.values()) {
+                        shaders.add(model.getShaderName());
+                    }
+                } else {
+                    for (int i = 0; i < renderer.getNumShaders(); i++) {
+                        shaders.add(renderer.getShaderName(i));
+                    }
+                }
+            }
+            setupLights();
+            if (!outDir.isDirectory() && !outDir.mkdirs()) {
+                throw new IOException("Cannot create " + outDir);
+            }
+
+            try (PrintWriter csv = new PrintWriter(new File(outDir, "timings.csv"))) {
+                csv.println("shader,model,pose,frames,mean_ms,p50_ms,p99_ms,max_ms,image");
+                for (String model : models) {
+                    GameItem item = loadItem(model);
+                    String modelName = baseName(model.split("=")[0]);
+                    for (int pose = 0; pose < poses; pose++) {
+                        setPose(pose);
+                        for (String shader : shaders) {
+                            renderCombination(window, item, shader, modelName, pose, csv);
+                        }
+                    }
+                    item.getMesh().cleanUp();
+                    item.getMesh().getMaterial().cleanup();
+                }
+            }
+            System.out.println("BatchRunner: wrote " + models.size() * poses * shaders.size()
+                    + " images to " + outDir);
+        } finally {
+            if (software != null) {
+                System.out.println(software.report());
+                software.shutdown();
+            } else {
+                System.out.println(TextureManager.getShared().report());
+                TextureManager.getShared().cleanup();
+                if (textureArrayBuilder != null) {
+                    textureArrayBuilder.cleanup();
+                }
+                if (textureStreamer != null) {
+                    System.out.println(textureStreamer.report());
+                    textureStreamer.cleanup();
+                }
+                renderer.cleanup();
+                window.cleanup();
+            }
+        }
+    }
+
+    private void renderCombination(HeadlessWindow window, GameItem item, String shader, String modelName,
+            int pose, PrintWriter csv) throws IOException {
+        GameItem[] items = { item };
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            renderFrame(window, items, shader);
+            if (software == null) {
+                window.update();
+            }
+        }
+        if (software == null) {
+            glFinish();
+        }
+
+        // each frame is finished before the next one starts, so this is the whole CPU and GPU time
+        LatencyHistogram histogram = new LatencyHistogram(shader);
+        for (int i = 0; i < frames; i++) {
+            long start = System.nanoTime();
+            renderFrame(window, items, shader);
+            if (software == null) {
+                glFinish();
+            }
+            histogram.record(System.nanoTime() - start);
+        }
+
+        String image = shader + "_" + modelName + "_" + pose + ".png";
+        if (software != null) {
+            software.writePNG(new File(outDir, image));
+        } else {
+            renderer.writePNG(new File(outDir, image));
+        }
+        csv.printf("%s,%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%s%n", shader, modelName, pose, histogram.getCount(),
+                histogram.getMean() / 1e6, histogram.getValueAtPercentile(50) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6, histogram.getMax() / 1e6, image);
+        System.out.println("BatchRunner: " + image + String.format(" %.3f ms", histogram.getMean() / 1e6));
+    }
+
+    private void renderFrame(HeadlessWindow window, GameItem[] items, String shader) {
+        if (software != null) {
+            software.render(camera, items, ambientLight, pointLight, directionalLight, shader);
+        } else {
+            renderer.render(window, camera, items, ambientLight, pointLight, directionalLight, shader);
+        }
+    }
+
+    /**
+     * Pack the textures of all models into texture arrays up front, so the models share them as the
+     * items of a scene would, or install a streamer for them, if asked to.
+     */
+    private void setupTextures() throws IOException {
+        if (textures.equals("shared")) {
+            return;
+        }
+        if (textures.equals("stream")) {
+            textureStreamer = new TextureStreamer();
+            renderer.setTextureStreamer(textureStreamer);
+            return;
+        }
+        if (!textures.equals("array")) {
+            throw new IllegalArgumentException("Unknown texture source " + textures);
+        }
+        textureArrayBuilder = new TextureArrayBuilder();
+        for (String model : models) {
+            String[] parts = model.split("=");
+            if (parts.length > 1) {
+                textureArrayBuilder.add(parts[1]);
+            }
+        }
+        textureLayers = textureArrayBuilder.build();
+    }
+
+    /**
+     * Load a model given as <code>mesh.obj</code> or <code>mesh.obj=texture.png</code> and
+     * scale it into a unit box around the origin. The CPU backends keep it out of OpenGL.
+     */
+    private GameItem loadItem(String model) throws Exception {
+        String[] parts = model.split("=");
+        Mesh mesh = software != null ? Mesh.inMemory(OBJLoader.loadMeshData(parts[0])) : OBJLoader.loadMesh(parts[0]);
+        float reflectance = 1f;
+        Material material;
+        if (parts.length == 1) {
+            material = new Material(new Vector3f(0.4f, 0.8f, 1f), reflectance);
+        } else if (software != null) {
+            material = Material.inMemory(parts[1], reflectance);
+        } else if (textureLayers != null) {
+            material = new Material(textureLayers.get(parts[1]), reflectance);
+        } else if (textureStreamer != null) {
+            material = new Material(textureStreamer, parts[1], reflectance);
+        } else {
+            material = new Material(parts[1], reflectance);
+        }
+        mesh.setMaterial(material);
+
+        Vector3f min = mesh.getBoundsMin();
+        Vector3f max = mesh.getBoundsMax();
+        float extent = Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z));
+        float scale = extent > 0 ? 1f / extent : 1f;
+        Vector3f centre = new Vector3f(min).add(max).mul(0.5f * scale);
+
+        GameItem item = new GameItem(mesh);
+        item.setScale(scale);
+        item.setPosition(-centre.x, -centre.y, -centre.z);
+        return item;
+    }
+
+    private void setPose(int pose) {
+        double angle = 2 * Math.PI * pose / poses;
+        camera.setPosition((float) Math.sin(angle) * CAMERA_DISTANCE, CAMERA_HEIGHT,
+                (float) Math.cos(angle) * CAMERA_DISTANCE);
+        camera.setTarget(new Vector3f(0, 0, 0));
+    }
+
+    /** The lights of {@link SimpleGame} */
+    private void setupLights() {
+        ambientLight = new Vector3f(0.3f, 0.3f, 0.3f);
+        Vector3f lightColour = new Vector3f(1, 1, 1);
+        Vector3f lightPosition = new Vector3f(0, 0, 1);
+        float lightIntensity = 1.0f;
+        pointLight = new PointLight(lightColour, lightPosition, lightIntensity);
+        pointLight.setAttenuation(new PointLight.Attenuation(0.0f, 0.0f, 1.0f));
+
+        directionalLight = new DirectionalLight(new Vector3f(1, 1, 1), new Vector3f(-1, 0, 0), lightIntensity);
+    }
+
+    private static String baseName(String path) {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
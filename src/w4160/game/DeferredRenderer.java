@@ -0,0 +1,174 @@
+package w4160.game;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import w4160.engine.GameItem;
+import w4160.engine.graphics.DirectionalLight;
+import w4160.engine.graphics.GBuffer;
+import w4160.engine.graphics.GpuProfiler;
+import w4160.engine.graphics.LightClusterGrid;
+import w4160.engine.graphics.Mesh;
+import w4160.engine.graphics.PointLight;
+import w4160.engine.graphics.ShaderProgram;
+import w4160.engine.graphics.TextureUnits;
+import w4160.engine.graphics.Transformation;
+
+/**
+ * The deferred render path. The geometry pass writes the surface attributes of all items into a
+ * {@link GBuffer} once; the lighting pass then evaluates the phong, gooch or cel lighting model in a
+ * single fullscreen triangle, so the shading cost depends on the number of pixels and lights rather
+ * than on how many meshes overlap.
+ *
+ * @see Renderer#setRenderPath(Renderer.RenderPath)
+ */
+public class DeferredRenderer {
+
+    public static final int SHADING_PHONG = 0;
+
+    public static final int SHADING_GOOCH = 1;
+
+    public static final int SHADING_CEL = 2;
+
+    private static final String[] SHADING_NAMES = { "phong", "gooch", "cel" };
+
+    /** Texture unit of the first G-buffer attachment */
+    private static final int GBUFFER_UNIT = TextureUnits.GBUFFER;
+
+    private final ShaderProgram geometryShader;
+
+    private final ShaderProgram lightingShader;
+
+    private final Transformation transformation;
+
+    private final GBuffer gBuffer;
+
+    /** Empty vertex array for the fullscreen triangle, core profile needs one bound */
+    private final int emptyVaoId;
+
+    private GpuProfiler profiler;
+
+    public DeferredRenderer(ShaderProgram geometryShader, ShaderProgram lightingShader, int width, int height) {
+        this.geometryShader = geometryShader;
+        this.lightingShader = lightingShader;
+        transformation = new Transformation();
+        gBuffer = new GBuffer(width, height);
+        emptyVaoId = glGenVertexArrays();
+    }
+
+    /**
+     * Time the geometry and lighting passes with the given profiler.
+     */
+    public void setProfiler(GpuProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Map a forward shader name to the lighting model the lighting pass evaluates for it.
+     */
+    public static int shadingModel(String shaderName) {
+        if (shaderName.equals("gooch")) {
+            return SHADING_GOOCH;
+        } else if (shaderName.equals("cel")) {
+            return SHADING_CEL;
+        }
+        return SHADING_PHONG;
+    }
+
+    /**
+     * Render the items into the currently bound draw framebuffer.
+     *
+     * @param lightClusterGrid the clustered lights, already updated for this view, or null
+     */
+    public void render(int width, int height, GameItem[] gameItems, Matrix4f viewMatrix, Matrix4f projectionMatrix,
+            Vector3f ambientLight, PointLight pointLight, DirectionalLight directionalLight, float specularPower,
+            LightClusterGrid lightClusterGrid, int shadingModel) {
+        int targetFbo = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+
+        // Geometry pass
+        if (profiler != null) {
+            profiler.begin("deferred:geometry");
+        }
+        gBuffer.resize(width, height);
+        gBuffer.bindForWriting();
+        geometryShader.bind();
+        geometryShader.setUniform("projectionMatrix", projectionMatrix);
+        geometryShader.setUniform("shadingModel", shadingModel);
+        for (GameItem gameItem : gameItems) {
+            Mesh mesh = gameItem.getMesh();
+            geometryShader.setUniform("modelViewMatrix", transformation.getModelViewMatrix(gameItem, viewMatrix));
+            geometryShader.setUniform("material", mesh.getMaterial());
+            if (mesh.getMaterial().isTextured()) {
+                geometryShader.setMaterialTexture(mesh.getMaterial());
+            }
+            mesh.render();
+        }
+        geometryShader.unbind();
+        if (profiler != null) {
+            profiler.end();
+        }
+
+        // Lighting pass
+        if (profiler != null) {
+            profiler.begin("deferred:lighting:" + SHADING_NAMES[shadingModel]);
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, targetFbo);
+        glViewport(0, 0, width, height);
+        glDisable(GL_DEPTH_TEST);
+        lightingShader.bind();
+        gBuffer.bindTextures(GBUFFER_UNIT);
+        lightingShader.setUniform("gPosition", GBUFFER_UNIT + GBuffer.POSITION);
+        lightingShader.setUniform("gNormal", GBUFFER_UNIT + GBuffer.NORMAL);
+        lightingShader.setUniform("gAlbedo", GBUFFER_UNIT + GBuffer.ALBEDO);
+        lightingShader.setUniform("gMaterial", GBUFFER_UNIT + GBuffer.MATERIAL);
+
+        lightingShader.setUniform("ambientLight", ambientLight);
+        lightingShader.setUniform("specularPower", specularPower);
+        lightingShader.setUniform("uWarmColor", new Vector3f(0.8f, 0.8f, 0.0f));
+        lightingShader.setUniform("uCoolColor", new Vector3f(0.0f, 0.0f, 1.0f));
+        lightingShader.setUniform("uDiffuseWarm", 0.2f);
+        lightingShader.setUniform("uDiffuseCool", 0.6f);
+
+        // Get a copy of the point light object and transform its position to view coordinates
+        PointLight currPointLight = new PointLight(pointLight);
+        Vector3f lightPos = currPointLight.getPosition();
+        Vector4f aux = new Vector4f(lightPos, 1);
+        aux.mul(viewMatrix);
+        lightPos.x = aux.x;
+        lightPos.y = aux.y;
+        lightPos.z = aux.z;
+        lightingShader.setUniform("pointLight", currPointLight);
+
+        // Get a copy of the directional light object and transform its position to view coordinates
+        DirectionalLight currDirLight = new DirectionalLight(directionalLight, 0.3f);
+        Vector4f dir = new Vector4f(currDirLight.getDirection(), 0);
+        dir.mul(viewMatrix);
+        currDirLight.setDirection(new Vector3f(dir.x, dir.y, dir.z));
+        lightingShader.setUniform("directionalLight", currDirLight);
+
+        if (lightClusterGrid != null) {
+            lightClusterGrid.setUniforms(lightingShader, true);
+        } else {
+            LightClusterGrid.setSamplerUnits(lightingShader);
+            lightingShader.setUniform("clusterEnabled", 0);
+        }
+
+        glBindVertexArray(emptyVaoId);
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+        glBindVertexArray(0);
+        lightingShader.unbind();
+        glEnable(GL_DEPTH_TEST);
+        if (profiler != null) {
+            profiler.end();
+        }
+    }
+
+    public void cleanup() {
+        gBuffer.cleanup();
+        glDeleteVertexArrays(emptyVaoId);
+    }
+}
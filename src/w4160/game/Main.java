@@ -1,7 +1,9 @@
 package w4160.game;
 
+import w4160.engine.FramePacer;
 import w4160.engine.GameEngine;
-import w4160.engine.IControlLogic;
+import w4160.engine.JobSystem;
+import w4160.engine.graphics.TextureCooker;
  
 public class Main {
  
@@ -10,8 +12,55 @@ public class Main {
     	try {
             boolean vSync = true;
             
-            IControlLogic gameLogic = (args.length == 0 || args[0].length() == 0) ? new SimpleGame() : new SimpleGame(args[0]);
+            // -threaded runs the updates on their own thread, -pacing vsync|sleep|precise|adaptive
+            // selects the frame pacing, -jobs <n> runs per-frame work on n workers, 0 for one per
+            // spare processor, -latency measures the latency from input events to the screen,
+            // -dynres <fps> scales the resolution to hold the frame rate, -texarrays puts the texture
+            // of the model into a texture array, -stream streams its fine mip levels as needed,
+            // -compress none|bc1|bc3|auto block-compresses the textures where the driver allows
+            boolean threaded = false;
+            float dynres = 0;
+            boolean latency = false;
+            FramePacer.Mode pacing = null;
+            int jobs = -1;
+            boolean textureArrays = false;
+            boolean textureStreaming = false;
+            String meshFile = null;
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-threaded")) {
+                    threaded = true;
+                } else if (args[i].equals("-pacing") && i + 1 < args.length) {
+                    pacing = FramePacer.Mode.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("-dynres") && i + 1 < args.length) {
+                    dynres = Float.parseFloat(args[++i]);
+                } else if (args[i].equals("-latency")) {
+                    latency = true;
+                } else if (args[i].equals("-jobs") && i + 1 < args.length) {
+                    jobs = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-texarrays")) {
+                    textureArrays = true;
+                } else if (args[i].equals("-stream")) {
+                    textureStreaming = true;
+                } else if (args[i].equals("-compress") && i + 1 < args.length) {
+                    TextureCooker.setDefaultCompression(TextureCooker.Compression.valueOf(args[++i].toUpperCase()));
+                } else if (meshFile == null && args[i].length() > 0) {
+                    meshFile = args[i];
+                }
+            }
+            
+            SimpleGame gameLogic = meshFile == null ? new SimpleGame() : new SimpleGame(meshFile);
             GameEngine gameEng = new GameEngine("COMS W4160-GAME", 600, 480, vSync, gameLogic);
+            gameEng.setThreadedUpdate(threaded);
+            gameEng.setPacingMode(pacing);
+            gameEng.setLatencyTracking(latency);
+            gameLogic.setDynamicResolution(dynres);
+            gameLogic.setTextureArrays(textureArrays);
+            gameLogic.setTextureStreaming(textureStreaming);
+            if (jobs >= 0) {
+                JobSystem jobSystem = jobs == 0 ? JobSystem.withDefaultWorkers() : new JobSystem(jobs);
+                gameEng.setJobSystem(jobSystem);
+                gameLogic.setJobSystem(jobSystem);
+            }
             
             // start to run the game
             gameEng.start();
@@ -3,28 +3,46 @@ package w4160.game;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
-import org.lwjgl.BufferUtils;
 
 import static org.lwjgl.opengl.GL11.*;
+import static w4160.engine.graphics.Transformation.FOV;
+import static w4160.engine.graphics.Transformation.Z_FAR;
+import static w4160.engine.graphics.Transformation.Z_NEAR;
 
 import java.awt.HeadlessException;
 
 import java.io.File;
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
-import ar.com.hjg.pngj.*;
 import w4160.engine.GameItem;
+import w4160.engine.JobSystem;
 import w4160.engine.Window;
 import w4160.engine.graphics.Camera;
 import w4160.engine.graphics.DirectionalLight;
+import w4160.engine.graphics.DynamicResolution;
+import w4160.engine.graphics.FrameRecorder;
+import w4160.engine.graphics.LightClusterGrid;
+import w4160.engine.graphics.GpuProfiler;
 import w4160.engine.graphics.Mesh;
 import w4160.engine.graphics.Material;
+import w4160.engine.graphics.OcclusionCuller;
+import w4160.engine.graphics.ParallelPngWriter;
 import w4160.engine.graphics.PointLight;
+import w4160.engine.graphics.ScreenCapture;
+import w4160.engine.graphics.ShaderCache;
+import w4160.engine.graphics.ShaderLibrary;
 import w4160.engine.graphics.ShaderProgram;
+import w4160.engine.graphics.TextOverlay;
+import w4160.engine.graphics.TextureManager;
+import w4160.engine.graphics.TextureStreamer;
 import w4160.engine.graphics.Transformation;
 
 /**
@@ -35,36 +53,175 @@ import w4160.engine.graphics.Transformation;
  */
 public class Renderer {
 
+    private static final String SHADER_DIR = "src/resources/shaders/";
+
+    /** Directory where linked shader program binaries are cached between runs */
+    private static final String SHADER_CACHE_DIR = ".shadercache";
+
+    private final Transformation transformation;
+
     /**
-     * Field of View in Radians
+     * When the shader programs are compiled.
      */
-    private static final float FOV = (float) Math.toRadians(60.0f);
+    public enum ShaderCompileMode {
+        /** Compile every program in {@link Renderer#init(Window)} */
+        EAGER,
+        /** Compile each program the first time it is selected */
+        LAZY,
+        /** Compile the default program in init and the others on a background context */
+        BACKGROUND
+    }
 
-    private static final float Z_NEAR = 0.01f;
+    private final ShaderLibrary shaderLibrary;
 
-    private static final float Z_FAR = 1000.f;
+    private ShaderCompileMode shaderCompileMode = ShaderCompileMode.EAGER;
 
-    private final Transformation transformation;
+    private final float specularPower;
 
-    private LinkedHashMap<String,ShaderProgram> shaderProgramList;
+    private final ShaderCache shaderCache;
 
-    private final float specularPower;
+    /** Shaders that also loop over the clustered point lights */
+    private static final Set<String> CLUSTERED_SHADERS = new HashSet<>(Arrays.asList(
+            "phong", "gouraud", "checkerboard", "texture-modulated", "cel", "hatching"));
+
+    /** Profiler pass names, built once so a frame does not concatenate them */
+    private static final Map<RenderPath, String> FRAME_PASSES = new EnumMap<>(RenderPath.class);
+
+    static {
+        for (RenderPath path : RenderPath.values()) {
+            FRAME_PASSES.put(path, "frame:" + path.name().toLowerCase());
+        }
+    }
+
+    private final Map<String, String> setupPasses = new HashMap<>();
+
+    private final Map<String, String> drawPasses = new HashMap<>();
+
+    private LightClusterGrid lightClusterGrid;
+
+    private static final PointLight[] NO_LIGHTS = new PointLight[0];
+
+    /**
+     * How the scene is shaded.
+     */
+    public enum RenderPath {
+        /** Shade the fragments of each item while it is drawn */
+        FORWARD,
+        /** Write a G-buffer first and shade each pixel once, see {@link DeferredRenderer} */
+        DEFERRED
+    }
+
+    private RenderPath renderPath = RenderPath.FORWARD;
+
+    private DeferredRenderer deferredRenderer;
+
+    /** Frames between two reports of the GPU time per render path */
+    private static final int TIMING_REPORT_FRAMES = 120;
+
+    private int frameCount;
+
+    private GpuProfiler profiler;
+
+    private TextOverlay profilerOverlay;
+
+    private boolean showProfiler;
+
+    private final OcclusionCuller occlusionCuller;
+
+    private boolean occlusionCulling;
+
+    private boolean[] visibleItems = new boolean[0];
+
+    private long occludedItems;
+
+    private long testedItems;
+
+    private float occlusionMillis;
+
+    private int occlusionFrames;
+
+    private ScreenCapture screenCapture;
+
+    private ParallelPngWriter pngWriter = new ParallelPngWriter();
+
+    private TextureStreamer textureStreamer;
+
+    private FrameRecorder frameRecorder;
+
+    private JobSystem jobSystem;
+
+    private DynamicResolution dynamicResolution;
+
+    /** GPU time a frame should take with dynamic resolution, 0 if it is off */
+    private float dynamicResolutionTarget;
+
+    private float dynamicResolutionMin;
+
+    private float dynamicResolutionMax;
+
+    /** GPU samples of the frame pass already passed to the dynamic resolution */
+    private int dynamicResolutionSamples;
+
+    /** Items per chunk of the transform job */
+    private static final int TRANSFORM_GRAIN = 64;
+
+    /** On-screen sizes of the drawn items, computed by the transform job for the texture streamer */
+    private float[] screenSizes = new float[0];
+
+    /** Frame rate written to recorded videos when the refresh rate is unknown */
+    private static final int DEFAULT_RECORD_FPS = 60;
 
     private Window window;
         
     public Renderer() {
         transformation = new Transformation();
         specularPower = 4f;
-        shaderProgramList = new LinkedHashMap<>();
+        shaderLibrary = new ShaderLibrary();
+        shaderCache = new ShaderCache(Paths.get(SHADER_CACHE_DIR));
+        occlusionCuller = new OcclusionCuller();
     }
 
-    // Example shader
-    public ShaderProgram createPhongShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
+    /**
+     * Create a shader program from the vertex and fragment shader pair with the given base name,
+     * e.g. <code>phong_vertex.vs</code> and <code>phong_fragment.fs</code>. The linked program
+     * is restored from the binary cache when possible.
+     *
+     * @param name base name of the shader files
+     * @return the linked shader program
+     * @throws Exception if the shader files cannot be read or compiled
+     */
+    private ShaderProgram createShaderProgram(String name) throws Exception {
+        ShaderProgram shaderProgram = new ShaderProgram(name);
+        shaderProgram.setBinaryCache(shaderCache);
 
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/phong_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/phong_fragment.fs"))));
+        shaderProgram.createVertexShader(readShaderSource(name + "_vertex.vs"));
+        shaderProgram.createFragmentShader(readShaderSource(name + "_fragment.fs"));
         shaderProgram.link();
+        return shaderProgram;
+    }
+
+    /**
+     * Read a shader file and replace each <code>#include "file"</code> line with the content
+     * of that file from the shader directory.
+     */
+    private static String readShaderSource(String fileName) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(SHADER_DIR + fileName))) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("#include")) {
+                String included = trimmed.substring(trimmed.indexOf('"') + 1, trimmed.lastIndexOf('"'));
+                sb.append(readShaderSource(included));
+            } else {
+                sb.append(line);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Example shader
+    public ShaderProgram createPhongShader() throws Exception {
+        ShaderProgram shaderProgram = createShaderProgram("phong");
 
         // Create uniforms for modelView and projection matrices and texture
         shaderProgram.createUniform("projectionMatrix");
@@ -78,6 +235,7 @@ public class Renderer {
         shaderProgram.createUniform("ambientLight");
         shaderProgram.createPointLightUniform("pointLight");
         shaderProgram.createDirectionalLightUniform("directionalLight");
+        LightClusterGrid.createUniforms(shaderProgram);
 
         return shaderProgram;
     }
@@ -85,11 +243,7 @@ public class Renderer {
 
     // Skeleton shader
     public ShaderProgram createSkeletonShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/skeleton_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/skeleton_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("skeleton");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -111,11 +265,7 @@ public class Renderer {
     */
 
     public ShaderProgram createGouraudShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/gouraud_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/gouraud_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("gouraud");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -129,16 +279,13 @@ public class Renderer {
         shaderProgram.createUniform("ambientLight");
         shaderProgram.createPointLightUniform("pointLight");
         shaderProgram.createDirectionalLightUniform("directionalLight");
+        LightClusterGrid.createUniforms(shaderProgram);
 
         return shaderProgram;
     }
 
     public ShaderProgram createCheckerboardShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/checkerboard_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/checkerboard_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("checkerboard");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -152,16 +299,13 @@ public class Renderer {
         shaderProgram.createUniform("ambientLight");
         shaderProgram.createPointLightUniform("pointLight");
         shaderProgram.createDirectionalLightUniform("directionalLight");
+        LightClusterGrid.createUniforms(shaderProgram);
 
         return shaderProgram;
     }
     
     public ShaderProgram createTextureShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/texture_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/texture_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("texture");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -169,23 +313,20 @@ public class Renderer {
 
         // Create uniform for material
         shaderProgram.createMaterialUniform("material");
-        shaderProgram.createUniform("texture_sampler");
+        shaderProgram.createMaterialTextureUniforms();
 
         // Create lighting related uniforms
         shaderProgram.createUniform("specularPower");
         shaderProgram.createUniform("ambientLight");
         shaderProgram.createPointLightUniform("pointLight");
         shaderProgram.createDirectionalLightUniform("directionalLight");
+        LightClusterGrid.createUniforms(shaderProgram);
 
         return shaderProgram;
     }
 
     public ShaderProgram createNormalShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/normal_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/normal_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("normal");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -193,7 +334,7 @@ public class Renderer {
 
         // Create uniform for material
         shaderProgram.createMaterialUniform("material");
-        shaderProgram.createUniform("texture_sampler");
+        shaderProgram.createMaterialTextureUniforms();
 
         // Create lighting related uniforms
         shaderProgram.createUniform("specularPower");
@@ -205,11 +346,7 @@ public class Renderer {
     }
 
     public ShaderProgram createCelShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/cel_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/cel_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("cel");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -217,23 +354,20 @@ public class Renderer {
 
         // Create uniform for material
         shaderProgram.createMaterialUniform("material");
-        shaderProgram.createUniform("texture_sampler");
+        shaderProgram.createMaterialTextureUniforms();
 
         // Create lighting related uniforms
         shaderProgram.createUniform("specularPower");
         shaderProgram.createUniform("ambientLight");
         shaderProgram.createPointLightUniform("pointLight");
         shaderProgram.createDirectionalLightUniform("directionalLight");
+        LightClusterGrid.createUniforms(shaderProgram);
 
         return shaderProgram;
     }
 
     public ShaderProgram createGoochShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/gooch_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/gooch_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("gooch");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -252,11 +386,7 @@ public class Renderer {
     }
 
     public ShaderProgram createHatchShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/hatching_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/hatching_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("hatching");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -271,16 +401,13 @@ public class Renderer {
         shaderProgram.createUniform("ambientLight");
         shaderProgram.createPointLightUniform("pointLight");
         shaderProgram.createDirectionalLightUniform("directionalLight");
+        LightClusterGrid.createUniforms(shaderProgram);
 
         return shaderProgram;
     }
 
     public ShaderProgram createSpinShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/spin_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/spin_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("spin");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -301,11 +428,7 @@ public class Renderer {
     }
 
     public ShaderProgram createChangeColorShader() throws Exception {
-        ShaderProgram shaderProgram = new ShaderProgram();
-
-        shaderProgram.createVertexShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/changecolor_vertex.vs"))));
-        shaderProgram.createFragmentShader(new String(Files.readAllBytes(Paths.get("src/resources/shaders/changecolor_fragment.fs"))));
-        shaderProgram.link();
+        ShaderProgram shaderProgram = createShaderProgram("changecolor");
 
         // Create uniforms for modelView and projection matrices
         shaderProgram.createUniform("projectionMatrix");
@@ -335,27 +458,95 @@ public class Renderer {
      */
     public void init(Window window) throws Exception {
     	this.window = window;
+        lightClusterGrid = new LightClusterGrid();
+        profiler = new GpuProfiler();
+        screenCapture = new ScreenCapture(pngWriter);
     	
         // Create our example shader
-        shaderProgramList.put("phong", createPhongShader());
-        shaderProgramList.put("skeleton", createSkeletonShader());
+        shaderLibrary.register("phong", this::createPhongShader);
+        shaderLibrary.register("skeleton", this::createSkeletonShader);
 
         // Student code: add your shaders here
         // ...
-        shaderProgramList.put("gouraud", createGouraudShader());      
-        shaderProgramList.put("checkerboard", createCheckerboardShader()); 
-        shaderProgramList.put("texture-modulated", createTextureShader());    
-        shaderProgramList.put("normal", createNormalShader());
-        shaderProgramList.put("cel", createCelShader()); 
-        shaderProgramList.put("gooch", createGoochShader());    
-        shaderProgramList.put("hatching", createHatchShader());
-        shaderProgramList.put("spin", createSpinShader()); 
-        shaderProgramList.put("changecolor", createChangeColorShader()); 
+        shaderLibrary.register("gouraud", this::createGouraudShader);
+        shaderLibrary.register("checkerboard", this::createCheckerboardShader);
+        shaderLibrary.register("texture-modulated", this::createTextureShader);
+        shaderLibrary.register("normal", this::createNormalShader);
+        shaderLibrary.register("cel", this::createCelShader);
+        shaderLibrary.register("gooch", this::createGoochShader);
+        shaderLibrary.register("hatching", this::createHatchShader);
+        shaderLibrary.register("spin", this::createSpinShader);
+        shaderLibrary.register("changecolor", this::createChangeColorShader);
+        for (int i = 0; i < shaderLibrary.size(); i++) {
+            String name = shaderLibrary.getName(i);
+            setupPasses.put(name, "setup:" + name);
+            drawPasses.put(name, "draw:" + name);
+        }
+
+        switch (shaderCompileMode) {
+            case EAGER:
+                shaderLibrary.compileAll();
+                break;
+            case LAZY:
+                shaderLibrary.getBlocking(getShaderName(0));
+                break;
+            case BACKGROUND:
+                shaderLibrary.getBlocking(getShaderName(0));
+                shaderLibrary.startWarmup(window.createSharedContext());
+                break;
+        }
+    }
+
+    /**
+     * Select when the shader programs are compiled. Must be called before {@link #init(Window)}.
+     *
+     * @param shaderCompileMode the compile mode, {@link ShaderCompileMode#EAGER} by default
+     */
+    public void setShaderCompileMode(ShaderCompileMode shaderCompileMode) {
+        this.shaderCompileMode = shaderCompileMode;
+    }
+
+    /**
+     * Select the compression level and row filter of the screenshots. Must be called before
+     * {@link #init(Window)}.
+     *
+     * @param pngWriter the writer, the default deflate level with adaptive filtering by default
+     */
+    public void setPngWriter(ParallelPngWriter pngWriter) {
+        this.pngWriter = pngWriter;
+    }
+
+    /**
+     * Switch between forward and deferred shading. The deferred shaders are compiled the first
+     * time the deferred path is rendered.
+     */
+    public void setRenderPath(RenderPath renderPath) {
+        this.renderPath = renderPath;
+    }
+
+    public RenderPath getRenderPath() {
+        return renderPath;
+    }
+
+    /**
+     * Enable the software occlusion culling stage. Only items marked with
+     * {@link GameItem#setOccluder(boolean)} can hide other items.
+     */
+    public void setOcclusionCulling(boolean occlusionCulling) {
+        this.occlusionCulling = occlusionCulling;
+    }
+
+    public boolean isOcclusionCulling() {
+        return occlusionCulling;
     }
 
-    public int getNumShaders() { return shaderProgramList.size(); }
+    public OcclusionCuller getOcclusionCuller() {
+        return occlusionCuller;
+    }
+
+    public int getNumShaders() { return shaderLibrary.size(); }
 
-    public String getShaderName(int ind) { return new ArrayList<String>(shaderProgramList.keySet()).get(ind); }
+    public String getShaderName(int ind) { return shaderLibrary.getName(ind); }
 
     public void clear() {
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
@@ -363,8 +554,47 @@ public class Renderer {
 
     public void render(Window window, Camera camera, GameItem[] gameItems, Vector3f ambientLight,
         PointLight pointLight, DirectionalLight directionalLight, String currentShader) {
-        
+        render(window, camera, gameItems, ambientLight, pointLight, NO_LIGHTS, directionalLight, currentShader);
+    }
+
+    /**
+     * Render the scene with additional point lights. The shaders listed in {@link #CLUSTERED_SHADERS}
+     * bin them into a {@link LightClusterGrid} and only evaluate the lights of each fragment's cluster;
+     * the other shaders ignore them.
+     *
+     * @param pointLights additional point lights in world coordinates
+     */
+    public void render(Window window, Camera camera, GameItem[] gameItems, Vector3f ambientLight,
+        PointLight pointLight, PointLight[] pointLights, DirectionalLight directionalLight, String currentShader) {
+        RenderPath path = renderPath;
+        frameCount++;
+        if (frameCount % TIMING_REPORT_FRAMES == 0) {
+            reportGpuTime();
+        }
+        profiler.nextFrame();
+        profiler.begin(FRAME_PASSES.get(path));
+
+        if (screenCapture.isBusy()) {
+            // reads the previous frame, so it has to come before the clear
+            profiler.begin("screenshot");
+            screenCapture.update();
+            profiler.end();
+        }
+        if (frameRecorder != null) {
+            profiler.begin("record");
+            frameRecorder.capture(window.getReadBuffer(), window.getBufferWidth(), window.getBufferHeight());
+            profiler.end();
+        }
+
+        if (textureStreamer != null) {
+            profiler.begin("texture-stream");
+            textureStreamer.update();
+            profiler.end();
+        }
+
+        profiler.begin("clear");
     	clear();
+        profiler.end();
         
         if ( window.isResized() ) {
         	// if needed, do sth. to respond to the window size change
@@ -372,14 +602,65 @@ public class Renderer {
         	glViewport(0, 0, window.getBufferWidth(), window.getBufferHeight());
         }
         
-        ShaderProgram shaderProgram = shaderProgramList.get(currentShader);
-        shaderProgram.bind();
+        if (shaderCompileMode == ShaderCompileMode.BACKGROUND) {
+            // only does work when no shared context was available for the worker
+            shaderLibrary.warmupStep();
+        }
+
+        boolean scaled = beginScaledScene(FRAME_PASSES.get(path));
+        int sceneWidth = scaled ? dynamicResolution.getSceneWidth() : window.getBufferWidth();
+        int sceneHeight = scaled ? dynamicResolution.getSceneHeight() : window.getBufferHeight();
 
         // Update view Matrix
         Matrix4f viewMatrix = transformation.getViewMatrix(camera);
         // Update projection Matrix
         Matrix4f projectionMatrix = transformation.getProjectionMatrix(FOV, window.getWidth(), window.getHeight(), Z_NEAR, Z_FAR);
 
+        if (occlusionCulling) {
+            profiler.begin("occlusion");
+            gameItems = cullOccluded(gameItems, viewMatrix, projectionMatrix);
+            profiler.end();
+        }
+        // with a job system, the model view matrices of the forward path and the streaming requests
+        // are computed on its workers while the shader is set up
+        int matrixOffset = jobSystem != null && path == RenderPath.FORWARD
+                ? jobSystem.getFrameAllocator().allocate(16 * gameItems.length) : -1;
+        JobSystem.Job transformJob = null;
+        JobSystem.Job streamJob = null;
+        if (matrixOffset >= 0) {
+            transformJob = declareTransformJob(gameItems, viewMatrix, projectionMatrix, sceneHeight, matrixOffset);
+            if (textureStreamer != null) {
+                GameItem[] items = gameItems;
+                streamJob = jobSystem.submit("stream-requests", () -> requestTextureSizes(items), transformJob);
+            }
+        } else if (textureStreamer != null) {
+            // the mip levels the next update streams in
+            for (GameItem gameItem : gameItems) {
+                Material material = gameItem.getMesh().getMaterial();
+                if (material.getTexture() != null) {
+                    textureStreamer.requestSize(material.getTexture(), Transformation.getScreenSize(gameItem,
+                            viewMatrix, projectionMatrix, sceneHeight));
+                }
+            }
+        }
+
+        if (path == RenderPath.DEFERRED && renderDeferred(sceneWidth, sceneHeight, gameItems, viewMatrix,
+                projectionMatrix, ambientLight, pointLight, pointLights, directionalLight, currentShader)) {
+            presentScaledScene(scaled);
+            renderProfilerOverlay();
+            profiler.end();
+            return;
+        }
+
+        ShaderProgram shaderProgram = shaderLibrary.get(currentShader);
+        if (shaderProgram == null) {
+            // still compiling in the background: keep drawing with the default shader
+            currentShader = getShaderName(0);
+            shaderProgram = shaderLibrary.get(currentShader);
+        }
+        profiler.begin(setupPasses.computeIfAbsent(currentShader, name -> "setup:" + name));
+        shaderProgram.bind();
+
         // Provided example: Phong shading
         if(currentShader.equals("phong")) {
             shaderProgram.setUniform("projectionMatrix", projectionMatrix);
@@ -635,19 +916,38 @@ public class Renderer {
             shaderProgram.setUniform("directionalLight", currDirLight);
         }
 
+        if (CLUSTERED_SHADERS.contains(currentShader)) {
+            boolean clustered = pointLights.length > 0;
+            if (clustered) {
+                lightClusterGrid.update(pointLights, viewMatrix, projectionMatrix, Z_NEAR, Z_FAR);
+            }
+            lightClusterGrid.setUniforms(shaderProgram, clustered);
+        }
+        profiler.end();
+
         // Render each gameItem
-        for(GameItem gameItem : gameItems) {
+        profiler.begin(drawPasses.computeIfAbsent(currentShader, name -> "draw:" + name));
+        Matrix4f modelViewMatrix = new Matrix4f();
+        if (transformJob != null) {
+            jobSystem.await(transformJob);
+        }
+        for (int i = 0; i < gameItems.length; i++) {
+            GameItem gameItem = gameItems[i];
             Mesh mesh = gameItem.getMesh();
             
             // Set model view matrix for this item
-            Matrix4f modelViewMatrix = transformation.getModelViewMatrix(gameItem, viewMatrix);
+            if (transformJob != null) {
+                modelViewMatrix.set(jobSystem.getFrameAllocator().getFloats(), matrixOffset + 16 * i);
+            } else {
+                modelViewMatrix = transformation.getModelViewMatrix(gameItem, viewMatrix);
+            }
             shaderProgram.setUniform("modelViewMatrix", modelViewMatrix); 
 
             shaderProgram.setUniform("material", mesh.getMaterial());
 
             if (mesh.getMaterial().isTextured()){
                 if(currentShader.equals("texture-modulated") || currentShader.equals("normal") || currentShader.equals("cel")) {
-                    shaderProgram.setUniform("texture_sampler",  mesh.getMaterial().getTexture());
+                    shaderProgram.setMaterialTexture(mesh.getMaterial());
                 }
             }
             // Render the mesh for this game item
@@ -655,43 +955,408 @@ public class Renderer {
         }
 
         shaderProgram.unbind();
+        profiler.end();
+
+        if (streamJob != null) {
+            jobSystem.await(streamJob);
+        }
+        presentScaledScene(scaled);
+        renderProfilerOverlay();
+        profiler.end();
     }
 
-    public void cleanup() {
-        for (ShaderProgram shaderProgram : shaderProgramList.values()) {
-            if(shaderProgram != null) {
-                shaderProgram.cleanup();
+    /**
+     * Declare the job computing the model view matrices of the items into the frame allocator,
+     * starting at the given offset, and their on-screen sizes if textures are streamed.
+     */
+    private JobSystem.Job declareTransformJob(GameItem[] gameItems, Matrix4f viewMatrix,
+            Matrix4f projectionMatrix, int viewportHeight, int offset) {
+        boolean streaming = textureStreamer != null;
+        if (streaming && screenSizes.length < gameItems.length) {
+            screenSizes = new float[gameItems.length];
+        }
+        float[] floats = jobSystem.getFrameAllocator().getFloats();
+        float[] sizes = screenSizes;
+        return jobSystem.parallelFor("transforms", 0, gameItems.length, TRANSFORM_GRAIN, (from, to) -> {
+            Matrix4f modelView = new Matrix4f();
+            for (int i = from; i < to; i++) {
+                Transformation.getModelViewMatrix(gameItems[i], viewMatrix, modelView).get(floats, offset + 16 * i);
+                if (streaming) {
+                    sizes[i] = Transformation.getScreenSize(gameItems[i], viewMatrix, projectionMatrix,
+                            viewportHeight);
+                }
+            }
+        });
+    }
+
+    /**
+     * Pass the sizes computed by the transform job to the texture streamer, which is not thread-safe
+     * and so gets them from one job.
+     */
+    private void requestTextureSizes(GameItem[] gameItems) {
+        for (int i = 0; i < gameItems.length; i++) {
+            Material material = gameItems[i].getMesh().getMaterial();
+            if (material.getTexture() != null) {
+                textureStreamer.requestSize(material.getTexture(), screenSizes[i]);
+            }
+        }
+    }
+
+    /**
+     * Draw the profiler statistics over the frame if they are shown.
+     */
+    private void renderProfilerOverlay() {
+        if (!showProfiler) {
+            return;
+        }
+        if (profilerOverlay == null) {
+            try {
+                ShaderProgram shaderProgram = createShaderProgram("overlay");
+                shaderProgram.createUniform("screenSize");
+                shaderProgram.createUniform("scale");
+                shaderProgram.createUniform("colour");
+                profilerOverlay = new TextOverlay(shaderProgram);
+            } catch (Exception excp) {
+                System.err.println("Renderer: could not create the profiler overlay");
+                excp.printStackTrace();
+                showProfiler = false;
+                return;
+            }
+        }
+        profiler.begin("overlay");
+        String text = profiler.report();
+        if (!profiler.hasGpuTimers()) {
+            text += "GPU timer queries are not supported\n";
+        }
+        text += TextureManager.getShared().report() + "\n";
+        if (textureStreamer != null) {
+            text += textureStreamer.report() + "\n";
+        }
+        if (jobSystem != null) {
+            text += jobSystem.report() + "\n";
+        }
+        if (dynamicResolution != null && dynamicResolutionTarget > 0) {
+            text += dynamicResolution.report() + "\n";
+        }
+        profilerOverlay.render(text, 10, 10, window.getBufferWidth(), window.getBufferHeight());
+        profiler.end();
+    }
+
+    /**
+     * Run the occlusion culling stage and return the items that have to be drawn. The culled counts
+     * and the stage time are accumulated and reported every {@link #TIMING_REPORT_FRAMES} frames.
+     */
+    private GameItem[] cullOccluded(GameItem[] gameItems, Matrix4f viewMatrix, Matrix4f projectionMatrix) {
+        if (visibleItems.length < gameItems.length) {
+            visibleItems = new boolean[gameItems.length];
+        }
+        int culled = occlusionCuller.cull(gameItems, viewMatrix, projectionMatrix, visibleItems);
+        occludedItems += culled;
+        testedItems += occlusionCuller.getNumTested();
+        occlusionMillis += occlusionCuller.getLastRasterMillis() + occlusionCuller.getLastTestMillis();
+        occlusionFrames++;
+        if (frameCount % TIMING_REPORT_FRAMES == 0) {
+            System.out.println(String.format("Renderer: occlusion culled %.1f of %.1f items per frame in %.3f ms"
+                    + " (%d occluder triangles)", occludedItems / (float) occlusionFrames,
+                    testedItems / (float) occlusionFrames, occlusionMillis / occlusionFrames,
+                    occlusionCuller.getNumOccluderTriangles()));
+            occludedItems = 0;
+            testedItems = 0;
+            occlusionMillis = 0;
+            occlusionFrames = 0;
+        }
+        if (culled == 0) {
+            return gameItems;
+        }
+        GameItem[] drawn = new GameItem[gameItems.length - culled];
+        int n = 0;
+        for (int i = 0; i < gameItems.length; i++) {
+            if (visibleItems[i]) {
+                drawn[n++] = gameItems[i];
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Render the scene with the deferred path, lit with the model of the selected forward shader.
+     *
+     * @return false if the deferred shaders could not be created and the forward path has to be used
+     */
+    private boolean renderDeferred(int width, int height, GameItem[] gameItems, Matrix4f viewMatrix,
+        Matrix4f projectionMatrix,
+        Vector3f ambientLight, PointLight pointLight, PointLight[] pointLights, DirectionalLight directionalLight,
+        String currentShader) {
+        if (deferredRenderer == null) {
+            try {
+                deferredRenderer = new DeferredRenderer(createGBufferShader(), createDeferredLightingShader(),
+                        window.getBufferWidth(), window.getBufferHeight());
+                deferredRenderer.setProfiler(profiler);
+            } catch (Exception excp) {
+                System.err.println("Renderer: could not create deferred shaders, using forward rendering");
+                excp.printStackTrace();
+                renderPath = RenderPath.FORWARD;
+                return false;
+            }
+        }
+
+        LightClusterGrid clusters = null;
+        if (pointLights.length > 0) {
+            lightClusterGrid.update(pointLights, viewMatrix, projectionMatrix, Z_NEAR, Z_FAR);
+            clusters = lightClusterGrid;
+        }
+        deferredRenderer.render(width, height, gameItems, viewMatrix,
+                projectionMatrix, ambientLight, pointLight, directionalLight, specularPower, clusters,
+                DeferredRenderer.shadingModel(currentShader));
+        return true;
+    }
+
+    /**
+     * Bind the offscreen framebuffer of the dynamic resolution if it is on, after passing it the GPU
+     * time of the latest measured frame.
+     *
+     * @param framePass the profiler pass around the whole frame
+     * @return false if the scene is drawn to the window directly
+     */
+    private boolean beginScaledScene(String framePass) {
+        if (dynamicResolutionTarget <= 0) {
+            return false;
+        }
+        if (dynamicResolution == null) {
+            try {
+                dynamicResolution = new DynamicResolution(createUpscaleShader(), dynamicResolutionMin,
+                        dynamicResolutionMax, dynamicResolutionTarget);
+            } catch (Exception excp) {
+                System.err.println("Renderer: could not create the upscale shader, drawing at full resolution");
+                excp.printStackTrace();
+                dynamicResolutionTarget = 0;
+                return false;
             }
         }
+        GpuProfiler.PassStats stats = profiler.getStats(framePass);
+        if (stats != null && stats.getTotalGpuSamples() != dynamicResolutionSamples) {
+            dynamicResolutionSamples = stats.getTotalGpuSamples();
+            dynamicResolution.update(stats.getLatestGpuMillis());
+        }
+        dynamicResolution.beginScene(window.getBufferWidth(), window.getBufferHeight());
+        return true;
+    }
+
+    private void presentScaledScene(boolean scaled) {
+        if (scaled) {
+            profiler.begin("upscale");
+            dynamicResolution.present(window.getBufferWidth(), window.getBufferHeight());
+            profiler.end();
+        }
+    }
+
+    public ShaderProgram createUpscaleShader() throws Exception {
+        ShaderProgram shaderProgram = createShaderProgram("upscale");
+
+        shaderProgram.createUniform("sceneTexture");
+        shaderProgram.createUniform("uvScale");
+        shaderProgram.createUniform("texelSize");
+        shaderProgram.createUniform("sharpness");
+
+        return shaderProgram;
+    }
+
+    public ShaderProgram createGBufferShader() throws Exception {
+        ShaderProgram shaderProgram = createShaderProgram("gbuffer");
+
+        // Create uniforms for modelView and projection matrices
+        shaderProgram.createUniform("projectionMatrix");
+        shaderProgram.createUniform("modelViewMatrix");
+
+        // Create uniform for material
+        shaderProgram.createMaterialUniform("material");
+        shaderProgram.createMaterialTextureUniforms();
+        shaderProgram.createUniform("shadingModel");
+
+        return shaderProgram;
+    }
+
+    public ShaderProgram createDeferredLightingShader() throws Exception {
+        ShaderProgram shaderProgram = createShaderProgram("deferred");
+
+        // Create uniforms for the G-buffer attachments
+        shaderProgram.createUniform("gPosition");
+        shaderProgram.createUniform("gNormal");
+        shaderProgram.createUniform("gAlbedo");
+        shaderProgram.createUniform("gMaterial");
+
+        // Create lighting related uniforms
+        shaderProgram.createUniform("specularPower");
+        shaderProgram.createUniform("ambientLight");
+        shaderProgram.createPointLightUniform("pointLight");
+        shaderProgram.createDirectionalLightUniform("directionalLight");
+        shaderProgram.createUniform("uWarmColor");
+        shaderProgram.createUniform("uCoolColor");
+        shaderProgram.createUniform("uDiffuseWarm");
+        shaderProgram.createUniform("uDiffuseCool");
+        LightClusterGrid.createUniforms(shaderProgram);
+
+        return shaderProgram;
+    }
+
+    /**
+     * Print the rolling GPU time of both render paths for comparison.
+     */
+    private void reportGpuTime() {
+        StringBuilder sb = new StringBuilder("Renderer: GPU time per frame");
+        for (RenderPath path : RenderPath.values()) {
+            GpuProfiler.PassStats stats = profiler.getStats(FRAME_PASSES.get(path));
+            if (stats != null && stats.getGpuSamples() > 0) {
+                sb.append(String.format(", %s %.3f ms (p95 %.3f ms)", path.name().toLowerCase(),
+                        stats.getGpuAverageMillis(), stats.getGpuPercentileMillis(95)));
+            }
+        }
+        if (dynamicResolution != null && dynamicResolutionTarget > 0) {
+            sb.append(String.format(", resolution scale %.3f", dynamicResolution.getScale()));
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * @return the profiler timing the passes of {@link #render}
+     */
+    public GpuProfiler getProfiler() {
+        return profiler;
+    }
+
+    public void setShowProfiler(boolean showProfiler) {
+        this.showProfiler = showProfiler;
+    }
+
+    public boolean isShowProfiler() {
+        return showProfiler;
+    }
+
+    public void cleanup() {
+        stopRecording();
+        if (screenCapture != null) {
+            screenCapture.cleanup();
+        }
+        shaderLibrary.cleanup();
+        if (lightClusterGrid != null) {
+            lightClusterGrid.cleanup();
+        }
+        if (deferredRenderer != null) {
+            deferredRenderer.cleanup();
+        }
+        if (dynamicResolution != null) {
+            System.out.println(dynamicResolution.report());
+            dynamicResolution.cleanup();
+        }
+        if (profilerOverlay != null) {
+            profilerOverlay.cleanup();
+        }
+        if (profiler != null) {
+            profiler.cleanup();
+        }
+    }
+
+    public LightClusterGrid getLightClusterGrid() {
+        return lightClusterGrid;
     }
     
+    /**
+     * Record every following frame until {@link #stopRecording()}.
+     *
+     * @param output directory for a PNG sequence or file for a Y4M video
+     * @see FrameRecorder
+     */
+    public void startRecording(File output, FrameRecorder.Format format, FrameRecorder.Policy policy)
+            throws IOException {
+        stopRecording();
+        int fps = window.getRefreshRate() > 0 ? window.getRefreshRate() : DEFAULT_RECORD_FPS;
+        frameRecorder = new FrameRecorder(output, format, policy, fps);
+        System.out.println("recording to " + output);
+    }
+
+    /**
+     * Finish the frames in flight and print the recording report.
+     */
+    public void stopRecording() {
+        if (frameRecorder != null) {
+            frameRecorder.stop();
+            frameRecorder = null;
+        }
+    }
+
+    /**
+     * Stream the textures of the given streamer according to the on-screen size of the items that
+     * use them. The streamer stays owned by the caller.
+     *
+     * @param textureStreamer the streamer, or null to stop streaming
+     */
+    public void setTextureStreamer(TextureStreamer textureStreamer) {
+        this.textureStreamer = textureStreamer;
+    }
+
+    public TextureStreamer getTextureStreamer() {
+        return textureStreamer;
+    }
+
+    /**
+     * Compute the per-item work of the forward path on the workers of the given job system, which
+     * stays owned by the caller and has to start a frame before every {@link #render}.
+     *
+     * @param jobSystem the job system, or null to do the work on the calling thread
+     */
+    public void setJobSystem(JobSystem jobSystem) {
+        this.jobSystem = jobSystem;
+    }
+
+    public JobSystem getJobSystem() {
+        return jobSystem;
+    }
+
+    /**
+     * Draw the scene at a resolution that adapts to hold the GPU time of a frame at the target, and
+     * scale it up to the window. See {@link DynamicResolution}. Must be called on the render thread
+     * once the renderer is initialized, as it may release the GL objects of the previous setting.
+     *
+     * @param minScale the smallest scale of each axis
+     * @param maxScale the largest scale of each axis, at most 1
+     * @param targetMillis the GPU time a frame should take, 0 to draw at full resolution again
+     */
+    public void setDynamicResolution(float minScale, float maxScale, float targetMillis) {
+        if (dynamicResolution != null) {
+            dynamicResolution.cleanup();
+            dynamicResolution = null;
+        }
+        dynamicResolutionMin = minScale;
+        dynamicResolutionMax = maxScale;
+        dynamicResolutionTarget = targetMillis;
+    }
+
+    /**
+     * @return the dynamic resolution, or null if it is off or not created yet
+     */
+    public DynamicResolution getDynamicResolution() {
+        return dynamicResolutionTarget > 0 ? dynamicResolution : null;
+    }
+
+    public boolean isRecording() {
+        return frameRecorder != null;
+    }
+
     private static int imgcount = 0;
 
     public void writePNG() throws HeadlessException{
-    	glPixelStorei(GL_PACK_ALIGNMENT, 1);
-    	glReadBuffer(GL_FRONT);
-    	
-		final int width = window.getBufferWidth();
-		final int height= window.getBufferHeight();
-
-		int bpp = 4; // Assuming a 32-bit display with a byte each for red, green, blue, and alpha.
-		ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * bpp);
-		glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
-		ImageInfo imi = new ImageInfo(width, height, 8, false);
-        PngWriter png = new PngWriter(new File("screenshot"+imgcount+".png"), imi , true);
-        
-        ImageLineInt iline = new ImageLineInt(imi);        
-		for(int row = 0; row < imi.rows; row++){
-	        for (int col = 0; col < imi.cols; col++) { // this line will be written to all rows
-				int i = (col + (width * (imi.rows-row-1))) * bpp;
-				int r = buffer.get(i) & 0xFF;
-				int g = buffer.get(i + 1) & 0xFF;
-				int b = buffer.get(i + 2) & 0xFF;
-	            ImageLineHelper.setPixelRGB8(iline, col, r, g, b); 
-	        }
-	        png.writeRow(iline);
-		}
-        png.end();
+    	writePNG(new File("screenshot"+imgcount+".png"));
     	imgcount=imgcount+1;
     }
+
+    /**
+     * Write the last finished frame to the given PNG file. The frame is read back asynchronously
+     * at the start of the next {@link #render} and encoded on a worker thread.
+     *
+     * @param file the output file
+     * @see ScreenCapture
+     */
+    public void writePNG(File file) {
+        screenCapture.request(file, window.getReadBuffer(), window.getBufferWidth(), window.getBufferHeight());
+    }
 }
@@ -1,19 +1,34 @@
 package w4160.game;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 import org.joml.Vector2f;
 import org.joml.Vector3f;
-import org.lwjgl.glfw.GLFWKeyCallback;
 
+import w4160.engine.GameEngine;
 import w4160.engine.GameItem;
 import w4160.engine.IControlLogic;
+import w4160.engine.ISnapshotLogic;
+import w4160.engine.JobSystem;
 import w4160.engine.MouseInput;
+import w4160.engine.SceneSnapshot;
 import w4160.engine.Window;
 import w4160.engine.graphics.Camera;
 import w4160.engine.graphics.DirectionalLight;
+import w4160.engine.graphics.FrameRecorder;
 import w4160.engine.graphics.Material;
 import w4160.engine.graphics.Mesh;
 import w4160.engine.graphics.OBJLoader;
 import w4160.engine.graphics.PointLight;
+import w4160.engine.graphics.TextureArrayBuilder;
+import w4160.engine.graphics.TextureManager;
+import w4160.engine.graphics.TextureStreamer;
 
 import static org.lwjgl.glfw.GLFW.*;
 
@@ -25,7 +40,7 @@ import static org.lwjgl.glfw.GLFW.*;
  * 
  * @see IControlLogic
  */
-public class SimpleGame implements IControlLogic {
+public class SimpleGame implements ISnapshotLogic {
 
     private static final float MOUSE_SENSITIVITY 	= 0.25f;
     
@@ -48,10 +63,29 @@ public class SimpleGame implements IControlLogic {
     /** Array of items in the game */
     private GameItem[] gameItems;
 
+    /** Copies of the items, camera and lights that are drawn when the updates run on their own thread */
+    private GameItem[] renderItems;
+
+    private Camera renderCamera;
+
+    private PointLight renderPointLight;
+
+    private PointLight[] renderPointLights = new PointLight[0];
+
+    private DirectionalLight renderDirectionalLight;
+
     private Vector3f ambientLight;
 
     private PointLight pointLight;
 
+    /** Additional point lights shaded through the clustered light grid */
+    private final List<PointLight> pointLights;
+
+    private PointLight[] pointLightArray;
+
+    /** Number of point lights added by each press of L */
+    private static final int POINT_LIGHT_BATCH = 256;
+
     private DirectionalLight directionalLight;
 
     private float lightAngle;
@@ -65,6 +99,37 @@ public class SimpleGame implements IControlLogic {
 
     private String[] meshFile = null;
 
+    /** Number of recordings started, used to name the output */
+    private int recordingCount;
+
+    /** Smallest resolution scale per axis of the dynamic resolution */
+    private static final float MIN_RESOLUTION_SCALE = 0.5f;
+
+    /** Frame rate the dynamic resolution holds, 0 while it is off */
+    private float dynamicResolutionFps;
+
+    /** Whether the texture of the model is put into a texture array instead of a texture of its own */
+    private boolean textureArrays;
+
+    /** Owns the texture arrays of the scene, null unless they are used */
+    private TextureArrayBuilder textureArrayBuilder;
+
+    /** Whether the fine mip levels of the texture of the model are streamed in as needed */
+    private boolean textureStreaming;
+
+    /** Streams the textures of the scene, null unless they are streamed */
+    private TextureStreamer textureStreamer;
+
+    /** Mouse drag collected by input and not yet applied by update */
+    private final Vector2f pendingRotation = new Vector2f();
+
+    /**
+     * Changes to the renderer and the meshes asked for by input, run before the next frame is drawn.
+     * The input runs on the update thread when the updates have one, and only the render thread
+     * may touch OpenGL.
+     */
+    private final Queue<Runnable> renderCommands = new ConcurrentLinkedQueue<>();
+
     /** 
      * Constructor of SimpleGame using the default mesh, which is a Cube. 
      * 
@@ -78,6 +143,8 @@ public class SimpleGame implements IControlLogic {
         lightAngle = -90;
         currentObj=0;
         currentShaderIndex=0;
+        pointLights = new ArrayList<>();
+        pointLightArray = new PointLight[0];
     }
     
     /** 
@@ -97,9 +164,48 @@ public class SimpleGame implements IControlLogic {
         lightAngle = -90;
         currentObj=0;
         this.meshFile = parts;
+        pointLights = new ArrayList<>();
+        pointLightArray = new PointLight[0];
     }
     
     
+    /**
+     * Draw the scene at the resolution that holds the given frame rate, see
+     * {@link Renderer#setDynamicResolution}. Z switches it off and on while running.
+     *
+     * @param fps the frame rate to hold, 0 for full resolution
+     */
+    public void setDynamicResolution(float fps) {
+        dynamicResolutionFps = fps;
+    }
+
+    private void applyDynamicResolution() {
+        renderer.setDynamicResolution(MIN_RESOLUTION_SCALE, 1f,
+                dynamicResolutionFps > 0 ? 1000f / dynamicResolutionFps : 0f);
+    }
+
+    /**
+     * Texture the model through a layer of a texture array, see {@link TextureArrayBuilder}.
+     */
+    public void setTextureArrays(boolean textureArrays) {
+        this.textureArrays = textureArrays;
+    }
+
+    /**
+     * Stream the fine mip levels of the texture of the model by its size on screen, see
+     * {@link TextureStreamer}.
+     */
+    public void setTextureStreaming(boolean textureStreaming) {
+        this.textureStreaming = textureStreaming;
+    }
+
+    /**
+     * Let the renderer spread its per-item work over the workers of the given job system.
+     */
+    public void setJobSystem(JobSystem jobSystem) {
+        renderer.setJobSystem(jobSystem);
+    }
+
     @Override
     public void init(Window window) throws Exception {
         float reflectance = 1f;
@@ -114,6 +220,15 @@ public class SimpleGame implements IControlLogic {
             if (meshFile.length == 1){
                 material = new Material(new Vector3f(0.4f, 0.8f, 1f), reflectance);
             }
+            else if (textureStreaming) {
+                textureStreamer = new TextureStreamer();
+                material = new Material(textureStreamer, meshFile[1], reflectance);
+            }
+            else if (textureArrays) {
+                textureArrayBuilder = new TextureArrayBuilder();
+                textureArrayBuilder.add(meshFile[1]);
+                material = new Material(textureArrayBuilder.build().get(meshFile[1]), reflectance);
+            }
             else{
                 material = new Material(meshFile[1], reflectance);
             }
@@ -125,7 +240,10 @@ public class SimpleGame implements IControlLogic {
         gameItem.setPosition(0.1f, -0.5f, -2);
         gameItems = new GameItem[]{gameItem};
 
+        renderer.setShaderCompileMode(Renderer.ShaderCompileMode.BACKGROUND);
         renderer.init(window);
+        renderer.setTextureStreamer(textureStreamer);
+        applyDynamicResolution();
         
         ambientLight = new Vector3f(0.3f, 0.3f, 0.3f);
         Vector3f lightColour = new Vector3f(1, 1, 1);
@@ -139,18 +257,7 @@ public class SimpleGame implements IControlLogic {
         lightColour = new Vector3f(1, 1, 1);
         directionalLight = new DirectionalLight(lightColour, lightPosition, lightIntensity);
         
-
-        // Setup a key callback. It will be called every time a key is pressed, repeated or released.
-        glfwSetKeyCallback(window.getWindowHandle(), new GLFWKeyCallback() {
-            @Override
-            public void invoke(long windowHandle, int key, int scancode, int action, int mods) {
-                if (key == GLFW_KEY_ESCAPE && action == GLFW_RELEASE) {
-                    glfwSetWindowShouldClose(windowHandle, true);
-                } else {
-                	respond_key_action(windowHandle, key, scancode, action, mods);
-                }
-            }
-        });
+        // the key events come through MouseInput, which calls respond_key_action on the thread running input
     }
 
     /**
@@ -164,7 +271,9 @@ public class SimpleGame implements IControlLogic {
     public void respond_key_action(long window, int key, int scancode, int action, int mods) {
     	if ( action == GLFW_RELEASE ) {
     		
-	    	if( key == GLFW_KEY_SPACE ) {
+	    	if( key == GLFW_KEY_ESCAPE ) {
+	    		glfwSetWindowShouldClose(window, true);
+	    	} else if( key == GLFW_KEY_SPACE ) {
 	            // select current shader
 	            currentShaderIndex = currentShaderIndex + 1;
 	            currentShaderIndex = currentShaderIndex % renderer.getNumShaders();
@@ -182,15 +291,96 @@ public class SimpleGame implements IControlLogic {
 	    		System.out.println("currently selected object ID: " + currentObj);
 	    	} else if( key == GLFW_KEY_1 ) {
 	    		//get screenshot
-	    		renderer.writePNG();
+	    		renderCommands.add(renderer::writePNG);
+	    	}
+	    	else if( key == GLFW_KEY_N || key == GLFW_KEY_M ) {
+	    		//record the following frames as PNG sequence (N) or Y4M video (M)
+	    		FrameRecorder.Format format = key == GLFW_KEY_N ? FrameRecorder.Format.PNG : FrameRecorder.Format.Y4M;
+	    		renderCommands.add(() -> toggleRecording(format));
 	    	}
 	    	else if( key == GLFW_KEY_7 ) {
 	    		//reflection by manipulating mesh
-	    		gameItems[currentObj].getMesh().reflectMesh(new Vector3f(0f,0f,0f), new Vector3f(0f, 0f, 1f));
+	    		Mesh mesh = gameItems[currentObj].getMesh();
+	    		renderCommands.add(() -> mesh.reflectMesh(new Vector3f(0f,0f,0f), new Vector3f(0f, 0f, 1f)));
+	    	}
+	    	else if( key == GLFW_KEY_L ) {
+	    		//add a batch of small random point lights around the objects
+	    		addPointLights(POINT_LIGHT_BATCH);
+	    	}
+	    	else if( key == GLFW_KEY_K ) {
+	    		//remove the additional point lights
+	    		pointLights.clear();
+	    		pointLightArray = new PointLight[0];
+	    		System.out.println("point lights: 0");
+	    	}
+	    	else if( key == GLFW_KEY_X ) {
+	    		//toggle between forward and deferred shading
+	    		renderCommands.add(() -> {
+	    			Renderer.RenderPath path = renderer.getRenderPath() == Renderer.RenderPath.FORWARD
+	    					? Renderer.RenderPath.DEFERRED : Renderer.RenderPath.FORWARD;
+	    			renderer.setRenderPath(path);
+	    			System.out.println("render path: " + path.name().toLowerCase());
+	    		});
+	    	}
+	    	else if( key == GLFW_KEY_B ) {
+	    		//show the per-pass CPU and GPU times
+	    		renderCommands.add(() -> renderer.setShowProfiler(!renderer.isShowProfiler()));
+	    	}
+	    	else if( key == GLFW_KEY_C ) {
+	    		//toggle software occlusion culling
+	    		renderCommands.add(() -> {
+	    			renderer.setOcclusionCulling(!renderer.isOcclusionCulling());
+	    			System.out.println("occlusion culling: " + renderer.isOcclusionCulling());
+	    		});
+	    	}
+	    	else if( key == GLFW_KEY_Z ) {
+	    		//toggle dynamic resolution at the engine's target frame rate
+	    		renderCommands.add(() -> {
+	    			dynamicResolutionFps = dynamicResolutionFps > 0 ? 0 : GameEngine.TARGET_FPS;
+	    			applyDynamicResolution();
+	    			System.out.println("dynamic resolution: " + (dynamicResolutionFps > 0 ? dynamicResolutionFps + " fps" : "off"));
+	    		});
+	    	}
+	    	else if( key == GLFW_KEY_V ) {
+	    		//use the selected object as an occluder
+	    		GameItem item = gameItems[currentObj];
+	    		item.setOccluder(!item.isOccluder());
+	    		System.out.println("object " + currentObj + " occluder: " + item.isOccluder());
 	    	}
     	}
     } // end respond_key_action
 
+    private void toggleRecording(FrameRecorder.Format format) {
+        if (renderer.isRecording()) {
+            renderer.stopRecording();
+            return;
+        }
+        File output = new File(format == FrameRecorder.Format.PNG
+                ? "recording" + recordingCount : "recording" + recordingCount + ".y4m");
+        recordingCount++;
+        try {
+            renderer.startRecording(output, format, FrameRecorder.Policy.DEGRADE);
+        } catch (IOException e) {
+            System.err.println("cannot record to " + output + ": " + e.getMessage());
+        }
+    }
+
+    private void addPointLights(int count) {
+        Random random = new Random();
+        for (int i = 0; i < count; i++) {
+            Vector3f colour = new Vector3f(random.nextFloat(), random.nextFloat(), random.nextFloat());
+            Vector3f position = new Vector3f(
+                    random.nextFloat() * 3f - 1.5f,
+                    random.nextFloat() * 2.4f - 1.2f,
+                    random.nextFloat() * -3f - 0.5f);
+            PointLight light = new PointLight(colour, position, 0.5f);
+            light.setAttenuation(new PointLight.Attenuation(1.0f, 0.0f, 400.0f));
+            pointLights.add(light);
+        }
+        pointLightArray = pointLights.toArray(new PointLight[0]);
+        System.out.println("point lights: " + pointLightArray.length);
+    }
+
     /**
      * This function responds keys "continuously". For example, when the user is pressing the key,
      * this function will respond to the key pressing at each game loop. Effectively, holding the key
@@ -205,88 +395,93 @@ public class SimpleGame implements IControlLogic {
      */
     @Override
     public void input(Window window, MouseInput mouseInput) {
+        // every drag since the last frame, applied by the next update even if it comes frames later
+        pendingRotation.add(mouseInput.getDragVec());
  
-        if(window.isKeyPressed(GLFW_KEY_E)){
+        if(mouseInput.isKeyPressed(GLFW_KEY_E)){
     		//scale object
     		float curr = gameItems[currentObj].getScale();
     		gameItems[currentObj].setScale(curr+SCALE_STEP);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_R)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_R)){
     		//scale object
     		float curr = gameItems[currentObj].getScale();
     		gameItems[currentObj].setScale(curr-SCALE_STEP);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_T)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_T)){
     		//move object x by step
     		Vector3f curr = gameItems[currentObj].getPosition();
     		gameItems[currentObj].setPosition(curr.x+TRANSLATE_STEP, curr.y, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_Y)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_Y)){
     		//move object x by step
     		Vector3f curr = gameItems[currentObj].getPosition();
     		gameItems[currentObj].setPosition(curr.x-TRANSLATE_STEP, curr.y, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_U)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_U)){
     		//move object y by step
     		Vector3f curr = gameItems[currentObj].getPosition();
     		gameItems[currentObj].setPosition(curr.x, curr.y+TRANSLATE_STEP, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_I)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_I)){
     		//move object y by step
     		Vector3f curr = gameItems[currentObj].getPosition();
     		gameItems[currentObj].setPosition(curr.x, curr.y-TRANSLATE_STEP, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_O)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_O)){
     		//move object z by step
     		Vector3f curr = gameItems[currentObj].getPosition();
     		gameItems[currentObj].setPosition(curr.x, curr.y, curr.z+TRANSLATE_STEP);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_P)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_P)){
     		//move object z by step
     		Vector3f curr = gameItems[currentObj].getPosition();
     		gameItems[currentObj].setPosition(curr.x, curr.y, curr.z-TRANSLATE_STEP);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_A)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_A)){
     		//rotate object at x axis
     		Vector3f curr = gameItems[currentObj].getRotation();
     		gameItems[currentObj].setRotation(curr.x+ROTATION_STEP, curr.y, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_S)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_S)){
     		//rotate object at x axis
     		Vector3f curr = gameItems[currentObj].getRotation();
     		gameItems[currentObj].setRotation(curr.x-ROTATION_STEP, curr.y, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_D)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_D)){
     		//rotate object at x axis
     		Vector3f curr = gameItems[currentObj].getRotation();
     		gameItems[currentObj].setRotation(curr.x, curr.y+ROTATION_STEP, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_F)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_F)){
     		//rotate object at x axis
     		Vector3f curr = gameItems[currentObj].getRotation();
     		gameItems[currentObj].setRotation(curr.x, curr.y-ROTATION_STEP, curr.z);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_G)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_G)){
     		//rotate object at x axis
     		Vector3f curr = gameItems[currentObj].getRotation();
     		gameItems[currentObj].setRotation(curr.x, curr.y, curr.z+ROTATION_STEP);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_H)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_H)){
     		//rotate object at x axis
     		Vector3f curr = gameItems[currentObj].getRotation();
     		gameItems[currentObj].setRotation(curr.x, curr.y, curr.z-ROTATION_STEP);
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_0)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_0)){
     		//translation by manipulating mesh
-    		gameItems[currentObj].getMesh().translateMesh(new Vector3f(0f,0.05f,0.01f));
+    		Mesh mesh = gameItems[currentObj].getMesh();
+    		renderCommands.add(() -> mesh.translateMesh(new Vector3f(0f,0.05f,0.01f)));
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_9)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_9)){
     		//rotation by manipulating mesh
-    		gameItems[currentObj].getMesh().rotateMesh(new Vector3f(1,1,1), 2);
+    		Mesh mesh = gameItems[currentObj].getMesh();
+    		renderCommands.add(() -> mesh.rotateMesh(new Vector3f(1,1,1), 2));
     	}
-    	else if(window.isKeyPressed(GLFW_KEY_8)){
+    	else if(mouseInput.isKeyPressed(GLFW_KEY_8)){
     		//scale by manipulating mesh
-    		gameItems[currentObj].getMesh().scaleMesh(1.001f,1.0f,1.0f);
+    		Mesh mesh = gameItems[currentObj].getMesh();
+    		renderCommands.add(() -> mesh.scaleMesh(1.001f,1.0f,1.0f));
     	}
     }
 
@@ -296,10 +491,10 @@ public class SimpleGame implements IControlLogic {
         camera.movePosition(cameraInc.x * CAMERA_POS_STEP, cameraInc.y * CAMERA_POS_STEP, cameraInc.z * CAMERA_POS_STEP);
 
         // Update camera based on mouse            
-        if (mouseInput.isLeftButtonPressed()) {
-            Vector2f rotVec = mouseInput.getDisplVec();
+        if (pendingRotation.x != 0 || pendingRotation.y != 0) {
             Vector3f curr = gameItems[0].getRotation();
-            gameItems[0].setRotation(curr.x-rotVec.x * MOUSE_SENSITIVITY, curr.y-rotVec.y * MOUSE_SENSITIVITY, 0);
+            gameItems[0].setRotation(curr.x-pendingRotation.x * MOUSE_SENSITIVITY, curr.y-pendingRotation.y * MOUSE_SENSITIVITY, 0);
+            pendingRotation.zero();
         }
 
         // Update directional light direction, intensity and color
@@ -326,9 +521,57 @@ public class SimpleGame implements IControlLogic {
         directionalLight.getDirection().y = (float) Math.cos(angRad);
     }
 
+    /**
+     * Run the changes to the renderer and the meshes queued by input.
+     */
+    private void runRenderCommands() {
+        Runnable command;
+        while ((command = renderCommands.poll()) != null) {
+            command.run();
+        }
+    }
+
     @Override
     public void render(Window window) {
-        renderer.render(window, camera, gameItems, ambientLight, pointLight, directionalLight, renderer.getShaderName(currentShaderIndex));
+        runRenderCommands();
+        renderer.render(window, camera, gameItems, ambientLight, pointLight, pointLightArray, directionalLight, renderer.getShaderName(currentShaderIndex));
+    }
+
+    @Override
+    public void writeSnapshot(SceneSnapshot snapshot) {
+        snapshot.setItems(gameItems);
+        snapshot.setCamera(camera);
+        snapshot.setPointLight(pointLight);
+        snapshot.setPointLights(pointLightArray);
+        snapshot.setDirectionalLight(directionalLight);
+        snapshot.setShaderName(renderer.getShaderName(currentShaderIndex));
+    }
+
+    @Override
+    public void render(Window window, SceneSnapshot snapshot) {
+        runRenderCommands();
+        if (renderItems == null) {
+            renderItems = new GameItem[gameItems.length];
+            for (int i = 0; i < gameItems.length; i++) {
+                renderItems[i] = new GameItem(gameItems[i].getMesh());
+            }
+            renderCamera = new Camera();
+            renderPointLight = new PointLight(pointLight);
+            renderDirectionalLight = new DirectionalLight(directionalLight);
+        }
+        if (renderPointLights.length != snapshot.getPointLightCount()) {
+            renderPointLights = new PointLight[snapshot.getPointLightCount()];
+            for (int i = 0; i < renderPointLights.length; i++) {
+                renderPointLights[i] = new PointLight(new Vector3f(), new Vector3f(), 0);
+            }
+        }
+        snapshot.applyTo(renderItems);
+        snapshot.applyTo(renderCamera);
+        snapshot.applyTo(renderPointLight);
+        snapshot.applyTo(renderPointLights);
+        snapshot.applyTo(renderDirectionalLight);
+        renderer.render(window, renderCamera, renderItems, ambientLight, renderPointLight, renderPointLights,
+                renderDirectionalLight, snapshot.getShaderName());
     }
 
     @Override
@@ -336,6 +579,16 @@ public class SimpleGame implements IControlLogic {
         renderer.cleanup();
         for (GameItem gameItem : gameItems) {
             gameItem.getMesh().cleanUp();
+            gameItem.getMesh().getMaterial().cleanup();
+        }
+        System.out.println(TextureManager.getShared().report());
+        TextureManager.getShared().cleanup();
+        if (textureArrayBuilder != null) {
+            textureArrayBuilder.cleanup();
+        }
+        if (textureStreamer != null) {
+            System.out.println(textureStreamer.report());
+            textureStreamer.cleanup();
         }
     }
 }